@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language.model;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.os.Build;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+
+@RunWith(AndroidJUnit4.class)
+public class DependencyTreeTest {
+
+    private static final String TAG = "DependencyTreeTest";
+
+    private static final String[] WORDS = {"The", "quick", "brown", "fox", "jumps", "over",
+            "the", "lazy", "dog", "."};
+
+    /** The heads of {@link #WORDS}, relative to the start of the sentence. */
+    private static final int[] HEADS = {3, 3, 3, 4, 4, 4, 8, 8, 5, 4};
+
+    private static final String[] LABELS = {"DET", "AMOD", "AMOD", "NSUBJ", "ROOT", "PREP",
+            "DET", "AMOD", "POBJ", "P"};
+
+    @Test
+    public void children() {
+        final DependencyTree tree = createTable(1).getDependencyTree();
+        assertThat(tree.getHead(4), is(-1));
+        assertThat(tree.getHead(8), is(5));
+        assertThat(tree.getChildCount(4), is(3));
+        assertThat(tree.getChild(4, 0), is(3));
+        assertThat(tree.getChildren(4), is(equalTo(new int[]{3, 5, 9})));
+        assertThat(tree.getChildren(3, "AMOD"), is(equalTo(new int[]{1, 2})));
+        assertThat(tree.getChildren(3, "NEG"), is(equalTo(new int[0])));
+        assertThat(tree.getChildren(0), is(equalTo(new int[0])));
+        assertThat(tree.findChild(4, "NSUBJ"), is(3));
+        assertThat(tree.findChild(4, "DOBJ"), is(-1));
+    }
+
+    @Test
+    public void roots() {
+        final DependencyTree tree = createTable(3).getDependencyTree();
+        assertThat(tree.getRoots(), is(equalTo(new int[]{4, 14, 24})));
+        assertThat(tree.getRoot(4), is(4));
+        assertThat(tree.getRoot(16), is(14));
+        assertThat(tree.getDepth(4), is(0));
+        assertThat(tree.getDepth(26), is(3));
+    }
+
+    @Test
+    public void subtree() {
+        final TokenTable table = createTable(2);
+        final DependencyTree tree = table.getDependencyTree();
+        assertThat(tree.getSubtreeSize(14), is(10));
+        assertThat(tree.getSubtree(15), is(equalTo(new int[]{15, 18, 16, 17})));
+        assertThat(tree.getFirstToken(15), is(15));
+        assertThat(tree.getLastToken(15), is(18));
+        // "over the lazy dog"
+        final String document = createDocument(2);
+        assertThat(document.substring(tree.getSpanBeginOffset(15), tree.getSpanEndOffset(15)),
+                is(equalTo("over the lazy dog")));
+        assertThat(tree.isInSubtree(17, 15), is(true));
+        assertThat(tree.isInSubtree(15, 15), is(true));
+        assertThat(tree.isInSubtree(13, 15), is(false));
+        assertThat(tree.isInSubtree(7, 14), is(false));
+        assertThat(tree.getDescendants(14, "DET"), is(equalTo(new int[]{10, 16})));
+        assertThat(tree.getDescendants(15, "AMOD"), is(equalTo(new int[]{17})));
+    }
+
+    @Test
+    public void cycle() {
+        final TokenTable table = new TokenTable.Builder()
+                .add("a", -1, null, null, 1, "DEP")
+                .add("b", -1, null, null, 0, "DEP")
+                .add("c", -1, null, null, 2, "ROOT")
+                .build();
+        final DependencyTree tree = table.getDependencyTree();
+        assertThat(tree.getRoots(), is(equalTo(new int[]{2})));
+        assertThat(tree.getSubtreeSize(2), is(1));
+        // Each token still belongs to one tree
+        assertThat(tree.getRoot(1), is(tree.getRoot(0)));
+        assertThat(tree.getSubtreeSize(tree.getRoot(0)), is(2));
+    }
+
+    @Test
+    public void builtOnce() {
+        final TokenTable table = createTable(1);
+        assertThat(table.getDependencyTree(), is(sameInstance(table.getDependencyTree())));
+    }
+
+    /**
+     * Compares finding the children of the subject of each sentence by scanning the heads with
+     * the same queries on a {@link DependencyTree}. The times depend on the runtime, so the device
+     * is logged first.
+     */
+    @Test
+    public void benchmark() {
+        Log.i(TAG, String.format("On %s, API %d", Build.MODEL, Build.VERSION.SDK_INT));
+        final int[] sizes = {1000, 10000, 100000};
+        for (int size : sizes) {
+            final TokenTable table = createTable(size / WORDS.length);
+
+            // What a caller would do with only the heads: scan all the tokens for each query
+            long start = System.nanoTime();
+            int scanned = 0;
+            for (int root = 0; root < table.size(); root++) {
+                if (table.getHeadTokenIndex(root) != root) {
+                    continue;
+                }
+                for (int i = 0; i < table.size(); i++) {
+                    if (i != root && table.getHeadTokenIndex(i) == root
+                            && "NSUBJ".equals(table.getLabel(i))) {
+                        for (int j = 0; j < table.size(); j++) {
+                            if (table.getHeadTokenIndex(j) == i) {
+                                scanned++;
+                            }
+                        }
+                    }
+                }
+            }
+            final double scanMillis = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            final DependencyTree tree = new DependencyTree(table);
+            final double buildMillis = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            int indexed = 0;
+            for (int root : tree.getRoots()) {
+                for (int subject : tree.getChildren(root, "NSUBJ")) {
+                    indexed += tree.getChildCount(subject);
+                }
+            }
+            final double queryMillis = (System.nanoTime() - start) / 1e6;
+
+            Log.i(TAG, String.format("%6d tokens: scans %9.1f ms; index built in %6.1f ms, "
+                    + "queried in %6.1f ms", size, scanMillis, buildMillis, queryMillis));
+            assertThat(indexed, is(scanned));
+        }
+    }
+
+    private static String createDocument(int sentences) {
+        final StringBuilder document = new StringBuilder();
+        for (int i = 0; i < sentences * WORDS.length; i++) {
+            document.append(WORDS[i % WORDS.length]).append(' ');
+        }
+        return document.toString();
+    }
+
+    /**
+     * Creates the tokens of a document with the same sentence repeated.
+     */
+    private static TokenTable createTable(int sentences) {
+        final int size = sentences * WORDS.length;
+        final TokenTable.Builder builder = new TokenTable.Builder(createDocument(sentences), size);
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            final int word = i % WORDS.length;
+            builder.add(WORDS[word], offset, WORDS[word].toLowerCase(), null,
+                    i - word + HEADS[word], LABELS[word]);
+            offset += WORDS[word].length() + 1;
+        }
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language.model;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.os.Build;
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(AndroidJUnit4.class)
+public class TokenTableTest {
+
+    private static final String TAG = "TokenTableTest";
+
+    private static final String[] WORDS = {"The", "quick", "brown", "fox", "jumps", "over",
+            "the", "lazy", "dog", "."};
+
+    private static final String[] TAGS = {"DET", "ADJ", "ADJ", "NOUN", "VERB", "ADP", "DET",
+            "ADJ", "NOUN", "PUNCT"};
+
+    private static final String[] LABELS = {"DET", "AMOD", "AMOD", "NSUBJ", "ROOT", "PREP",
+            "DET", "AMOD", "POBJ", "P"};
+
+    @Test
+    public void build() {
+        final String document = "The fox.";
+        final TokenTable table = new TokenTable.Builder(document)
+                .add("The", 0, "the", "DET", 1, "DET")
+                .add("fox", 4, "fox", "NOUN", 1, "ROOT")
+                .add("!", -1, null, null, -1, null)
+                .build();
+        assertThat(table.size(), is(3));
+        assertThat(table.getText(0), is(equalTo("The")));
+        assertThat(table.getText(1), is(equalTo("fox")));
+        assertThat(table.getTextLength(1), is(3));
+        assertThat(table.getLemma(0), is(equalTo("the")));
+        assertThat(table.getPartOfSpeech(1), is(equalTo("NOUN")));
+        assertThat(table.getHeadTokenIndex(0), is(1));
+        assertThat(table.getLabel(1), is(equalTo("ROOT")));
+        // Not in the document
+        assertThat(table.getText(2), is(equalTo("!")));
+        assertThat(table.getLemma(2), is(nullValue()));
+        assertThat(table.getPartOfSpeech(2), is(nullValue()));
+        assertThat(table.getLabel(2), is(nullValue()));
+    }
+
+    @Test
+    public void addFromTable() {
+        final TokenTable segment = new TokenTable.Builder("fox jumps")
+                .add("fox", 0, "fox", "NOUN", 1, "NSUBJ")
+                .add("jumps", 4, "jump", "VERB", 1, "ROOT")
+                .build();
+        final TokenTable.Builder builder = new TokenTable.Builder("The fox jumps");
+        builder.add("The", 0, "the", "DET", 1, "DET");
+        for (int i = 0; i < segment.size(); i++) {
+            builder.add(segment, i, segment.getBeginOffset(i) + 4,
+                    segment.getHeadTokenIndex(i) + 1);
+        }
+        final TokenTable table = builder.build();
+        assertThat(table.size(), is(3));
+        assertThat(table.getText(2), is(equalTo("jumps")));
+        assertThat(table.getBeginOffset(2), is(8));
+        assertThat(table.getHeadTokenIndex(1), is(2));
+        assertThat(table.getLemma(2), is(equalTo("jump")));
+    }
+
+    @Test
+    public void parcel() {
+        final TokenTable original = createTable(createDocument(100), 100);
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(original, 0);
+            parcel.setDataPosition(0);
+            final TokenTable restored = parcel.readParcelable(getClass().getClassLoader());
+            assertThat(restored.size(), is(original.size()));
+            for (int i = 0; i < original.size(); i++) {
+                assertThat(restored.getText(i), is(equalTo(original.getText(i))));
+                assertThat(restored.getBeginOffset(i), is(original.getBeginOffset(i)));
+                assertThat(restored.getLemma(i), is(equalTo(original.getLemma(i))));
+                assertThat(restored.getPartOfSpeech(i),
+                        is(equalTo(original.getPartOfSpeech(i))));
+                assertThat(restored.getHeadTokenIndex(i), is(original.getHeadTokenIndex(i)));
+                assertThat(restored.getLabel(i), is(equalTo(original.getLabel(i))));
+            }
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Compares the memory, parcel size and parcel time of a {@link TokenTable} with those of a
+     * {@code TokenInfo[]}. The heap layout and the Parcel are those of the runtime, so the results
+     * are logged with the device they were measured on.
+     */
+    @Test
+    public void benchmark() {
+        Log.i(TAG, String.format("On %s, API %d", Build.MODEL, Build.VERSION.SDK_INT));
+        final int[] sizes = {1000, 10000, 100000};
+        for (int size : sizes) {
+            final String document = createDocument(size);
+            final TokenTable table = createTable(document, size);
+            final TokenInfo[] array = new TokenInfo[size];
+            for (int i = 0; i < size; i++) {
+                array[i] = table.get(i);
+            }
+
+            final long arrayMemory = measureMemory(new Factory() {
+                @Override
+                public Object create(TokenTable table) {
+                    // Each token has its own strings, like the ones parsed from JSON
+                    final TokenInfo[] array = new TokenInfo[table.size()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = new TokenInfo(new String(table.getText(i)),
+                                table.getBeginOffset(i), new String(table.getLemma(i)),
+                                table.getPartOfSpeech(i), table.getHeadTokenIndex(i),
+                                table.getLabel(i));
+                    }
+                    return array;
+                }
+            }, table);
+            // The document is kept anyway, so the table does not add to it
+            final long tableMemory = measureMemory(new Factory() {
+                @Override
+                public Object create(TokenTable table) {
+                    return copy(document, table);
+                }
+            }, table);
+
+            final Parcel parcel = Parcel.obtain();
+            try {
+                long start = System.nanoTime();
+                parcel.writeParcelableArray(array, 0);
+                final int arrayBytes = parcel.dataSize();
+                parcel.setDataPosition(0);
+                parcel.readParcelableArray(getClass().getClassLoader());
+                final double arrayMillis = (System.nanoTime() - start) / 1e6;
+
+                parcel.setDataSize(0);
+                parcel.setDataPosition(0);
+                start = System.nanoTime();
+                parcel.writeParcelable(table, 0);
+                final int tableBytes = parcel.dataSize();
+                parcel.setDataPosition(0);
+                parcel.readParcelable(getClass().getClassLoader());
+                final double tableMillis = (System.nanoTime() - start) / 1e6;
+
+                Log.i(TAG, String.format("%6d tokens: TokenInfo[] %9d bytes in memory, "
+                                + "%9d bytes parceled, %7.1f ms; "
+                                + "TokenTable %9d bytes in memory, %9d bytes parceled, %7.1f ms",
+                        size, arrayMemory, arrayBytes, arrayMillis,
+                        tableMemory, tableBytes, tableMillis));
+                assertTrue(tableBytes < arrayBytes);
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    private interface Factory {
+        Object create(TokenTable table);
+    }
+
+    /**
+     * Measures the heap taken by 10 objects created by the factory.
+     */
+    private static long measureMemory(Factory factory, TokenTable table) {
+        final Object[] objects = new Object[10];
+        final long before = usedMemory();
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = factory.create(table);
+        }
+        final long after = usedMemory();
+        // Keeps the objects reachable until measured
+        assertTrue(objects[objects.length - 1] != null);
+        return (after - before) / objects.length;
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static TokenTable copy(String document, TokenTable table) {
+        final TokenTable.Builder builder = new TokenTable.Builder(document, table.size());
+        for (int i = 0; i < table.size(); i++) {
+            builder.add(table, i, table.getBeginOffset(i), table.getHeadTokenIndex(i));
+        }
+        return builder.build();
+    }
+
+    private static String createDocument(int size) {
+        final StringBuilder document = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            document.append(WORDS[i % WORDS.length]).append(' ');
+        }
+        return document.toString();
+    }
+
+    private static TokenTable createTable(String document, int size) {
+        final TokenTable.Builder builder = new TokenTable.Builder(document, size);
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            final int word = i % WORDS.length;
+            builder.add(WORDS[word], offset, WORDS[word].toLowerCase(), TAGS[word],
+                    i - word + 4, LABELS[word]);
+            offset += WORDS[word].length() + 1;
+        }
+        return builder.build();
+    }
+
+}
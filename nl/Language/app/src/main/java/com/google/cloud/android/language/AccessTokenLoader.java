@@ -21,19 +21,51 @@ import com.google.api.services.language.v1.CloudNaturalLanguageScopes;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.os.TraceCompat;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 
 
+/**
+ * Loads an access token for the API.
+ *
+ * <p>The token is stored with its expiration time. A stored token that is still valid is
+ * delivered right away when the loader starts, without going to the network, and a new token is
+ * loaded in the background {@link #REFRESH_MARGIN_MILLIS} before the current one expires. If
+ * that fails, the current token is delivered again until it expires, and the refresh is retried
+ * every {@link #RETRY_MILLIS}.</p>
+ */
 public class AccessTokenLoader extends AsyncTaskLoader<String> {
 
     private static final String TAG = "AccessTokenLoader";
 
     private static final String PREFS = "AccessTokenLoader";
     private static final String PREF_ACCESS_TOKEN = "access_token";
+    private static final String PREF_EXPIRATION_TIME = "access_token_expiration_time";
+
+    /** A token is replaced when it expires sooner than this. */
+    private static final long REFRESH_MARGIN_MILLIS = 5 * 60 * 1000; // five minutes
+
+    /** How long to wait before trying again after a failed refresh. */
+    private static final long RETRY_MILLIS = 30 * 1000; // thirty seconds
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            onContentChanged();
+        }
+    };
+
+    private String mToken;
+
+    private volatile long mExpirationTime;
 
     public AccessTokenLoader(Context context) {
         super(context);
@@ -41,25 +73,51 @@ public class AccessTokenLoader extends AsyncTaskLoader<String> {
 
     @Override
     protected void onStartLoading() {
-        forceLoad();
+        if (mToken == null) {
+            // Reading the preferences is much faster than a token refresh
+            final SharedPreferences prefs = getPreferences();
+            mToken = prefs.getString(PREF_ACCESS_TOKEN, null);
+            mExpirationTime = prefs.getLong(PREF_EXPIRATION_TIME, 0);
+        }
+        if (isFresh(mToken, mExpirationTime)) {
+            deliverResult(mToken);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
-    public String loadInBackground() {
+    protected void onReset() {
+        super.onReset();
+        mHandler.removeCallbacks(mRefresh);
+    }
 
-        final SharedPreferences prefs =
-                getContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
-        String currentToken = prefs.getString(PREF_ACCESS_TOKEN, null);
+    @Override
+    public void deliverResult(String token) {
+        mHandler.removeCallbacks(mRefresh);
+        if (token != null) {
+            mToken = token;
+            // Load the next token ahead of the expiry of this one. A token that is already due,
+            // such as one kept after a failed refresh or one with an unknown expiry, is refreshed
+            // no sooner than a retry.
+            mHandler.postDelayed(mRefresh, Math.max(RETRY_MILLIS, mExpirationTime
+                    - System.currentTimeMillis() - REFRESH_MARGIN_MILLIS));
+        } else {
+            mHandler.postDelayed(mRefresh, RETRY_MILLIS);
+        }
+        super.deliverResult(token);
+    }
+
+    @Override
+    public String loadInBackground() {
+        final SharedPreferences prefs = getPreferences();
+        final String currentToken = prefs.getString(PREF_ACCESS_TOKEN, null);
+        final long expirationTime = prefs.getLong(PREF_EXPIRATION_TIME, 0);
 
         // Check if the current token is still valid for a while
-        if (currentToken != null) {
-            final GoogleCredential credential = new GoogleCredential()
-                    .setAccessToken(currentToken)
-                    .createScoped(CloudNaturalLanguageScopes.all());
-            final Long seconds = credential.getExpiresInSeconds();
-            if (seconds != null && seconds > 3600) {
-                return currentToken;
-            }
+        if (isFresh(currentToken, expirationTime)) {
+            mExpirationTime = expirationTime;
+            return currentToken;
         }
 
         // ***** WARNING *****
@@ -67,18 +125,48 @@ public class AccessTokenLoader extends AsyncTaskLoader<String> {
         // of this client app. You should never do this in your app. Instead, store the file in your
         // server and obtain an access token from there.
         // *******************
+        TraceCompat.beginSection("AccessTokenLoader.refresh");
         final InputStream stream = getContext().getResources().openRawResource(R.raw.credential);
         try {
             final GoogleCredential credential = GoogleCredential.fromStream(stream)
                     .createScoped(CloudNaturalLanguageScopes.all());
             credential.refreshToken();
             final String accessToken = credential.getAccessToken();
-            prefs.edit().putString(PREF_ACCESS_TOKEN, accessToken).apply();
+            final Long expiration = credential.getExpirationTimeMilliseconds();
+            mExpirationTime = expiration != null ? expiration : 0;
+            prefs.edit()
+                    .putString(PREF_ACCESS_TOKEN, accessToken)
+                    .putLong(PREF_EXPIRATION_TIME, mExpirationTime)
+                    .apply();
             return accessToken;
         } catch (IOException e) {
             Log.e(TAG, "Failed to obtain access token.", e);
+            // Keep using the current token, such as while offline, until it actually expires
+            if (currentToken != null && expirationTime > System.currentTimeMillis()) {
+                mExpirationTime = expirationTime;
+                return currentToken;
+            }
+        } finally {
+            TraceCompat.endSection();
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Ignore
+            }
         }
         return null;
     }
 
+    private SharedPreferences getPreferences() {
+        return getContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return Whether the token is valid for longer than {@link #REFRESH_MARGIN_MILLIS}.
+     */
+    private static boolean isFresh(String token, long expirationTime) {
+        return token != null
+                && expirationTime > System.currentTimeMillis() + REFRESH_MARGIN_MILLIS;
+    }
+
 }
@@ -0,0 +1,601 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import com.google.api.services.language.v1.CloudNaturalLanguage;
+import com.google.api.services.language.v1.model.Features;
+import com.google.cloud.android.language.model.EntityInfo;
+import com.google.cloud.android.language.model.SentimentInfo;
+import com.google.cloud.android.language.model.TokenTable;
+
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Caches analysis results in memory and on disk.
+ *
+ * <p>Results are keyed by a hash of the text, the requested features and the API version, so the
+ * same text analyzed again is served without going to the network. The memory tier evicts the
+ * least recently used results once their estimated size exceeds its limit. The disk tier keeps
+ * each result in a compact binary file, and deletes the least recently used files once they
+ * exceed their limit.</p>
+ *
+ * <p>{@link #get(String)} and {@link #put(String, AnalysisResult)} read and write files, so they
+ * should not be called on the main thread. {@link #getFromMemory(String)} does not. With
+ * {@link #setWriteExecutor(Executor)}, files are written in the background instead, and a result
+ * is only found in memory until its file is written.</p>
+ */
+public class AnalysisCache {
+
+    private static final String TAG = "AnalysisCache";
+
+    public static final int DEFAULT_MAX_MEMORY_BYTES = 2 * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_DISK_BYTES = 10 * 1024 * 1024;
+
+    /** Changes whenever the format of the files changes, so that old files are not read. */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x4e4c4331; // "NLC1"
+
+    private static final int HAS_ENTITIES = 1;
+    private static final int HAS_SENTIMENT = 1 << 1;
+    private static final int HAS_TOKENS = 1 << 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final LruCache<String, AnalysisResult> mMemory;
+
+    private final File mDirectory;
+
+    private final long mMaxDiskBytes;
+
+    /** Guards the files in {@link #mDirectory}. */
+    private final Object mDiskLock = new Object();
+
+    /**
+     * The total size of the files, so that the directory is only listed when it is full, or -1
+     * until it is first listed. Guarded by {@link #mDiskLock}.
+     */
+    private long mDiskBytes = -1;
+
+    private volatile Executor mWriteExecutor;
+
+    private final AtomicInteger mMemoryHits = new AtomicInteger();
+    private final AtomicInteger mDiskHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mMemoryEvictions = new AtomicInteger();
+    private final AtomicInteger mDiskEvictions = new AtomicInteger();
+
+    /**
+     * @param directory The directory for the disk tier, typically under the cache directory.
+     */
+    public AnalysisCache(File directory) {
+        this(directory, DEFAULT_MAX_MEMORY_BYTES, DEFAULT_MAX_DISK_BYTES);
+    }
+
+    public AnalysisCache(File directory, int maxMemoryBytes, long maxDiskBytes) {
+        mDirectory = directory;
+        mMaxDiskBytes = maxDiskBytes;
+        mMemory = new LruCache<String, AnalysisResult>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, AnalysisResult value) {
+                return value.estimateSize();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, AnalysisResult oldValue,
+                    AnalysisResult newValue) {
+                if (evicted) {
+                    mMemoryEvictions.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes the files on the executor, so that {@link #put(String, AnalysisResult)} does not wait
+     * for them. A single thread is enough, as the writes are serialized anyway.
+     *
+     * @param executor The executor, or {@code null} to write the files in {@code put}.
+     */
+    public void setWriteExecutor(Executor executor) {
+        mWriteExecutor = executor;
+    }
+
+    /**
+     * Computes the key of an analysis.
+     *
+     * @param text     The text to be analyzed.
+     * @param features The features to be extracted.
+     * @return The key.
+     */
+    public static String key(String text, Features features) {
+        return key("", text, features);
+    }
+
+    /**
+     * Computes the key of an analysis in a scope, so that results of the same text that are not
+     * interchangeable have different keys.
+     *
+     * @param scope    The scope, such as {@link IncrementalAnalyzer#SCOPE_SEGMENT}.
+     * @param text     The text to be analyzed.
+     * @param features The features to be extracted.
+     * @return The key.
+     */
+    static String key(String scope, String text, Features features) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(CloudNaturalLanguage.DEFAULT_SERVICE_PATH.getBytes(UTF_8));
+        digest.update((byte) FORMAT_VERSION);
+        digest.update(scope.getBytes(UTF_8));
+        digest.update((byte) 0);
+        int flags = 0;
+        if (Boolean.TRUE.equals(features.getExtractEntities())) {
+            flags |= HAS_ENTITIES;
+        }
+        if (Boolean.TRUE.equals(features.getExtractDocumentSentiment())) {
+            flags |= HAS_SENTIMENT;
+        }
+        if (Boolean.TRUE.equals(features.getExtractSyntax())) {
+            flags |= HAS_TOKENS;
+        }
+        digest.update((byte) flags);
+        final byte[] hash = digest.digest(text.getBytes(UTF_8));
+        final StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Looks up a result in memory only. This is cheap enough for the main thread.
+     *
+     * @return The result, or {@code null} if it is not in memory.
+     */
+    public AnalysisResult getFromMemory(String key) {
+        final AnalysisResult result = mMemory.get(key);
+        if (result != null) {
+            mMemoryHits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Looks up a result in memory, and then on disk.
+     *
+     * @return The result, or {@code null} if it is not cached.
+     */
+    public AnalysisResult get(String key) {
+        final AnalysisResult cached = getFromMemory(key);
+        if (cached != null) {
+            return cached;
+        }
+        final AnalysisResult stored = readFromDisk(key);
+        if (stored == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mDiskHits.incrementAndGet();
+        mMemory.put(key, stored);
+        return stored;
+    }
+
+    public void put(final String key, final AnalysisResult result) {
+        mMemory.put(key, result);
+        final Executor executor = mWriteExecutor;
+        if (executor == null) {
+            writeToDisk(key, result);
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeToDisk(key, result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down; the result stays in memory only
+        }
+    }
+
+    /**
+     * Removes all the results, from memory and from disk.
+     */
+    public void clear() {
+        mMemory.evictAll();
+        synchronized (mDiskLock) {
+            final File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+            mDiskBytes = -1;
+        }
+    }
+
+    /**
+     * @return The number of results served from memory.
+     */
+    public int getHitCount() {
+        return mMemoryHits.get();
+    }
+
+    /**
+     * @return The number of results served from disk.
+     */
+    public int getDiskHitCount() {
+        return mDiskHits.get();
+    }
+
+    /**
+     * @return The number of results that were found neither in memory nor on disk.
+     */
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return The number of results evicted from memory to make room for others, or by
+     * {@link #clear()}.
+     */
+    public int getEvictionCount() {
+        return mMemoryEvictions.get();
+    }
+
+    /**
+     * @return The number of files deleted to make room for others.
+     */
+    public int getDiskEvictionCount() {
+        return mDiskEvictions.get();
+    }
+
+    private AnalysisResult readFromDisk(String key) {
+        synchronized (mDiskLock) {
+            final File file = new File(mDirectory, key);
+            if (!file.exists()) {
+                return null;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                final AnalysisResult result = read(in);
+                // Keeps track of the least recently used files
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+                return result;
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable cache file.", e);
+                final long length = file.length();
+                if (file.delete() && mDiskBytes >= 0) {
+                    mDiskBytes -= length;
+                }
+                return null;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    private void writeToDisk(String key, AnalysisResult result) {
+        synchronized (mDiskLock) {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                Log.w(TAG, "Failed to create the cache directory.");
+                return;
+            }
+            // Written to a temporary file first so that a crash cannot leave a partial file
+            final File temp = new File(mDirectory, key + TEMP_SUFFIX);
+            final File file = new File(mDirectory, key);
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                write(result, out);
+                out.close();
+                out = null;
+                final long replaced = file.length();
+                final long length = temp.length();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + temp);
+                }
+                if (mDiskBytes >= 0) {
+                    mDiskBytes += length - replaced;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write cache file.", e);
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                return;
+            } finally {
+                closeQuietly(out);
+            }
+            if (mDiskBytes < 0 || mDiskBytes > mMaxDiskBytes) {
+                trimDisk();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the rest fit in {@link #mMaxDiskBytes}.
+     */
+    private void trimDisk() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        mDiskBytes = total;
+        if (total <= mMaxDiskBytes) {
+            return;
+        }
+        final Map<File, Long> times = new HashMap<>();
+        for (File file : files) {
+            times.put(file, file.lastModified());
+        }
+        // lastModified() is read once up front, since it may change while sorting
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                final long ta = times.get(a);
+                final long tb = times.get(b);
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (total <= mMaxDiskBytes) {
+                break;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                mDiskEvictions.incrementAndGet();
+            }
+        }
+        mDiskBytes = total;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Writes a result in a compact binary format. Strings are written once and referred to by
+     * index afterwards, since tags, labels, types and lemmas repeat a lot. Offsets are written
+     * as the difference from the previous token.
+     */
+    static void write(AnalysisResult result, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        int flags = 0;
+        if (result.entities != null) {
+            flags |= HAS_ENTITIES;
+        }
+        if (result.sentiment != null) {
+            flags |= HAS_SENTIMENT;
+        }
+        if (result.tokens != null) {
+            flags |= HAS_TOKENS;
+        }
+        out.writeByte(flags);
+        final StringWriter strings = new StringWriter(out);
+        if (result.entities != null) {
+            writeVarInt(out, result.entities.length);
+            for (EntityInfo entity : result.entities) {
+                strings.write(entity.name);
+                strings.write(entity.type);
+                out.writeFloat(entity.salience);
+                strings.write(entity.wikipediaUrl);
+            }
+        }
+        if (result.sentiment != null) {
+            out.writeFloat(result.sentiment.score);
+            out.writeFloat(result.sentiment.magnitude);
+        }
+        if (result.tokens != null) {
+            final TokenTable tokens = result.tokens;
+            final int size = tokens.size();
+            writeVarInt(out, size);
+            int previousOffset = 0;
+            for (int i = 0; i < size; i++) {
+                strings.write(tokens.getText(i));
+                final int offset = tokens.getBeginOffset(i);
+                writeVarInt(out, zigZag(offset - previousOffset));
+                previousOffset = offset;
+                strings.write(tokens.getLemma(i));
+                strings.write(tokens.getPartOfSpeech(i));
+                writeVarInt(out, tokens.getHeadTokenIndex(i) + 1);
+                strings.write(tokens.getLabel(i));
+            }
+        }
+    }
+
+    /**
+     * Reads a result written by {@link #write(AnalysisResult, DataOutputStream)}.
+     */
+    static AnalysisResult read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION) {
+            throw new IOException("Unknown format");
+        }
+        final int flags = in.readByte();
+        final StringReader strings = new StringReader(in);
+        EntityInfo[] entities = null;
+        if ((flags & HAS_ENTITIES) != 0) {
+            entities = new EntityInfo[readVarInt(in)];
+            for (int i = 0; i < entities.length; i++) {
+                final String name = strings.read();
+                final String type = strings.read();
+                final float salience = in.readFloat();
+                entities[i] = new EntityInfo(name, type, salience, strings.read());
+            }
+        }
+        SentimentInfo sentiment = null;
+        if ((flags & HAS_SENTIMENT) != 0) {
+            final float score = in.readFloat();
+            sentiment = new SentimentInfo(score, in.readFloat());
+        }
+        TokenTable tokens = null;
+        if ((flags & HAS_TOKENS) != 0) {
+            final int size = readVarInt(in);
+            final TokenTable.Builder builder = new TokenTable.Builder(null, size);
+            int offset = 0;
+            for (int i = 0; i < size; i++) {
+                final String text = strings.read();
+                offset += unZigZag(readVarInt(in));
+                final String lemma = strings.read();
+                final String partOfSpeech = strings.read();
+                final int headTokenIndex = readVarInt(in) - 1;
+                builder.add(text, offset, lemma, partOfSpeech, headTokenIndex, strings.read());
+            }
+            tokens = builder.build();
+        }
+        return new AnalysisResult(entities, sentiment, tokens);
+    }
+
+    private static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unZigZag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Writes each distinct string once. A reference is 0 for {@code null}, 1 for a new string
+     * that follows, and the index in the table plus 2 for a string that was already written.
+     */
+    private static class StringWriter {
+
+        private final DataOutputStream mOut;
+
+        private final Map<String, Integer> mTable = new HashMap<>();
+
+        StringWriter(DataOutputStream out) {
+            mOut = out;
+        }
+
+        void write(String s) throws IOException {
+            if (s == null) {
+                writeVarInt(mOut, 0);
+                return;
+            }
+            final Integer index = mTable.get(s);
+            if (index != null) {
+                writeVarInt(mOut, index + 2);
+                return;
+            }
+            mTable.put(s, mTable.size());
+            writeVarInt(mOut, 1);
+            final byte[] bytes = s.getBytes(UTF_8);
+            writeVarInt(mOut, bytes.length);
+            mOut.write(bytes);
+        }
+
+    }
+
+    private static class StringReader {
+
+        private final DataInputStream mIn;
+
+        private final List<String> mTable = new ArrayList<>();
+
+        StringReader(DataInputStream in) {
+            mIn = in;
+        }
+
+        String read() throws IOException {
+            final int reference = readVarInt(mIn);
+            if (reference == 0) {
+                return null;
+            }
+            if (reference == 1) {
+                final byte[] bytes = new byte[readVarInt(mIn)];
+                mIn.readFully(bytes);
+                final String s = new String(bytes, UTF_8);
+                mTable.add(s);
+                return s;
+            }
+            if (reference - 2 >= mTable.size()) {
+                throw new IOException("Malformed string reference");
+            }
+            return mTable.get(reference - 2);
+        }
+
+    }
+
+}
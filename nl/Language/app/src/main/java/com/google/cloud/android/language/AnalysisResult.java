@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.language.v1.model.AnalyzeEntitiesResponse;
+import com.google.api.services.language.v1.model.AnalyzeSentimentResponse;
+import com.google.api.services.language.v1.model.AnnotateTextResponse;
+import com.google.api.services.language.v1.model.Entity;
+import com.google.api.services.language.v1.model.Sentiment;
+import com.google.api.services.language.v1.model.Token;
+import com.google.cloud.android.language.model.EntityInfo;
+import com.google.cloud.android.language.model.SentimentInfo;
+import com.google.cloud.android.language.model.TokenInfo;
+import com.google.cloud.android.language.model.TokenTable;
+
+import java.util.List;
+
+
+/**
+ * The result of analyzing a text. Only the features that were requested are non-null.
+ */
+public class AnalysisResult {
+
+    public final EntityInfo[] entities;
+
+    public final SentimentInfo sentiment;
+
+    public final TokenTable tokens;
+
+    public AnalysisResult(EntityInfo[] entities, SentimentInfo sentiment, TokenTable tokens) {
+        this.entities = entities;
+        this.sentiment = sentiment;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Converts a response of the API.
+     *
+     * @return The result, or {@code null} if the response is not one of the analyses.
+     */
+    static AnalysisResult from(GenericJson response) {
+        if (response instanceof AnalyzeEntitiesResponse) {
+            final List<Entity> entities = ((AnalyzeEntitiesResponse) response).getEntities();
+            return new AnalysisResult(convertEntities(entities), null, null);
+        } else if (response instanceof AnalyzeSentimentResponse) {
+            final Sentiment sentiment =
+                    ((AnalyzeSentimentResponse) response).getDocumentSentiment();
+            return new AnalysisResult(null, new SentimentInfo(sentiment), null);
+        } else if (response instanceof AnnotateTextResponse) {
+            // Only the features that were requested are present
+            final AnnotateTextResponse annotations = (AnnotateTextResponse) response;
+            return new AnalysisResult(
+                    annotations.getEntities() == null ? null
+                            : convertEntities(annotations.getEntities()),
+                    annotations.getDocumentSentiment() == null ? null
+                            : new SentimentInfo(annotations.getDocumentSentiment()),
+                    annotations.getTokens() == null ? null
+                            : convertTokens(annotations.getTokens()));
+        }
+        return null;
+    }
+
+    /**
+     * Converts a response that was parsed by {@link AnnotateTextParser}.
+     */
+    static AnalysisResult from(AnnotateTextParser.Result result) {
+        final AnnotateTextResponse annotations = result.response;
+        return new AnalysisResult(
+                annotations.getEntities() == null ? null
+                        : convertEntities(annotations.getEntities()),
+                annotations.getDocumentSentiment() == null ? null
+                        : new SentimentInfo(annotations.getDocumentSentiment()),
+                result.tokens);
+    }
+
+    /**
+     * Roughly estimates how much memory this result takes.
+     *
+     * @return The estimated size in bytes.
+     */
+    int estimateSize() {
+        int size = 32;
+        if (entities != null) {
+            for (EntityInfo entity : entities) {
+                size += 32 + sizeOf(entity.name) + sizeOf(entity.type)
+                        + sizeOf(entity.wikipediaUrl);
+            }
+        }
+        if (sentiment != null) {
+            size += 16;
+        }
+        if (tokens != null) {
+            size += tokens.estimateSize();
+        }
+        return size;
+    }
+
+    private static int sizeOf(String s) {
+        return s == null ? 0 : 40 + 2 * s.length();
+    }
+
+    private static EntityInfo[] convertEntities(List<Entity> entities) {
+        final int size = entities == null ? 0 : entities.size();
+        final EntityInfo[] array = new EntityInfo[size];
+        for (int i = 0; i < size; i++) {
+            array[i] = new EntityInfo(entities.get(i));
+        }
+        return array;
+    }
+
+    private static TokenTable convertTokens(List<Token> tokens) {
+        final TokenTable.Builder builder = new TokenTable.Builder(null, tokens.size());
+        for (Token token : tokens) {
+            builder.add(new TokenInfo(token));
+        }
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.services.language.v1.model.AnnotateTextResponse;
+import com.google.api.services.language.v1.model.Entity;
+import com.google.api.services.language.v1.model.Sentence;
+import com.google.api.services.language.v1.model.Sentiment;
+import com.google.cloud.android.language.model.TokenTable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Parses the JSON of an {@link AnnotateTextResponse} as it is read.
+ *
+ * <p>The tokens are decoded one field at a time straight into a {@link TokenTable}, without
+ * creating a {@link com.google.api.services.language.v1.model.Token} for each of them. The rest
+ * of the response is small, and is parsed into the usual model classes.</p>
+ */
+class AnnotateTextParser {
+
+    /**
+     * The parsed response.
+     */
+    static class Result {
+
+        /** The response without its tokens. */
+        final AnnotateTextResponse response;
+
+        /** The tokens, or {@code null} if syntax was not requested. */
+        final TokenTable tokens;
+
+        Result(AnnotateTextResponse response, TokenTable tokens) {
+            this.response = response;
+            this.tokens = tokens;
+        }
+
+    }
+
+    private AnnotateTextParser() {
+    }
+
+    /**
+     * Parses a response, and closes the parser.
+     *
+     * @param parser   The parser, positioned at the start of the response.
+     * @param document The analyzed document, so that the text of the tokens can be kept as ranges
+     *                 of it. This can be {@code null}.
+     * @return The response.
+     * @throws IOException If the response cannot be read or is not valid.
+     */
+    static Result parse(JsonParser parser, String document) throws IOException {
+        try {
+            final AnnotateTextResponse response = new AnnotateTextResponse();
+            TokenTable tokens = null;
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (name) {
+                    case "tokens":
+                        tokens = parseTokens(parser, document);
+                        break;
+                    case "sentences":
+                        final List<Sentence> sentences = new ArrayList<>();
+                        parser.parseArray(sentences, Sentence.class);
+                        response.setSentences(sentences);
+                        break;
+                    case "entities":
+                        final List<Entity> entities = new ArrayList<>();
+                        parser.parseArray(entities, Entity.class);
+                        response.setEntities(entities);
+                        break;
+                    case "documentSentiment":
+                        response.setDocumentSentiment(parser.parse(Sentiment.class));
+                        break;
+                    case "language":
+                        response.setLanguage(parser.getText());
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            expect(parser.getCurrentToken(), JsonToken.END_OBJECT);
+            return new Result(response, tokens);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static TokenTable parseTokens(JsonParser parser, String document)
+            throws IOException {
+        expect(parser.getCurrentToken(), JsonToken.START_ARRAY);
+        final TokenTable.Builder builder = new TokenTable.Builder(document);
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String text = null;
+            int beginOffset = -1;
+            String lemma = null;
+            String partOfSpeech = null;
+            int headTokenIndex = -1;
+            String label = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (name) {
+                    case "text":
+                        expect(value, JsonToken.START_OBJECT);
+                        // Fields with their default value are left out of the JSON
+                        beginOffset = 0;
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String field = parser.getCurrentName();
+                            parser.nextToken();
+                            if (field.equals("content")) {
+                                text = stringValue(parser);
+                            } else if (field.equals("beginOffset")) {
+                                beginOffset = intValue(parser, 0);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                        break;
+                    case "partOfSpeech":
+                        expect(value, JsonToken.START_OBJECT);
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String field = parser.getCurrentName();
+                            parser.nextToken();
+                            if (field.equals("tag")) {
+                                partOfSpeech = stringValue(parser);
+                            } else {
+                                // Aspect, case, gender and the like are not used
+                                parser.skipChildren();
+                            }
+                        }
+                        break;
+                    case "dependencyEdge":
+                        expect(value, JsonToken.START_OBJECT);
+                        headTokenIndex = 0;
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String field = parser.getCurrentName();
+                            parser.nextToken();
+                            if (field.equals("headTokenIndex")) {
+                                headTokenIndex = intValue(parser, 0);
+                            } else if (field.equals("label")) {
+                                label = stringValue(parser);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                        break;
+                    case "lemma":
+                        lemma = parser.getText();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            builder.add(text, beginOffset, lemma, partOfSpeech, headTokenIndex, label);
+        }
+        expect(parser.getCurrentToken(), JsonToken.END_ARRAY);
+        return builder.build();
+    }
+
+    private static String stringValue(JsonParser parser) throws IOException {
+        return parser.getCurrentToken() == JsonToken.VALUE_NULL ? null : parser.getText();
+    }
+
+    private static int intValue(JsonParser parser, int defaultValue) throws IOException {
+        return parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT
+                ? parser.getIntValue() : defaultValue;
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but was " + actual);
+        }
+    }
+
+}
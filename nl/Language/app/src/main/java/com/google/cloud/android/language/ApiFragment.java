@@ -19,6 +19,8 @@ package com.google.cloud.android.language;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.GenericJson;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -26,30 +28,33 @@ import com.google.api.services.language.v1.CloudNaturalLanguage;
 import com.google.api.services.language.v1.CloudNaturalLanguageRequest;
 import com.google.api.services.language.v1.CloudNaturalLanguageScopes;
 import com.google.api.services.language.v1.model.AnalyzeEntitiesRequest;
-import com.google.api.services.language.v1.model.AnalyzeEntitiesResponse;
 import com.google.api.services.language.v1.model.AnalyzeSentimentRequest;
-import com.google.api.services.language.v1.model.AnalyzeSentimentResponse;
 import com.google.api.services.language.v1.model.AnnotateTextRequest;
-import com.google.api.services.language.v1.model.AnnotateTextResponse;
 import com.google.api.services.language.v1.model.Document;
-import com.google.api.services.language.v1.model.Entity;
 import com.google.api.services.language.v1.model.Features;
-import com.google.api.services.language.v1.model.Token;
 import com.google.cloud.android.language.model.EntityInfo;
 import com.google.cloud.android.language.model.SentimentInfo;
-import com.google.cloud.android.language.model.TokenInfo;
+import com.google.cloud.android.language.model.TokenTable;
 
 import android.app.Activity;
 import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -79,17 +84,47 @@ public class ApiFragment extends Fragment {
         /**
          * Called when a "syntax" API request is complete.
          *
-         * @param tokens The tokens.
+         * @param tokens The tokens. Their {@link TokenTable#getDependencyTree()} is already built.
          */
-        void onSyntaxReady(TokenInfo[] tokens);
+        void onSyntaxReady(TokenTable tokens);
+
+        /**
+         * Called when a large text is analyzed in parts, each time a part is complete. The
+         * results of the parts so far are delivered to the other methods before this is called.
+         *
+         * @param completed The number of parts analyzed.
+         * @param total     The number of parts.
+         */
+        void onAnalysisProgress(int completed, int total);
+
+        /**
+         * Called when the latest analysis failed. The results of the parts that completed before
+         * may have been delivered already.
+         *
+         * @param e The error.
+         */
+        void onAnalysisFailed(IOException e);
     }
 
     private static final String TAG = "ApiFragment";
 
-    private GoogleCredential mCredential;
+    private static final String CACHE_DIRECTORY = "analysis";
+
+    private static final int MAX_CONCURRENT_CHUNKS = 4;
+
+    /**
+     * Shared by all the requests, so that they reuse the kept-alive connections to the API
+     * instead of each paying for its own TLS handshake.
+     */
+    private static final HttpTransport TRANSPORT = new NetHttpTransport();
+
+    private volatile GoogleCredential mCredential;
+
+    /** Requests wait for this until there is an access token. */
+    private final CountDownLatch mCredentialReady = new CountDownLatch(1);
 
     private CloudNaturalLanguage mApi = new CloudNaturalLanguage.Builder(
-            new NetHttpTransport(),
+            TRANSPORT,
             JacksonFactory.getDefaultInstance(),
             new HttpRequestInitializer() {
                 @Override
@@ -98,17 +133,66 @@ public class ApiFragment extends Fragment {
                 }
             }).build();
 
-    private final BlockingQueue<CloudNaturalLanguageRequest<? extends GenericJson>> mRequests
-            = new ArrayBlockingQueue<>(3);
+    private final RequestExecutor mExecutor = new RequestExecutor();
 
-    private Thread mThread;
+    /** Runs the parts of a large text; this many of them are analyzed at the same time. */
+    private final ThreadPoolExecutor mChunkExecutor = new ThreadPoolExecutor(
+            MAX_CONCURRENT_CHUNKS, MAX_CONCURRENT_CHUNKS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    /** Writes the cache files, so that results are delivered without waiting for the disk. */
+    private final ExecutorService mCacheWriter = Executors.newSingleThreadExecutor();
+
+    private AnalysisCache mCache;
+
+    private IncrementalAnalyzer mIncrementalAnalyzer;
 
     private Callback mCallback;
 
+    /** Numbers the analyses in the order they are requested. */
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * The numbers of the latest analyses of each feature and of the latest incremental one.
+     * Requests run at the same time and can complete out of order, so a result is only delivered
+     * if nothing newer was requested since.
+     */
+    private volatile long mLatestEntities;
+    private volatile long mLatestSentiment;
+    private volatile long mLatestSyntax;
+    private volatile long mLatestIncremental;
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
+        mCache = new AnalysisCache(new File(getContext().getCacheDir(), CACHE_DIRECTORY));
+        mCache.setWriteExecutor(mCacheWriter);
+        mIncrementalAnalyzer = new IncrementalAnalyzer(mCache,
+                new IncrementalAnalyzer.Annotator() {
+                    @Override
+                    public AnnotateTextParser.Result annotate(String text) throws IOException {
+                        try {
+                            mCredentialReady.await();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        // The offsets in UTF-16 are also used to merge the sentences
+                        return execute(mApi
+                                .documents()
+                                .annotateText(newAnnotateAllRequest(text)), text);
+                    }
+                }, Locale.getDefault(), mChunkExecutor);
+        mChunkExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        mExecutor.shutdown();
+        mChunkExecutor.shutdownNow();
+        // Lets the pending files be written
+        mCacheWriter.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -128,13 +212,28 @@ public class ApiFragment extends Fragment {
         mCredential = new GoogleCredential()
                 .setAccessToken(token)
                 .createScoped(CloudNaturalLanguageScopes.all());
-        startWorkerThread();
+        mCredentialReady.countDown();
+    }
+
+    /**
+     * Sets how many requests can run at the same time. By default, entities, sentiment and
+     * syntax are all analyzed at once.
+     */
+    public void setMaxConcurrentRequests(int max) {
+        mExecutor.setMaxConcurrentRequests(max);
+    }
+
+    /**
+     * @return The number of requests dropped because too many were waiting to run.
+     */
+    public long getDroppedRequestCount() {
+        return mExecutor.getDroppedCount();
     }
 
     public void analyzeEntities(String text) {
         try {
             // Create a new entities API call request and add it to the task queue
-            mRequests.add(mApi
+            analyze(text, new Features().setExtractEntities(true), mApi
                     .documents()
                     .analyzeEntities(new AnalyzeEntitiesRequest()
                             .setDocument(new Document()
@@ -147,7 +246,7 @@ public class ApiFragment extends Fragment {
 
     public void analyzeSentiment(String text) {
         try {
-            mRequests.add(mApi
+            analyze(text, new Features().setExtractDocumentSentiment(true), mApi
                     .documents()
                     .analyzeSentiment(new AnalyzeSentimentRequest()
                             .setDocument(new Document()
@@ -160,89 +259,241 @@ public class ApiFragment extends Fragment {
 
     public void analyzeSyntax(String text) {
         try {
-            mRequests.add(mApi
+            final Features features = new Features().setExtractSyntax(true);
+            analyze(text, features, mApi
                     .documents()
                     .annotateText(new AnnotateTextRequest()
                             .setDocument(new Document()
                                     .setContent(text)
                                     .setType("PLAIN_TEXT"))
-                            .setFeatures(new Features()
-                                    .setExtractSyntax(true))));
+                            .setFeatures(features)
+                            .setEncodingType("UTF16")));
         } catch (IOException e) {
             Log.e(TAG, "Failed to create analyze request.", e);
         }
     }
 
-    private void startWorkerThread() {
-        if (mThread != null) {
-            return;
+    /**
+     * Analyzes entities, sentiment and syntax of the text with a single request, instead of one
+     * request for each. The text is uploaded once and the result comes back in one round-trip.
+     * The response is split up and delivered to each of the {@link Callback} methods.
+     *
+     * <p>The app uses {@link #analyzeIncrementally(String)} instead, which also avoids sending
+     * again what was already analyzed.</p>
+     */
+    public void analyzeAll(String text) {
+        try {
+            final AnnotateTextRequest request = newAnnotateAllRequest(text);
+            analyze(text, request.getFeatures(), mApi
+                    .documents()
+                    .annotateText(request));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create analyze request.", e);
         }
-        mThread = new Thread(new Runnable() {
+    }
+
+    @VisibleForTesting
+    static AnnotateTextRequest newAnnotateAllRequest(String text) {
+        return new AnnotateTextRequest()
+                .setDocument(new Document()
+                        .setContent(text)
+                        .setType("PLAIN_TEXT"))
+                .setFeatures(new Features()
+                        .setExtractEntities(true)
+                        .setExtractDocumentSentiment(true)
+                        .setExtractSyntax(true))
+                // Offsets in UTF-16 are indices of the text, which the tokens can then share
+                .setEncodingType("UTF16");
+    }
+
+    /**
+     * Analyzes entities, sentiment and syntax of the text like {@link #analyzeAll(String)}, but
+     * only sends the sentences that were not analyzed before. This is meant for a text that is
+     * edited and analyzed again; a small edit results in a small request however long the text is.
+     *
+     * <p>A large text is analyzed in parts at the same time. The results are delivered as the
+     * parts complete, followed by {@link Callback#onAnalysisProgress(int, int)}.</p>
+     */
+    public void analyzeIncrementally(final String text) {
+        final long sequence = begin(newAnnotateAllRequest(text).getFeatures());
+        mLatestIncremental = sequence;
+        mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                while (true) {
-                    if (mThread == null) {
-                        break;
-                    }
-                    try {
-                        // API calls are executed here in this worker thread
-                        deliverResponse(mRequests.take().execute());
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Interrupted.", e);
-                        break;
-                    } catch (IOException e) {
-                        Log.e(TAG, "Failed to execute a request.", e);
+                try {
+                    final AnalysisResult result = mIncrementalAnalyzer.analyze(text,
+                            new IncrementalAnalyzer.ProgressListener() {
+                                @Override
+                                public void onProgress(AnalysisResult partial, int completed,
+                                        int total) {
+                                    deliverResult(partial, sequence);
+                                    deliverProgress(completed, total, sequence);
+                                }
+                            });
+                    deliverResult(result, sequence);
+                    final int total = mIncrementalAnalyzer.getLastRequestCount();
+                    if (total > 1) {
+                        deliverProgress(total, total, sequence);
                     }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to execute a request.", e);
+                    deliverFailure(e, sequence);
                 }
             }
         });
-        mThread.start();
     }
 
-    private void deliverResponse(GenericJson response) {
-        final Activity activity = getActivity();
-        if (response instanceof AnalyzeEntitiesResponse) {
-            final List<Entity> entities = ((AnalyzeEntitiesResponse) response).getEntities();
-            final int size = entities.size();
-            final EntityInfo[] array = new EntityInfo[size];
-            for (int i = 0; i < size; i++) {
-                array[i] = new EntityInfo(entities.get(i));
-            }
-            activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (mCallback != null) {
-                        mCallback.onEntitiesReady(array);
+    /**
+     * @return The cache of the analysis results.
+     */
+    public AnalysisCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Delivers the result from the cache if possible, or executes the request otherwise.
+     */
+    private void analyze(final String text, Features features,
+            final CloudNaturalLanguageRequest<? extends GenericJson> request) {
+        final String key = AnalysisCache.key(text, features);
+        final long sequence = begin(features);
+        // A text that was analyzed recently is delivered right away, without a thread hop
+        final AnalysisResult cached = mCache.getFromMemory(key);
+        if (cached != null) {
+            deliverResult(cached, sequence);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AnalysisResult result = mCache.get(key);
+                    if (result == null) {
+                        mCredentialReady.await();
+                        // API calls are executed here in one of the worker threads
+                        if (request instanceof CloudNaturalLanguage.Documents.AnnotateText) {
+                            result = AnalysisResult.from(execute(
+                                    (CloudNaturalLanguage.Documents.AnnotateText) request, text));
+                        } else {
+                            result = AnalysisResult.from(request.execute());
+                        }
+                        if (result == null) {
+                            return;
+                        }
+                        mCache.put(key, result);
                     }
+                    deliverResult(result, sequence);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted.", e);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to execute a request.", e);
+                    deliverFailure(e, sequence);
                 }
-            });
-        } else if (response instanceof AnalyzeSentimentResponse) {
-            final SentimentInfo sentiment = new SentimentInfo(((AnalyzeSentimentResponse) response)
-                    .getDocumentSentiment());
-            activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (mCallback != null) {
-                        mCallback.onSentimentReady(sentiment);
-                    }
+            }
+        });
+    }
+
+    /**
+     * Executes an annotateText request, and parses the response as it is downloaded without
+     * creating an object for each token.
+     *
+     * @param text The text of the request, which the text of the tokens can refer to.
+     */
+    private AnnotateTextParser.Result execute(CloudNaturalLanguage.Documents.AnnotateText request,
+            String text) throws IOException {
+        final HttpResponse response = request.executeUnparsed();
+        try {
+            return AnnotateTextParser.parse(mApi.getJsonFactory().createJsonParser(
+                    response.getContent(), response.getContentCharset()), text);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Numbers a new analysis, which makes it the latest one of its features.
+     *
+     * @return The number of the analysis, to be passed to {@link #deliverResult}.
+     */
+    private long begin(Features features) {
+        final long sequence = mSequence.incrementAndGet();
+        if (Boolean.TRUE.equals(features.getExtractEntities())) {
+            mLatestEntities = sequence;
+        }
+        if (Boolean.TRUE.equals(features.getExtractDocumentSentiment())) {
+            mLatestSentiment = sequence;
+        }
+        if (Boolean.TRUE.equals(features.getExtractSyntax())) {
+            mLatestSyntax = sequence;
+        }
+        return sequence;
+    }
+
+    private void deliverProgress(final int completed, final int total, final long sequence) {
+        final Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null && sequence == mLatestIncremental) {
+                    mCallback.onAnalysisProgress(completed, total);
                 }
-            });
-        } else if (response instanceof AnnotateTextResponse) {
-            final List<Token> tokens = ((AnnotateTextResponse) response).getTokens();
-            final int size = tokens.size();
-            final TokenInfo[] array = new TokenInfo[size];
-            for (int i = 0; i < size; i++) {
-                array[i] = new TokenInfo(tokens.get(i));
             }
-            activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (mCallback != null) {
-                        mCallback.onSyntaxReady(array);
-                    }
+        });
+    }
+
+    /**
+     * Reports a failure, unless another analysis was requested since.
+     */
+    private void deliverFailure(final IOException e, final long sequence) {
+        final Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null && sequence == mSequence.get()) {
+                    mCallback.onAnalysisFailed(e);
                 }
-            });
+            }
+        });
+    }
+
+    /**
+     * Delivers the features of a result, except those that a newer analysis was requested for.
+     *
+     * @param sequence The number of the analysis, from {@link #begin(Features)}.
+     */
+    private void deliverResult(final AnalysisResult result, final long sequence) {
+        final Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        if (result.tokens != null) {
+            // Indexes the dependency trees before going to the main thread
+            result.tokens.getDependencyTree();
         }
+        // Only the features that were requested are present
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback == null) {
+                    return;
+                }
+                if (result.entities != null && sequence == mLatestEntities) {
+                    mCallback.onEntitiesReady(result.entities);
+                }
+                if (result.sentiment != null && sequence == mLatestSentiment) {
+                    mCallback.onSentimentReady(result.sentiment);
+                }
+                if (result.tokens != null && sequence == mLatestSyntax) {
+                    mCallback.onSyntaxReady(result.tokens);
+                }
+            }
+        });
     }
 
 }
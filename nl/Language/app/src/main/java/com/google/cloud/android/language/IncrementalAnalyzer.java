@@ -0,0 +1,612 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import com.google.api.services.language.v1.model.AnnotateTextResponse;
+import com.google.api.services.language.v1.model.Entity;
+import com.google.api.services.language.v1.model.EntityMention;
+import com.google.api.services.language.v1.model.Features;
+import com.google.api.services.language.v1.model.Sentence;
+import com.google.api.services.language.v1.model.TextSpan;
+import com.google.cloud.android.language.model.EntityInfo;
+import com.google.cloud.android.language.model.SentimentInfo;
+import com.google.cloud.android.language.model.TokenTable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Analyzes a document that is edited and analyzed again, sending only the sentences that changed.
+ *
+ * <p>The document is split into sentences, and the result of each sentence is cached by its
+ * text. Consecutive sentences that are not cached are analyzed together with a single request.
+ * The results of all the sentences are then merged, with offsets and token indices rebased to
+ * the whole document. The size of the requests depends on the size of the edit rather than that
+ * of the document.</p>
+ *
+ * <p>The merged result is close to, but not exactly, what the API returns for the whole document.
+ * The salience of an entity is distributed over the sentences that mention it, weighted by the
+ * number of mentions in its request, and renormalized after merging. The document sentiment has
+ * the total magnitude of the sentences, and their average score weighted by magnitude.</p>
+ */
+class IncrementalAnalyzer {
+
+    /** The cache scope of the results of single sentences, relative to the sentence. */
+    static final String SCOPE_SEGMENT = "segment";
+
+    /**
+     * The default maximum size of a request. This is well below the limit of the API, and small
+     * enough that a large document is analyzed in several requests at the same time.
+     */
+    static final int DEFAULT_CHUNK_BYTES = 32 * 1024;
+
+    /**
+     * Annotates a text with entities, sentiment and syntax. Offsets have to be in UTF-16 code
+     * units, so that they are indices of the Java string.
+     */
+    interface Annotator {
+        AnnotateTextParser.Result annotate(String text) throws IOException;
+    }
+
+    interface ProgressListener {
+
+        /**
+         * Called each time a request completes, except for the last one.
+         *
+         * @param partial   The result of the sentences analyzed so far.
+         * @param completed The number of requests completed.
+         * @param total     The number of requests.
+         */
+        void onProgress(AnalysisResult partial, int completed, int total);
+
+    }
+
+    /**
+     * A part of the document that is analyzed and cached as a unit.
+     */
+    static class Segment {
+
+        final int start;
+
+        final int end;
+
+        final String text;
+
+        Segment(String document, int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.text = document.substring(start, end);
+        }
+
+    }
+
+    private static final Features FEATURES = new Features()
+            .setExtractEntities(true)
+            .setExtractDocumentSentiment(true)
+            .setExtractSyntax(true);
+
+    private final AnalysisCache mCache;
+
+    private final Annotator mAnnotator;
+
+    private final Locale mLocale;
+
+    private final ExecutorService mExecutor;
+
+    private int mChunkBytes = DEFAULT_CHUNK_BYTES;
+
+    private volatile int mLastSegmentCount;
+
+    private volatile int mLastReusedCount;
+
+    private volatile int mLastRequestCount;
+
+    private volatile int mLastSentLength;
+
+    /**
+     * @param cache     The cache of the results of the sentences.
+     * @param annotator Makes the requests.
+     * @param locale    The locale for finding sentence boundaries.
+     * @param executor  Runs the requests when there are several; the number of its threads is the
+     *                  number of requests that run at the same time.
+     */
+    IncrementalAnalyzer(AnalysisCache cache, Annotator annotator, Locale locale,
+            ExecutorService executor) {
+        mCache = cache;
+        mAnnotator = annotator;
+        mLocale = locale;
+        mExecutor = executor;
+    }
+
+    /**
+     * Sets the maximum size of a request in UTF-8 bytes. A single sentence longer than this is
+     * still sent as a whole.
+     */
+    void setChunkBytes(int bytes) {
+        mChunkBytes = bytes;
+    }
+
+    /**
+     * Analyzes the document. This blocks while the changed sentences are analyzed.
+     *
+     * @param text The whole document.
+     * @return The result for the whole document.
+     * @throws IOException If a request fails.
+     */
+    AnalysisResult analyze(String text) throws IOException {
+        return analyze(text, null);
+    }
+
+    /**
+     * Analyzes the document. This blocks while the changed sentences are analyzed.
+     *
+     * @param text     The whole document.
+     * @param listener Receives the partial results as the requests complete. This is called on
+     *                 the calling thread.
+     * @return The result for the whole document.
+     * @throws IOException If a request fails.
+     */
+    AnalysisResult analyze(final String text, ProgressListener listener) throws IOException {
+        final List<Segment> segments = split(text, mLocale);
+        final int count = segments.size();
+        final AnalysisResult[] results = new AnalysisResult[count];
+        final String[] keys = new String[count];
+        int reused = 0;
+        for (int i = 0; i < count; i++) {
+            keys[i] = AnalysisCache.key(SCOPE_SEGMENT, segments.get(i).text, FEATURES);
+            results[i] = mCache.get(keys[i]);
+            if (results[i] != null) {
+                reused++;
+            }
+        }
+        final List<int[]> chunks = planChunks(segments, results, mChunkBytes);
+        final int total = chunks.size();
+        int sent = 0;
+        for (int[] chunk : chunks) {
+            sent += segments.get(chunk[1] - 1).end - segments.get(chunk[0]).start;
+        }
+        mLastSegmentCount = count;
+        mLastReusedCount = reused;
+        mLastRequestCount = total;
+        mLastSentLength = sent;
+
+        if (total == 1 || (total > 1 && mExecutor == null)) {
+            // No need for another thread
+            for (int i = 0; i < total; i++) {
+                final int[] chunk = chunks.get(i);
+                store(results, chunk, analyzeChunk(text, segments, keys, chunk));
+                if (listener != null && i + 1 < total) {
+                    listener.onProgress(merge(text, segments, results), i + 1, total);
+                }
+            }
+        } else if (total > 1) {
+            final CompletionService<AnalysisResult[]> completion =
+                    new ExecutorCompletionService<>(mExecutor);
+            final Map<Future<AnalysisResult[]>, int[]> futures = new HashMap<>();
+            for (final int[] chunk : chunks) {
+                futures.put(completion.submit(new Callable<AnalysisResult[]>() {
+                    @Override
+                    public AnalysisResult[] call() throws IOException {
+                        return analyzeChunk(text, segments, keys, chunk);
+                    }
+                }), chunk);
+            }
+            try {
+                for (int completed = 1; completed <= total; completed++) {
+                    final Future<AnalysisResult[]> future = completion.take();
+                    store(results, futures.get(future), future.get());
+                    if (listener != null && completed < total) {
+                        listener.onProgress(merge(text, segments, results), completed, total);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } finally {
+                // The rest of the chunks are not needed when one of them fails
+                for (Future<AnalysisResult[]> future : futures.keySet()) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return merge(text, segments, results);
+    }
+
+    /**
+     * Analyzes the segments of a chunk and caches the results. This runs on a worker thread when
+     * there are several chunks.
+     */
+    private AnalysisResult[] analyzeChunk(String text, List<Segment> segments, String[] keys,
+            int[] chunk) throws IOException {
+        final List<Segment> run = segments.subList(chunk[0], chunk[1]);
+        final String runText = text.substring(run.get(0).start, run.get(run.size() - 1).end);
+        final AnalysisResult[] fresh = splitRun(run, mAnnotator.annotate(runText));
+        for (int k = 0; k < fresh.length; k++) {
+            mCache.put(keys[chunk[0] + k], fresh[k]);
+        }
+        return fresh;
+    }
+
+    private static void store(AnalysisResult[] results, int[] chunk, AnalysisResult[] fresh) {
+        System.arraycopy(fresh, 0, results, chunk[0], fresh.length);
+    }
+
+    /**
+     * @return The number of sentences in the last document.
+     */
+    int getLastSegmentCount() {
+        return mLastSegmentCount;
+    }
+
+    /**
+     * @return The number of sentences of the last document that were served from the cache.
+     */
+    int getLastReusedCount() {
+        return mLastReusedCount;
+    }
+
+    /**
+     * @return The number of requests made for the last document, one for each chunk.
+     */
+    int getLastRequestCount() {
+        return mLastRequestCount;
+    }
+
+    /**
+     * @return The number of characters sent to the API for the last document.
+     */
+    int getLastSentLength() {
+        return mLastSentLength;
+    }
+
+    /**
+     * Splits a document into sentences. Each sentence keeps its trailing whitespace, so the
+     * segments cover the whole document.
+     */
+    static List<Segment> split(String text, Locale locale) {
+        final List<Segment> segments = new ArrayList<>();
+        final BreakIterator iterator = BreakIterator.getSentenceInstance(locale);
+        iterator.setText(text);
+        int start = iterator.first();
+        for (int end = iterator.next(); end != BreakIterator.DONE; end = iterator.next()) {
+            segments.add(new Segment(text, start, end));
+            start = end;
+        }
+        return segments;
+    }
+
+    /**
+     * Groups the segments that are not analyzed yet into chunks to be sent as a request each.
+     * Consecutive segments are kept together up to {@code budget} UTF-8 bytes. When a chunk is
+     * full, it is cut at the last paragraph if that leaves it at least half full, and at the last
+     * sentence otherwise.
+     *
+     * @param results The results of the segments, {@code null} for those not analyzed yet.
+     * @return The chunks, each as the index of its first segment and that of the one after its
+     * last.
+     */
+    static List<int[]> planChunks(List<Segment> segments, AnalysisResult[] results, int budget) {
+        final List<int[]> chunks = new ArrayList<>();
+        final int count = segments.size();
+        int i = 0;
+        while (i < count) {
+            if (results[i] != null) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int bytes = 0;
+            int paragraph = -1;
+            int paragraphBytes = 0;
+            while (i < count && results[i] == null) {
+                final Segment segment = segments.get(i);
+                final int length = utf8Length(segment.text);
+                while (i > start && bytes + length > budget) {
+                    final int cut = paragraph > start && paragraphBytes >= budget / 2
+                            ? paragraph : i;
+                    chunks.add(new int[]{start, cut});
+                    bytes = cut == i ? 0 : bytes - paragraphBytes;
+                    start = cut;
+                    paragraph = -1;
+                }
+                bytes += length;
+                if (segment.text.endsWith("\n")) {
+                    paragraph = i + 1;
+                    paragraphBytes = bytes;
+                }
+                i++;
+            }
+            chunks.add(new int[]{start, i});
+        }
+        return chunks;
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Splits the response for a run of segments into a result for each segment, with offsets and
+     * token indices relative to the segment.
+     */
+    static AnalysisResult[] splitRun(List<Segment> run, AnnotateTextParser.Result result) {
+        final AnnotateTextResponse response = result.response;
+        final int count = run.size();
+        final int runStart = run.get(0).start;
+
+        // Tokens
+        final TokenTable responseTokens = result.tokens;
+        final int size = responseTokens == null ? 0 : responseTokens.size();
+        final int[] tokenSegments = new int[size];
+        // The index of each token in its segment
+        final int[] tokenIndices = new int[size];
+        final int[] segmentSizes = new int[count];
+        int segment = 0;
+        for (int i = 0; i < size; i++) {
+            segment = findSegment(run, runStart + responseTokens.getBeginOffset(i), segment);
+            tokenSegments[i] = segment;
+            tokenIndices[i] = segmentSizes[segment]++;
+        }
+        final TokenTable.Builder[] tokens = new TokenTable.Builder[count];
+        for (int i = 0; i < count; i++) {
+            tokens[i] = new TokenTable.Builder(run.get(i).text, segmentSizes[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            final int s = tokenSegments[i];
+            final int offset = responseTokens.getBeginOffset(i);
+            final int head = responseTokens.getHeadTokenIndex(i);
+            // The head is in the same sentence, unless the sentences of the API and ours differ;
+            // a token outside of the segment is not kept as its head, since it may change.
+            final int relativeHead = head >= 0 && head < size && tokenSegments[head] == s
+                    ? tokenIndices[head] : tokenIndices[i];
+            tokens[s].add(responseTokens, i,
+                    offset < 0 ? -1 : runStart + offset - run.get(s).start, relativeHead);
+        }
+
+        // Entities, with salience shared among the segments in proportion to the mentions.
+        // Salience is relative to the run, so it is scaled by the number of mentions in the run
+        // to be comparable with that of the other runs.
+        final List<List<EntityInfo>> entities = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entities.add(new ArrayList<EntityInfo>());
+        }
+        if (response.getEntities() != null) {
+            int runMentions = 0;
+            for (Entity entity : response.getEntities()) {
+                runMentions += entity.getMentions() == null ? 0 : entity.getMentions().size();
+            }
+            final float scale = Math.max(runMentions, 1);
+            final int[] mentions = new int[count];
+            for (Entity entity : response.getEntities()) {
+                Arrays.fill(mentions, 0);
+                int total = 0;
+                if (entity.getMentions() != null) {
+                    for (EntityMention mention : entity.getMentions()) {
+                        if (mention.getText() == null) {
+                            continue;
+                        }
+                        mentions[findSegment(run,
+                                runStart + beginOffset(mention.getText()), 0)]++;
+                        total++;
+                    }
+                }
+                if (total == 0) {
+                    mentions[0] = total = 1;
+                }
+                final EntityInfo info = new EntityInfo(entity);
+                for (int i = 0; i < count; i++) {
+                    if (mentions[i] > 0) {
+                        entities.get(i).add(new EntityInfo(info.name, info.type,
+                                info.salience * scale * mentions[i] / total,
+                                info.wikipediaUrl));
+                    }
+                }
+            }
+        }
+
+        // Sentiment of the sentences in each segment
+        final SentimentSum[] sentiments = new SentimentSum[count];
+        for (int i = 0; i < count; i++) {
+            sentiments[i] = new SentimentSum();
+        }
+        if (response.getSentences() != null) {
+            for (Sentence sentence : response.getSentences()) {
+                if (sentence.getSentiment() == null || sentence.getText() == null) {
+                    continue;
+                }
+                final int s = findSegment(run, runStart + beginOffset(sentence.getText()), 0);
+                sentiments[s].add(new SentimentInfo(sentence.getSentiment()));
+            }
+        }
+
+        final AnalysisResult[] results = new AnalysisResult[count];
+        for (int i = 0; i < count; i++) {
+            results[i] = new AnalysisResult(
+                    entities.get(i).toArray(new EntityInfo[entities.get(i).size()]),
+                    sentiments[i].get(),
+                    tokens[i].build());
+        }
+        return results;
+    }
+
+    /**
+     * Merges the results of the segments into the result of the whole document.
+     *
+     * @param text    The whole document.
+     * @param results The result of each segment, or {@code null} for a segment that is not
+     *                analyzed yet; it is left out.
+     */
+    static AnalysisResult merge(String text, List<Segment> segments, AnalysisResult[] results) {
+        final int count = segments.size();
+
+        // Tokens, rebased to the document. Their text is then shared with the document.
+        int size = 0;
+        for (AnalysisResult result : results) {
+            if (result != null) {
+                size += result.tokens.size();
+            }
+        }
+        final TokenTable.Builder tokens = new TokenTable.Builder(text, size);
+        for (int i = 0; i < count; i++) {
+            if (results[i] == null) {
+                continue;
+            }
+            final int start = segments.get(i).start;
+            final int first = tokens.size();
+            final TokenTable segmentTokens = results[i].tokens;
+            for (int j = 0, n = segmentTokens.size(); j < n; j++) {
+                final int offset = segmentTokens.getBeginOffset(j);
+                final int head = segmentTokens.getHeadTokenIndex(j);
+                tokens.add(segmentTokens, j, offset < 0 ? -1 : start + offset,
+                        head < 0 ? -1 : first + head);
+            }
+        }
+
+        // Entities that appear in several segments are combined
+        final Map<String, float[]> salience = new LinkedHashMap<>();
+        final Map<String, EntityInfo> firstSeen = new LinkedHashMap<>();
+        float total = 0;
+        for (AnalysisResult result : results) {
+            if (result == null) {
+                continue;
+            }
+            for (EntityInfo entity : result.entities) {
+                final String key = entity.type + ':' + entity.name;
+                float[] sum = salience.get(key);
+                if (sum == null) {
+                    sum = new float[1];
+                    salience.put(key, sum);
+                    firstSeen.put(key, entity);
+                }
+                sum[0] += entity.salience;
+                total += entity.salience;
+            }
+        }
+        final List<EntityInfo> entities = new ArrayList<>(salience.size());
+        for (Map.Entry<String, float[]> entry : salience.entrySet()) {
+            final EntityInfo entity = firstSeen.get(entry.getKey());
+            // Salience is relative to the whole document
+            entities.add(new EntityInfo(entity.name, entity.type,
+                    total > 0 ? entry.getValue()[0] / total : 0, entity.wikipediaUrl));
+        }
+        Collections.sort(entities, new Comparator<EntityInfo>() {
+            @Override
+            public int compare(EntityInfo a, EntityInfo b) {
+                return Float.compare(b.salience, a.salience);
+            }
+        });
+
+        // Sentiment
+        final SentimentSum sentiment = new SentimentSum();
+        for (AnalysisResult result : results) {
+            if (result != null && result.sentiment != null) {
+                sentiment.add(result.sentiment);
+            }
+        }
+        return new AnalysisResult(entities.toArray(new EntityInfo[entities.size()]),
+                sentiment.get(), tokens.build());
+    }
+
+    /**
+     * Combines sentiments into one, weighting the scores by their magnitude, so that neutral
+     * sentences do not water down strongly emotional ones. The magnitudes add up.
+     */
+    private static class SentimentSum {
+
+        private float mWeightedScore;
+        private float mScore;
+        private float mMagnitude;
+        private int mCount;
+
+        void add(SentimentInfo sentiment) {
+            mWeightedScore += sentiment.score * sentiment.magnitude;
+            mScore += sentiment.score;
+            mMagnitude += sentiment.magnitude;
+            mCount++;
+        }
+
+        /**
+         * @return The combined sentiment, or {@code null} if there was none.
+         */
+        SentimentInfo get() {
+            if (mCount == 0) {
+                return null;
+            }
+            return new SentimentInfo(
+                    mMagnitude > 0 ? mWeightedScore / mMagnitude : mScore / mCount, mMagnitude);
+        }
+
+    }
+
+    /**
+     * @return The offset of the span. Like {@link AnnotateTextParser}, this treats a missing one as
+     * 0, since fields with their default value are left out of the JSON.
+     */
+    private static int beginOffset(TextSpan span) {
+        final Integer offset = span.getBeginOffset();
+        return offset == null ? 0 : offset;
+    }
+
+    /**
+     * Finds the segment that contains an offset, starting the search from a segment.
+     */
+    private static int findSegment(List<Segment> run, int offset, int from) {
+        int i = Math.max(0, Math.min(from, run.size() - 1));
+        while (i > 0 && offset < run.get(i).start) {
+            i--;
+        }
+        while (i < run.size() - 1 && offset >= run.get(i).end) {
+            i++;
+        }
+        return i;
+    }
+
+}
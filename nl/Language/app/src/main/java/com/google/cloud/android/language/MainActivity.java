@@ -18,12 +18,13 @@ package com.google.cloud.android.language;
 
 import com.google.cloud.android.language.model.EntityInfo;
 import com.google.cloud.android.language.model.SentimentInfo;
-import com.google.cloud.android.language.model.TokenInfo;
+import com.google.cloud.android.language.model.TokenTable;
 
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.os.Bundle;
+import android.support.design.widget.Snackbar;
 import android.support.design.widget.TabLayout;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
@@ -44,6 +45,8 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import java.io.IOException;
+
 
 public class MainActivity extends AppCompatActivity implements ApiFragment.Callback {
 
@@ -101,6 +104,11 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Callb
      */
     private boolean mHidingResult;
 
+    /**
+     * Shows the progress while a large text is analyzed in parts.
+     */
+    private Snackbar mProgressSnackbar;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -201,14 +209,13 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Callb
         InputMethodManager ime = (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
         ime.hideSoftInputFromWindow(mInput.getWindowToken(), 0);
 
-        // Show progress
+        // Show progress; the parts of the previous text are no longer coming
+        dismissProgressSnackbar();
         showProgress();
 
-        // Call the API
+        // Call the API; only the sentences that were edited since the last time are sent
         final String text = mInput.getText().toString();
-        getApiFragment().analyzeEntities(text);
-        getApiFragment().analyzeSentiment(text);
-        getApiFragment().analyzeSyntax(text);
+        getApiFragment().analyzeIncrementally(text);
     }
 
     private void showProgress() {
@@ -237,16 +244,7 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Callb
 
     private void showResults() {
         mIntroduction.setVisibility(View.GONE);
-        if (mProgress.getVisibility() == View.VISIBLE) {
-            ViewCompat.animate(mProgress)
-                    .alpha(0.f)
-                    .setListener(new ViewPropertyAnimatorListenerAdapter() {
-                        @Override
-                        public void onAnimationEnd(View view) {
-                            view.setVisibility(View.INVISIBLE);
-                        }
-                    });
-        }
+        hideProgress();
         if (mHidingResult) {
             ViewCompat.animate(mResults).cancel();
         }
@@ -260,6 +258,19 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Callb
         }
     }
 
+    private void hideProgress() {
+        if (mProgress.getVisibility() == View.VISIBLE) {
+            ViewCompat.animate(mProgress)
+                    .alpha(0.f)
+                    .setListener(new ViewPropertyAnimatorListenerAdapter() {
+                        @Override
+                        public void onAnimationEnd(View view) {
+                            view.setVisibility(View.INVISIBLE);
+                        }
+                    });
+        }
+    }
+
     @Override
     public void onEntitiesReady(EntityInfo[] entities) {
         if (mViewPager.getCurrentItem() == API_ENTITIES) {
@@ -277,13 +288,41 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Callb
     }
 
     @Override
-    public void onSyntaxReady(TokenInfo[] tokens) {
+    public void onSyntaxReady(TokenTable tokens) {
         if (mViewPager.getCurrentItem() == API_SYNTAX) {
             showResults();
         }
         mAdapter.setTokens(tokens);
     }
 
+    @Override
+    public void onAnalysisProgress(int completed, int total) {
+        // The partial results are already shown; let the user know that more are coming
+        if (completed < total) {
+            if (mProgressSnackbar == null) {
+                mProgressSnackbar = Snackbar.make(mResults, "", Snackbar.LENGTH_INDEFINITE);
+            }
+            mProgressSnackbar.setText(getString(R.string.progress_format, completed, total));
+            mProgressSnackbar.show();
+        } else {
+            dismissProgressSnackbar();
+        }
+    }
+
+    @Override
+    public void onAnalysisFailed(IOException e) {
+        dismissProgressSnackbar();
+        hideProgress();
+        Snackbar.make(mResults, R.string.analysis_failed, Snackbar.LENGTH_LONG).show();
+    }
+
+    private void dismissProgressSnackbar() {
+        if (mProgressSnackbar != null) {
+            mProgressSnackbar.dismiss();
+            mProgressSnackbar = null;
+        }
+    }
+
     /**
      * Provides content of the {@link ViewPager}.
      */
@@ -342,7 +381,7 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Callb
             }
         }
 
-        public void setTokens(TokenInfo[] tokens) {
+        public void setTokens(TokenTable tokens) {
             final SyntaxFragment fragment = (SyntaxFragment) mFragments[API_SYNTAX];
             if (fragment != null) {
                 fragment.setTokens(tokens);
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs API requests concurrently, up to a limit.
+ *
+ * <p>Requests beyond the limit wait in a bounded queue. When the queue is full, the oldest
+ * waiting request is dropped to make room for the new one, since the user has moved on from it;
+ * {@link #execute(Runnable)} never throws.</p>
+ */
+class RequestExecutor {
+
+    /** Enough for entities, sentiment and syntax at the same time. */
+    static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 3;
+
+    static final int DEFAULT_MAX_QUEUED_REQUESTS = 6;
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final ThreadPoolExecutor mExecutor;
+
+    RequestExecutor() {
+        this(DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_QUEUED_REQUESTS);
+    }
+
+    RequestExecutor(int maxConcurrent, int maxQueued) {
+        mExecutor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "ApiRequest-" + mCount.incrementAndGet());
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            return;
+                        }
+                        // Make room by dropping the request that has waited the longest
+                        if (executor.getQueue().poll() != null) {
+                            mDropped.incrementAndGet();
+                        }
+                        executor.execute(r);
+                    }
+                });
+        // Idle threads are released while nothing is being analyzed
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how many requests can run at the same time.
+     */
+    void setMaxConcurrentRequests(int max) {
+        if (max > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(max);
+            mExecutor.setCorePoolSize(max);
+        } else {
+            mExecutor.setCorePoolSize(max);
+            mExecutor.setMaximumPoolSize(max);
+        }
+    }
+
+    void execute(Runnable request) {
+        mExecutor.execute(request);
+    }
+
+    /**
+     * Stops running requests. Requests that are running are interrupted.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return The number of requests dropped because too many were waiting.
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+}
@@ -17,7 +17,7 @@
 package com.google.cloud.android.language;
 
 import com.google.android.flexbox.FlexboxLayout;
-import com.google.cloud.android.language.model.TokenInfo;
+import com.google.cloud.android.language.model.TokenTable;
 
 import android.os.Bundle;
 import android.support.annotation.Nullable;
@@ -46,29 +46,30 @@ public class SyntaxFragment extends Fragment {
                              @Nullable Bundle savedInstanceState) {
         final View view = inflater.inflate(R.layout.fragment_syntax, container, false);
         mLayout = (FlexboxLayout) view.findViewById(R.id.layout);
-        TokenInfo[] tokens = (TokenInfo[]) getArguments().getParcelableArray(ARG_TOKENS);
+        final TokenTable tokens = getArguments().getParcelable(ARG_TOKENS);
         if (tokens != null) {
             showTokens(tokens);
         }
         return view;
     }
 
-    public void setTokens(TokenInfo[] tokens) {
+    public void setTokens(TokenTable tokens) {
         showTokens(tokens);
-        getArguments().putParcelableArray(ARG_TOKENS, tokens);
+        getArguments().putParcelable(ARG_TOKENS, tokens);
     }
 
-    private void showTokens(TokenInfo[] tokens) {
+    private void showTokens(TokenTable tokens) {
         mLayout.removeAllViews();
         final LayoutInflater inflater = LayoutInflater.from(getContext());
-        for (TokenInfo token : tokens) {
+        for (int i = 0, size = tokens.size(); i < size; i++) {
             final View view = inflater.inflate(R.layout.item_token, mLayout, false);
             TextView text = (TextView) view.findViewById(R.id.text);
             TextView label = (TextView) view.findViewById(R.id.label);
             TextView partOfSpeech = (TextView) view.findViewById(R.id.part_of_speech);
-            text.setText(token.text);
-            label.setText(token.label != null ? token.label.toLowerCase() : null);
-            partOfSpeech.setText(token.partOfSpeech);
+            text.setText(tokens.getText(i));
+            final String tokenLabel = tokens.getLabel(i);
+            label.setText(tokenLabel != null ? tokenLabel.toLowerCase() : null);
+            partOfSpeech.setText(tokens.getPartOfSpeech(i));
             mLayout.addView(view);
         }
     }
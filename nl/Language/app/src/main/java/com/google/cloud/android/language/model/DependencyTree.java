@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language.model;
+
+import java.util.Arrays;
+
+
+/**
+ * An index over the dependency trees of a {@link TokenTable}, with one tree for each sentence.
+ *
+ * <p>This is built once in linear time. The children of all the tokens are kept in a single array
+ * sorted by head, so that the children of a token are a range of it. The tokens are also numbered
+ * in depth-first order, so that a subtree is a range of that order and whether a token is in the
+ * subtree of another takes constant time.</p>
+ */
+public class DependencyTree {
+
+    private final TokenTable mTokens;
+
+    /** The head of each token, or -1 for a root. */
+    private final int[] mHeads;
+
+    /** The children of token {@code i} are {@code mChildren[mChildStarts[i]]} until the next. */
+    private final int[] mChildStarts;
+
+    private final int[] mChildren;
+
+    private final int[] mRoots;
+
+    /** The tokens in depth-first order, a tree after another. */
+    private final int[] mPreorder;
+
+    /** The position of each token in {@link #mPreorder}. */
+    private final int[] mPreorderIndices;
+
+    /** The number of tokens in the subtree of each token, including itself. */
+    private final int[] mSubtreeSizes;
+
+    private final int[] mDepths;
+
+    /** The root of the tree that each token is in. */
+    private final int[] mTreeRoots;
+
+    /** The first and last tokens of each subtree, by index. */
+    private final int[] mFirstTokens;
+    private final int[] mLastTokens;
+
+    public DependencyTree(TokenTable tokens) {
+        mTokens = tokens;
+        final int size = tokens.size();
+
+        // A root is its own head. Heads out of range are treated as roots too.
+        mHeads = new int[size];
+        int rootCount = 0;
+        for (int i = 0; i < size; i++) {
+            final int head = tokens.getHeadTokenIndex(i);
+            if (head < 0 || head >= size || head == i) {
+                mHeads[i] = -1;
+                rootCount++;
+            } else {
+                mHeads[i] = head;
+            }
+        }
+
+        // Children, by counting sort on the head; each range stays in token order
+        mChildStarts = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (mHeads[i] >= 0) {
+                mChildStarts[mHeads[i] + 1]++;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            mChildStarts[i + 1] += mChildStarts[i];
+        }
+        mChildren = new int[size - rootCount];
+        final int[] next = Arrays.copyOf(mChildStarts, size);
+        mRoots = new int[rootCount];
+        int root = 0;
+        for (int i = 0; i < size; i++) {
+            if (mHeads[i] >= 0) {
+                mChildren[next[mHeads[i]]++] = i;
+            } else {
+                mRoots[root++] = i;
+            }
+        }
+
+        // Depth-first order, without recursion since a tree can be deep. Tokens in a cycle of
+        // heads are not reachable from any root; they are visited last, each unvisited one
+        // standing for the root of what is left, so that every token still has a position.
+        mPreorder = new int[size];
+        mPreorderIndices = new int[size];
+        Arrays.fill(mPreorderIndices, -1);
+        mDepths = new int[size];
+        mTreeRoots = new int[size];
+        final int[] stack = new int[size];
+        int count = 0;
+        int unvisited = 0;
+        for (int r = 0; count < size; r++) {
+            final int start;
+            if (r < rootCount) {
+                start = mRoots[r];
+            } else {
+                while (mPreorderIndices[unvisited] >= 0) {
+                    unvisited++;
+                }
+                start = unvisited;
+            }
+            int top = 0;
+            stack[top++] = start;
+            mDepths[start] = 0;
+            while (top > 0) {
+                final int token = stack[--top];
+                mPreorderIndices[token] = count;
+                mPreorder[count++] = token;
+                mTreeRoots[token] = start;
+                // Pushed in reverse, so that children are visited in token order
+                for (int c = mChildStarts[token + 1] - 1; c >= mChildStarts[token]; c--) {
+                    final int child = mChildren[c];
+                    if (mPreorderIndices[child] < 0) {
+                        mDepths[child] = mDepths[token] + 1;
+                        stack[top++] = child;
+                    }
+                }
+            }
+        }
+
+        // Sizes and spans, from the leaves up
+        mSubtreeSizes = new int[size];
+        mFirstTokens = new int[size];
+        mLastTokens = new int[size];
+        for (int i = 0; i < size; i++) {
+            mSubtreeSizes[i] = 1;
+            mFirstTokens[i] = i;
+            mLastTokens[i] = i;
+        }
+        for (int p = size - 1; p >= 0; p--) {
+            final int token = mPreorder[p];
+            final int head = mHeads[token];
+            if (head >= 0 && mTreeRoots[token] != token) {
+                mSubtreeSizes[head] += mSubtreeSizes[token];
+                mFirstTokens[head] = Math.min(mFirstTokens[head], mFirstTokens[token]);
+                mLastTokens[head] = Math.max(mLastTokens[head], mLastTokens[token]);
+            }
+        }
+    }
+
+    /**
+     * @return The tokens this is built from.
+     */
+    public TokenTable getTokens() {
+        return mTokens;
+    }
+
+    /**
+     * @return The number of tokens.
+     */
+    public int size() {
+        return mHeads.length;
+    }
+
+    /**
+     * @return The roots of the trees, usually one for each sentence, in token order.
+     */
+    public int[] getRoots() {
+        return mRoots.clone();
+    }
+
+    /**
+     * @return The root of the tree that the token is in.
+     */
+    public int getRoot(int token) {
+        return mTreeRoots[token];
+    }
+
+    /**
+     * @return The head of the token, or -1 if it is a root.
+     */
+    public int getHead(int token) {
+        return mHeads[token];
+    }
+
+    /**
+     * @return The distance of the token from its root.
+     */
+    public int getDepth(int token) {
+        return mDepths[token];
+    }
+
+    public int getChildCount(int token) {
+        return mChildStarts[token + 1] - mChildStarts[token];
+    }
+
+    /**
+     * @param token The token.
+     * @param index The index of the child, from 0 to {@link #getChildCount(int)}.
+     * @return The child, which is a token index.
+     */
+    public int getChild(int token, int index) {
+        return mChildren[mChildStarts[token] + index];
+    }
+
+    /**
+     * @return The children of the token, in token order.
+     */
+    public int[] getChildren(int token) {
+        return Arrays.copyOfRange(mChildren, mChildStarts[token], mChildStarts[token + 1]);
+    }
+
+    /**
+     * Finds the children of a token with a label, such as "NSUBJ" or "NEG".
+     *
+     * @return The children with the label, in token order.
+     */
+    public int[] getChildren(int token, String label) {
+        final int code = mTokens.findLabelCode(label);
+        if (code < 0) {
+            return new int[0];
+        }
+        final int start = mChildStarts[token];
+        final int end = mChildStarts[token + 1];
+        int count = 0;
+        for (int c = start; c < end; c++) {
+            if (mTokens.getLabelCode(mChildren[c]) == code) {
+                count++;
+            }
+        }
+        final int[] children = new int[count];
+        int index = 0;
+        for (int c = start; c < end; c++) {
+            if (mTokens.getLabelCode(mChildren[c]) == code) {
+                children[index++] = mChildren[c];
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @return The first child of the token with the label, or -1 if there is none.
+     */
+    public int findChild(int token, String label) {
+        final int code = mTokens.findLabelCode(label);
+        if (code < 0) {
+            return -1;
+        }
+        for (int c = mChildStarts[token]; c < mChildStarts[token + 1]; c++) {
+            if (mTokens.getLabelCode(mChildren[c]) == code) {
+                return mChildren[c];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of tokens in the subtree of the token, including itself.
+     */
+    public int getSubtreeSize(int token) {
+        return mSubtreeSizes[token];
+    }
+
+    /**
+     * @return The tokens in the subtree of the token, starting with itself, in depth-first order.
+     */
+    public int[] getSubtree(int token) {
+        final int start = mPreorderIndices[token];
+        return Arrays.copyOfRange(mPreorder, start, start + mSubtreeSizes[token]);
+    }
+
+    /**
+     * Finds the tokens with a label in the subtree of a token, such as the negations in the scope
+     * of a verb.
+     *
+     * @return The tokens with the label, in depth-first order.
+     */
+    public int[] getDescendants(int token, String label) {
+        final int code = mTokens.findLabelCode(label);
+        if (code < 0) {
+            return new int[0];
+        }
+        final int start = mPreorderIndices[token];
+        final int end = start + mSubtreeSizes[token];
+        int count = 0;
+        for (int p = start; p < end; p++) {
+            if (mTokens.getLabelCode(mPreorder[p]) == code) {
+                count++;
+            }
+        }
+        final int[] descendants = new int[count];
+        int index = 0;
+        for (int p = start; p < end; p++) {
+            if (mTokens.getLabelCode(mPreorder[p]) == code) {
+                descendants[index++] = mPreorder[p];
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * @return Whether {@code token} is {@code ancestor} or in its subtree.
+     */
+    public boolean isInSubtree(int token, int ancestor) {
+        final int start = mPreorderIndices[ancestor];
+        final int position = mPreorderIndices[token];
+        return position >= start && position < start + mSubtreeSizes[ancestor];
+    }
+
+    /**
+     * @return The first token of the subtree of the token. The subtree may not cover all the
+     * tokens up to {@link #getLastToken(int)} when the parse is not projective.
+     */
+    public int getFirstToken(int token) {
+        return mFirstTokens[token];
+    }
+
+    /**
+     * @return The last token of the subtree of the token.
+     */
+    public int getLastToken(int token) {
+        return mLastTokens[token];
+    }
+
+    /**
+     * @return The offset in the document where the text of the subtree begins, or -1 if the
+     * offsets are unknown.
+     */
+    public int getSpanBeginOffset(int token) {
+        return mTokens.getBeginOffset(mFirstTokens[token]);
+    }
+
+    /**
+     * @return The offset in the document where the text of the subtree ends, or -1 if the offsets
+     * are unknown.
+     */
+    public int getSpanEndOffset(int token) {
+        final int last = mLastTokens[token];
+        final int offset = mTokens.getBeginOffset(last);
+        return offset < 0 ? -1 : offset + mTokens.getTextLength(last);
+    }
+
+}
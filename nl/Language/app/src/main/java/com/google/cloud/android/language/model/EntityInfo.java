@@ -65,6 +65,13 @@ public class EntityInfo implements Parcelable {
      */
     public final String wikipediaUrl;
 
+    public EntityInfo(String name, String type, float salience, String wikipediaUrl) {
+        this.name = name;
+        this.type = type;
+        this.salience = salience;
+        this.wikipediaUrl = wikipediaUrl;
+    }
+
     public EntityInfo(Entity entity) {
         name = entity.getName();
         type = entity.getType();
@@ -49,6 +49,11 @@ public class SentimentInfo implements Parcelable {
      */
     public final float magnitude;
 
+    public SentimentInfo(float score, float magnitude) {
+        this.score = score;
+        this.magnitude = magnitude;
+    }
+
     public SentimentInfo(Sentiment sentiment) {
         score = sentiment.getScore();
         magnitude = sentiment.getMagnitude();
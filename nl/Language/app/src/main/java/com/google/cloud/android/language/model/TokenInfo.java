@@ -72,6 +72,16 @@ public class TokenInfo implements Parcelable {
      */
     public final String label;
 
+    public TokenInfo(String text, int beginOffset, String lemma, String partOfSpeech,
+            int headTokenIndex, String label) {
+        this.text = text;
+        this.beginOffset = beginOffset;
+        this.lemma = lemma;
+        this.partOfSpeech = partOfSpeech;
+        this.headTokenIndex = headTokenIndex;
+        this.label = label;
+    }
+
     public TokenInfo(Token token) {
         final TextSpan textSpan = token.getText();
         if (textSpan == null) {
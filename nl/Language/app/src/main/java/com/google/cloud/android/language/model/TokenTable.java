@@ -0,0 +1,431 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The tokens of a syntax analysis, stored column by column in primitive arrays instead of as one
+ * {@link TokenInfo} for each token.
+ *
+ * <p>The text of a token is a range of the source text, which is the analyzed document when it
+ * is known. Parts of speech, labels and lemmas are codes into tables of their distinct values.
+ * This is parceled as a few arrays, however many tokens there are.</p>
+ */
+public class TokenTable implements Parcelable {
+
+    public static final Creator<TokenTable> CREATOR = new Creator<TokenTable>() {
+        @Override
+        public TokenTable createFromParcel(Parcel in) {
+            return new TokenTable(in);
+        }
+
+        @Override
+        public TokenTable[] newArray(int size) {
+            return new TokenTable[size];
+        }
+    };
+
+    /** The maximum number of distinct parts of speech, or of labels, in a table. */
+    private static final int MAX_TAGS = Byte.MAX_VALUE;
+
+    private final int mSize;
+
+    /** The text of the tokens are ranges of this. */
+    private final String mSource;
+
+    /** The start of the text of each token in {@link #mSource}, or -1 if it has no text. */
+    private final int[] mTextStarts;
+
+    private final int[] mTextLengths;
+
+    private final int[] mBeginOffsets;
+
+    private final int[] mHeadTokenIndices;
+
+    /** Codes into {@link #mLemmaValues}, or -1. */
+    private final int[] mLemmas;
+
+    private final String[] mLemmaValues;
+
+    /** Codes into {@link #mPartOfSpeechValues}, or -1. */
+    private final byte[] mPartsOfSpeech;
+
+    private final String[] mPartOfSpeechValues;
+
+    /** Codes into {@link #mLabelValues}, or -1. */
+    private final byte[] mLabels;
+
+    private final String[] mLabelValues;
+
+    /** Built on first use. */
+    private volatile DependencyTree mDependencyTree;
+
+    private TokenTable(Builder builder) {
+        mSize = builder.mSize;
+        mSource = builder.mExtra.length() == 0 ? builder.mDocument
+                : builder.mDocument + builder.mExtra;
+        mTextStarts = Arrays.copyOf(builder.mTextStarts, mSize);
+        mTextLengths = Arrays.copyOf(builder.mTextLengths, mSize);
+        mBeginOffsets = Arrays.copyOf(builder.mBeginOffsets, mSize);
+        mHeadTokenIndices = Arrays.copyOf(builder.mHeadTokenIndices, mSize);
+        mLemmas = Arrays.copyOf(builder.mLemmas, mSize);
+        mLemmaValues = builder.mLemmaValues.toArray();
+        mPartsOfSpeech = Arrays.copyOf(builder.mPartsOfSpeech, mSize);
+        mPartOfSpeechValues = builder.mPartOfSpeechValues.toArray();
+        mLabels = Arrays.copyOf(builder.mLabels, mSize);
+        mLabelValues = builder.mLabelValues.toArray();
+    }
+
+    protected TokenTable(Parcel in) {
+        mSize = in.readInt();
+        mSource = in.readString();
+        mTextStarts = in.createIntArray();
+        mTextLengths = in.createIntArray();
+        mBeginOffsets = in.createIntArray();
+        mHeadTokenIndices = in.createIntArray();
+        mLemmas = in.createIntArray();
+        mLemmaValues = in.createStringArray();
+        mPartsOfSpeech = in.createByteArray();
+        mPartOfSpeechValues = in.createStringArray();
+        mLabels = in.createByteArray();
+        mLabelValues = in.createStringArray();
+    }
+
+    /**
+     * @return The number of tokens.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The token text.
+     */
+    public String getText(int index) {
+        final int start = mTextStarts[index];
+        return start < 0 ? null : mSource.substring(start, start + mTextLengths[index]);
+    }
+
+    /**
+     * @return The length of the token text, without creating it.
+     */
+    public int getTextLength(int index) {
+        return mTextLengths[index];
+    }
+
+    /**
+     * @return The beginning offset of the content in the original document.
+     */
+    public int getBeginOffset(int index) {
+        return mBeginOffsets[index];
+    }
+
+    /**
+     * @return The token lemma (dictionary form).
+     */
+    public String getLemma(int index) {
+        final int code = mLemmas[index];
+        return code < 0 ? null : mLemmaValues[code];
+    }
+
+    /**
+     * @return The parts of speech tag for this token.
+     */
+    public String getPartOfSpeech(int index) {
+        final int code = mPartsOfSpeech[index];
+        return code < 0 ? null : mPartOfSpeechValues[code];
+    }
+
+    /**
+     * @return The head of this token in the dependency tree.
+     */
+    public int getHeadTokenIndex(int index) {
+        return mHeadTokenIndices[index];
+    }
+
+    /**
+     * @return The parse label for the token.
+     */
+    public String getLabel(int index) {
+        final int code = mLabels[index];
+        return code < 0 ? null : mLabelValues[code];
+    }
+
+    /**
+     * @return The code of the parse label, or -1 if there is none.
+     */
+    int getLabelCode(int index) {
+        return mLabels[index];
+    }
+
+    /**
+     * @return The code of the parse label, or -1 if no token has it.
+     */
+    int findLabelCode(String label) {
+        for (int code = 0; code < mLabelValues.length; code++) {
+            if (mLabelValues[code].equals(label)) {
+                return code;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The dependency trees of the tokens, built the first time this is called.
+     */
+    public DependencyTree getDependencyTree() {
+        DependencyTree tree = mDependencyTree;
+        if (tree == null) {
+            tree = new DependencyTree(this);
+            mDependencyTree = tree;
+        }
+        return tree;
+    }
+
+    /**
+     * @return The token as a {@link TokenInfo}.
+     */
+    public TokenInfo get(int index) {
+        return new TokenInfo(getText(index), mBeginOffsets[index], getLemma(index),
+                getPartOfSpeech(index), mHeadTokenIndices[index], getLabel(index));
+    }
+
+    /**
+     * Roughly estimates how much memory this table takes, including its source text.
+     *
+     * @return The estimated size in bytes.
+     */
+    public int estimateSize() {
+        // Five int columns and two byte columns
+        int size = 64 + sizeOf(mSource) + 5 * (16 + 4 * mSize) + 2 * (16 + mSize);
+        size += sizeOf(mLemmaValues) + sizeOf(mPartOfSpeechValues) + sizeOf(mLabelValues);
+        return size;
+    }
+
+    private static int sizeOf(String s) {
+        return s == null ? 0 : 40 + 2 * s.length();
+    }
+
+    private static int sizeOf(String[] values) {
+        int size = 16 + 4 * values.length;
+        for (String value : values) {
+            size += sizeOf(value);
+        }
+        return size;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(mSize);
+        out.writeString(mSource);
+        out.writeIntArray(mTextStarts);
+        out.writeIntArray(mTextLengths);
+        out.writeIntArray(mBeginOffsets);
+        out.writeIntArray(mHeadTokenIndices);
+        out.writeIntArray(mLemmas);
+        out.writeStringArray(mLemmaValues);
+        out.writeByteArray(mPartsOfSpeech);
+        out.writeStringArray(mPartOfSpeechValues);
+        out.writeByteArray(mLabels);
+        out.writeStringArray(mLabelValues);
+    }
+
+    public static class Builder {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        private final String mDocument;
+
+        /** The text of the tokens that are not found in the document. */
+        private final StringBuilder mExtra = new StringBuilder();
+
+        private int mSize;
+
+        private int[] mTextStarts;
+        private int[] mTextLengths;
+        private int[] mBeginOffsets;
+        private int[] mHeadTokenIndices;
+        private int[] mLemmas;
+        private byte[] mPartsOfSpeech;
+        private byte[] mLabels;
+
+        private final Values mLemmaValues = new Values(Integer.MAX_VALUE);
+        private final Values mPartOfSpeechValues = new Values(MAX_TAGS);
+        private final Values mLabelValues = new Values(MAX_TAGS);
+
+        public Builder() {
+            this(null);
+        }
+
+        /**
+         * @param document The analyzed document. The text of the tokens is kept as ranges of the
+         *                 document when their offsets are in UTF-16 code units.
+         */
+        public Builder(String document) {
+            this(document, INITIAL_CAPACITY);
+        }
+
+        /**
+         * @param document The analyzed document.
+         * @param capacity The expected number of tokens.
+         */
+        public Builder(String document, int capacity) {
+            mDocument = document == null ? "" : document;
+            capacity = Math.max(capacity, 1);
+            mTextStarts = new int[capacity];
+            mTextLengths = new int[capacity];
+            mBeginOffsets = new int[capacity];
+            mHeadTokenIndices = new int[capacity];
+            mLemmas = new int[capacity];
+            mPartsOfSpeech = new byte[capacity];
+            mLabels = new byte[capacity];
+        }
+
+        public Builder add(String text, int beginOffset, String lemma, String partOfSpeech,
+                int headTokenIndex, String label) {
+            ensureCapacity();
+            if (text == null) {
+                mTextStarts[mSize] = -1;
+            } else if (beginOffset >= 0
+                    && mDocument.regionMatches(beginOffset, text, 0, text.length())) {
+                mTextStarts[mSize] = beginOffset;
+            } else {
+                mTextStarts[mSize] = mDocument.length() + mExtra.length();
+                mExtra.append(text);
+            }
+            mTextLengths[mSize] = text == null ? 0 : text.length();
+            mBeginOffsets[mSize] = beginOffset;
+            mHeadTokenIndices[mSize] = headTokenIndex;
+            mLemmas[mSize] = mLemmaValues.code(lemma);
+            mPartsOfSpeech[mSize] = (byte) mPartOfSpeechValues.code(partOfSpeech);
+            mLabels[mSize] = (byte) mLabelValues.code(label);
+            mSize++;
+            return this;
+        }
+
+        public Builder add(TokenInfo token) {
+            return add(token.text, token.beginOffset, token.lemma, token.partOfSpeech,
+                    token.headTokenIndex, token.label);
+        }
+
+        /**
+         * Copies a token of another table with a new offset and head, without creating its
+         * text.
+         */
+        public Builder add(TokenTable table, int index, int beginOffset, int headTokenIndex) {
+            ensureCapacity();
+            final int start = table.mTextStarts[index];
+            final int length = table.mTextLengths[index];
+            if (start < 0) {
+                mTextStarts[mSize] = -1;
+            } else if (beginOffset >= 0
+                    && mDocument.regionMatches(beginOffset, table.mSource, start, length)) {
+                mTextStarts[mSize] = beginOffset;
+            } else {
+                mTextStarts[mSize] = mDocument.length() + mExtra.length();
+                mExtra.append(table.mSource, start, start + length);
+            }
+            mTextLengths[mSize] = length;
+            mBeginOffsets[mSize] = beginOffset;
+            mHeadTokenIndices[mSize] = headTokenIndex;
+            mLemmas[mSize] = mLemmaValues.code(table.getLemma(index));
+            mPartsOfSpeech[mSize] = (byte) mPartOfSpeechValues.code(table.getPartOfSpeech(index));
+            mLabels[mSize] = (byte) mLabelValues.code(table.getLabel(index));
+            mSize++;
+            return this;
+        }
+
+        /**
+         * @return The number of tokens added so far.
+         */
+        public int size() {
+            return mSize;
+        }
+
+        public TokenTable build() {
+            return new TokenTable(this);
+        }
+
+        private void ensureCapacity() {
+            if (mSize < mBeginOffsets.length) {
+                return;
+            }
+            final int capacity = mBeginOffsets.length * 2;
+            mTextStarts = Arrays.copyOf(mTextStarts, capacity);
+            mTextLengths = Arrays.copyOf(mTextLengths, capacity);
+            mBeginOffsets = Arrays.copyOf(mBeginOffsets, capacity);
+            mHeadTokenIndices = Arrays.copyOf(mHeadTokenIndices, capacity);
+            mLemmas = Arrays.copyOf(mLemmas, capacity);
+            mPartsOfSpeech = Arrays.copyOf(mPartsOfSpeech, capacity);
+            mLabels = Arrays.copyOf(mLabels, capacity);
+        }
+
+    }
+
+    /**
+     * Assigns a code to each distinct value.
+     */
+    private static class Values {
+
+        private final int mMaxCount;
+
+        private final Map<String, Integer> mCodes = new HashMap<>();
+
+        private final List<String> mValues = new ArrayList<>();
+
+        Values(int maxCount) {
+            mMaxCount = maxCount;
+        }
+
+        int code(String value) {
+            if (value == null) {
+                return -1;
+            }
+            final Integer code = mCodes.get(value);
+            if (code != null) {
+                return code;
+            }
+            final int size = mValues.size();
+            if (size == mMaxCount) {
+                throw new IllegalStateException("Too many distinct values: " + value);
+            }
+            mCodes.put(value, size);
+            mValues.add(value);
+            return size;
+        }
+
+        String[] toArray() {
+            return mValues.toArray(new String[mValues.size()]);
+        }
+
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.language.v1.model.Features;
+import com.google.cloud.android.language.model.EntityInfo;
+import com.google.cloud.android.language.model.SentimentInfo;
+import com.google.cloud.android.language.model.TokenInfo;
+import com.google.cloud.android.language.model.TokenTable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+public class AnalysisCacheTest {
+
+    private static final String[] WORDS = {"The", "quick", "brown", "fox", "jumps", "over",
+            "the", "lazy", "dog", "near", "Mountain", "View", "."};
+
+    private static final String[] TAGS = {"DET", "ADJ", "ADJ", "NOUN", "VERB", "ADP", "DET",
+            "ADJ", "NOUN", "ADP", "NOUN", "NOUN", "PUNCT"};
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("analysis", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        final AnalysisResult original = createResult(100);
+        final AnalysisResult restored = read(write(original));
+        assertThat(restored.entities.length, is(original.entities.length));
+        for (int i = 0; i < original.entities.length; i++) {
+            assertThat(restored.entities[i].name, is(equalTo(original.entities[i].name)));
+            assertThat(restored.entities[i].type, is(equalTo(original.entities[i].type)));
+            assertThat(restored.entities[i].salience, is(original.entities[i].salience));
+            assertThat(restored.entities[i].wikipediaUrl,
+                    is(equalTo(original.entities[i].wikipediaUrl)));
+        }
+        assertThat(restored.sentiment.score, is(original.sentiment.score));
+        assertThat(restored.sentiment.magnitude, is(original.sentiment.magnitude));
+        assertThat(restored.tokens.size(), is(original.tokens.size()));
+        for (int i = 0; i < original.tokens.size(); i++) {
+            final TokenInfo a = original.tokens.get(i);
+            final TokenInfo b = restored.tokens.get(i);
+            assertThat(b.text, is(equalTo(a.text)));
+            assertThat(b.beginOffset, is(a.beginOffset));
+            assertThat(b.lemma, is(equalTo(a.lemma)));
+            assertThat(b.partOfSpeech, is(equalTo(a.partOfSpeech)));
+            assertThat(b.headTokenIndex, is(a.headTokenIndex));
+            assertThat(b.label, is(equalTo(a.label)));
+        }
+    }
+
+    @Test
+    public void writeAndRead_missingFeaturesAndValues() throws IOException {
+        final AnalysisResult original = new AnalysisResult(null, null, new TokenTable.Builder()
+                .add(null, -1, null, null, -1, null)
+                .add("a", 5, "a", "DET", 0, "ROOT")
+                .build());
+        final AnalysisResult restored = read(write(original));
+        assertThat(restored.entities, is(nullValue()));
+        assertThat(restored.sentiment, is(nullValue()));
+        assertThat(restored.tokens.getText(0), is(nullValue()));
+        assertThat(restored.tokens.getBeginOffset(0), is(-1));
+        assertThat(restored.tokens.getHeadTokenIndex(0), is(-1));
+        assertThat(restored.tokens.getLemma(0), is(nullValue()));
+        assertThat(restored.tokens.getBeginOffset(1), is(5));
+        assertThat(restored.tokens.getLemma(1), is(equalTo("a")));
+    }
+
+    @Test
+    public void key() {
+        final Features all = allFeatures();
+        final Features syntax = new Features().setExtractSyntax(true);
+        assertThat(AnalysisCache.key("text", all), is(equalTo(AnalysisCache.key("text", all))));
+        assertThat(AnalysisCache.key("text", all), is(not(equalTo(AnalysisCache.key("text",
+                syntax)))));
+        assertThat(AnalysisCache.key("text", all), is(not(equalTo(AnalysisCache.key("text.",
+                all)))));
+    }
+
+    @Test
+    public void memoryEvictsLeastRecentlyUsed() {
+        final AnalysisResult result = createResult(10);
+        final int size = result.estimateSize();
+        final AnalysisCache cache = new AnalysisCache(mDirectory, size * 2, 1024 * 1024);
+        cache.put("a", result);
+        cache.put("b", createResult(10));
+        assertThat(cache.getFromMemory("a"), is(sameInstance(result)));
+        cache.put("c", createResult(10));
+        assertThat(cache.getEvictionCount(), is(1));
+        // "b" was least recently used, but it is still on disk
+        assertThat(cache.getFromMemory("b"), is(nullValue()));
+        assertThat(cache.get("b"), is(notNullValue()));
+        assertThat(cache.getDiskHitCount(), is(1));
+        assertThat(cache.get("d"), is(nullValue()));
+        assertThat(cache.getMissCount(), is(1));
+    }
+
+    @Test
+    public void diskSurvivesNewInstance() {
+        new AnalysisCache(mDirectory).put("a", createResult(10));
+        final AnalysisCache cache = new AnalysisCache(mDirectory);
+        assertThat(cache.getFromMemory("a"), is(nullValue()));
+        final AnalysisResult restored = cache.get("a");
+        assertThat(restored.tokens.size(), is(10));
+        assertThat(cache.getDiskHitCount(), is(1));
+        // Now it is in memory
+        assertThat(cache.getFromMemory("a"), is(sameInstance(restored)));
+    }
+
+    @Test
+    public void diskEvictsOldestFiles() throws IOException {
+        final long fileSize = write(createResult(100)).length;
+        final AnalysisCache cache = new AnalysisCache(mDirectory, 1024 * 1024, fileSize * 3);
+        for (int i = 0; i < 5; i++) {
+            cache.put("key" + i, createResult(100));
+        }
+        assertThat(cache.getDiskEvictionCount(), is(2));
+        long total = 0;
+        for (File file : mDirectory.listFiles()) {
+            total += file.length();
+        }
+        assertTrue(total <= fileSize * 3);
+    }
+
+    @Test
+    public void writeExecutor_writesInBackground() throws InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AnalysisCache cache = new AnalysisCache(mDirectory);
+        cache.setWriteExecutor(executor);
+        final AnalysisResult result = createResult(10);
+        cache.put("a", result);
+        assertThat(cache.getFromMemory("a"), is(sameInstance(result)));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertThat(new AnalysisCache(mDirectory).get("a").tokens.size(), is(10));
+        // Rejected once the executor is shut down, but still kept in memory
+        cache.put("b", result);
+        assertThat(cache.getFromMemory("b"), is(sameInstance(result)));
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        Benchmarks.assumeEnabled();
+        final int[] sizes = {100, 1000, 10000};
+        for (int size : sizes) {
+            final AnalysisResult result = createResult(size);
+            final byte[] bytes = write(result);
+            final String text = createText(size);
+            final String key = AnalysisCache.key(text, allFeatures());
+            final AnalysisCache cache = new AnalysisCache(mDirectory);
+            cache.put(key, result);
+
+            long start = System.nanoTime();
+            final int iterations = 100;
+            for (int i = 0; i < iterations; i++) {
+                cache.getFromMemory(AnalysisCache.key(text, allFeatures()));
+            }
+            final double memory = (System.nanoTime() - start) / 1e3 / iterations;
+
+            final AnalysisCache cold = new AnalysisCache(mDirectory);
+            start = System.nanoTime();
+            assertThat(cold.get(key), is(notNullValue()));
+            final double disk = (System.nanoTime() - start) / 1e3;
+
+            System.out.printf("%6d tokens: %7d bytes on disk (%.1f per token), "
+                            + "memory hit %8.1f us, disk hit %9.1f us%n",
+                    size, bytes.length, (double) bytes.length / size, memory, disk);
+            // Well within a frame
+            assertTrue(memory < 16000);
+            cache.clear();
+        }
+    }
+
+    private static Features allFeatures() {
+        return new Features()
+                .setExtractEntities(true)
+                .setExtractDocumentSentiment(true)
+                .setExtractSyntax(true);
+    }
+
+    private static String createText(int tokens) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            builder.append(WORDS[i % WORDS.length]).append(' ');
+        }
+        return builder.toString();
+    }
+
+    private static AnalysisResult createResult(int size) {
+        final TokenTable.Builder tokens = new TokenTable.Builder(createText(size), size);
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            final String word = WORDS[i % WORDS.length];
+            tokens.add(word, offset, word.toLowerCase(), TAGS[i % TAGS.length],
+                    i - i % WORDS.length + 4, i % WORDS.length == 4 ? "ROOT" : "DEP");
+            offset += word.length() + 1;
+        }
+        final EntityInfo[] entities = {
+                new EntityInfo("fox", "OTHER", 0.5f, null),
+                new EntityInfo("Mountain View", "LOCATION", 0.3f,
+                        "https://en.wikipedia.org/wiki/Mountain_View,_California"),
+        };
+        return new AnalysisResult(entities, new SentimentInfo(0.2f, 0.8f), tokens.build());
+    }
+
+    private static byte[] write(AnalysisResult result) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        AnalysisCache.write(result, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static AnalysisResult read(byte[] bytes) throws IOException {
+        return AnalysisCache.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+}
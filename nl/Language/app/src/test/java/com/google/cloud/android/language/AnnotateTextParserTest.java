@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.language.v1.model.AnnotateTextResponse;
+import com.google.api.services.language.v1.model.DependencyEdge;
+import com.google.api.services.language.v1.model.Entity;
+import com.google.api.services.language.v1.model.PartOfSpeech;
+import com.google.api.services.language.v1.model.Sentence;
+import com.google.api.services.language.v1.model.Sentiment;
+import com.google.api.services.language.v1.model.TextSpan;
+import com.google.api.services.language.v1.model.Token;
+import com.google.cloud.android.language.model.TokenInfo;
+import com.google.cloud.android.language.model.TokenTable;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+public class AnnotateTextParserTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private static final String[] WORDS = {"Google", "is", "based", "in", "Mountain", "View",
+            "."};
+
+    private static final String[] TAGS = {"NOUN", "VERB", "VERB", "ADP", "NOUN", "NOUN",
+            "PUNCT"};
+
+    private static final String[] LABELS = {"NSUBJPASS", "AUXPASS", "ROOT", "PREP", "NN", "POBJ",
+            "P"};
+
+    @Test
+    public void parse() throws IOException {
+        final String document = "Google is in Mountain View.";
+        // Fields with their default values, such as the first offset, are left out
+        final String json = "{"
+                + "\"sentences\": [{\"text\": {\"content\": \"" + document + "\"},"
+                + " \"sentiment\": {\"magnitude\": 0.1, \"score\": 0.1}}],"
+                + "\"tokens\": ["
+                + "{\"text\": {\"content\": \"Google\"},"
+                + " \"partOfSpeech\": {\"tag\": \"NOUN\", \"number\": \"SINGULAR\","
+                + " \"proper\": \"PROPER\"},"
+                + " \"dependencyEdge\": {\"headTokenIndex\": 1, \"label\": \"NSUBJ\"},"
+                + " \"lemma\": \"Google\"},"
+                + "{\"text\": {\"content\": \"is\", \"beginOffset\": 7},"
+                + " \"partOfSpeech\": {\"tag\": \"VERB\", \"tense\": \"PRESENT\"},"
+                + " \"dependencyEdge\": {\"headTokenIndex\": 1, \"label\": \"ROOT\"},"
+                + " \"lemma\": \"be\"},"
+                + "{\"text\": {\"content\": \"here\", \"beginOffset\": -1},"
+                + " \"partOfSpeech\": {\"tag\": \"ADV\"},"
+                + " \"dependencyEdge\": {\"label\": \"ADVMOD\"},"
+                + " \"lemma\": null}"
+                + "],"
+                + "\"entities\": [{\"name\": \"Google\", \"type\": \"ORGANIZATION\","
+                + " \"metadata\": {\"wikipedia_url\": \"https://en.wikipedia.org/wiki/Google\"},"
+                + " \"salience\": 0.6, \"mentions\": [{\"text\": {\"content\": \"Google\"},"
+                + " \"type\": \"PROPER\"}]}],"
+                + "\"documentSentiment\": {\"magnitude\": 0.1, \"score\": 0.1},"
+                + "\"language\": \"en\","
+                + "\"unknown\": {\"nested\": [1, 2, {\"deep\": true}]}"
+                + "}";
+        final AnnotateTextParser.Result result = parse(json, document);
+
+        final TokenTable tokens = result.tokens;
+        assertThat(tokens.size(), is(3));
+        assertThat(tokens.getText(0), is(equalTo("Google")));
+        assertThat(tokens.getBeginOffset(0), is(0));
+        assertThat(tokens.getPartOfSpeech(0), is(equalTo("NOUN")));
+        assertThat(tokens.getHeadTokenIndex(0), is(1));
+        assertThat(tokens.getLabel(0), is(equalTo("NSUBJ")));
+        assertThat(tokens.getLemma(1), is(equalTo("be")));
+        assertThat(tokens.getBeginOffset(1), is(7));
+        // Not in the document
+        assertThat(tokens.getText(2), is(equalTo("here")));
+        assertThat(tokens.getBeginOffset(2), is(-1));
+        assertThat(tokens.getHeadTokenIndex(2), is(0));
+        assertThat(tokens.getLemma(2), is(nullValue()));
+
+        final AnnotateTextResponse response = result.response;
+        assertThat(response.getTokens(), is(nullValue()));
+        assertThat(response.getSentences().size(), is(1));
+        assertThat(response.getSentences().get(0).getSentiment().getScore(), is(0.1f));
+        assertThat(response.getEntities().size(), is(1));
+        assertThat(response.getEntities().get(0).getMetadata().get("wikipedia_url"),
+                is(equalTo("https://en.wikipedia.org/wiki/Google")));
+        assertThat(response.getEntities().get(0).getMentions().size(), is(1));
+        assertThat(response.getDocumentSentiment().getMagnitude(), is(0.1f));
+        assertThat(response.getLanguage(), is(equalTo("en")));
+    }
+
+    @Test
+    public void parse_withoutSyntax() throws IOException {
+        final AnnotateTextParser.Result result = parse(
+                "{\"documentSentiment\": {\"score\": -0.5}, \"language\": \"en\"}", null);
+        assertThat(result.tokens, is(nullValue()));
+        assertThat(result.response.getEntities(), is(nullValue()));
+        assertThat(result.response.getDocumentSentiment().getScore(), is(-0.5f));
+    }
+
+    @Test(expected = IOException.class)
+    public void parse_notAResponse() throws IOException {
+        parse("[1, 2, 3]", null);
+    }
+
+    @Test
+    public void parse_sameAsObjectModel() throws IOException {
+        final String document = createDocument(1000);
+        final AnnotateTextResponse expected = createResponse(document, 1000);
+        final byte[] json = JSON_FACTORY.toByteArray(expected);
+        final AnnotateTextParser.Result result = parse(json, document);
+        final List<TokenInfo> tokens = parseWithObjectModel(json);
+        assertThat(result.tokens.size(), is(tokens.size()));
+        for (int i = 0; i < tokens.size(); i++) {
+            final TokenInfo a = tokens.get(i);
+            final TokenInfo b = result.tokens.get(i);
+            assertThat(b.text, is(equalTo(a.text)));
+            assertThat(b.beginOffset, is(a.beginOffset));
+            assertThat(b.lemma, is(equalTo(a.lemma)));
+            assertThat(b.partOfSpeech, is(equalTo(a.partOfSpeech)));
+            assertThat(b.headTokenIndex, is(a.headTokenIndex));
+            assertThat(b.label, is(equalTo(a.label)));
+        }
+        assertThat(result.response.getSentences().size(), is(expected.getSentences().size()));
+        assertThat(result.response.getEntities().size(), is(expected.getEntities().size()));
+        assertThat(result.response.getDocumentSentiment(), is(notNullValue()));
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        Benchmarks.assumeEnabled();
+        final int size = 10000;
+        final String document = createDocument(size);
+        final byte[] json = JSON_FACTORY.toByteArray(createResponse(document, size));
+        // Warm up
+        for (int i = 0; i < 5; i++) {
+            parseWithObjectModel(json);
+            parse(json, document);
+        }
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final com.sun.management.ThreadMXBean allocations =
+                threads instanceof com.sun.management.ThreadMXBean
+                        ? (com.sun.management.ThreadMXBean) threads : null;
+        final long thread = Thread.currentThread().getId();
+        final int iterations = 10;
+
+        long allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parseWithObjectModel(json);
+        }
+        final double modelMillis = (System.nanoTime() - start) / 1e6 / iterations;
+        final long modelBytes = allocations == null ? 0
+                : (allocations.getThreadAllocatedBytes(thread) - allocated) / iterations;
+
+        allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(thread);
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parse(json, document);
+        }
+        final double streamingMillis = (System.nanoTime() - start) / 1e6 / iterations;
+        final long streamingBytes = allocations == null ? 0
+                : (allocations.getThreadAllocatedBytes(thread) - allocated) / iterations;
+
+        System.out.printf("%d tokens, %d bytes of JSON%n", size, json.length);
+        System.out.printf("object model + TokenInfo[]: %7.1f ms, %9d bytes allocated%n",
+                modelMillis, modelBytes);
+        System.out.printf("streaming into TokenTable:  %7.1f ms, %9d bytes allocated%n",
+                streamingMillis, streamingBytes);
+        if (allocations != null) {
+            assertTrue(streamingBytes < modelBytes);
+        }
+    }
+
+    private static AnnotateTextParser.Result parse(String json, String document)
+            throws IOException {
+        return parse(json.getBytes(UTF_8), document);
+    }
+
+    private static AnnotateTextParser.Result parse(byte[] json, String document)
+            throws IOException {
+        return AnnotateTextParser.parse(
+                JSON_FACTORY.createJsonParser(new ByteArrayInputStream(json), UTF_8), document);
+    }
+
+    /**
+     * Parses the way the client library does, and converts the tokens the way it used to be done.
+     */
+    private static List<TokenInfo> parseWithObjectModel(byte[] json) throws IOException {
+        final AnnotateTextResponse response = JSON_FACTORY
+                .createJsonParser(new ByteArrayInputStream(json), UTF_8)
+                .parseAndClose(AnnotateTextResponse.class);
+        final List<TokenInfo> tokens = new ArrayList<>(response.getTokens().size());
+        for (Token token : response.getTokens()) {
+            tokens.add(new TokenInfo(token));
+        }
+        return tokens;
+    }
+
+    private static String createDocument(int tokens) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            builder.append(WORDS[i % WORDS.length]).append(' ');
+        }
+        return builder.toString();
+    }
+
+    private static AnnotateTextResponse createResponse(String document, int size) {
+        final List<Token> tokens = new ArrayList<>(size);
+        final List<Sentence> sentences = new ArrayList<>();
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            final int word = i % WORDS.length;
+            if (word == 0) {
+                sentences.add(new Sentence()
+                        .setText(new TextSpan().setContent("Google").setBeginOffset(offset))
+                        .setSentiment(new Sentiment().setScore(0.1f).setMagnitude(0.1f)));
+            }
+            tokens.add(new Token()
+                    .setText(new TextSpan().setContent(WORDS[word]).setBeginOffset(offset))
+                    .setLemma(WORDS[word].toLowerCase())
+                    .setPartOfSpeech(new PartOfSpeech().setTag(TAGS[word]))
+                    .setDependencyEdge(new DependencyEdge()
+                            .setHeadTokenIndex(i - word + 2)
+                            .setLabel(LABELS[word])));
+            offset += WORDS[word].length() + 1;
+        }
+        return new AnnotateTextResponse()
+                .setSentences(sentences)
+                .setTokens(tokens)
+                .setEntities(Collections.singletonList(new Entity()
+                        .setName("Google")
+                        .setType("ORGANIZATION")
+                        .setSalience(1.f)))
+                .setDocumentSentiment(new Sentiment().setScore(0.1f).setMagnitude(0.1f))
+                .setLanguage("en");
+    }
+
+}
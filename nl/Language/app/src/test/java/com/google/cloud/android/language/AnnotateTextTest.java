@@ -0,0 +1,410 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.language.v1.CloudNaturalLanguage;
+import com.google.api.services.language.v1.CloudNaturalLanguageRequest;
+import com.google.api.services.language.v1.model.AnalyzeEntitiesRequest;
+import com.google.api.services.language.v1.model.AnalyzeEntitiesResponse;
+import com.google.api.services.language.v1.model.AnalyzeSentimentRequest;
+import com.google.api.services.language.v1.model.AnalyzeSentimentResponse;
+import com.google.api.services.language.v1.model.AnnotateTextRequest;
+import com.google.api.services.language.v1.model.AnnotateTextResponse;
+import com.google.api.services.language.v1.model.DependencyEdge;
+import com.google.api.services.language.v1.model.Document;
+import com.google.api.services.language.v1.model.Entity;
+import com.google.api.services.language.v1.model.EntityMention;
+import com.google.api.services.language.v1.model.Features;
+import com.google.api.services.language.v1.model.PartOfSpeech;
+import com.google.api.services.language.v1.model.Sentence;
+import com.google.api.services.language.v1.model.Sentiment;
+import com.google.api.services.language.v1.model.TextSpan;
+import com.google.api.services.language.v1.model.Token;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Compares a single annotateText request for all the features against one request per feature.
+ */
+public class AnnotateTextTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    /** Simulated round-trip time of a request to the API. */
+    private static final long ROUND_TRIP_MILLIS = 80;
+
+    private static final int SENTENCES = 20;
+
+    private static final int ITERATIONS = 5;
+
+    private FakeLanguageServer mServer;
+
+    private CloudNaturalLanguage mApi;
+
+    private String mText;
+
+    @Before
+    public void setUp() {
+        mServer = new FakeLanguageServer();
+        mApi = new CloudNaturalLanguage.Builder(mServer, JSON_FACTORY, null)
+                .setApplicationName("AnnotateTextTest")
+                .build();
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < SENTENCES; i++) {
+            text.append("Google announced sentence number ").append(i)
+                    .append(" about the Natural Language API in Mountain View. ");
+        }
+        mText = text.toString();
+    }
+
+    @Test
+    public void annotateAll_returnsEveryFeature() throws IOException {
+        final AnnotateTextResponse response = mApi.documents()
+                .annotateText(ApiFragment.newAnnotateAllRequest(mText))
+                .execute();
+        assertThat(response.getEntities(), is(notNullValue()));
+        assertThat(response.getDocumentSentiment(), is(notNullValue()));
+        assertThat(response.getTokens(), is(notNullValue()));
+        assertThat(mServer.mRequests.get(), is(1));
+    }
+
+    @Test
+    public void annotateSyntax_convertsOnlySyntax() throws IOException {
+        final HttpResponse response = mApi.documents()
+                .annotateText(new AnnotateTextRequest()
+                        .setDocument(newDocument(mText))
+                        .setFeatures(new Features().setExtractSyntax(true))
+                        .setEncodingType("UTF16"))
+                .executeUnparsed();
+        // Parsed and converted like ApiFragment does, which only delivers the non-null features
+        final AnalysisResult result;
+        try {
+            result = AnalysisResult.from(AnnotateTextParser.parse(JSON_FACTORY.createJsonParser(
+                    response.getContent(), response.getContentCharset()), mText));
+        } finally {
+            response.disconnect();
+        }
+        assertThat(result.entities, is(nullValue()));
+        assertThat(result.sentiment, is(nullValue()));
+        assertThat(result.tokens.size(), is(mText.split(" ").length));
+    }
+
+    @Test
+    public void annotateAll_sendsLessThanSeparateRequests() throws IOException {
+        analyzeSeparately();
+        final int separateRequests = mServer.mRequests.get();
+        final long separateUploaded = mServer.mUploaded.get();
+        final long separateDownloaded = mServer.mDownloaded.get();
+        mServer.reset();
+        analyzeAll();
+        assertThat(separateRequests, is(3));
+        assertThat(mServer.mRequests.get(), is(1));
+        assertTrue(mServer.mUploaded.get() < separateUploaded);
+        assertTrue(mServer.mDownloaded.get() < separateDownloaded);
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Benchmarks.assumeEnabled();
+        // Warm up
+        analyzeSeparately();
+        analyzeAll();
+
+        final Result serial = new Result();
+        final Result concurrent = new Result();
+        final Result single = new Result();
+        final RequestExecutor executor = new RequestExecutor();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mServer.reset();
+            long start = System.nanoTime();
+            analyzeSeparately();
+            serial.add(System.nanoTime() - start, mServer);
+
+            mServer.reset();
+            start = System.nanoTime();
+            analyzeSeparately(executor);
+            concurrent.add(System.nanoTime() - start, mServer);
+
+            mServer.reset();
+            start = System.nanoTime();
+            analyzeAll();
+            single.add(System.nanoTime() - start, mServer);
+        }
+        executor.shutdown();
+
+        System.out.printf("%d characters, %d ms round-trip%n", mText.length(), ROUND_TRIP_MILLIS);
+        serial.print("3 requests, one after another");
+        concurrent.print("3 requests, concurrently");
+        single.print("1 annotateText request");
+
+        assertTrue(single.mUploaded < serial.mUploaded);
+        assertTrue(single.mDownloaded < serial.mDownloaded);
+        assertTrue(single.mNanos < serial.mNanos);
+    }
+
+    private void analyzeAll() throws IOException {
+        mApi.documents().annotateText(ApiFragment.newAnnotateAllRequest(mText)).execute();
+    }
+
+    private void analyzeSeparately() throws IOException {
+        for (CloudNaturalLanguageRequest<? extends GenericJson> request : newSeparateRequests()) {
+            request.execute();
+        }
+    }
+
+    private void analyzeSeparately(RequestExecutor executor) throws Exception {
+        final List<CloudNaturalLanguageRequest<? extends GenericJson>> requests =
+                newSeparateRequests();
+        final CountDownLatch done = new CountDownLatch(requests.size());
+        for (final CloudNaturalLanguageRequest<? extends GenericJson> request : requests) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        request.execute();
+                        done.countDown();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return The requests that {@link ApiFragment} used to make for a single analysis.
+     */
+    private List<CloudNaturalLanguageRequest<? extends GenericJson>> newSeparateRequests()
+            throws IOException {
+        final List<CloudNaturalLanguageRequest<? extends GenericJson>> requests =
+                new ArrayList<>();
+        requests.add(mApi.documents().analyzeEntities(new AnalyzeEntitiesRequest()
+                .setDocument(newDocument(mText))));
+        requests.add(mApi.documents().analyzeSentiment(new AnalyzeSentimentRequest()
+                .setDocument(newDocument(mText))));
+        requests.add(mApi.documents().annotateText(new AnnotateTextRequest()
+                .setDocument(newDocument(mText))
+                .setFeatures(new Features().setExtractSyntax(true))));
+        return requests;
+    }
+
+    private static Document newDocument(String text) {
+        return new Document().setContent(text).setType("PLAIN_TEXT");
+    }
+
+    private static class Result {
+
+        long mNanos;
+        long mUploaded;
+        long mDownloaded;
+        int mRequests;
+
+        void add(long nanos, FakeLanguageServer server) {
+            mNanos += nanos;
+            mUploaded += server.mUploaded.get();
+            mDownloaded += server.mDownloaded.get();
+            mRequests += server.mRequests.get();
+        }
+
+        void print(String name) {
+            System.out.printf("%-30s %7.1f ms, %d requests, %6d bytes up, %6d bytes down%n",
+                    name, mNanos / 1e6 / ITERATIONS, mRequests / ITERATIONS,
+                    mUploaded / ITERATIONS, mDownloaded / ITERATIONS);
+        }
+
+    }
+
+    /**
+     * Answers the requests like the API would, after a round-trip delay, and counts the bytes of
+     * the request bodies as they are sent (gzipped) and of the responses.
+     */
+    private static class FakeLanguageServer extends MockHttpTransport {
+
+        final AtomicInteger mRequests = new AtomicInteger();
+        final AtomicLong mUploaded = new AtomicLong();
+        final AtomicLong mDownloaded = new AtomicLong();
+
+        void reset() {
+            mRequests.set(0);
+            mUploaded.set(0);
+            mDownloaded.set(0);
+        }
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, final String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    getStreamingContent().writeTo(body);
+                    mRequests.incrementAndGet();
+                    mUploaded.addAndGet(body.size());
+                    InputStream in = new ByteArrayInputStream(body.toByteArray());
+                    if ("gzip".equals(getContentEncoding())) {
+                        in = new GZIPInputStream(in);
+                    }
+                    final String json = respond(url, in);
+                    final byte[] bytes = json.getBytes(UTF_8);
+                    mDownloaded.addAndGet(bytes.length);
+                    try {
+                        Thread.sleep(ROUND_TRIP_MILLIS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return new MockLowLevelHttpResponse()
+                            .setContentType(Json.MEDIA_TYPE)
+                            .setContent(new ByteArrayInputStream(bytes));
+                }
+            };
+        }
+
+        private String respond(String url, InputStream in) throws IOException {
+            if (url.endsWith(":analyzeEntities")) {
+                final AnalyzeEntitiesRequest request =
+                        JSON_FACTORY.fromInputStream(in, UTF_8, AnalyzeEntitiesRequest.class);
+                return JSON_FACTORY.toString(new AnalyzeEntitiesResponse()
+                        .setEntities(entities(request.getDocument().getContent()))
+                        .setLanguage("en"));
+            } else if (url.endsWith(":analyzeSentiment")) {
+                final AnalyzeSentimentRequest request =
+                        JSON_FACTORY.fromInputStream(in, UTF_8, AnalyzeSentimentRequest.class);
+                return JSON_FACTORY.toString(new AnalyzeSentimentResponse()
+                        .setDocumentSentiment(sentiment())
+                        .setSentences(sentences(request.getDocument().getContent(), true))
+                        .setLanguage("en"));
+            } else if (url.endsWith(":annotateText")) {
+                final AnnotateTextRequest request =
+                        JSON_FACTORY.fromInputStream(in, UTF_8, AnnotateTextRequest.class);
+                final String text = request.getDocument().getContent();
+                final Features features = request.getFeatures();
+                final boolean sentiment = isTrue(features.getExtractDocumentSentiment());
+                final AnnotateTextResponse response = new AnnotateTextResponse()
+                        .setSentences(sentences(text, sentiment))
+                        .setLanguage("en");
+                if (isTrue(features.getExtractEntities())) {
+                    response.setEntities(entities(text));
+                }
+                if (sentiment) {
+                    response.setDocumentSentiment(sentiment());
+                }
+                if (isTrue(features.getExtractSyntax())) {
+                    response.setTokens(tokens(text));
+                }
+                return JSON_FACTORY.toString(response);
+            }
+            throw new IOException("Unexpected request: " + url);
+        }
+
+        private static boolean isTrue(Boolean value) {
+            return value != null && value;
+        }
+
+        private static Sentiment sentiment() {
+            return new Sentiment().setScore(0.3f).setMagnitude(0.6f);
+        }
+
+        private static List<Sentence> sentences(String text, boolean sentiment) {
+            final List<Sentence> sentences = new ArrayList<>();
+            int begin = 0;
+            int end;
+            while ((end = text.indexOf(". ", begin)) >= 0) {
+                final Sentence sentence = new Sentence()
+                        .setText(new TextSpan()
+                                .setContent(text.substring(begin, end + 1))
+                                .setBeginOffset(begin));
+                if (sentiment) {
+                    sentence.setSentiment(sentiment());
+                }
+                sentences.add(sentence);
+                begin = end + 2;
+            }
+            return sentences;
+        }
+
+        private static List<Token> tokens(String text) {
+            final List<Token> tokens = new ArrayList<>();
+            int begin = 0;
+            for (String word : text.split(" ")) {
+                tokens.add(new Token()
+                        .setText(new TextSpan().setContent(word).setBeginOffset(begin))
+                        .setPartOfSpeech(new PartOfSpeech().setTag("NOUN"))
+                        .setDependencyEdge(new DependencyEdge()
+                                .setHeadTokenIndex(0)
+                                .setLabel("DEP"))
+                        .setLemma(word));
+                begin += word.length() + 1;
+            }
+            return tokens;
+        }
+
+        private static List<Entity> entities(String text) {
+            final List<Entity> entities = new ArrayList<>();
+            for (String name : new String[]{"Google", "Natural Language API", "Mountain View"}) {
+                final List<EntityMention> mentions = new ArrayList<>();
+                int begin = text.indexOf(name);
+                while (begin >= 0) {
+                    mentions.add(new EntityMention()
+                            .setText(new TextSpan().setContent(name).setBeginOffset(begin))
+                            .setType("PROPER"));
+                    begin = text.indexOf(name, begin + name.length());
+                }
+                entities.add(new Entity()
+                        .setName(name)
+                        .setType("OTHER")
+                        .setSalience(1.f / 3)
+                        .setMentions(mentions));
+            }
+            return entities;
+        }
+
+    }
+
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.language.v1.model.AnnotateTextResponse;
+import com.google.api.services.language.v1.model.Entity;
+import com.google.api.services.language.v1.model.EntityMention;
+import com.google.api.services.language.v1.model.Sentence;
+import com.google.api.services.language.v1.model.Sentiment;
+import com.google.api.services.language.v1.model.TextSpan;
+import com.google.cloud.android.language.model.EntityInfo;
+import com.google.cloud.android.language.model.TokenInfo;
+import com.google.cloud.android.language.model.TokenTable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class IncrementalAnalyzerTest {
+
+    private static final String[] PLACES = {"Paris", "Tokyo", "Nairobi", "Lima"};
+
+    private File mDirectory;
+
+    private FakeAnnotator mAnnotator;
+
+    private ExecutorService mExecutor;
+
+    private ExecutorService mWriteExecutor;
+
+    private IncrementalAnalyzer mAnalyzer;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("analysis", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+        mAnnotator = new FakeAnnotator();
+        mExecutor = Executors.newFixedThreadPool(4);
+        mWriteExecutor = Executors.newSingleThreadExecutor();
+        final AnalysisCache cache = new AnalysisCache(mDirectory);
+        cache.setWriteExecutor(mWriteExecutor);
+        mAnalyzer = new IncrementalAnalyzer(cache, mAnnotator, Locale.US, mExecutor);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mExecutor.shutdownNow();
+        mWriteExecutor.shutdown();
+        assertTrue(mWriteExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    @Test
+    public void split_coversDocument() {
+        final String text = createDocument(5);
+        final List<IncrementalAnalyzer.Segment> segments =
+                IncrementalAnalyzer.split(text, Locale.US);
+        assertThat(segments.size(), is(5));
+        final StringBuilder joined = new StringBuilder();
+        for (IncrementalAnalyzer.Segment segment : segments) {
+            joined.append(segment.text);
+        }
+        assertThat(joined.toString(), is(equalTo(text)));
+    }
+
+    @Test
+    public void firstAnalysis_sendsDocumentOnce() throws IOException {
+        final String text = createDocument(10);
+        final AnalysisResult result = mAnalyzer.analyze(text);
+        assertThat(mAnalyzer.getLastRequestCount(), is(1));
+        assertThat(mAnalyzer.getLastSentLength(), is(text.length()));
+        assertSameAsWholeDocument(text, result);
+    }
+
+    @Test
+    public void edit_sendsOnlyChangedSentence() throws IOException {
+        final String text = createDocument(10);
+        mAnalyzer.analyze(text);
+        final String changed = "Sentence 4 was rewritten about Lima. ";
+        final String edited = replaceSentence(text, 4, changed);
+        final AnalysisResult result = mAnalyzer.analyze(edited);
+        assertThat(mAnalyzer.getLastRequestCount(), is(1));
+        assertThat(mAnalyzer.getLastSentLength(), is(changed.length()));
+        assertThat(mAnalyzer.getLastReusedCount(), is(9));
+        assertSameAsWholeDocument(edited, result);
+    }
+
+    @Test
+    public void edit_consecutiveSentencesShareRequest() throws IOException {
+        final String text = createDocument(10);
+        mAnalyzer.analyze(text);
+        String edited = replaceSentence(text, 2, "One about Tokyo. ");
+        edited = replaceSentence(edited, 3, "Two about Tokyo. ");
+        edited = replaceSentence(edited, 7, "Three about Paris. ");
+        final AnalysisResult result = mAnalyzer.analyze(edited);
+        assertThat(mAnalyzer.getLastRequestCount(), is(2));
+        assertSameAsWholeDocument(edited, result);
+    }
+
+    @Test
+    public void omittedZeroOffsets_countAsZero() throws IOException {
+        mAnnotator.mOmitZeroOffsets = true;
+        // The first sentence and the mention of Paris are both at offset 0
+        final String text = "Paris is where it starts. " + createDocument(5);
+        final AnalysisResult result = mAnalyzer.analyze(text);
+        assertSameAsWholeDocument(text, result);
+    }
+
+    @Test
+    public void planChunks_staysUnderBudget() {
+        final String text = createDocument(100);
+        final List<IncrementalAnalyzer.Segment> segments =
+                IncrementalAnalyzer.split(text, Locale.US);
+        final int budget = 200;
+        final List<int[]> chunks = IncrementalAnalyzer.planChunks(segments,
+                new AnalysisResult[segments.size()], budget);
+        int next = 0;
+        for (int[] chunk : chunks) {
+            assertThat(chunk[0], is(next));
+            final int length = segments.get(chunk[1] - 1).end - segments.get(chunk[0]).start;
+            assertTrue(length <= budget);
+            next = chunk[1];
+        }
+        assertThat(next, is(segments.size()));
+    }
+
+    @Test
+    public void planChunks_prefersParagraphs() {
+        // Two paragraphs of 3 sentences each
+        final String paragraph = createDocument(3).trim() + "\n";
+        final String text = paragraph + paragraph;
+        final List<IncrementalAnalyzer.Segment> segments =
+                IncrementalAnalyzer.split(text, Locale.US);
+        assertThat(segments.size(), is(6));
+        // Room for 4 sentences, but the chunk ends with the first paragraph
+        final List<int[]> chunks = IncrementalAnalyzer.planChunks(segments,
+                new AnalysisResult[segments.size()], paragraph.length() + 40);
+        assertThat(chunks.size(), is(2));
+        assertThat(chunks.get(0)[1], is(3));
+    }
+
+    @Test
+    public void largeDocument_analyzedInParallelChunks() throws IOException {
+        final String text = createDocument(400);
+        mAnalyzer.setChunkBytes(2048);
+        final List<Integer> partialTokens = new ArrayList<>();
+        final AnalysisResult result = mAnalyzer.analyze(text,
+                new IncrementalAnalyzer.ProgressListener() {
+                    @Override
+                    public void onProgress(AnalysisResult partial, int completed, int total) {
+                        assertThat(completed, is(partialTokens.size() + 1));
+                        partialTokens.add(partial.tokens.size());
+                    }
+                });
+        final int chunks = mAnalyzer.getLastRequestCount();
+        assertTrue(chunks > 1);
+        assertThat(partialTokens.size(), is(chunks - 1));
+        for (int i = 1; i < partialTokens.size(); i++) {
+            assertTrue(partialTokens.get(i) > partialTokens.get(i - 1));
+        }
+        assertSameAsWholeDocument(text, result);
+    }
+
+    @Test
+    public void benchmark_chunks() throws IOException, InterruptedException {
+        Benchmarks.assumeEnabled();
+        final String text = createDocument(2000);
+        // The first budget fits the whole document in a single request
+        final int[] budgets = {Integer.MAX_VALUE, 32 * 1024, 16 * 1024, 8 * 1024};
+        double single = 0;
+        for (int budget : budgets) {
+            // A fresh cache, so that everything is analyzed
+            tearDown();
+            setUp();
+            mAnnotator.mSimulateNetwork = true;
+            mAnalyzer.setChunkBytes(budget);
+            final long start = System.nanoTime();
+            mAnalyzer.analyze(text);
+            final double elapsed = (System.nanoTime() - start) / 1e6;
+            if (budget == Integer.MAX_VALUE) {
+                single = elapsed;
+            }
+            System.out.printf("%d bytes in %2d request(s): %7.1f ms (%.2fx)%n",
+                    text.length(), mAnalyzer.getLastRequestCount(), elapsed, single / elapsed);
+        }
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        Benchmarks.assumeEnabled();
+        final int[] sizes = {10, 100, 1000};
+        for (int size : sizes) {
+            final String text = createDocument(size);
+            mAnalyzer.analyze(text);
+            final String edited = replaceSentence(text, size / 2,
+                    "Edited sentence " + size + " about Nairobi. ");
+
+            mAnnotator.reset();
+            mAnnotator.mSimulateNetwork = true;
+            long start = System.nanoTime();
+            mAnnotator.annotate(edited);
+            final double full = (System.nanoTime() - start) / 1e6;
+            final long fullBytes = mAnnotator.mSentBytes.get();
+
+            mAnnotator.reset();
+            start = System.nanoTime();
+            mAnalyzer.analyze(edited);
+            final double incremental = (System.nanoTime() - start) / 1e6;
+            final long incrementalBytes = mAnnotator.mSentBytes.get();
+            mAnnotator.mSimulateNetwork = false;
+
+            System.out.printf("%5d sentences, 1 edited: whole %8d bytes %7.1f ms, "
+                            + "incremental %5d bytes %7.1f ms%n",
+                    size, fullBytes, full, incrementalBytes, incremental);
+            assertTrue(incrementalBytes > 0 && incrementalBytes < 100);
+        }
+    }
+
+    /**
+     * Checks the merged result against the response for the whole document.
+     */
+    private void assertSameAsWholeDocument(String text, AnalysisResult result)
+            throws IOException {
+        final AnnotateTextParser.Result whole = mAnnotator.annotate(text);
+        final TokenTable tokens = whole.tokens;
+        assertThat(result.tokens.size(), is(tokens.size()));
+        for (int i = 0; i < tokens.size(); i++) {
+            final TokenInfo expected = tokens.get(i);
+            final TokenInfo actual = result.tokens.get(i);
+            assertThat(actual.text, is(equalTo(expected.text)));
+            assertThat(actual.beginOffset, is(expected.beginOffset));
+            assertThat(actual.headTokenIndex, is(expected.headTokenIndex));
+            assertThat(text.substring(actual.beginOffset,
+                    actual.beginOffset + actual.text.length()), is(equalTo(actual.text)));
+        }
+        final Map<String, Float> salience = new LinkedHashMap<>();
+        for (Entity entity : whole.response.getEntities()) {
+            salience.put(entity.getName(), entity.getSalience());
+        }
+        assertThat(result.entities.length, is(salience.size()));
+        for (EntityInfo entity : result.entities) {
+            assertEquals(salience.get(entity.name), entity.salience, 1e-4);
+        }
+        final Sentiment sentiment = whole.response.getDocumentSentiment();
+        assertEquals(sentiment.getScore(), result.sentiment.score, 1e-4);
+        assertEquals(sentiment.getMagnitude(), result.sentiment.magnitude, 1e-3);
+    }
+
+    private static String createDocument(int sentences) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < sentences; i++) {
+            builder.append("Sentence ").append(i).append(" mentions ")
+                    .append(PLACES[i % PLACES.length]).append(" and ")
+                    .append(PLACES[(i + 1) % PLACES.length]).append(". ");
+        }
+        return builder.toString();
+    }
+
+    private static String replaceSentence(String text, int index, String sentence) {
+        final List<IncrementalAnalyzer.Segment> segments =
+                IncrementalAnalyzer.split(text, Locale.US);
+        final IncrementalAnalyzer.Segment segment = segments.get(index);
+        return text.substring(0, segment.start) + sentence + text.substring(segment.end);
+    }
+
+    /**
+     * Annotates like the API would: a token per word whose head is the first word of the
+     * sentence, an entity per place with a salience in proportion to its mentions, and a
+     * sentiment per sentence that depends on its length. The document sentiment is weighted by
+     * magnitude.
+     */
+    private static class FakeAnnotator implements IncrementalAnalyzer.Annotator {
+
+        /** Simulated round-trip time of a request. */
+        static final long ROUND_TRIP_MILLIS = 50;
+
+        /** Simulated upload and processing speed. */
+        static final long BYTES_PER_MILLI = 100;
+
+        final AtomicLong mSentBytes = new AtomicLong();
+
+        volatile boolean mSimulateNetwork;
+
+        /** Leaves out the offsets that are 0, as the JSON of the API does. */
+        volatile boolean mOmitZeroOffsets;
+
+        void reset() {
+            mSentBytes.set(0);
+        }
+
+        @Override
+        public AnnotateTextParser.Result annotate(String text) throws IOException {
+            mSentBytes.addAndGet(text.length());
+            if (mSimulateNetwork) {
+                try {
+                    Thread.sleep(ROUND_TRIP_MILLIS + text.length() / BYTES_PER_MILLI);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            final TokenTable.Builder tokens = new TokenTable.Builder(text);
+            int tokenCount = 0;
+            final List<Sentence> sentences = new ArrayList<>();
+            final Map<String, List<EntityMention>> mentions = new LinkedHashMap<>();
+            int totalMentions = 0;
+            float weightedScore = 0;
+            float totalMagnitude = 0;
+            int sentenceStart = 0;
+            while (sentenceStart < text.length()) {
+                int sentenceEnd = text.indexOf(". ", sentenceStart);
+                sentenceEnd = sentenceEnd < 0 ? text.length() : sentenceEnd + 2;
+                final String content = text.substring(sentenceStart, sentenceEnd);
+                final float score = (content.length() % 10) / 10.f;
+                sentences.add(new Sentence()
+                        .setText(span(content, sentenceStart))
+                        .setSentiment(new Sentiment().setScore(score).setMagnitude(score)));
+                weightedScore += score * score;
+                totalMagnitude += score;
+                final int root = tokenCount;
+                int begin = sentenceStart;
+                for (String word : content.trim().split(" ")) {
+                    begin = text.indexOf(word, begin);
+                    tokens.add(word, begin, word, "X", root, tokenCount == root ? "ROOT" : "DEP");
+                    tokenCount++;
+                    for (String place : PLACES) {
+                        if (word.startsWith(place)) {
+                            List<EntityMention> list = mentions.get(place);
+                            if (list == null) {
+                                list = new ArrayList<>();
+                                mentions.put(place, list);
+                            }
+                            list.add(new EntityMention().setText(span(place, begin)));
+                            totalMentions++;
+                        }
+                    }
+                    begin += word.length();
+                }
+                sentenceStart = sentenceEnd;
+            }
+            final List<Entity> entities = new ArrayList<>();
+            for (Map.Entry<String, List<EntityMention>> entry : mentions.entrySet()) {
+                entities.add(new Entity()
+                        .setName(entry.getKey())
+                        .setType("LOCATION")
+                        .setSalience((float) entry.getValue().size() / totalMentions)
+                        .setMentions(entry.getValue()));
+            }
+            return new AnnotateTextParser.Result(new AnnotateTextResponse()
+                    .setSentences(sentences)
+                    .setEntities(entities)
+                    .setDocumentSentiment(new Sentiment()
+                            .setScore(totalMagnitude == 0 ? 0 : weightedScore / totalMagnitude)
+                            .setMagnitude(totalMagnitude)), tokens.build());
+        }
+
+        private TextSpan span(String content, int begin) {
+            final TextSpan span = new TextSpan().setContent(content);
+            if (begin != 0 || !mOmitZeroOffsets) {
+                span.setBeginOffset(begin);
+            }
+            return span;
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.language;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class RequestExecutorTest {
+
+    private RequestExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = new RequestExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void runsRequestsInParallel() throws InterruptedException {
+        // A request per feature; each one waits for the others to start, so all of them only
+        // complete if they run at the same time
+        final CountDownLatch started = new CountDownLatch(3);
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        if (started.await(5, TimeUnit.SECONDS)) {
+                            done.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        // Not counted
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void runsOneRequestAtATime() throws InterruptedException {
+        final RequestExecutor serial = new RequestExecutor(1, 3);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            serial.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (running.incrementAndGet() > 1) {
+                        overlapped.set(true);
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+        serial.shutdown();
+    }
+
+    @Test
+    public void dropsOldestWaitingRequest() throws InterruptedException {
+        final RequestExecutor executor = new RequestExecutor(1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> completed = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 5; i++) {
+            final int request = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // The first request holds the only worker
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    completed.add(request);
+                    done.countDown();
+                }
+            });
+        }
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // 1 and 2 waited the longest and made room for 3 and 4
+        assertThat(completed.size(), is(3));
+        assertThat(completed.get(0), is(0));
+        assertThat(completed.get(1), is(3));
+        assertThat(completed.get(2), is(4));
+        assertThat(executor.getDroppedCount(), is(2L));
+        executor.shutdown();
+    }
+
+}
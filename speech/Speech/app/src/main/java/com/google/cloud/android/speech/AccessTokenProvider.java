@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import android.util.Log;
+
+import com.google.auth.oauth2.AccessToken;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Provides access tokens from a cache, and fetches new ones ahead of their expiry.
+ *
+ * <p>Tokens are cached in memory and in a {@link Store} that survives the process, so a valid
+ * token is available right away after a cold start, without parsing the credential or going to
+ * the network. Concurrent callers that need a new token share a single fetch. Once a token is
+ * known, the next one is fetched in the background {@link #DEFAULT_REFRESH_AHEAD_MILLIS} before
+ * it expires, and delivered to the {@link Listener}.</p>
+ */
+public class AccessTokenProvider {
+
+    private static final String TAG = "AccessTokenProvider";
+
+    /** A token is not used if it expires sooner than this. */
+    public static final long MIN_VALIDITY_MILLIS = 60 * 1000; // one minute
+
+    /** How long before its expiry a token is replaced. */
+    public static final long DEFAULT_REFRESH_AHEAD_MILLIS = 5 * 60 * 1000; // five minutes
+
+    /** How long to wait before trying again after a failed fetch. */
+    public static final long RETRY_MILLIS = 30 * 1000; // thirty seconds
+
+    /**
+     * Obtains a new access token, typically from the network.
+     */
+    public interface Fetcher {
+        AccessToken fetch() throws IOException;
+    }
+
+    /**
+     * Persists the latest access token.
+     */
+    public interface Store {
+
+        /**
+         * @return The stored token, or {@code null} if there is none.
+         */
+        AccessToken load();
+
+        void save(AccessToken token);
+
+    }
+
+    public interface Listener {
+
+        /**
+         * Called with the cached token, and with every token fetched afterwards. This is called
+         * on the executor of the provider.
+         */
+        void onAccessToken(AccessToken token);
+
+    }
+
+    private final Fetcher mFetcher;
+
+    private final Store mStore;
+
+    private final ScheduledExecutorService mExecutor;
+
+    private long mRefreshAheadMillis = DEFAULT_REFRESH_AHEAD_MILLIS;
+
+    private long mRetryMillis = RETRY_MILLIS;
+
+    private volatile Listener mListener;
+
+    /** The latest token, or {@code null} until it is loaded or fetched. */
+    private volatile AccessToken mToken;
+
+    /** Whether {@link #mStore} was read yet. Guarded by {@code this}. */
+    private boolean mLoaded;
+
+    /** The fetch in progress, shared by all the callers. Guarded by {@code this}. */
+    private FutureTask<AccessToken> mFetch;
+
+    private ScheduledFuture<?> mScheduledRefresh;
+
+    private final AtomicInteger mFetches = new AtomicInteger();
+
+    private final AtomicInteger mCacheHits = new AtomicInteger();
+
+    /**
+     * @param fetcher  Fetches new tokens.
+     * @param store    Persists the latest token.
+     * @param executor Runs the fetches and the listener.
+     */
+    public AccessTokenProvider(Fetcher fetcher, Store store, ScheduledExecutorService executor) {
+        mFetcher = fetcher;
+        mStore = store;
+        mExecutor = executor;
+    }
+
+    /**
+     * Sets how long before its expiry a token is replaced. This takes effect from the next token.
+     */
+    public void setRefreshAheadMillis(long millis) {
+        mRefreshAheadMillis = millis;
+    }
+
+    /**
+     * Sets how long to wait before trying again after a failed fetch. This is also the shortest
+     * time between two refreshes.
+     */
+    public void setRetryMillis(long millis) {
+        mRetryMillis = millis;
+    }
+
+    /**
+     * Delivers a token to the listener as soon as possible: right away if a valid one is cached,
+     * or once one is fetched otherwise. The token is then kept fresh until {@link #stop()}.
+     */
+    public void start(Listener listener) {
+        mListener = listener;
+        mExecutor.execute(() -> {
+            try {
+                final AccessToken token = getToken();
+                final Listener current = mListener;
+                if (current != null) {
+                    current.onAccessToken(token);
+                }
+                scheduleRefresh(delayUntilRefresh(token));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to obtain access token.", e);
+                scheduleRefresh(mRetryMillis);
+            }
+        });
+    }
+
+    /**
+     * Stops delivering tokens and cancels the scheduled refresh.
+     */
+    public synchronized void stop() {
+        mListener = null;
+        if (mScheduledRefresh != null) {
+            mScheduledRefresh.cancel(false);
+            mScheduledRefresh = null;
+        }
+    }
+
+    /**
+     * Retrieves a valid token, from the cache if possible. This blocks while a new token is
+     * fetched, so it should not be called on the main thread.
+     *
+     * @return The token.
+     * @throws IOException If a new token was needed and could not be fetched.
+     */
+    public AccessToken getToken() throws IOException {
+        final AccessToken cached = getCachedToken();
+        if (cached != null) {
+            mCacheHits.incrementAndGet();
+            return cached;
+        }
+        return await(fetch());
+    }
+
+    /**
+     * @return The cached token if it is still valid for a while, or {@code null}.
+     */
+    public AccessToken getCachedToken() {
+        AccessToken token = mToken;
+        if (token == null) {
+            synchronized (this) {
+                if (!mLoaded) {
+                    mLoaded = true;
+                    mToken = mStore.load();
+                }
+                token = mToken;
+            }
+        }
+        return isValid(token) ? token : null;
+    }
+
+    /**
+     * @return The number of tokens fetched.
+     */
+    public int getFetchCount() {
+        return mFetches.get();
+    }
+
+    /**
+     * @return The number of times {@link #getToken()} was served from the cache.
+     */
+    public int getCacheHitCount() {
+        return mCacheHits.get();
+    }
+
+    /**
+     * Starts fetching a new token, unless a fetch is already in progress.
+     *
+     * @return The fetch, which may be shared with other callers.
+     */
+    private FutureTask<AccessToken> fetch() {
+        final FutureTask<AccessToken> fetch;
+        synchronized (this) {
+            if (mFetch != null) {
+                return mFetch;
+            }
+            fetch = new FutureTask<>(() -> {
+                try {
+                    final AccessToken token = mFetcher.fetch();
+                    mFetches.incrementAndGet();
+                    mToken = token;
+                    mStore.save(token);
+                    scheduleRefresh(delayUntilRefresh(token));
+                    return token;
+                } finally {
+                    synchronized (AccessTokenProvider.this) {
+                        mFetch = null;
+                    }
+                }
+            });
+            mFetch = fetch;
+        }
+        // Run by the first caller; the others wait for it
+        fetch.run();
+        return fetch;
+    }
+
+    private long delayUntilRefresh(AccessToken token) {
+        final Date expirationTime = token.getExpirationTime();
+        if (expirationTime == null) {
+            // Unknown, so the token is replaced as if it were due
+            return mRetryMillis;
+        }
+        final long delay = expirationTime.getTime() - System.currentTimeMillis()
+                - mRefreshAheadMillis;
+        // A token that lives shorter than the refresh-ahead time would be replaced right away,
+        // again and again
+        return Math.max(delay, mRetryMillis);
+    }
+
+    private synchronized void scheduleRefresh(long delayMillis) {
+        if (mListener == null) {
+            return;
+        }
+        if (mScheduledRefresh != null) {
+            mScheduledRefresh.cancel(false);
+        }
+        mScheduledRefresh = mExecutor.schedule(() -> {
+            try {
+                final AccessToken token = await(fetch());
+                final Listener listener = mListener;
+                if (listener != null) {
+                    listener.onAccessToken(token);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to refresh access token.", e);
+                scheduleRefresh(mRetryMillis);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isValid(AccessToken token) {
+        return token != null && token.getExpirationTime() != null
+                && token.getExpirationTime().getTime()
+                > System.currentTimeMillis() + MIN_VALIDITY_MILLIS;
+    }
+
+    private static AccessToken await(FutureTask<AccessToken> fetch) throws IOException {
+        try {
+            return fetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching access token", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+/**
+ * A {@link VoiceActivityDetector} that compares the energy of each chunk against a running
+ * estimate of the background noise.
+ *
+ * <p>Voice starts when the energy stays above {@code onsetRatio} times the noise floor for at
+ * least {@code onsetMillis}, so short clicks are ignored. It continues as long as the energy stays
+ * above the lower {@code offsetRatio} times the noise floor, and for {@code hangoverMillis} after
+ * that, so that short pauses between words do not end the voice. The noise floor follows the
+ * quietest recent audio: it drops quickly, rises slowly while there is no voice, and rises very
+ * slowly during voice so that a permanent change in background noise is eventually absorbed.</p>
+ *
+ * <p>This class does not allocate after construction.</p>
+ */
+public class AdaptiveVoiceActivityDetector implements VoiceActivityDetector {
+
+    /** Voice starts at 6 dB above the noise floor. */
+    public static final double DEFAULT_ONSET_RATIO = 4.0;
+
+    /** Voice continues while the energy is 3 dB above the noise floor. */
+    public static final double DEFAULT_OFFSET_RATIO = 2.0;
+
+    public static final int DEFAULT_ONSET_MILLIS = 60;
+
+    public static final int DEFAULT_HANGOVER_MILLIS = 300;
+
+    /** Energies below this (an RMS amplitude of 100) are never treated as background noise. */
+    private static final double MIN_NOISE_FLOOR = 100 * 100;
+
+    /** Energies below this (an RMS amplitude of 300) are never treated as voice. */
+    private static final double MIN_VOICE_ENERGY = 300 * 300;
+
+    /** Time constants of the noise floor estimate. */
+    private static final double NOISE_FALL_MILLIS = 100;
+    private static final double NOISE_RISE_MILLIS = 2000;
+    private static final double NOISE_RISE_DURING_VOICE_MILLIS = 20000;
+
+    private static final int DEFAULT_SAMPLE_RATE = 16000;
+
+    private final double mOnsetRatio;
+
+    private final double mOffsetRatio;
+
+    private final int mOnsetMillis;
+
+    private final int mHangoverMillis;
+
+    private int mSampleRate;
+
+    private int mOnsetSamples;
+
+    private int mHangoverSamples;
+
+    /** The current estimate of the background noise energy, or a negative value if unknown. */
+    private double mNoiseFloor;
+
+    /** The number of samples above the onset level that are still needed to start voice. */
+    private int mOnsetRemaining;
+
+    /** The number of samples below the offset level that are still allowed before voice ends. */
+    private int mHangoverRemaining;
+
+    private boolean mHearingVoice;
+
+    public AdaptiveVoiceActivityDetector() {
+        this(DEFAULT_ONSET_RATIO, DEFAULT_OFFSET_RATIO, DEFAULT_ONSET_MILLIS,
+                DEFAULT_HANGOVER_MILLIS);
+    }
+
+    /**
+     * @param onsetRatio     The ratio of energy to noise floor at which voice starts.
+     * @param offsetRatio    The ratio of energy to noise floor below which voice ends. This
+     *                       should be lower than {@code onsetRatio}.
+     * @param onsetMillis    How long the energy has to stay above the onset level.
+     * @param hangoverMillis How long voice lasts after the energy drops below the offset level.
+     */
+    public AdaptiveVoiceActivityDetector(double onsetRatio, double offsetRatio, int onsetMillis,
+            int hangoverMillis) {
+        if (offsetRatio > onsetRatio) {
+            throw new IllegalArgumentException("offsetRatio must not be larger than onsetRatio");
+        }
+        mOnsetRatio = onsetRatio;
+        mOffsetRatio = offsetRatio;
+        mOnsetMillis = onsetMillis;
+        mHangoverMillis = hangoverMillis;
+        reset(DEFAULT_SAMPLE_RATE);
+    }
+
+    @Override
+    public void reset(int sampleRate) {
+        mSampleRate = sampleRate;
+        mOnsetSamples = (int) ((long) sampleRate * mOnsetMillis / 1000);
+        mHangoverSamples = (int) ((long) sampleRate * mHangoverMillis / 1000);
+        mNoiseFloor = -1;
+        mOnsetRemaining = mOnsetSamples;
+        mHangoverRemaining = 0;
+        mHearingVoice = false;
+    }
+
+    @Override
+    public boolean isHearingVoice(byte[] data, int size) {
+        final int samples = size / 2;
+        if (samples <= 0) {
+            return mHearingVoice;
+        }
+        final double energy = energy(data, size) / samples;
+        final double millis = samples * 1000.0 / mSampleRate;
+        if (mNoiseFloor < 0) {
+            mNoiseFloor = Math.max(energy, MIN_NOISE_FLOOR);
+        }
+        if (mHearingVoice) {
+            if (energy > mNoiseFloor * mOffsetRatio) {
+                mHangoverRemaining = mHangoverSamples;
+            } else {
+                mHangoverRemaining -= samples;
+                if (mHangoverRemaining <= 0) {
+                    mHearingVoice = false;
+                    mOnsetRemaining = mOnsetSamples;
+                }
+            }
+            if (energy > mNoiseFloor) {
+                track(energy, millis, NOISE_RISE_DURING_VOICE_MILLIS);
+            } else {
+                track(energy, millis, NOISE_FALL_MILLIS);
+            }
+        } else if (energy > mNoiseFloor * mOnsetRatio && energy > MIN_VOICE_ENERGY) {
+            // Hold the noise floor while deciding whether this is voice or just a click
+            mOnsetRemaining -= samples;
+            if (mOnsetRemaining <= 0) {
+                mHearingVoice = true;
+                mHangoverRemaining = mHangoverSamples;
+            }
+        } else {
+            mOnsetRemaining = mOnsetSamples;
+            track(energy, millis, energy > mNoiseFloor ? NOISE_RISE_MILLIS : NOISE_FALL_MILLIS);
+        }
+        return mHearingVoice;
+    }
+
+    /**
+     * @return The current estimate of the background noise as an RMS amplitude.
+     */
+    public double getNoiseFloor() {
+        return Math.sqrt(Math.max(mNoiseFloor, MIN_NOISE_FLOOR));
+    }
+
+    /**
+     * Moves the noise floor toward {@code energy} with the specified time constant.
+     */
+    private void track(double energy, double millis, double timeConstantMillis) {
+        final double alpha = Math.min(1.0, millis / timeConstantMillis);
+        mNoiseFloor = Math.max(MIN_NOISE_FLOOR, mNoiseFloor + alpha * (energy - mNoiseFloor));
+    }
+
+    /**
+     * Calculates the sum of squared samples. Squaring makes the sign of the samples irrelevant.
+     */
+    private static double energy(byte[] data, int size) {
+        long sum = 0;
+        for (int i = 0; i < size - 1; i += 2) {
+            // The buffer has LINEAR16 in little endian.
+            final int s = (data[i + 1] << 8) | (data[i] & 0xff);
+            sum += s * s;
+        }
+        return sum;
+    }
+
+}
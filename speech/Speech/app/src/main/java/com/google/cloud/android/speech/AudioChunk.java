@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+/**
+ * A recyclable chunk of recorded audio in {@code LINEAR16}. Instances are owned by an
+ * {@link AudioChunkPool} and must be returned to it with {@link AudioChunkPool#release} once the
+ * audio has been consumed.
+ */
+public class AudioChunk {
+
+    /** The backing array. Its length is fixed for the lifetime of the chunk. */
+    public final byte[] data;
+
+    /** The number of bytes in {@link #data} that are actually relevant. */
+    public int size;
+
+    /** The {@link System#nanoTime()} when {@link #data} was filled. */
+    public long capturedNanos;
+
+    AudioChunk(int capacity) {
+        data = new byte[capacity];
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A fixed-size ring of {@link AudioChunk}s that are recycled between reads so that recording does
+ * not allocate a new buffer for every chunk.
+ *
+ * <p>The pool only allocates when it runs dry. Use {@link #getAllocatedBytes()} to verify that
+ * the steady state does not allocate at all.</p>
+ *
+ * <p>The pool is lock-free. {@link #acquire()} must always be called from the same thread, and
+ * so must {@link #release(AudioChunk)}; the two can be different threads.</p>
+ */
+public class AudioChunkPool {
+
+    private final int mChunkSize;
+
+    /** Released chunks, handed from the releasing thread to the acquiring thread. */
+    private final SpscQueue<AudioChunk> mChunks;
+
+    private final AtomicLong mAllocatedBytes = new AtomicLong();
+
+    /**
+     * @param chunkSize The size of each chunk in bytes.
+     * @param capacity  The maximum number of idle chunks retained by this pool.
+     */
+    public AudioChunkPool(int chunkSize, int capacity) {
+        mChunkSize = chunkSize;
+        mChunks = new SpscQueue<>(capacity);
+    }
+
+    /**
+     * Takes a chunk out of this pool, allocating a new one only if none are available.
+     *
+     * @return A chunk with a backing array of {@link #getChunkSize()} bytes.
+     */
+    public AudioChunk acquire() {
+        final AudioChunk chunk = mChunks.poll();
+        if (chunk == null) {
+            mAllocatedBytes.addAndGet(mChunkSize);
+            return new AudioChunk(mChunkSize);
+        }
+        chunk.size = 0;
+        return chunk;
+    }
+
+    /**
+     * Returns the chunk to this pool. The chunk must not be used by the caller afterwards.
+     *
+     * @param chunk The chunk previously obtained from {@link #acquire()}.
+     */
+    public void release(AudioChunk chunk) {
+        if (chunk.data.length == mChunkSize) {
+            // If the pool is full, the chunk is simply garbage collected.
+            mChunks.offer(chunk);
+        }
+    }
+
+    /**
+     * @return The size of each chunk in bytes.
+     */
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * @return The total number of bytes this pool has allocated for chunks so far.
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes.get();
+    }
+
+}
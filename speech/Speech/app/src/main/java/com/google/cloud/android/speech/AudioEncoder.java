@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+/**
+ * Encodes recorded {@code LINEAR16} audio into the format uploaded to the Speech API, one chunk at
+ * a time.
+ *
+ * <p>An encoder instance covers exactly one stream and is used from a single thread.</p>
+ */
+public interface AudioEncoder {
+
+    /**
+     * Receives the encoded audio.
+     */
+    interface Output {
+
+        /**
+         * Called when encoded audio is available. The {@code data} array may be reused by the
+         * encoder as soon as this method returns.
+         *
+         * @param data   The encoded audio.
+         * @param offset The offset of the relevant bytes in {@code data}.
+         * @param size   The number of relevant bytes in {@code data}.
+         */
+        void write(byte[] data, int offset, int size);
+
+    }
+
+    /**
+     * Encodes the next chunk of audio. The encoder may hold on to the audio until it has enough
+     * to produce output.
+     *
+     * @param data   The audio data in {@code LINEAR16}, little endian, mono.
+     * @param size   The number of relevant bytes in {@code data}.
+     * @param output Receives the encoded audio, if any.
+     */
+    void encode(byte[] data, int size, Output output);
+
+    /**
+     * Encodes all the audio the encoder is still holding on to. The encoder must not be used after
+     * this.
+     *
+     * @param output Receives the encoded audio, if any.
+     */
+    void finish(Output output);
+
+    /**
+     * @return The number of bytes of audio passed in so far.
+     */
+    long getInputBytes();
+
+    /**
+     * @return The number of bytes of encoded audio produced so far.
+     */
+    long getOutputBytes();
+
+    /**
+     * @return The probe measuring the time spent encoding each chunk, not including the time
+     * spent in {@link Output#write}.
+     */
+    LatencyProbe getEncodeLatencyProbe();
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Transcribes long audio files by splitting them into segments that are recognized
+ * concurrently.
+ *
+ * <p>The audio is read in short windows, so the file is never held in memory as a whole. A
+ * {@link VoiceActivityDetector} finds the pauses in speech, and a segment is cut at the first
+ * pause after it reaches {@code minSegmentMillis}, or at {@code maxSegmentMillis} if no pause
+ * comes. Silence between segments is not sent at all. Up to {@code maxInFlight} segments are
+ * recognized at the same time, and the results are delivered in the order of the audio.</p>
+ *
+ * <p>A segment keeps its buffer until its result is delivered, and the buffers are reused for
+ * later segments. The memory used is therefore fixed by the settings, whatever the length of the
+ * file. A transcriber transcribes one file at a time.</p>
+ */
+public class FileTranscriber {
+
+    /**
+     * Recognizes a single segment of audio.
+     */
+    public interface Recognizer {
+
+        /**
+         * Recognizes the segment. Implementations must eventually call exactly one method of
+         * {@code callback}, from any thread, and must not use {@code data} after that.
+         *
+         * @param data     The audio data in {@code LINEAR16}.
+         * @param size     The number of bytes in {@code data} that are actually relevant.
+         * @param callback The callback to be notified of the result.
+         */
+        void recognize(byte[] data, int size, Callback callback);
+
+        interface Callback {
+
+            void onRecognized(String transcript);
+
+            void onFailed(Throwable t);
+
+        }
+
+    }
+
+    /**
+     * Receives the results in the order of the audio. The methods are never called concurrently.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a segment was recognized.
+         *
+         * @param startMillis The start of the segment in the file.
+         * @param endMillis   The end of the segment in the file.
+         * @param transcript  The transcript, which may be empty.
+         */
+        void onSegmentRecognized(long startMillis, long endMillis, String transcript);
+
+        /**
+         * Called when a segment could not be recognized. The following segments are still
+         * delivered.
+         */
+        void onSegmentFailed(long startMillis, long endMillis, Throwable t);
+
+    }
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    /** The synchronous API accepts up to one minute of audio in a single request. */
+    public static final int DEFAULT_MAX_SEGMENT_MILLIS = 55 * 1000;
+
+    public static final int DEFAULT_MIN_SEGMENT_MILLIS = 15 * 1000;
+
+    /** The length of audio read and examined at a time. */
+    private static final int WINDOW_MILLIS = 100;
+
+    private final int mSampleRate;
+
+    private final Recognizer mRecognizer;
+
+    private final Listener mListener;
+
+    private final VoiceActivityDetector mDetector;
+
+    private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    private int mMinSegmentMillis = DEFAULT_MIN_SEGMENT_MILLIS;
+
+    private int mMaxSegmentMillis = DEFAULT_MAX_SEGMENT_MILLIS;
+
+    private int mPreRollMillis = VoiceRecorder.DEFAULT_PRE_ROLL_MILLIS;
+
+    private final Object mLock = new Object();
+
+    /** The segments and their buffers, used in turn. One more than the in-flight limit. */
+    private Segment[] mSegments;
+
+    /** Released when a segment is delivered. */
+    private Semaphore mInFlight;
+
+    /** The index of the next segment to be delivered. Guarded by {@link #mLock}. */
+    private long mNextToDeliver;
+
+    private long mSegmentCount;
+
+    private long mReadBytes;
+
+    private long mUploadedBytes;
+
+    private long mAllocatedBytes;
+
+    /**
+     * @param sampleRate The sample rate of the audio.
+     * @param recognizer The recognizer for the segments.
+     * @param listener   The listener to be notified of the results.
+     */
+    public FileTranscriber(int sampleRate, Recognizer recognizer, Listener listener) {
+        this(sampleRate, recognizer, listener, new AdaptiveVoiceActivityDetector());
+    }
+
+    /**
+     * @param detector The detector used to find pauses in speech.
+     */
+    public FileTranscriber(int sampleRate, Recognizer recognizer, Listener listener,
+            VoiceActivityDetector detector) {
+        mSampleRate = sampleRate;
+        mRecognizer = recognizer;
+        mListener = listener;
+        mDetector = detector;
+    }
+
+    /**
+     * Sets how many segments can be recognized at the same time.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        mMaxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Sets the lengths between which segments are cut at a pause in speech. A segment is cut at
+     * {@code maxMillis} even without a pause.
+     */
+    public void setSegmentLengthMillis(int minMillis, int maxMillis) {
+        mMaxSegmentMillis = Math.max(WINDOW_MILLIS, maxMillis);
+        mMinSegmentMillis = Math.min(Math.max(0, minMillis), mMaxSegmentMillis);
+    }
+
+    /**
+     * Sets the length of silence kept before the voice that starts a segment.
+     */
+    public void setPreRollMillis(int millis) {
+        mPreRollMillis = Math.max(0, Math.min(millis, mMaxSegmentMillis / 2));
+    }
+
+    /**
+     * Transcribes the audio, blocking until the results of all the segments are delivered.
+     *
+     * @param stream The audio data in {@code LINEAR16}. It is not closed by this method.
+     * @throws IOException If the audio could not be read. The segments read before that are
+     *                     still delivered.
+     */
+    public void transcribe(InputStream stream) throws IOException {
+        final int segmentCapacity = PreRollBuffer.capacityFor(mSampleRate, mMaxSegmentMillis);
+        final int minSegmentBytes = PreRollBuffer.capacityFor(mSampleRate, mMinSegmentMillis);
+        final byte[] window = new byte[PreRollBuffer.capacityFor(mSampleRate, WINDOW_MILLIS)];
+        final PreRollBuffer preRoll =
+                new PreRollBuffer(PreRollBuffer.capacityFor(mSampleRate, mPreRollMillis));
+        mSegments = new Segment[mMaxInFlight + 1];
+        mInFlight = new Semaphore(mMaxInFlight);
+        mNextToDeliver = 0;
+        mSegmentCount = 0;
+        mReadBytes = 0;
+        mUploadedBytes = 0;
+        mAllocatedBytes = window.length + preRoll.getCapacity();
+        mDetector.reset(mSampleRate);
+
+        Segment segment = null;
+        try {
+            int read;
+            while ((read = readFully(stream, window)) > 0) {
+                final boolean voice = mDetector.isHearingVoice(window, read);
+                if (segment == null) {
+                    if (!voice) {
+                        // Silence between segments is skipped, except for the pre-roll
+                        preRoll.write(window, read);
+                        mReadBytes += read;
+                        continue;
+                    }
+                    segment = nextSegment(segmentCapacity, mReadBytes - preRoll.size());
+                    segment.mSize = preRoll.drainTo(segment.mData);
+                } else if (segment.mSize + read > segmentCapacity) {
+                    // No pause for too long; cut in the middle of speech
+                    submit(segment);
+                    segment = nextSegment(segmentCapacity, mReadBytes);
+                }
+                System.arraycopy(window, 0, segment.mData, segment.mSize, read);
+                segment.mSize += read;
+                mReadBytes += read;
+                if (!voice && segment.mSize >= minSegmentBytes) {
+                    submit(segment);
+                    segment = null;
+                }
+            }
+        } finally {
+            if (segment != null && !Thread.currentThread().isInterrupted()) {
+                submit(segment);
+            }
+            // Wait for all the segments to be delivered
+            try {
+                mInFlight.acquire(mMaxInFlight);
+                mInFlight.release(mMaxInFlight);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return The number of segments sent to the recognizer by the last transcription.
+     */
+    public long getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * @return The number of bytes of audio read by the last transcription.
+     */
+    public long getReadBytes() {
+        return mReadBytes;
+    }
+
+    /**
+     * @return The number of bytes of audio sent to the recognizer by the last transcription.
+     */
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    /**
+     * @return The number of bytes allocated for audio buffers by the last transcription. This
+     * does not grow with the length of the file.
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * Takes the buffer of the next segment. Its previous segment was delivered already, since
+     * {@link #submit(Segment)} waited for all but {@code maxInFlight - 1} segments before it.
+     */
+    private Segment nextSegment(int capacity, long startBytes) {
+        final int slot = (int) (mSegmentCount % mSegments.length);
+        Segment segment = mSegments[slot];
+        if (segment == null) {
+            segment = new Segment(capacity);
+            mSegments[slot] = segment;
+            mAllocatedBytes += capacity;
+        }
+        synchronized (mLock) {
+            segment.mIndex = mSegmentCount;
+            segment.mStartBytes = startBytes;
+            segment.mSize = 0;
+            segment.mDone = false;
+            segment.mTranscript = null;
+            segment.mError = null;
+        }
+        mSegmentCount++;
+        return segment;
+    }
+
+    private void submit(Segment segment) throws InterruptedIOException {
+        try {
+            mInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        mUploadedBytes += segment.mSize;
+        mRecognizer.recognize(segment.mData, segment.mSize, segment);
+    }
+
+    /**
+     * Delivers the finished segments that are next in order.
+     */
+    private void deliver() {
+        synchronized (mLock) {
+            while (true) {
+                final Segment segment = mSegments[(int) (mNextToDeliver % mSegments.length)];
+                if (segment == null || segment.mIndex != mNextToDeliver || !segment.mDone) {
+                    break;
+                }
+                final long startMillis = toMillis(segment.mStartBytes);
+                final long endMillis = toMillis(segment.mStartBytes + segment.mSize);
+                if (segment.mError != null) {
+                    mListener.onSegmentFailed(startMillis, endMillis, segment.mError);
+                } else {
+                    mListener.onSegmentRecognized(startMillis, endMillis, segment.mTranscript);
+                }
+                mNextToDeliver++;
+                mInFlight.release();
+            }
+        }
+    }
+
+    private long toMillis(long bytes) {
+        return bytes / 2 * 1000 / mSampleRate;
+    }
+
+    private static int readFully(InputStream stream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            final int read = stream.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        // Drop an incomplete sample at the end of the file
+        return total & ~1;
+    }
+
+    /**
+     * A segment of audio and its result.
+     */
+    private class Segment implements Recognizer.Callback {
+
+        final byte[] mData;
+
+        int mSize;
+
+        long mIndex;
+
+        long mStartBytes;
+
+        boolean mDone;
+
+        String mTranscript;
+
+        Throwable mError;
+
+        Segment(int capacity) {
+            mData = new byte[capacity];
+        }
+
+        @Override
+        public void onRecognized(String transcript) {
+            synchronized (mLock) {
+                mTranscript = transcript != null ? transcript : "";
+                mDone = true;
+            }
+            deliver();
+        }
+
+        @Override
+        public void onFailed(Throwable t) {
+            synchronized (mLock) {
+                mError = t;
+                mDone = true;
+            }
+            deliver();
+        }
+
+    }
+
+}
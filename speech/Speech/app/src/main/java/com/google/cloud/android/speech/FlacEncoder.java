@@ -0,0 +1,480 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+/**
+ * An {@link AudioEncoder} that produces a streamable FLAC stream from 16-bit mono audio.
+ *
+ * <p>The stream header is written with the first frame, so the output can be uploaded as it is
+ * produced. Each frame holds a fixed number of samples (about 100 ms by default) and uses
+ * whichever of a constant, verbatim or fixed linear predictor (order 0 to 4) subframe is the
+ * smallest, with Rice-coded residuals. This is not as compact as a full FLAC encoder, but it is
+ * cheap enough to run on the recording thread and typically halves the upload size of speech.</p>
+ *
+ * <p>All buffers are allocated up front.</p>
+ */
+public class FlacEncoder implements AudioEncoder {
+
+    private static final int BITS_PER_SAMPLE = 16;
+
+    private static final int MAX_FIXED_ORDER = 4;
+
+    /** The largest Rice parameter that fits in 4 bits; 15 is reserved as an escape code. */
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    /** The largest block size allowed in the FLAC streamable subset. */
+    private static final int MAX_BLOCK_SIZE = 4608;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final int mSampleRate;
+
+    private final int mBlockSize;
+
+    /** Samples waiting to be encoded. */
+    private final int[] mSamples;
+
+    private int mSampleCount;
+
+    /** The residuals of each fixed predictor order for the current block. */
+    private final int[][] mResiduals = new int[MAX_FIXED_ORDER + 1][];
+
+    /** The low byte of a sample that was split between two chunks, or -1. */
+    private int mPendingByte = -1;
+
+    private final BitWriter mWriter;
+
+    private boolean mHeaderWritten;
+
+    private long mFrameNumber;
+
+    private volatile long mInputBytes;
+
+    private volatile long mOutputBytes;
+
+    private final LatencyProbe mEncodeLatency = new LatencyProbe();
+
+    /**
+     * Creates an encoder with frames of about 100 ms.
+     *
+     * @param sampleRate The sample rate of the audio.
+     */
+    public FlacEncoder(int sampleRate) {
+        this(sampleRate,
+                Math.max(MAX_FIXED_ORDER + 1, Math.min(MAX_BLOCK_SIZE, sampleRate / 10)));
+    }
+
+    /**
+     * @param sampleRate The sample rate of the audio.
+     * @param blockSize  The number of samples in each frame.
+     */
+    public FlacEncoder(int sampleRate, int blockSize) {
+        if (blockSize <= MAX_FIXED_ORDER || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        mSampleRate = sampleRate;
+        mBlockSize = blockSize;
+        mSamples = new int[blockSize];
+        for (int order = 0; order <= MAX_FIXED_ORDER; order++) {
+            mResiduals[order] = new int[blockSize];
+        }
+        // A verbatim subframe plus the frame header and footer is the largest possible frame
+        mWriter = new BitWriter(blockSize * BITS_PER_SAMPLE / 8 + 64);
+    }
+
+    @Override
+    public void encode(byte[] data, int size, Output output) {
+        if (size <= 0) {
+            return;
+        }
+        final long start = System.nanoTime();
+        long outputNanos = 0;
+        mInputBytes += size;
+        int i = 0;
+        if (mPendingByte >= 0) {
+            mSamples[mSampleCount++] = (data[0] << 8) | mPendingByte;
+            mPendingByte = -1;
+            i = 1;
+        }
+        while (true) {
+            if (mSampleCount == mBlockSize) {
+                outputNanos += writeFrame(output);
+            }
+            if (i + 1 >= size) {
+                break;
+            }
+            // LINEAR16 in little endian
+            mSamples[mSampleCount++] = (data[i + 1] << 8) | (data[i] & 0xff);
+            i += 2;
+        }
+        if (i < size) {
+            mPendingByte = data[i] & 0xff;
+        }
+        mEncodeLatency.record(System.nanoTime() - start - outputNanos);
+    }
+
+    @Override
+    public void finish(Output output) {
+        if (mSampleCount > 0) {
+            writeFrame(output);
+        }
+    }
+
+    @Override
+    public long getInputBytes() {
+        return mInputBytes;
+    }
+
+    @Override
+    public long getOutputBytes() {
+        return mOutputBytes;
+    }
+
+    @Override
+    public LatencyProbe getEncodeLatencyProbe() {
+        return mEncodeLatency;
+    }
+
+    /**
+     * Encodes the buffered samples as a frame and passes it to the {@code output}.
+     *
+     * @return The time spent in {@link Output#write}.
+     */
+    private long writeFrame(Output output) {
+        final BitWriter w = mWriter;
+        w.reset();
+        if (!mHeaderWritten) {
+            writeStreamHeader(w);
+            mHeaderWritten = true;
+        }
+        final int frameStart = w.byteCount();
+        writeFrameHeader(w);
+        writeSubframe(w);
+        w.alignToByte();
+        final int crc16 = crc16(w.buffer(), frameStart, w.byteCount());
+        w.write(crc16, 16);
+        mFrameNumber++;
+        mSampleCount = 0;
+        mOutputBytes += w.byteCount();
+        final long start = System.nanoTime();
+        output.write(w.buffer(), 0, w.byteCount());
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Writes the "fLaC" marker and the STREAMINFO metadata block.
+     */
+    private void writeStreamHeader(BitWriter w) {
+        w.write('f', 8);
+        w.write('L', 8);
+        w.write('a', 8);
+        w.write('C', 8);
+        w.write(1, 1); // This is the last metadata block
+        w.write(0, 7); // STREAMINFO
+        w.write(34, 24); // Length of STREAMINFO
+        w.write(mBlockSize, 16); // Minimum block size
+        w.write(mBlockSize, 16); // Maximum block size
+        w.write(0, 24); // Minimum frame size (unknown)
+        w.write(0, 24); // Maximum frame size (unknown)
+        w.write(mSampleRate, 20);
+        w.write(0, 3); // One channel
+        w.write(BITS_PER_SAMPLE - 1, 5);
+        w.write(0, 36); // Total samples (unknown)
+        for (int i = 0; i < 4; i++) {
+            w.write(0, 32); // MD5 signature (unknown)
+        }
+    }
+
+    private void writeFrameHeader(BitWriter w) {
+        final int start = w.byteCount();
+        w.write(0xfff8, 16); // Sync code and fixed block size
+        w.write(0x7, 4); // Block size as 16 bits at the end of the header
+        final int sampleRateCode = sampleRateCode(mSampleRate);
+        w.write(sampleRateCode, 4);
+        w.write(0, 4); // Mono
+        w.write(0x4, 3); // 16 bits per sample
+        w.write(0, 1);
+        writeUtf8(w, mFrameNumber);
+        w.write(mSampleCount - 1, 16);
+        if (sampleRateCode == 0xc) {
+            w.write(mSampleRate / 1000, 8);
+        } else if (sampleRateCode == 0xd) {
+            w.write(mSampleRate, 16);
+        } else if (sampleRateCode == 0xe) {
+            w.write(mSampleRate / 10, 16);
+        }
+        w.write(crc8(w.buffer(), start, w.byteCount()), 8);
+    }
+
+    private void writeSubframe(BitWriter w) {
+        final int n = mSampleCount;
+        final int[] samples = mSamples;
+        // A constant subframe, e.g. digital silence
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = samples[i] == samples[0];
+        }
+        if (constant) {
+            w.write(0, 8);
+            w.write(samples[0], BITS_PER_SAMPLE);
+            return;
+        }
+        // Find the fixed predictor that needs the fewest bits
+        final long verbatimBits = (long) n * BITS_PER_SAMPLE;
+        long bestBits = verbatimBits;
+        int bestOrder = -1;
+        int bestParameter = 0;
+        final int maxOrder = Math.min(MAX_FIXED_ORDER, n - 1);
+        for (int order = 0; order <= maxOrder; order++) {
+            computeResiduals(order);
+            final long parameterAndBits = bestRiceParameter(mResiduals[order], order, n);
+            // Warm-up samples, coding method, partition order, parameter and residuals
+            final long bits = (long) order * BITS_PER_SAMPLE + 2 + 4 + 4
+                    + (parameterAndBits >>> 8);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestOrder = order;
+                bestParameter = (int) (parameterAndBits & 0xff);
+            }
+        }
+        if (bestOrder < 0) {
+            w.write(0x02, 8); // VERBATIM
+            for (int i = 0; i < n; i++) {
+                w.write(samples[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+        w.write((0x08 | bestOrder) << 1, 8); // FIXED
+        for (int i = 0; i < bestOrder; i++) {
+            w.write(samples[i], BITS_PER_SAMPLE); // Warm-up samples
+        }
+        w.write(0, 2); // Rice coding with 4-bit parameters
+        w.write(0, 4); // Partition order 0
+        w.write(bestParameter, 4);
+        final int[] residuals = mResiduals[bestOrder];
+        for (int i = bestOrder; i < n; i++) {
+            w.writeRice(residuals[i], bestParameter);
+        }
+    }
+
+    private void computeResiduals(int order) {
+        final int[] s = mSamples;
+        final int[] r = mResiduals[order];
+        final int n = mSampleCount;
+        switch (order) {
+            case 0:
+                for (int i = 0; i < n; i++) {
+                    r[i] = s[i];
+                }
+                break;
+            case 1:
+                for (int i = 1; i < n; i++) {
+                    r[i] = s[i] - s[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < n; i++) {
+                    r[i] = s[i] - 2 * s[i - 1] + s[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < n; i++) {
+                    r[i] = s[i] - 3 * s[i - 1] + 3 * s[i - 2] - s[i - 3];
+                }
+                break;
+            case 4:
+                for (int i = 4; i < n; i++) {
+                    r[i] = s[i] - 4 * s[i - 1] + 6 * s[i - 2] - 4 * s[i - 3] + s[i - 4];
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported order: " + order);
+        }
+    }
+
+    /**
+     * Finds the Rice parameter that encodes the residuals in the fewest bits.
+     *
+     * @return The number of bits shifted left by 8, combined with the parameter.
+     */
+    private static long bestRiceParameter(int[] residuals, int from, int to) {
+        long bestBits = Long.MAX_VALUE;
+        int bestParameter = 0;
+        for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+            long bits = (long) (to - from) * (k + 1);
+            for (int i = from; i < to && bits < bestBits; i++) {
+                final int r = residuals[i];
+                bits += ((r << 1) ^ (r >> 31)) >>> k;
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestParameter = k;
+            }
+        }
+        return (bestBits << 8) | bestParameter;
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 8000:
+                return 0x4;
+            case 16000:
+                return 0x5;
+            case 22050:
+                return 0x6;
+            case 24000:
+                return 0x7;
+            case 32000:
+                return 0x8;
+            case 44100:
+                return 0x9;
+            case 48000:
+                return 0xa;
+            case 96000:
+                return 0xb;
+        }
+        if (sampleRate % 1000 == 0 && sampleRate / 1000 < 256) {
+            return 0xc;
+        } else if (sampleRate < 65536) {
+            return 0xd;
+        } else {
+            return 0xe;
+        }
+    }
+
+    /**
+     * Writes the frame number in the UTF-8-like variable length coding of FLAC.
+     */
+    private static void writeUtf8(BitWriter w, long value) {
+        if (value < 0x80) {
+            w.write((int) value, 8);
+            return;
+        }
+        int bytes = 2;
+        while (bytes < 7 && value >= 1L << (5 * bytes + 1)) {
+            bytes++;
+        }
+        final int shift = (bytes - 1) * 6;
+        w.write((int) ((0xff00 >> bytes) & 0xff | (value >>> shift)), 8);
+        for (int i = shift - 6; i >= 0; i -= 6) {
+            w.write((int) (0x80 | ((value >>> i) & 0x3f)), 8);
+        }
+    }
+
+    static int crc8(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    static int crc16(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * Writes bits, most significant first, into a fixed-size buffer.
+     */
+    private static class BitWriter {
+
+        private final byte[] mBuffer;
+
+        private int mBytes;
+
+        /** Bits waiting to be written, right-aligned. */
+        private long mAccumulator;
+
+        private int mBits;
+
+        BitWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void reset() {
+            mBytes = 0;
+            mAccumulator = 0;
+            mBits = 0;
+        }
+
+        /**
+         * Writes the lowest {@code count} bits of {@code value}, up to 32 bits at a time.
+         */
+        void write(long value, int count) {
+            if (count > 32) {
+                write(value >>> 32, count - 32);
+                count = 32;
+            }
+            mAccumulator = (mAccumulator << count) | (value & ((1L << count) - 1));
+            mBits += count;
+            while (mBits >= 8) {
+                mBits -= 8;
+                mBuffer[mBytes++] = (byte) (mAccumulator >>> mBits);
+            }
+        }
+
+        void writeRice(int value, int parameter) {
+            final int folded = (value << 1) ^ (value >> 31);
+            int quotient = folded >>> parameter;
+            while (quotient >= 32) {
+                write(0, 32);
+                quotient -= 32;
+            }
+            write(1, quotient + 1);
+            if (parameter > 0) {
+                write(folded, parameter);
+            }
+        }
+
+        void alignToByte() {
+            if (mBits > 0) {
+                write(0, 8 - mBits);
+            }
+        }
+
+        /**
+         * @return The number of complete bytes written.
+         */
+        int byteCount() {
+            return mBytes;
+        }
+
+        byte[] buffer() {
+            return mBuffer;
+        }
+
+    }
+
+}
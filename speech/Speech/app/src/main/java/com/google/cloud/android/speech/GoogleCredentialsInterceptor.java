@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.auth.Credentials;
+import com.google.auth.oauth2.GoogleCredentials;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.StatusException;
+
+
+/**
+ * Authenticates the gRPC channel using the specified {@link GoogleCredentials}.
+ *
+ * <p>The credentials can be replaced with {@link #setCredentials(Credentials)} while the channel is
+ * in use, so that a refreshed access token does not require a new channel.</p>
+ */
+class GoogleCredentialsInterceptor implements ClientInterceptor {
+
+    private volatile Credentials mCredentials;
+
+    private Metadata mCached;
+
+    private Map<String, List<String>> mLastMetadata;
+
+    GoogleCredentialsInterceptor(Credentials credentials) {
+        mCredentials = credentials;
+    }
+
+    /**
+     * Replaces the credentials used for calls started from now on.
+     *
+     * @param credentials The new credentials.
+     */
+    void setCredentials(Credentials credentials) {
+        mCredentials = credentials;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+            final MethodDescriptor<ReqT, RespT> method, CallOptions callOptions,
+            final Channel next) {
+        return new ClientInterceptors.CheckedForwardingClientCall<ReqT, RespT>(
+                next.newCall(method, callOptions)) {
+            @Override
+            protected void checkedStart(Listener<RespT> responseListener, Metadata headers)
+                    throws StatusException {
+                Metadata cachedSaved;
+                URI uri = serviceUri(next, method);
+                synchronized (GoogleCredentialsInterceptor.this) {
+                    Map<String, List<String>> latestMetadata = getRequestMetadata(uri);
+                    if (mLastMetadata == null || mLastMetadata != latestMetadata) {
+                        mLastMetadata = latestMetadata;
+                        mCached = toHeaders(mLastMetadata);
+                    }
+                    cachedSaved = mCached;
+                }
+                headers.merge(cachedSaved);
+                delegate().start(responseListener, headers);
+            }
+        };
+    }
+
+    /**
+     * Generate a JWT-specific service URI. The URI is simply an identifier with enough
+     * information for a service to know that the JWT was intended for it. The URI will
+     * commonly be verified with a simple string equality check.
+     */
+    private URI serviceUri(Channel channel, MethodDescriptor<?, ?> method)
+            throws StatusException {
+        String authority = channel.authority();
+        if (authority == null) {
+            throw Status.UNAUTHENTICATED
+                    .withDescription("Channel has no authority")
+                    .asException();
+        }
+        // Always use HTTPS, by definition.
+        final String scheme = "https";
+        final int defaultPort = 443;
+        String path = "/" + MethodDescriptor.extractFullServiceName(method.getFullMethodName());
+        URI uri;
+        try {
+            uri = new URI(scheme, authority, path, null, null);
+        } catch (URISyntaxException e) {
+            throw Status.UNAUTHENTICATED
+                    .withDescription("Unable to construct service URI for auth")
+                    .withCause(e).asException();
+        }
+        // The default port must not be present. Alternative ports should be present.
+        if (uri.getPort() == defaultPort) {
+            uri = removePort(uri);
+        }
+        return uri;
+    }
+
+    private URI removePort(URI uri) throws StatusException {
+        try {
+            return new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), -1 /* port */,
+                    uri.getPath(), uri.getQuery(), uri.getFragment());
+        } catch (URISyntaxException e) {
+            throw Status.UNAUTHENTICATED
+                    .withDescription("Unable to construct service URI after removing port")
+                    .withCause(e).asException();
+        }
+    }
+
+    private Map<String, List<String>> getRequestMetadata(URI uri) throws StatusException {
+        try {
+            return mCredentials.getRequestMetadata(uri);
+        } catch (IOException e) {
+            throw Status.UNAUTHENTICATED.withCause(e).asException();
+        }
+    }
+
+    private static Metadata toHeaders(Map<String, List<String>> metadata) {
+        Metadata headers = new Metadata();
+        if (metadata != null) {
+            for (String key : metadata.keySet()) {
+                Metadata.Key<String> headerKey = Metadata.Key.of(
+                        key, Metadata.ASCII_STRING_MARSHALLER);
+                for (String value : metadata.get(key)) {
+                    headers.put(headerKey, value);
+                }
+            }
+        }
+        return headers;
+    }
+
+}
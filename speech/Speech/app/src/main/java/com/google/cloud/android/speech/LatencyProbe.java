@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+/**
+ * Accumulates latency samples. This class is thread-safe.
+ */
+public class LatencyProbe {
+
+    private volatile long mCount;
+
+    private volatile long mTotalNanos;
+
+    private volatile long mMaxNanos;
+
+    private volatile long mLastNanos;
+
+    /**
+     * Records a latency sample.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        mLastNanos = nanos;
+        if (nanos > mMaxNanos) {
+            mMaxNanos = nanos;
+        }
+        mTotalNanos += nanos;
+        mCount++;
+    }
+
+    /**
+     * @return The number of samples recorded.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The average latency in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getAverageNanos() {
+        final long count = mCount;
+        return count == 0 ? 0 : mTotalNanos / count;
+    }
+
+    /**
+     * @return The maximum latency in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    /**
+     * @return The latest latency in nanoseconds.
+     */
+    public long getLastNanos() {
+        return mLastNanos;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+/**
+ * An {@link AudioEncoder} that passes {@code LINEAR16} audio through as it is. Since there is no
+ * encoding work, nothing is recorded in its encode latency probe.
+ */
+public class Linear16Encoder implements AudioEncoder {
+
+    private long mBytes;
+
+    private final LatencyProbe mEncodeLatency = new LatencyProbe();
+
+    @Override
+    public void encode(byte[] data, int size, Output output) {
+        if (size <= 0) {
+            return;
+        }
+        output.write(data, 0, size);
+        mBytes += size;
+    }
+
+    @Override
+    public void finish(Output output) {
+    }
+
+    @Override
+    public long getInputBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public long getOutputBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public LatencyProbe getEncodeLatencyProbe() {
+        return mEncodeLatency;
+    }
+
+}
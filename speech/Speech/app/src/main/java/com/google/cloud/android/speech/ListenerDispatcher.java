@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Delivers recognized text to a single {@link SpeechService.Listener}.
+ *
+ * <p>Without an executor, the listener is called directly on the thread that received the
+ * result. With an executor, the calling thread only enqueues the result and never waits for the
+ * listener. Final results are all delivered in order, but an interim result is replaced by a
+ * newer one if the listener has not received it yet, so a slow listener only ever sees the latest
+ * interim text. An interim result that arrived before a final result is never delivered after
+ * it.</p>
+ */
+class ListenerDispatcher implements SpeechService.Listener {
+
+    private final SpeechService.Listener mListener;
+
+    private final Executor mExecutor;
+
+    private final ConcurrentLinkedQueue<String> mFinals = new ConcurrentLinkedQueue<>();
+
+    private final AtomicReference<String> mInterim = new AtomicReference<>();
+
+    /** The number of results enqueued since the drain last checked; non-zero while scheduled. */
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    private final Runnable mDrain = this::drain;
+
+    private volatile boolean mRemoved;
+
+    /**
+     * @param listener The listener.
+     * @param executor The executor to call the listener on, or {@code null} to call it directly.
+     */
+    ListenerDispatcher(SpeechService.Listener listener, Executor executor) {
+        mListener = listener;
+        mExecutor = executor;
+    }
+
+    SpeechService.Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Stops delivering results, including those that are already enqueued.
+     */
+    void remove() {
+        mRemoved = true;
+    }
+
+    /**
+     * @return The number of interim results that were replaced before being delivered.
+     */
+    long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    @Override
+    public void onSpeechRecognized(String text, boolean isFinal) {
+        if (mRemoved) {
+            return;
+        }
+        if (mExecutor == null) {
+            mListener.onSpeechRecognized(text, isFinal);
+            return;
+        }
+        if (isFinal) {
+            // The pending interim result is superseded by this final one
+            if (mInterim.getAndSet(null) != null) {
+                mCoalesced.incrementAndGet();
+            }
+            mFinals.offer(text);
+        } else if (mInterim.getAndSet(text) != null) {
+            mCoalesced.incrementAndGet();
+        }
+        if (mPending.getAndIncrement() == 0) {
+            mExecutor.execute(mDrain);
+        }
+    }
+
+    private void drain() {
+        int missed = mPending.get();
+        while (true) {
+            String text;
+            while ((text = mFinals.poll()) != null) {
+                if (!mRemoved) {
+                    mListener.onSpeechRecognized(text, true);
+                }
+            }
+            text = mInterim.getAndSet(null);
+            if (text != null && !mRemoved) {
+                mListener.onSpeechRecognized(text, false);
+            }
+            missed = mPending.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+}
@@ -26,6 +26,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
 import androidx.core.content.res.ResourcesCompat;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -95,7 +96,8 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder binder) {
             mSpeechService = SpeechService.from(binder);
-            mSpeechService.addListener(mSpeechServiceListener);
+            mSpeechService.addListener(mSpeechServiceListener,
+                    ContextCompat.getMainExecutor(MainActivity.this));
             mStatus.setVisibility(View.VISIBLE);
         }
 
@@ -200,17 +202,17 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
     }
 
     private void startVoiceRecorder() {
-        if (mVoiceRecorder != null) {
-            mVoiceRecorder.stop();
+        // The same recorder is kept, so that it waits for its previous session to end before
+        // opening the microphone again
+        if (mVoiceRecorder == null) {
+            mVoiceRecorder = new VoiceRecorder(mVoiceCallback);
         }
-        mVoiceRecorder = new VoiceRecorder(mVoiceCallback);
         mVoiceRecorder.start();
     }
 
     private void stopVoiceRecorder() {
         if (mVoiceRecorder != null) {
             mVoiceRecorder.stop();
-            mVoiceRecorder = null;
         }
     }
 
@@ -234,19 +236,18 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
             new SpeechService.Listener() {
                 @Override
                 public void onSpeechRecognized(final String text, final boolean isFinal) {
-                    if (isFinal) {
+                    if (isFinal && mVoiceRecorder != null) {
                         mVoiceRecorder.dismiss();
                     }
+                    // Called on the main thread with interim results collapsed to the latest
                     if (mText != null && !TextUtils.isEmpty(text)) {
-                        runOnUiThread(() -> {
-                            if (isFinal) {
-                                mText.setText(null);
-                                mAdapter.addResult(text);
-                                mRecyclerView.smoothScrollToPosition(0);
-                            } else {
-                                mText.setText(text);
-                            }
-                        });
+                        if (isFinal) {
+                            mText.setText(null);
+                            mAdapter.addResult(text);
+                            mRecyclerView.smoothScrollToPosition(0);
+                        } else {
+                            mText.setText(text);
+                        }
                     }
                 }
             };
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+/**
+ * A fixed-size circular buffer that retains the most recent audio, so that it can be sent along
+ * when voice is detected and the onset of an utterance is not lost.
+ *
+ * <p>All the memory is allocated up front. This class is not thread-safe; it is meant to be
+ * confined to the thread processing the audio, which makes locking unnecessary.</p>
+ */
+public class PreRollBuffer {
+
+    private final byte[] mBuffer;
+
+    /** The index of the oldest byte in {@link #mBuffer}. */
+    private int mStart;
+
+    /** The number of valid bytes in {@link #mBuffer}. */
+    private int mSize;
+
+    /**
+     * Calculates the capacity needed to retain the specified duration of {@code LINEAR16} mono
+     * audio.
+     *
+     * @param sampleRate The sample rate of the audio.
+     * @param millis     The duration to retain.
+     * @return The capacity in bytes.
+     */
+    public static int capacityFor(int sampleRate, int millis) {
+        return (int) ((long) sampleRate * millis / 1000) * 2;
+    }
+
+    /**
+     * @param capacity The number of bytes to retain. This should be a multiple of the frame size.
+     */
+    public PreRollBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * @return The maximum number of bytes retained by this buffer.
+     */
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return The number of bytes currently retained by this buffer.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Appends audio to this buffer, overwriting the oldest audio if the buffer is full.
+     *
+     * @param data The audio data.
+     * @param size The number of bytes in {@code data} that are actually relevant.
+     */
+    public void write(byte[] data, int size) {
+        final int capacity = mBuffer.length;
+        if (capacity == 0 || size <= 0) {
+            return;
+        }
+        int offset = 0;
+        if (size >= capacity) {
+            // Only the tail of the data fits
+            offset = size - capacity;
+            size = capacity;
+            mStart = 0;
+            mSize = 0;
+        }
+        final int end = (mStart + mSize) % capacity;
+        final int first = Math.min(size, capacity - end);
+        System.arraycopy(data, offset, mBuffer, end, first);
+        System.arraycopy(data, offset + first, mBuffer, 0, size - first);
+        final int overflow = mSize + size - capacity;
+        if (overflow > 0) {
+            mStart = (mStart + overflow) % capacity;
+            mSize = capacity;
+        } else {
+            mSize += size;
+        }
+    }
+
+    /**
+     * Moves the retained audio, oldest first, into {@code dest}. If {@code dest} is smaller than
+     * the retained audio, the rest stays in this buffer for the next call.
+     *
+     * @param dest The destination. At {@link #getCapacity()} bytes, it always takes all the audio.
+     * @return The number of bytes written to {@code dest}.
+     */
+    public int drainTo(byte[] dest) {
+        final int size = Math.min(mSize, dest.length);
+        final int first = Math.min(size, mBuffer.length - mStart);
+        System.arraycopy(mBuffer, mStart, dest, 0, first);
+        System.arraycopy(mBuffer, 0, dest, first, size - first);
+        if (size == mSize) {
+            clear();
+        } else {
+            mStart = (mStart + size) % mBuffer.length;
+            mSize -= size;
+        }
+        return size;
+    }
+
+    /**
+     * Discards all the retained audio.
+     */
+    public void clear() {
+        mStart = 0;
+        mSize = 0;
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+import androidx.annotation.RequiresApi;
+
+import com.google.auth.oauth2.AccessToken;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Date;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+
+/**
+ * Stores the access token in {@link SharedPreferences}.
+ *
+ * <p>From Android M, the token is encrypted with an AES key that is kept in the Android
+ * keystore, so it cannot be read from the preferences file alone. Before that, the token is
+ * stored as it is, like it was before.</p>
+ */
+class PreferencesTokenStore implements AccessTokenProvider.Store {
+
+    private static final String TAG = "PreferencesTokenStore";
+
+    private static final String PREF_ACCESS_TOKEN_VALUE = "access_token_value";
+    private static final String PREF_ACCESS_TOKEN_EXPIRATION_TIME = "access_token_expiration_time";
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 128;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SharedPreferences mPrefs;
+
+    private final String mKeyAlias;
+
+    /**
+     * @param context The context.
+     * @param name    The name of the preferences, also used for the key.
+     */
+    PreferencesTokenStore(Context context, String name) {
+        mPrefs = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        mKeyAlias = name + ".token";
+    }
+
+    @Override
+    public AccessToken load() {
+        final String value = mPrefs.getString(PREF_ACCESS_TOKEN_VALUE, null);
+        final long expirationTime = mPrefs.getLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME, -1);
+        if (value == null || expirationTime <= 0) {
+            return null;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return new AccessToken(value, new Date(expirationTime));
+        }
+        try {
+            return new AccessToken(decrypt(value), new Date(expirationTime));
+        } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+            // Such as a token stored before encryption, or a key that was lost
+            Log.w(TAG, "Discarding the stored access token.", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void save(AccessToken token) {
+        String value = token.getTokenValue();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                value = encrypt(value);
+            } catch (GeneralSecurityException | IOException e) {
+                Log.w(TAG, "Failed to encrypt the access token; it is not stored.", e);
+                return;
+            }
+        }
+        mPrefs.edit()
+                .putString(PREF_ACCESS_TOKEN_VALUE, value)
+                .putLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME, token.getExpirationTime().getTime())
+                .apply();
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private String encrypt(String value) throws GeneralSecurityException, IOException {
+        final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getKey());
+        final byte[] iv = cipher.getIV();
+        final byte[] encrypted = cipher.doFinal(value.getBytes(UTF_8));
+        return Base64.encodeToString(iv, Base64.NO_WRAP) + ":"
+                + Base64.encodeToString(encrypted, Base64.NO_WRAP);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private String decrypt(String value) throws GeneralSecurityException, IOException {
+        final int separator = value.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Not an encrypted token");
+        }
+        final byte[] iv = Base64.decode(value.substring(0, separator), Base64.NO_WRAP);
+        final byte[] encrypted = Base64.decode(value.substring(separator + 1), Base64.NO_WRAP);
+        final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(TAG_LENGTH, iv));
+        return new String(cipher.doFinal(encrypted), UTF_8);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private SecretKey getKey() throws GeneralSecurityException, IOException {
+        final KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        final SecretKey key = (SecretKey) keyStore.getKey(mKeyAlias, null);
+        if (key != null) {
+            return key;
+        }
+        final KeyGenerator generator =
+                KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(mKeyAlias,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .build());
+        return generator.generateKey();
+    }
+
+}
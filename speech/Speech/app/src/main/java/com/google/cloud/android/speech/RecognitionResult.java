@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.WordInfo;
+import com.google.protobuf.Duration;
+
+import java.util.ArrayList;
+
+
+/**
+ * A recognition result with all its alternatives, confidence, stability and word timings.
+ *
+ * <p>Instances are reused: the same object is filled in again for the next result, and its
+ * arrays only grow when a result has more alternatives or words than any before it. Copy
+ * anything that is needed after the listener returns.</p>
+ *
+ * <p>Times are in milliseconds from the start of the audio sent in the recognition session.
+ * Word timings are only available in final results, and only if
+ * {@link SpeechService#setEnableWordTimeOffsets(boolean)} is turned on.</p>
+ */
+public class RecognitionResult {
+
+    /**
+     * One of the possible transcripts of the audio.
+     */
+    public static class Alternative {
+
+        private String mTranscript;
+
+        private float mConfidence;
+
+        private int mWordCount;
+
+        private String[] mWords = new String[0];
+
+        private long[] mStartMillis = new long[0];
+
+        private long[] mEndMillis = new long[0];
+
+        public String getTranscript() {
+            return mTranscript;
+        }
+
+        /**
+         * @return The confidence between 0 and 1, or 0 if it is not available. Only the first
+         * alternative of a final result has a confidence.
+         */
+        public float getConfidence() {
+            return mConfidence;
+        }
+
+        public int getWordCount() {
+            return mWordCount;
+        }
+
+        public String getWord(int index) {
+            return mWords[index];
+        }
+
+        public long getWordStartMillis(int index) {
+            return mStartMillis[index];
+        }
+
+        public long getWordEndMillis(int index) {
+            return mEndMillis[index];
+        }
+
+        void set(SpeechRecognitionAlternative alternative, long offsetMillis) {
+            mTranscript = alternative.getTranscript();
+            mConfidence = alternative.getConfidence();
+            mWordCount = alternative.getWordsCount();
+            if (mWords.length < mWordCount) {
+                final int capacity = Math.max(mWordCount, mWords.length * 2);
+                mWords = new String[capacity];
+                mStartMillis = new long[capacity];
+                mEndMillis = new long[capacity];
+            }
+            for (int i = 0; i < mWordCount; i++) {
+                final WordInfo word = alternative.getWords(i);
+                mWords[i] = word.getWord();
+                mStartMillis[i] = offsetMillis + toMillis(word.getStartTime());
+                mEndMillis[i] = offsetMillis + toMillis(word.getEndTime());
+            }
+        }
+
+        /**
+         * Drops the leading words that were transcribed twice across streams.
+         *
+         * @param transcript The transcript without the repeated words.
+         * @param count      The number of words dropped.
+         */
+        void trimLeadingWords(String transcript, int count) {
+            mTranscript = transcript;
+            if (mWordCount == 0) {
+                return;
+            }
+            count = Math.min(count, mWordCount);
+            mWordCount -= count;
+            System.arraycopy(mWords, count, mWords, 0, mWordCount);
+            System.arraycopy(mStartMillis, count, mStartMillis, 0, mWordCount);
+            System.arraycopy(mEndMillis, count, mEndMillis, 0, mWordCount);
+            for (int i = mWordCount; i < mWordCount + count; i++) {
+                mWords[i] = null;
+            }
+        }
+
+    }
+
+    private final ArrayList<Alternative> mAlternatives = new ArrayList<>();
+
+    private int mAlternativeCount;
+
+    private boolean mFinal;
+
+    private float mStability;
+
+    private long mEndMillis;
+
+    public boolean isFinal() {
+        return mFinal;
+    }
+
+    /**
+     * @return How likely an interim result is to stay the same, between 0 and 1, or 0 for final
+     * results.
+     */
+    public float getStability() {
+        return mStability;
+    }
+
+    /**
+     * @return The end of the audio that this result covers.
+     */
+    public long getEndMillis() {
+        return mEndMillis;
+    }
+
+    public int getAlternativeCount() {
+        return mAlternativeCount;
+    }
+
+    /**
+     * @param index The index of the alternative; the most likely one is 0.
+     */
+    public Alternative getAlternative(int index) {
+        if (index >= mAlternativeCount) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        return mAlternatives.get(index);
+    }
+
+    /**
+     * @return The most likely transcript, or {@code null} if there is no alternative.
+     */
+    public String getTranscript() {
+        return mAlternativeCount > 0 ? mAlternatives.get(0).mTranscript : null;
+    }
+
+    /**
+     * Fills in this object from a streaming result.
+     *
+     * @param result       The result.
+     * @param offsetMillis The time in the session at which the stream of this result started.
+     */
+    void set(StreamingRecognitionResult result, long offsetMillis) {
+        mFinal = result.getIsFinal();
+        mStability = result.getStability();
+        mEndMillis = offsetMillis + toMillis(result.getResultEndTime());
+        mAlternativeCount = result.getAlternativesCount();
+        while (mAlternatives.size() < mAlternativeCount) {
+            mAlternatives.add(new Alternative());
+        }
+        for (int i = 0; i < mAlternativeCount; i++) {
+            mAlternatives.get(i).set(result.getAlternatives(i), offsetMillis);
+        }
+    }
+
+    static long toMillis(Duration duration) {
+        return duration.getSeconds() * 1000 + duration.getNanos() / 1000000;
+    }
+
+}
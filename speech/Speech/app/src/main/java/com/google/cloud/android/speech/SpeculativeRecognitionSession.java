@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechGrpc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Recognizes speech in one of several languages by sending the same audio to a
+ * {@link StreamingRecognitionSession} per language, and keeping the one that recognizes it best.
+ *
+ * <p>Each candidate is scored by the average confidence of its final results. As soon as a
+ * candidate reaches {@link #DEFAULT_CONFIDENT_SCORE}, or once every candidate has a final result,
+ * the best one wins and the others are cancelled. Until then, interim results come from the
+ * current leader, starting with the first candidate, and final results are held back so that the
+ * listener only ever receives the final results of the winner.</p>
+ *
+ * <p>Each candidate made with {@link #createConfigs(RecognitionConfig, List)} also lists the other
+ * languages as its {@code alternative_language_codes}, so that the API can recognize an utterance
+ * in one of them within a single call. The candidates still differ in their primary language,
+ * which the API favors, and comparing them picks it for the user. Once the others are cancelled,
+ * the alternatives let the winner follow the user into another language in continuous mode.</p>
+ *
+ * <p>The audio is passed to all the sessions as it is. A {@code LINEAR16} session sends it
+ * without a copy, so the extra cost of the other candidates is upload bandwidth, not memory; see
+ * {@link #getExtraUploadedBytes()}.</p>
+ *
+ * <p>Like {@link StreamingRecognitionSession}, the calls to {@link #recognize(byte[], int)} and
+ * {@link #finish()} are serialized. The listener is called on gRPC threads, one at a time.</p>
+ */
+public class SpeculativeRecognitionSession {
+
+    /** The average confidence at which a candidate wins without waiting for the others. */
+    public static final float DEFAULT_CONFIDENT_SCORE = 0.8f;
+
+    /** The most alternative language codes that the API accepts in a config. */
+    public static final int MAX_ALTERNATIVE_LANGUAGE_CODES = 3;
+
+    private final SpeechService.Listener mListener;
+
+    private final List<Candidate> mCandidates = new ArrayList<>();
+
+    private float mConfidentScore = DEFAULT_CONFIDENT_SCORE;
+
+    /** The candidate whose interim results are delivered. Guarded by {@code this}. */
+    private Candidate mLeader;
+
+    private volatile Candidate mWinner;
+
+    private long mStartedNanos;
+
+    private volatile long mDecisionNanos;
+
+    /**
+     * @param api        The API stub, shared by all the candidates.
+     * @param configs    The recognition config of each candidate, usually differing only in
+     *                   their language. The first one is preferred until there are results.
+     * @param continuous {@code true} to keep transcribing until {@link #finish()}, or
+     *                   {@code false} to stop after a single utterance.
+     * @param listener   The listener to be notified of recognized text.
+     */
+    public SpeculativeRecognitionSession(SpeechGrpc.SpeechStub api,
+            List<RecognitionConfig> configs, boolean continuous,
+            SpeechService.Listener listener) {
+        if (configs.isEmpty()) {
+            throw new IllegalArgumentException("No recognition config");
+        }
+        mListener = listener;
+        for (RecognitionConfig config : configs) {
+            mCandidates.add(new Candidate(api, config, continuous));
+        }
+        mLeader = mCandidates.get(0);
+    }
+
+    /**
+     * Creates a config per language, each one with the other languages as its alternatives.
+     *
+     * @param base          The config to copy, with everything but the languages.
+     * @param languageCodes The candidate languages, most preferred first.
+     * @return The configs, in the order of {@code languageCodes}.
+     */
+    public static List<RecognitionConfig> createConfigs(RecognitionConfig base,
+            List<String> languageCodes) {
+        final List<RecognitionConfig> configs = new ArrayList<>();
+        for (String languageCode : languageCodes) {
+            final RecognitionConfig.Builder builder = base.toBuilder()
+                    .setLanguageCode(languageCode)
+                    .clearAlternativeLanguageCodes();
+            for (String alternative : languageCodes) {
+                if (builder.getAlternativeLanguageCodesCount()
+                        == MAX_ALTERNATIVE_LANGUAGE_CODES) {
+                    break;
+                }
+                if (!alternative.equals(languageCode)) {
+                    builder.addAlternativeLanguageCodes(alternative);
+                }
+            }
+            configs.add(builder.build());
+        }
+        return configs;
+    }
+
+    /**
+     * Sets the average confidence at which a candidate wins right away. A higher score waits for
+     * more evidence, which costs bandwidth and delays the final results.
+     */
+    public void setConfidentScore(float score) {
+        mConfidentScore = score;
+    }
+
+    /**
+     * Opens the calls of all the candidates.
+     */
+    public void start() {
+        for (Candidate candidate : mCandidates) {
+            candidate.mSession.start();
+        }
+    }
+
+    /**
+     * Recognizes the speech audio with every candidate that is still running.
+     *
+     * @param data The audio data in {@code LINEAR16}.
+     * @param size The number of elements that are actually relevant in the {@code data}.
+     */
+    public synchronized void recognize(byte[] data, int size) {
+        if (mStartedNanos == 0) {
+            mStartedNanos = System.nanoTime();
+        }
+        final Candidate winner = mWinner;
+        if (winner != null) {
+            winner.mSession.recognize(data, size);
+            return;
+        }
+        for (Candidate candidate : mCandidates) {
+            candidate.mSession.recognize(data, size);
+        }
+    }
+
+    /**
+     * Finishes recognizing speech audio. The results of the audio sent so far are still
+     * delivered.
+     */
+    public synchronized void finish() {
+        for (Candidate candidate : mCandidates) {
+            candidate.mSession.finish();
+        }
+    }
+
+    /**
+     * @return The config of the winning candidate, or {@code null} if there is no winner yet.
+     */
+    public RecognitionConfig getWinningConfig() {
+        final Candidate winner = mWinner;
+        return winner == null ? null : winner.mConfig;
+    }
+
+    /**
+     * @return The time from the first audio to the choice of the winner in nanoseconds, or 0 if
+     * there is no winner yet.
+     */
+    public long getDecisionNanos() {
+        return mDecisionNanos;
+    }
+
+    /**
+     * @return The number of bytes uploaded by all the candidates.
+     */
+    public long getUploadedBytes() {
+        long bytes = 0;
+        for (Candidate candidate : mCandidates) {
+            bytes += candidate.mSession.getUploadedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The number of bytes uploaded by the candidates that did not win, which is the
+     * bandwidth spent on speculation.
+     */
+    public long getExtraUploadedBytes() {
+        final Candidate winner = mWinner;
+        long bytes = 0;
+        for (Candidate candidate : mCandidates) {
+            if (candidate != winner) {
+                bytes += candidate.mSession.getUploadedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The number of audio bytes that had to be copied for any of the candidates.
+     */
+    public long getCopiedAudioBytes() {
+        long bytes = 0;
+        for (Candidate candidate : mCandidates) {
+            bytes += candidate.mSession.getCopiedAudioBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The session of each candidate, in the order of their configs, for their metrics.
+     */
+    public List<StreamingRecognitionSession> getSessions() {
+        final List<StreamingRecognitionSession> sessions = new ArrayList<>();
+        for (Candidate candidate : mCandidates) {
+            sessions.add(candidate.mSession);
+        }
+        return sessions;
+    }
+
+    /**
+     * Handles a result of a candidate. Must hold {@code this}.
+     */
+    private void onResult(Candidate candidate, String text, boolean isFinal, float confidence) {
+        final Candidate winner = mWinner;
+        if (winner != null) {
+            if (candidate == winner) {
+                mListener.onSpeechRecognized(text, isFinal);
+            }
+            return;
+        }
+        if (!isFinal) {
+            if (candidate == mLeader) {
+                mListener.onSpeechRecognized(text, false);
+            }
+            return;
+        }
+        candidate.mFinals.add(text);
+        // The API leaves the confidence at 0 when it does not have one
+        if (confidence > 0) {
+            candidate.mConfidenceSum += confidence;
+            candidate.mScoredFinals++;
+        }
+        Candidate best = null;
+        boolean allFinal = true;
+        for (Candidate c : mCandidates) {
+            if (c.mFinals.isEmpty()) {
+                allFinal = false;
+            } else if (best == null || c.getScore() > best.getScore()) {
+                best = c;
+            }
+        }
+        if (best.getScore() >= mConfidentScore || allFinal) {
+            decide(best);
+        } else {
+            mLeader = best;
+        }
+    }
+
+    private void decide(Candidate winner) {
+        mWinner = winner;
+        mDecisionNanos = System.nanoTime() - mStartedNanos;
+        for (Candidate candidate : mCandidates) {
+            if (candidate != winner) {
+                candidate.mSession.cancel();
+            }
+        }
+        for (String text : winner.mFinals) {
+            mListener.onSpeechRecognized(text, true);
+        }
+        winner.mFinals.clear();
+    }
+
+    /**
+     * A recognition in one of the languages.
+     */
+    private class Candidate implements SpeechService.ResultListener {
+
+        final RecognitionConfig mConfig;
+
+        final StreamingRecognitionSession mSession;
+
+        /** The final results held back until there is a winner. Guarded by the outer class. */
+        final List<String> mFinals = new ArrayList<>();
+
+        float mConfidenceSum;
+
+        int mScoredFinals;
+
+        Candidate(SpeechGrpc.SpeechStub api, RecognitionConfig config, boolean continuous) {
+            mConfig = config;
+            // The text is taken from the full result, which also has the confidence
+            mSession = new StreamingRecognitionSession(api, config, continuous,
+                    (text, isFinal) -> {
+                    });
+            mSession.setResultListener(this);
+        }
+
+        float getScore() {
+            return mScoredFinals == 0 ? 0 : mConfidenceSum / mScoredFinals;
+        }
+
+        @Override
+        public void onSpeechRecognized(RecognitionResult result) {
+            final String text = result.getTranscript();
+            final float confidence = result.getAlternativeCount() > 0
+                    ? result.getAlternative(0).getConfidence() : 0;
+            synchronized (SpeculativeRecognitionSession.this) {
+                onResult(this, text, result.isFinal(), confidence);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.RecognitionAudio;
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.RecognizeRequest;
+import com.google.cloud.speech.v1.RecognizeResponse;
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.SpeechRecognitionResult;
+import com.google.protobuf.UnsafeByteOperations;
+
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * A {@link FileTranscriber.Recognizer} that sends each segment to the synchronous
+ * {@code recognize} method of the Speech API.
+ */
+public class SpeechApiRecognizer implements FileTranscriber.Recognizer {
+
+    private final SpeechGrpc.SpeechStub mApi;
+
+    private final RecognitionConfig mConfig;
+
+    /**
+     * @param api    The API stub.
+     * @param config The recognition config. The encoding must be {@code LINEAR16}.
+     */
+    public SpeechApiRecognizer(SpeechGrpc.SpeechStub api, RecognitionConfig config) {
+        mApi = api;
+        mConfig = config;
+    }
+
+    @Override
+    public void recognize(byte[] data, int size, final Callback callback) {
+        // The segment buffer is not reused until the callback is called, which is after the call
+        // is completed, so the request does not need its own copy of the audio.
+        mApi.recognize(RecognizeRequest.newBuilder()
+                        .setConfig(mConfig)
+                        .setAudio(RecognitionAudio.newBuilder()
+                                .setContent(UnsafeByteOperations.unsafeWrap(data, 0, size))
+                                .build())
+                        .build(),
+                new StreamObserver<RecognizeResponse>() {
+
+                    private final StringBuilder mTranscript = new StringBuilder();
+
+                    @Override
+                    public void onNext(RecognizeResponse response) {
+                        // A long segment comes back as several results for consecutive parts
+                        for (SpeechRecognitionResult result : response.getResultsList()) {
+                            if (result.getAlternativesCount() == 0) {
+                                continue;
+                            }
+                            final String text = result.getAlternatives(0).getTranscript().trim();
+                            if (text.isEmpty()) {
+                                continue;
+                            }
+                            if (mTranscript.length() > 0) {
+                                mTranscript.append(' ');
+                            }
+                            mTranscript.append(text);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        callback.onFailed(t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        callback.onRecognized(mTranscript.toString());
+                    }
+
+                });
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import android.util.Log;
+
+import com.google.auth.Credentials;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.internal.DnsNameResolverProvider;
+import io.grpc.okhttp.OkHttpChannelProvider;
+
+
+/**
+ * Owns the single, long-lived gRPC channel to the Speech API.
+ *
+ * <p>The channel is created once and kept for the lifetime of the manager. Access token refreshes
+ * are applied through {@link #updateCredentials(Credentials)}, which swaps the credentials of the
+ * existing {@link GoogleCredentialsInterceptor} instead of building a new channel, so the HTTP/2
+ * connection (and its TLS session) survives token refreshes.</p>
+ *
+ * <p>Retries are disabled on the channel: callers may send requests that wrap buffers they reuse
+ * as soon as the request is serialized, which only holds if gRPC never keeps a request to send it
+ * again.</p>
+ */
+public class SpeechChannelManager {
+
+    private static final String TAG = "SpeechChannelManager";
+
+    /** The default interval between HTTP/2 pings while there are active calls. */
+    public static final long DEFAULT_KEEP_ALIVE_TIME_MILLIS = 5 * 60 * 1000; // five minutes
+
+    /** The default time to wait for a ping acknowledgement before the connection is dropped. */
+    public static final long DEFAULT_KEEP_ALIVE_TIMEOUT_MILLIS = 20 * 1000; // twenty seconds
+
+    /** The default time without any calls before the connection is released. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 60 * 1000; // thirty minutes
+
+    private final String mHost;
+
+    private final int mPort;
+
+    private long mKeepAliveTimeMillis = DEFAULT_KEEP_ALIVE_TIME_MILLIS;
+
+    private long mKeepAliveTimeoutMillis = DEFAULT_KEEP_ALIVE_TIMEOUT_MILLIS;
+
+    private long mIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    private GoogleCredentialsInterceptor mInterceptor;
+
+    private ManagedChannel mChannel;
+
+    private Channel mInterceptedChannel;
+
+    private final AtomicInteger mChannelsCreated = new AtomicInteger();
+
+    private final AtomicInteger mConnectionsEstablished = new AtomicInteger();
+
+    private final AtomicInteger mCredentialUpdates = new AtomicInteger();
+
+    public SpeechChannelManager(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Sets the keepalive parameters. This takes effect when the channel is created, so it should
+     * be called before the first {@link #updateCredentials(Credentials)}.
+     *
+     * @param time    The interval between pings while there are active calls.
+     * @param timeout The time to wait for a ping acknowledgement.
+     * @param unit    The unit of {@code time} and {@code timeout}.
+     */
+    public synchronized void setKeepAlive(long time, long timeout, TimeUnit unit) {
+        mKeepAliveTimeMillis = unit.toMillis(time);
+        mKeepAliveTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Sets how long the channel may stay without calls before the connection is released. This
+     * takes effect when the channel is created.
+     *
+     * @param timeout The idle timeout.
+     * @param unit    The unit of {@code timeout}.
+     */
+    public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+        mIdleTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Applies new credentials to the channel, creating the channel on the first call.
+     *
+     * @param credentials The credentials to authenticate calls with.
+     */
+    public synchronized void updateCredentials(Credentials credentials) {
+        if (mInterceptor == null) {
+            mInterceptor = new GoogleCredentialsInterceptor(credentials);
+        } else {
+            mInterceptor.setCredentials(credentials);
+            mCredentialUpdates.incrementAndGet();
+        }
+        if (mChannel == null || mChannel.isShutdown()) {
+            mChannel = createChannel();
+            mInterceptedChannel = ClientInterceptors.intercept(mChannel, mInterceptor);
+        }
+    }
+
+    /**
+     * @return The authenticated channel, or {@code null} if no credentials were supplied yet.
+     */
+    public synchronized Channel getChannel() {
+        return mInterceptedChannel;
+    }
+
+    /**
+     * Shuts down the channel and waits for ongoing calls to finish.
+     */
+    public void shutdown() {
+        final ManagedChannel channel;
+        synchronized (this) {
+            channel = mChannel;
+            mChannel = null;
+            mInterceptedChannel = null;
+        }
+        if (channel != null && !channel.isShutdown()) {
+            try {
+                channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Error shutting down the gRPC channel.", e);
+            }
+        }
+    }
+
+    /**
+     * @return The number of channels created by this manager.
+     */
+    public int getChannelsCreated() {
+        return mChannelsCreated.get();
+    }
+
+    /**
+     * @return The number of times a channel became connected, which is the number of TLS
+     * handshakes paid for.
+     */
+    public int getConnectionsEstablished() {
+        return mConnectionsEstablished.get();
+    }
+
+    /**
+     * @return The number of times credentials were swapped on an existing channel.
+     */
+    public int getCredentialUpdates() {
+        return mCredentialUpdates.get();
+    }
+
+    private ManagedChannel createChannel() {
+        final ManagedChannel channel = buildChannel();
+        mChannelsCreated.incrementAndGet();
+        watchConnectivity(channel, channel.getState(false));
+        return channel;
+    }
+
+    /**
+     * Builds a new channel to the API. Tests override this to connect to a fake server.
+     */
+    ManagedChannel buildChannel() {
+        return new OkHttpChannelProvider()
+                .builderForAddress(mHost, mPort)
+                .nameResolverFactory(new DnsNameResolverProvider())
+                .keepAliveTime(mKeepAliveTimeMillis, TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(mKeepAliveTimeoutMillis, TimeUnit.MILLISECONDS)
+                .idleTimeout(mIdleTimeoutMillis, TimeUnit.MILLISECONDS)
+                // With retries, sent requests are kept for replay until the call is committed.
+                // Streaming audio wraps pooled chunks that are recycled once sent, so a replay
+                // would send whatever the chunks hold by then.
+                .disableRetry()
+                .build();
+    }
+
+    private void watchConnectivity(final ManagedChannel channel, final ConnectivityState source) {
+        channel.notifyWhenStateChanged(source, () -> {
+            final ConnectivityState state = channel.getState(false);
+            if (state == ConnectivityState.READY) {
+                mConnectionsEstablished.incrementAndGet();
+            }
+            if (state != ConnectivityState.SHUTDOWN) {
+                watchConnectivity(channel, state);
+            }
+        });
+    }
+
+}
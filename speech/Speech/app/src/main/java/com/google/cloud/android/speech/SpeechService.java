@@ -17,59 +17,34 @@
 package com.google.cloud.android.speech;
 
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Binder;
-import android.os.Handler;
+import android.os.Build;
 import android.os.IBinder;
+import android.os.LocaleList;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.auth.Credentials;
 import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.speech.v1.RecognitionAudio;
 import com.google.cloud.speech.v1.RecognitionConfig;
-import com.google.cloud.speech.v1.RecognizeRequest;
-import com.google.cloud.speech.v1.RecognizeResponse;
 import com.google.cloud.speech.v1.SpeechGrpc;
-import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
-import com.google.cloud.speech.v1.SpeechRecognitionResult;
-import com.google.cloud.speech.v1.StreamingRecognitionConfig;
-import com.google.cloud.speech.v1.StreamingRecognitionResult;
-import com.google.cloud.speech.v1.StreamingRecognizeRequest;
-import com.google.cloud.speech.v1.StreamingRecognizeResponse;
-import com.google.protobuf.ByteString;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import io.grpc.CallOptions;
-import io.grpc.Channel;
-import io.grpc.ClientCall;
-import io.grpc.ClientInterceptor;
-import io.grpc.ClientInterceptors;
-import io.grpc.ManagedChannel;
-import io.grpc.Metadata;
-import io.grpc.MethodDescriptor;
-import io.grpc.Status;
-import io.grpc.StatusException;
-import io.grpc.internal.DnsNameResolverProvider;
-import io.grpc.okhttp.OkHttpChannelProvider;
-import io.grpc.stub.StreamObserver;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class SpeechService extends Service {
@@ -86,16 +61,21 @@ public class SpeechService extends Service {
 
     }
 
+    public interface ResultListener {
+
+        /**
+         * Called when a new result was received from the Speech API. This is called on the thread
+         * that received the result, and the result object is reused for the next result.
+         *
+         * @param result The result with all its alternatives and word timings.
+         */
+        void onSpeechRecognized(RecognitionResult result);
+
+    }
+
     private static final String TAG = "SpeechService";
 
     private static final String PREFS = "SpeechService";
-    private static final String PREF_ACCESS_TOKEN_VALUE = "access_token_value";
-    private static final String PREF_ACCESS_TOKEN_EXPIRATION_TIME = "access_token_expiration_time";
-
-    /** We reuse an access token if its expiration time is longer than this. */
-    private static final int ACCESS_TOKEN_EXPIRATION_TOLERANCE = 30 * 60 * 1000; // thirty minutes
-    /** We refresh the current access token before it expires. */
-    private static final int ACCESS_TOKEN_FETCH_MARGIN = 60 * 1000; // one minute
 
     public static final List<String> SCOPE =
             Collections.singletonList("https://www.googleapis.com/auth/cloud-platform");
@@ -103,76 +83,60 @@ public class SpeechService extends Service {
     private static final int PORT = 443;
 
     private final SpeechBinder mBinder = new SpeechBinder();
-    private final ArrayList<Listener> mListeners = new ArrayList<>();
-    private volatile AccessTokenTask mAccessTokenTask;
-    private SpeechGrpc.SpeechStub mApi;
-    private static Handler mHandler;
-
-    private final StreamObserver<StreamingRecognizeResponse> mResponseObserver
-            = new StreamObserver<StreamingRecognizeResponse>() {
-        @Override
-        public void onNext(StreamingRecognizeResponse response) {
-            String text = null;
-            boolean isFinal = false;
-            if (response.getResultsCount() > 0) {
-                final StreamingRecognitionResult result = response.getResults(0);
-                isFinal = result.getIsFinal();
-                if (result.getAlternativesCount() > 0) {
-                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
-                    text = alternative.getTranscript();
-                }
-            }
-            if (text != null) {
-                for (Listener listener : mListeners) {
-                    listener.onSpeechRecognized(text, isFinal);
-                }
-            }
-        }
-
-        @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "Error calling the API.", t);
+    /** Added and removed on the main thread, iterated on gRPC threads. */
+    private final CopyOnWriteArrayList<ListenerDispatcher> mListeners =
+            new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ResultListener> mResultListeners =
+            new CopyOnWriteArrayList<>();
+    private volatile boolean mEnableWordTimeOffsets;
+    private final SpeechChannelManager mChannelManager =
+            new SpeechChannelManager(HOSTNAME, PORT);
+    private volatile SpeechGrpc.SpeechStub mApi;
+    /** Fetches the access tokens and runs the refresh schedule. */
+    private ScheduledExecutorService mTokenExecutor;
+    private AccessTokenProvider mTokenProvider;
+
+    /** Forwards the results of streaming recognition to all the listeners. */
+    private final Listener mSessionListener = (text, isFinal) -> {
+        for (ListenerDispatcher listener : mListeners) {
+            listener.onSpeechRecognized(text, isFinal);
         }
+    };
 
-        @Override
-        public void onCompleted() {
-            Log.i(TAG, "API completed.");
+    /** Forwards the full results of streaming recognition to all the result listeners. */
+    private final ResultListener mSessionResultListener = result -> {
+        for (ResultListener listener : mResultListeners) {
+            listener.onSpeechRecognized(result);
         }
-
     };
 
-    private final StreamObserver<RecognizeResponse> mFileResponseObserver
-            = new StreamObserver<RecognizeResponse>() {
+    /** Forwards the results of file transcription to all the listeners. */
+    private final FileTranscriber.Listener mFileListener = new FileTranscriber.Listener() {
         @Override
-        public void onNext(RecognizeResponse response) {
-            String text = null;
-            if (response.getResultsCount() > 0) {
-                final SpeechRecognitionResult result = response.getResults(0);
-                if (result.getAlternativesCount() > 0) {
-                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
-                    text = alternative.getTranscript();
-                }
+        public void onSegmentRecognized(long startMillis, long endMillis, String transcript) {
+            if (transcript.isEmpty()) {
+                return;
             }
-            if (text != null) {
-                for (Listener listener : mListeners) {
-                    listener.onSpeechRecognized(text, true);
-                }
+            for (ListenerDispatcher listener : mListeners) {
+                listener.onSpeechRecognized(transcript, true);
             }
         }
 
         @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "Error calling the API.", t);
+        public void onSegmentFailed(long startMillis, long endMillis, Throwable t) {
+            Log.e(TAG, "Error calling the API for " + startMillis + "-" + endMillis + " ms.", t);
         }
-
-        @Override
-        public void onCompleted() {
-            Log.i(TAG, "API completed.");
-        }
-
     };
 
-    private StreamObserver<StreamingRecognizeRequest> mRequestObserver;
+    /**
+     * The ongoing or most recent recognition of {@link #startRecognizing}. It is replaced as a
+     * whole, so that {@link #recognize(byte[], int)} always finds one or the other.
+     */
+    private final AtomicReference<Recognition> mRecognition = new AtomicReference<>();
+
+    /** The sessions opened with {@link #openSession}, until they are closed. */
+    private final Set<StreamingRecognitionSession> mOpenSessions =
+            Collections.newSetFromMap(new ConcurrentHashMap<>());
 
     public static SpeechService from(IBinder binder) {
         return ((SpeechBinder) binder).getService();
@@ -181,39 +145,95 @@ public class SpeechService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        mHandler = new Handler();
-        fetchAccessToken();
+        mTokenExecutor = Executors.newSingleThreadScheduledExecutor();
+        mTokenProvider = new AccessTokenProvider(this::fetchAccessToken,
+                new PreferencesTokenStore(this, PREFS), mTokenExecutor);
+        // A cached token is applied right away; a new one is fetched ahead of its expiry
+        mTokenProvider.start(this::onAccessToken);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mHandler.removeCallbacks(mFetchAccessTokenRunnable);
-        mHandler = null;
+        mTokenProvider.stop();
+        mTokenExecutor.shutdownNow();
+        final Recognition recognition = mRecognition.getAndSet(null);
+        if (recognition != null) {
+            recognition.finish();
+        }
+        for (StreamingRecognitionSession session : mOpenSessions) {
+            session.finish();
+        }
+        mOpenSessions.clear();
         // Release the gRPC channel.
-        if (mApi != null) {
-            final ManagedChannel channel = (ManagedChannel) mApi.getChannel();
-            if (channel != null && !channel.isShutdown()) {
-                try {
-                    channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Error shutting down the gRPC channel.", e);
-                }
-            }
-            mApi = null;
+        mChannelManager.shutdown();
+        mApi = null;
+    }
+
+    /**
+     * Obtains a new access token. This is called by {@link #mTokenProvider} when there is no
+     * valid token in the cache, and ahead of the expiry of the current one.
+     */
+    private AccessToken fetchAccessToken() throws IOException {
+        // ***** WARNING *****
+        // In this sample, we load the credential from a JSON file stored in a raw resource
+        // folder of this client app. You should never do this in your app. Instead, store
+        // the file in your server and obtain an access token from there.
+        // *******************
+        try (InputStream stream = getResources().openRawResource(R.raw.credential)) {
+            return GoogleCredentials.fromStream(stream)
+                    .createScoped(SCOPE)
+                    .refreshAccessToken();
         }
     }
 
-    private void fetchAccessToken() {
-        if (mAccessTokenTask != null) {
-            return;
+    private void onAccessToken(AccessToken accessToken) {
+        // Rotate the credentials on the existing channel rather than opening a new one
+        mChannelManager.updateCredentials(new GoogleCredentials(accessToken)
+                .createScoped(SCOPE));
+        if (mApi == null) {
+            mApi = SpeechGrpc.newStub(mChannelManager.getChannel());
         }
-        mAccessTokenTask = new AccessTokenTask();
-        mAccessTokenTask.execute();
+    }
+
+    /**
+     * Retrieves the provider of access tokens, mainly for its cache metrics.
+     *
+     * @return The token provider.
+     */
+    public AccessTokenProvider getTokenProvider() {
+        return mTokenProvider;
     }
 
     private String getDefaultLanguageCode() {
-        final Locale locale = Locale.getDefault();
+        return toLanguageCode(Locale.getDefault());
+    }
+
+    /**
+     * Retrieves the languages of the user, in order of preference. Before Android N, this is only
+     * the default language.
+     *
+     * @return The language codes, such as {@code "en-US"}, for
+     * {@link #startRecognizing(int, RecognitionConfig.AudioEncoding, boolean, List)}.
+     */
+    public List<String> getUserLanguageCodes() {
+        final List<String> codes = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            final LocaleList locales = LocaleList.getDefault();
+            for (int i = 0; i < locales.size(); i++) {
+                final String code = toLanguageCode(locales.get(i));
+                if (!codes.contains(code)) {
+                    codes.add(code);
+                }
+            }
+        }
+        if (codes.isEmpty()) {
+            codes.add(getDefaultLanguageCode());
+        }
+        return codes;
+    }
+
+    private static String toLanguageCode(Locale locale) {
         final StringBuilder language = new StringBuilder(locale.getLanguage());
         final String country = locale.getCountry();
         if (!TextUtils.isEmpty(country)) {
@@ -229,37 +249,190 @@ public class SpeechService extends Service {
         return mBinder;
     }
 
+    /**
+     * Retrieves the manager of the gRPC channel, mainly for its connection reuse metrics.
+     *
+     * @return The channel manager.
+     */
+    public SpeechChannelManager getChannelManager() {
+        return mChannelManager;
+    }
+
+    /**
+     * Adds a listener that is called directly on the thread that receives the results. The
+     * listener should return quickly, since it holds up the network thread.
+     */
     public void addListener(@NonNull Listener listener) {
-        mListeners.add(listener);
+        mListeners.add(new ListenerDispatcher(listener, null));
+    }
+
+    /**
+     * Adds a listener that is called on the specified executor. Final results are all delivered
+     * in order, but interim results that arrive faster than the listener handles them are
+     * collapsed to the latest one.
+     *
+     * @param listener The listener.
+     * @param executor The executor, such as {@code ContextCompat.getMainExecutor(context)}.
+     */
+    public void addListener(@NonNull Listener listener, @NonNull Executor executor) {
+        mListeners.add(new ListenerDispatcher(listener, executor));
     }
 
+    /**
+     * Removes a listener. Results that are already enqueued for it are not delivered.
+     */
     public void removeListener(@NonNull Listener listener) {
-        mListeners.remove(listener);
+        for (ListenerDispatcher dispatcher : mListeners) {
+            if (dispatcher.getListener() == listener) {
+                dispatcher.remove();
+                mListeners.remove(dispatcher);
+            }
+        }
     }
 
     /**
-     * Starts recognizing speech audio.
+     * Adds a listener for the full results of streaming recognition. Unlike {@link Listener}, it
+     * receives all the alternatives, their confidence, the stability of interim results and, if
+     * enabled with {@link #setEnableWordTimeOffsets(boolean)}, the timing of each word.
+     */
+    public void addResultListener(@NonNull ResultListener listener) {
+        mResultListeners.add(listener);
+        final StreamingRecognitionSession session = getSession();
+        if (session != null) {
+            session.setResultListener(mSessionResultListener);
+        }
+    }
+
+    public void removeResultListener(@NonNull ResultListener listener) {
+        mResultListeners.remove(listener);
+    }
+
+    /**
+     * Sets whether final results include the start and end time of each word. This applies from
+     * the next {@link #startRecognizing(int)}.
+     */
+    public void setEnableWordTimeOffsets(boolean enable) {
+        mEnableWordTimeOffsets = enable;
+    }
+
+    /**
+     * Starts recognizing speech audio. The audio is uploaded as {@code LINEAR16}.
      *
      * @param sampleRate The sample rate of the audio.
      */
     public void startRecognizing(int sampleRate) {
+        startRecognizing(sampleRate, RecognitionConfig.AudioEncoding.LINEAR16);
+    }
+
+    /**
+     * Starts recognizing a single utterance of speech audio.
+     *
+     * @param sampleRate The sample rate of the audio.
+     * @param encoding   The encoding used to upload the audio; {@code LINEAR16} or {@code FLAC}.
+     *                   The audio passed to {@link #recognize(byte[], int)} is always
+     *                   {@code LINEAR16}, and is compressed as needed.
+     */
+    public void startRecognizing(int sampleRate, RecognitionConfig.AudioEncoding encoding) {
+        startRecognizing(sampleRate, encoding, false);
+    }
+
+    /**
+     * Starts recognizing speech audio.
+     *
+     * <p>In continuous mode, the recognition goes on across utterances and beyond the length limit
+     * of a single streaming call until {@link #finishRecognizing()}. The audio source should not
+     * cap the length of speech either; see {@link VoiceRecorder#setMaxSpeechLengthMillis(int)}.
+     * </p>
+     *
+     * @param sampleRate The sample rate of the audio.
+     * @param encoding   The encoding used to upload the audio; {@code LINEAR16} or {@code FLAC}.
+     * @param continuous {@code true} to transcribe until {@link #finishRecognizing()}, or
+     *                   {@code false} to stop after a single utterance.
+     */
+    public void startRecognizing(int sampleRate, RecognitionConfig.AudioEncoding encoding,
+            boolean continuous) {
+        if (mApi == null) {
+            Log.w(TAG, "API not ready. Ignoring the request.");
+            return;
+        }
+        final StreamingRecognitionSession session = new StreamingRecognitionSession(mApi,
+                RecognitionConfig.newBuilder()
+                        .setLanguageCode(getDefaultLanguageCode())
+                        .setEncoding(encoding)
+                        .setSampleRateHertz(sampleRate)
+                        .setEnableWordTimeOffsets(mEnableWordTimeOffsets)
+                        .build(),
+                continuous, mSessionListener);
+        // Full results are only filled in if someone is listening for them
+        if (!mResultListeners.isEmpty()) {
+            session.setResultListener(mSessionResultListener);
+        }
+        session.start();
+        replaceRecognition(new Recognition(session, null));
+    }
+
+    /**
+     * Starts recognizing speech audio that may be in any of several languages. The audio is sent
+     * to a recognition per language at the same time, and the one recognizing it with the highest
+     * confidence is kept while the others are cancelled; see
+     * {@link SpeculativeRecognitionSession}. This costs upload bandwidth for each extra language,
+     * but saves having to try again in another language. Each recognition also lists the other
+     * languages as alternatives, so that the one kept can follow the user into another of them.
+     * Only {@link Listener}s receive the results.
+     *
+     * @param sampleRate    The sample rate of the audio.
+     * @param encoding      The encoding used to upload the audio; {@code LINEAR16} or
+     *                      {@code FLAC}. With {@code FLAC}, the audio is compressed once per
+     *                      language.
+     * @param continuous    {@code true} to transcribe until {@link #finishRecognizing()}, or
+     *                      {@code false} to stop after a single utterance.
+     * @param languageCodes The candidate languages, such as {@link #getUserLanguageCodes()}. The
+     *                      first one is preferred until there are results.
+     */
+    public void startRecognizing(int sampleRate, RecognitionConfig.AudioEncoding encoding,
+            boolean continuous, List<String> languageCodes) {
+        if (languageCodes.size() < 2) {
+            startRecognizing(sampleRate, encoding, continuous);
+            return;
+        }
         if (mApi == null) {
             Log.w(TAG, "API not ready. Ignoring the request.");
             return;
         }
-        // Configure the API
-        mRequestObserver = mApi.streamingRecognize(mResponseObserver);
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-                .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
-                        .setConfig(RecognitionConfig.newBuilder()
-                                .setLanguageCode(getDefaultLanguageCode())
-                                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                                .setSampleRateHertz(sampleRate)
-                                .build())
-                        .setInterimResults(true)
-                        .setSingleUtterance(true)
-                        .build())
-                .build());
+        final List<RecognitionConfig> configs = SpeculativeRecognitionSession.createConfigs(
+                RecognitionConfig.newBuilder()
+                        .setEncoding(encoding)
+                        .setSampleRateHertz(sampleRate)
+                        .setEnableWordTimeOffsets(mEnableWordTimeOffsets)
+                        .build(),
+                languageCodes);
+        final SpeculativeRecognitionSession speculation = new SpeculativeRecognitionSession(mApi,
+                configs, continuous, mSessionListener);
+        speculation.start();
+        replaceRecognition(new Recognition(null, speculation));
+    }
+
+    /**
+     * Makes {@code recognition} the current one. The previous one is finished, in case it was
+     * not yet, so that its call is not left open.
+     */
+    private void replaceRecognition(Recognition recognition) {
+        final Recognition previous = mRecognition.getAndSet(recognition);
+        if (previous != null) {
+            previous.finish();
+        }
+    }
+
+    /**
+     * Retrieves the ongoing or most recent recognition in several languages, for its metrics such
+     * as {@link SpeculativeRecognitionSession#getExtraUploadedBytes()}.
+     *
+     * @return The session, or {@code null} if the latest recognition was in a single language.
+     */
+    @Nullable
+    public SpeculativeRecognitionSession getSpeculativeSession() {
+        final Recognition recognition = mRecognition.get();
+        return recognition != null ? recognition.mSpeculation : null;
     }
 
     /**
@@ -270,223 +443,164 @@ public class SpeechService extends Service {
      * @param size The number of elements that are actually relevant in the {@code data}.
      */
     public void recognize(byte[] data, int size) {
-        if (mRequestObserver == null) {
-            return;
+        final Recognition recognition = mRecognition.get();
+        if (recognition != null) {
+            recognition.recognize(data, size);
         }
-        // Call the streaming recognition API
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-                .setAudioContent(ByteString.copyFrom(data, 0, size))
-                .build());
+    }
+
+    /**
+     * Retrieves the ongoing or most recent streaming recognition, for its metrics such as
+     * {@link StreamingRecognitionSession#getEncoder()} and
+     * {@link StreamingRecognitionSession#getCopiedAudioBytes()}.
+     *
+     * @return The session, or {@code null} if no recognition was started yet, or if the latest
+     * one is in several languages.
+     */
+    @Nullable
+    public StreamingRecognitionSession getSession() {
+        final Recognition recognition = mRecognition.get();
+        return recognition != null ? recognition.mSession : null;
     }
 
     /**
      * Finishes recognizing speech audio.
      */
     public void finishRecognizing() {
-        if (mRequestObserver == null) {
-            return;
+        final Recognition recognition = mRecognition.get();
+        if (recognition != null) {
+            recognition.finish();
         }
-        mRequestObserver.onCompleted();
-        mRequestObserver = null;
     }
 
     /**
-     * Recognize all data from the specified {@link InputStream}.
+     * Opens a streaming recognition session of its own, next to the one of
+     * {@link #startRecognizing(int)}. Any number of sessions can run at the same time, such as
+     * one per language or per microphone; they share the channel and the access token of this
+     * service, but each has its own config, listener and metrics. Feed the session with
+     * {@link StreamingRecognitionSession#recognize(byte[], int)} from any thread, and close it
+     * with {@link #closeSession(StreamingRecognitionSession)}.
      *
-     * @param stream The audio data.
+     * @param config     The recognition config. The audio is always passed as {@code LINEAR16},
+     *                   and is compressed as needed for the encoding of this config.
+     * @param continuous {@code true} to transcribe until the session is closed, or
+     *                   {@code false} to stop after a single utterance.
+     * @param listener   The listener for the results of this session only.
+     * @param executor   The executor to call the listener on, or {@code null} to call it on the
+     *                   thread that received the results.
+     * @return The session, or {@code null} if the API is not ready yet.
      */
-    public void recognizeInputStream(InputStream stream) {
-        try {
-            mApi.recognize(
-                    RecognizeRequest.newBuilder()
-                            .setConfig(RecognitionConfig.newBuilder()
-                                    .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                                    .setLanguageCode("en-US")
-                                    .setSampleRateHertz(16000)
-                                    .build())
-                            .setAudio(RecognitionAudio.newBuilder()
-                                    .setContent(ByteString.readFrom(stream))
-                                    .build())
-                            .build(),
-                    mFileResponseObserver);
-        } catch (IOException e) {
-            Log.e(TAG, "Error loading the input", e);
+    @Nullable
+    public StreamingRecognitionSession openSession(@NonNull RecognitionConfig config,
+            boolean continuous, @NonNull Listener listener, @Nullable Executor executor) {
+        if (mApi == null) {
+            Log.w(TAG, "API not ready. Ignoring the request.");
+            return null;
         }
+        final StreamingRecognitionSession session = new StreamingRecognitionSession(mApi,
+                config, continuous, new ListenerDispatcher(listener, executor));
+        session.start();
+        mOpenSessions.add(session);
+        return session;
     }
 
-    private class SpeechBinder extends Binder {
-
-        SpeechService getService() {
-            return SpeechService.this;
+    /**
+     * Finishes a session opened with {@link #openSession}. The results of the audio sent so far
+     * are still delivered.
+     */
+    public void closeSession(@NonNull StreamingRecognitionSession session) {
+        if (mOpenSessions.remove(session)) {
+            session.finish();
         }
-
     }
 
-    private final Runnable mFetchAccessTokenRunnable = this::fetchAccessToken;
-
-    private class AccessTokenTask extends AsyncTask<Void, Void, AccessToken> {
+    /**
+     * @return The number of sessions opened with {@link #openSession} that are not closed yet.
+     */
+    public int getOpenSessionCount() {
+        return mOpenSessions.size();
+    }
 
-        @Override
-        protected AccessToken doInBackground(Void... voids) {
-            final SharedPreferences prefs =
-                    getSharedPreferences(PREFS, Context.MODE_PRIVATE);
-            String tokenValue = prefs.getString(PREF_ACCESS_TOKEN_VALUE, null);
-            long expirationTime = prefs.getLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME, -1);
-
-            // Check if the current token is still valid for a while
-            if (tokenValue != null && expirationTime > 0) {
-                if (expirationTime
-                        > System.currentTimeMillis() + ACCESS_TOKEN_EXPIRATION_TOLERANCE) {
-                    return new AccessToken(tokenValue, new Date(expirationTime));
-                }
-            }
+    /**
+     * Recognize all data from the specified {@link InputStream}.
+     *
+     * @param stream The audio data in {@code LINEAR16} at 16 kHz, spoken in English.
+     */
+    public void recognizeInputStream(InputStream stream) {
+        recognizeInputStream(stream, "en-US", 16000);
+    }
 
-            // ***** WARNING *****
-            // In this sample, we load the credential from a JSON file stored in a raw resource
-            // folder of this client app. You should never do this in your app. Instead, store
-            // the file in your server and obtain an access token from there.
-            // *******************
-            final InputStream stream = getResources().openRawResource(R.raw.credential);
+    /**
+     * Recognize all data from the specified {@link InputStream}. The audio is read and
+     * transcribed in segments on a background thread, so it can be of any length. The results
+     * are delivered in order as final results.
+     *
+     * @param stream       The audio data in {@code LINEAR16}.
+     * @param languageCode The language of the audio.
+     * @param sampleRate   The sample rate of the audio.
+     */
+    public void recognizeInputStream(final InputStream stream, String languageCode,
+            int sampleRate) {
+        final SpeechGrpc.SpeechStub api = mApi;
+        if (api == null) {
+            Log.w(TAG, "API not ready. Ignoring the request.");
+            return;
+        }
+        final RecognitionConfig config = RecognitionConfig.newBuilder()
+                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                .setLanguageCode(languageCode)
+                .setSampleRateHertz(sampleRate)
+                .build();
+        final FileTranscriber transcriber = new FileTranscriber(sampleRate,
+                new SpeechApiRecognizer(api, config), mFileListener);
+        new Thread(() -> {
             try {
-                final GoogleCredentials credentials = GoogleCredentials.fromStream(stream)
-                        .createScoped(SCOPE);
-                final AccessToken token = credentials.refreshAccessToken();
-                prefs.edit()
-                        .putString(PREF_ACCESS_TOKEN_VALUE, token.getTokenValue())
-                        .putLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME,
-                                token.getExpirationTime().getTime())
-                        .apply();
-                return token;
+                transcriber.transcribe(stream);
             } catch (IOException e) {
-                Log.e(TAG, "Failed to obtain access token.", e);
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(AccessToken accessToken) {
-            mAccessTokenTask = null;
-            final ManagedChannel channel = new OkHttpChannelProvider()
-                    .builderForAddress(HOSTNAME, PORT)
-                    .nameResolverFactory(new DnsNameResolverProvider())
-                    .intercept(new GoogleCredentialsInterceptor(new GoogleCredentials(accessToken)
-                            .createScoped(SCOPE)))
-                    .build();
-            mApi = SpeechGrpc.newStub(channel);
-
-            // Schedule access token refresh before it expires
-            if (mHandler != null) {
-                mHandler.postDelayed(mFetchAccessTokenRunnable,
-                        Math.max(accessToken.getExpirationTime().getTime()
-                                - System.currentTimeMillis()
-                                - ACCESS_TOKEN_FETCH_MARGIN, ACCESS_TOKEN_EXPIRATION_TOLERANCE));
+                Log.e(TAG, "Error loading the input", e);
             }
-        }
+        }, "FileTranscriber").start();
     }
 
     /**
-     * Authenticates the gRPC channel using the specified {@link GoogleCredentials}.
+     * A recognition of {@link #startRecognizing}, in one language or in several.
      */
-    private static class GoogleCredentialsInterceptor implements ClientInterceptor {
-
-        private final Credentials mCredentials;
-
-        private Metadata mCached;
+    private static class Recognition {
 
-        private Map<String, List<String>> mLastMetadata;
+        /** The session in a single language, or {@code null}. */
+        final StreamingRecognitionSession mSession;
 
-        GoogleCredentialsInterceptor(Credentials credentials) {
-            mCredentials = credentials;
-        }
+        /** The session in several languages, or {@code null}. */
+        final SpeculativeRecognitionSession mSpeculation;
 
-        @Override
-        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
-                final MethodDescriptor<ReqT, RespT> method, CallOptions callOptions,
-                final Channel next) {
-            return new ClientInterceptors.CheckedForwardingClientCall<ReqT, RespT>(
-                    next.newCall(method, callOptions)) {
-                @Override
-                protected void checkedStart(Listener<RespT> responseListener, Metadata headers)
-                        throws StatusException {
-                    Metadata cachedSaved;
-                    URI uri = serviceUri(next, method);
-                    synchronized (this) {
-                        Map<String, List<String>> latestMetadata = getRequestMetadata(uri);
-                        if (mLastMetadata == null || mLastMetadata != latestMetadata) {
-                            mLastMetadata = latestMetadata;
-                            mCached = toHeaders(mLastMetadata);
-                        }
-                        cachedSaved = mCached;
-                    }
-                    headers.merge(cachedSaved);
-                    delegate().start(responseListener, headers);
-                }
-            };
+        Recognition(StreamingRecognitionSession session,
+                SpeculativeRecognitionSession speculation) {
+            mSession = session;
+            mSpeculation = speculation;
         }
 
-        /**
-         * Generate a JWT-specific service URI. The URI is simply an identifier with enough
-         * information for a service to know that the JWT was intended for it. The URI will
-         * commonly be verified with a simple string equality check.
-         */
-        private URI serviceUri(Channel channel, MethodDescriptor<?, ?> method)
-                throws StatusException {
-            String authority = channel.authority();
-            if (authority == null) {
-                throw Status.UNAUTHENTICATED
-                        .withDescription("Channel has no authority")
-                        .asException();
-            }
-            // Always use HTTPS, by definition.
-            final String scheme = "https";
-            final int defaultPort = 443;
-            String path = "/" + MethodDescriptor.extractFullServiceName(method.getFullMethodName());
-            URI uri;
-            try {
-                uri = new URI(scheme, authority, path, null, null);
-            } catch (URISyntaxException e) {
-                throw Status.UNAUTHENTICATED
-                        .withDescription("Unable to construct service URI for auth")
-                        .withCause(e).asException();
-            }
-            // The default port must not be present. Alternative ports should be present.
-            if (uri.getPort() == defaultPort) {
-                uri = removePort(uri);
+        void recognize(byte[] data, int size) {
+            if (mSpeculation != null) {
+                mSpeculation.recognize(data, size);
+            } else {
+                mSession.recognize(data, size);
             }
-            return uri;
         }
 
-        private URI removePort(URI uri) throws StatusException {
-            try {
-                return new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), -1 /* port */,
-                        uri.getPath(), uri.getQuery(), uri.getFragment());
-            } catch (URISyntaxException e) {
-                throw Status.UNAUTHENTICATED
-                        .withDescription("Unable to construct service URI after removing port")
-                        .withCause(e).asException();
+        void finish() {
+            if (mSpeculation != null) {
+                mSpeculation.finish();
+            } else {
+                mSession.finish();
             }
         }
 
-        private Map<String, List<String>> getRequestMetadata(URI uri) throws StatusException {
-            try {
-                return mCredentials.getRequestMetadata(uri);
-            } catch (IOException e) {
-                throw Status.UNAUTHENTICATED.withCause(e).asException();
-            }
-        }
+    }
 
-        private static Metadata toHeaders(Map<String, List<String>> metadata) {
-            Metadata headers = new Metadata();
-            if (metadata != null) {
-                for (String key : metadata.keySet()) {
-                    Metadata.Key<String> headerKey = Metadata.Key.of(
-                            key, Metadata.ASCII_STRING_MARSHALLER);
-                    for (String value : metadata.get(key)) {
-                        headers.put(headerKey, value);
-                    }
-                }
-            }
-            return headers;
+    private class SpeechBinder extends Binder {
+
+        SpeechService getService() {
+            return SpeechService.this;
         }
 
     }
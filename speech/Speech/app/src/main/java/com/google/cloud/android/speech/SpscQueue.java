@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A bounded, lock-free queue for handing objects from exactly one producer thread to exactly one
+ * consumer thread.
+ *
+ * <p>{@link #offer(Object)} must only be called from the producer thread, and {@link #poll()}
+ * from the consumer thread. Neither of them blocks or allocates.</p>
+ *
+ * @param <E> The type of the elements.
+ */
+public class SpscQueue<E> {
+
+    private final Object[] mElements;
+
+    private final int mMask;
+
+    /** The index of the next element to poll. Only advanced by the consumer. */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /** The index of the next element to offer. Only advanced by the producer. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * @param capacity The maximum number of elements. This is rounded up to a power of two.
+     */
+    public SpscQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mElements = new Object[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Adds an element to the tail of this queue.
+     *
+     * @param element The element to add.
+     * @return {@code false} if this queue is full.
+     */
+    public boolean offer(E element) {
+        final long tail = mTail.get();
+        if (tail - mHead.get() == mElements.length) {
+            return false;
+        }
+        mElements[(int) tail & mMask] = element;
+        // Publish the element to the consumer
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Removes the element at the head of this queue.
+     *
+     * @return The element, or {@code null} if this queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        final int index = (int) head & mMask;
+        final E element = (E) mElements[index];
+        mElements[index] = null;
+        // Hand the slot back to the producer
+        mHead.lazySet(head + 1);
+        return element;
+    }
+
+    /**
+     * @return The maximum number of elements.
+     */
+    public int capacity() {
+        return mElements.length;
+    }
+
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import android.util.Log;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * Streams audio to the Speech API and reports the recognized text to a
+ * {@link SpeechService.Listener}.
+ *
+ * <p>A single-utterance session uses one {@code streamingRecognize} call and ends when the API
+ * detects the end of the utterance. A continuous session keeps transcribing until
+ * {@link #finish()}. Since a single call is limited in length by the API, a continuous session
+ * opens the next call shortly before the current one reaches the limit, preferably right after a
+ * final result so that the seam falls between utterances. It replays the last few hundred ms of
+ * audio into the new call so that no word is cut in half at the seam, and then removes the words
+ * that are transcribed twice. The results of the new call are held back until the previous call
+ * has delivered all of its own, so that results stay in order and the repeated words are compared
+ * with the final transcript of the seam.</p>
+ *
+ * <p>Sessions are independent of one another, so several of them can share a stub and run at
+ * the same time, each fed by its own capture thread. {@link #recognize(byte[], int)} and
+ * {@link #finish()} may also be called from several threads for the same session; the calls are
+ * serialized.</p>
+ */
+public class StreamingRecognitionSession {
+
+    private static final String TAG = "StreamingRecognition";
+
+    /** The API limits the length of a single streaming call to about five minutes. */
+    public static final long DEFAULT_ROLLOVER_MILLIS = 290 * 1000;
+
+    /** The length of audio sent to both the old and the new call on rollover. */
+    public static final int DEFAULT_OVERLAP_MILLIS = 500;
+
+    /**
+     * The part of the rollover length, in 1/8s, after which a call rolls over as soon as it
+     * delivers a final result.
+     */
+    private static final int EARLY_ROLLOVER_EIGHTHS = 7;
+
+    private final SpeechGrpc.SpeechStub mApi;
+
+    private final RecognitionConfig mConfig;
+
+    private final boolean mContinuous;
+
+    private final SpeechService.Listener mListener;
+
+    private final long mRolloverNanos;
+
+    /** After this, a call rolls over at its next final result. */
+    private final long mEarlyRolloverNanos;
+
+    /**
+     * Guards the hand-over of results from one call to the next. Listeners are never called with
+     * this held, since they may call back into this session or others.
+     */
+    private final Object mDeliveryLock = new Object();
+
+    /** The latest audio, replayed into the next call on rollover. Continuous sessions only. */
+    private final PreRollBuffer mOverlap;
+
+    private final byte[] mOverlapOutput;
+
+    private final TranscriptStitcher mStitcher = new TranscriptStitcher();
+
+    /** Reused for every audio chunk; only touched from the thread calling {@link #recognize}. */
+    private final StreamingRecognizeRequest.Builder mAudioRequestBuilder =
+            StreamingRecognizeRequest.newBuilder();
+
+    /** The number of audio bytes that had to be copied before being sent to the API. */
+    private final AtomicLong mCopiedAudioBytes = new AtomicLong();
+
+    /** The number of audio bytes sent to the API, after encoding. */
+    private final AtomicLong mUploadedBytes = new AtomicLong();
+
+    private final AtomicLong mResultCount = new AtomicLong();
+
+    /** From the first audio of each call to its first result. */
+    private final LatencyProbe mFirstResultLatency = new LatencyProbe();
+
+    /** From the half-close of each call to the end of its results. */
+    private final LatencyProbe mCompletionLatency = new LatencyProbe();
+
+    private volatile Stream mStream;
+
+    private volatile SpeechService.ResultListener mResultListener;
+
+    /** The number of bytes of audio passed to {@link #recognize(byte[], int)} so far. */
+    private volatile long mAudioBytes;
+
+    private volatile int mRollovers;
+
+    private boolean mFinished;
+
+    private volatile boolean mCancelled;
+
+    /**
+     * @param api        The API stub.
+     * @param config     The recognition config. The audio passed to
+     *                   {@link #recognize(byte[], int)} is always {@code LINEAR16}, and is
+     *                   compressed as needed for the encoding of this config.
+     * @param continuous {@code true} to keep transcribing until {@link #finish()}, or
+     *                   {@code false} to stop after a single utterance.
+     * @param listener   The listener to be notified of recognized text.
+     */
+    public StreamingRecognitionSession(SpeechGrpc.SpeechStub api, RecognitionConfig config,
+            boolean continuous, SpeechService.Listener listener) {
+        this(api, config, continuous, listener, DEFAULT_ROLLOVER_MILLIS, DEFAULT_OVERLAP_MILLIS);
+    }
+
+    /**
+     * @param rolloverMillis How long a call is used before a continuous session rolls over to
+     *                       the next one.
+     * @param overlapMillis  How much audio is sent to both calls on rollover.
+     */
+    public StreamingRecognitionSession(SpeechGrpc.SpeechStub api, RecognitionConfig config,
+            boolean continuous, SpeechService.Listener listener, long rolloverMillis,
+            int overlapMillis) {
+        mApi = api;
+        mConfig = config;
+        mContinuous = continuous;
+        mListener = listener;
+        mRolloverNanos = TimeUnit.MILLISECONDS.toNanos(rolloverMillis);
+        mEarlyRolloverNanos = mRolloverNanos / 8 * EARLY_ROLLOVER_EIGHTHS;
+        mOverlap = new PreRollBuffer(continuous
+                ? PreRollBuffer.capacityFor(config.getSampleRateHertz(), overlapMillis) : 0);
+        mOverlapOutput = new byte[mOverlap.getCapacity()];
+    }
+
+    /**
+     * Sets a listener to be notified of the full results, with all the alternatives and word
+     * timings. It is called on the gRPC thread, and the result object is reused afterwards.
+     *
+     * @param listener The listener, or {@code null}.
+     */
+    public void setResultListener(SpeechService.ResultListener listener) {
+        mResultListener = listener;
+    }
+
+    /**
+     * Opens the first call to the API.
+     */
+    public void start() {
+        mStream = new Stream(null, 0, 0);
+    }
+
+    /**
+     * Recognizes the speech audio. This method should be called every time a chunk of byte buffer
+     * is ready.
+     *
+     * @param data The audio data in {@code LINEAR16}.
+     * @param size The number of elements that are actually relevant in the {@code data}.
+     */
+    public synchronized void recognize(byte[] data, int size) {
+        if (mFinished || size <= 0) {
+            return;
+        }
+        Stream stream = mStream;
+        if (mContinuous && (stream.mAtUtteranceBoundary
+                || System.nanoTime() - stream.mStartedNanos > mRolloverNanos)) {
+            stream = rollover(stream);
+        }
+        stream.mEncoder.encode(data, size, stream);
+        mOverlap.write(data, size);
+        mAudioBytes += size;
+    }
+
+    /**
+     * Finishes recognizing speech audio. The results of the audio sent so far are still
+     * delivered.
+     */
+    public synchronized void finish() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        mStream.finish();
+    }
+
+    /**
+     * Cancels the session. Unlike {@link #finish()}, the call is abandoned and no more results are
+     * delivered, not even for the audio sent so far.
+     */
+    public synchronized void cancel() {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        mFinished = true;
+        mStream.cancel();
+    }
+
+    /**
+     * @return Whether {@link #cancel()} was called.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return The encoder of the current call, for its bandwidth and encoding latency metrics.
+     */
+    public AudioEncoder getEncoder() {
+        return mStream.mEncoder;
+    }
+
+    /**
+     * @return The number of audio bytes that could not be sent without copying.
+     */
+    public long getCopiedAudioBytes() {
+        return mCopiedAudioBytes.get();
+    }
+
+    /**
+     * @return The number of bytes of audio passed to {@link #recognize(byte[], int)}.
+     */
+    public long getAudioBytes() {
+        return mAudioBytes;
+    }
+
+    /**
+     * @return The number of bytes of audio sent to the API, after encoding and including the
+     * audio replayed on rollover.
+     */
+    public long getUploadedBytes() {
+        return mUploadedBytes.get();
+    }
+
+    /**
+     * @return The number of results delivered to the listener.
+     */
+    public long getResultCount() {
+        return mResultCount.get();
+    }
+
+    /**
+     * @return The time from the first audio of each call to its first result.
+     */
+    public LatencyProbe getFirstResultLatencyProbe() {
+        return mFirstResultLatency;
+    }
+
+    /**
+     * @return The time from the end of the audio of each call to the end of its results.
+     */
+    public LatencyProbe getCompletionLatencyProbe() {
+        return mCompletionLatency;
+    }
+
+    /**
+     * @return The number of times this session moved on to a new call.
+     */
+    public int getRollovers() {
+        return mRollovers;
+    }
+
+    /**
+     * Opens the next call, replays the overlapping audio to it and half-closes the current call,
+     * which still delivers the results for the audio it has received before those of the next
+     * call.
+     */
+    private Stream rollover(Stream current) {
+        final int overlap = mOverlap.drainTo(mOverlapOutput);
+        final int rate = mConfig.getSampleRateHertz();
+        final Stream next = new Stream(current, (mAudioBytes - overlap) / 2 * 1000 / rate,
+                overlap / 2 * 1000 / rate);
+        if (overlap > 0) {
+            next.mEncoder.encode(mOverlapOutput, overlap, next);
+        }
+        mStream = next;
+        current.finish();
+        mRollovers++;
+        return next;
+    }
+
+    private static AudioEncoder createEncoder(RecognitionConfig config) {
+        switch (config.getEncoding()) {
+            case LINEAR16:
+                return new Linear16Encoder();
+            case FLAC:
+                return new FlacEncoder(config.getSampleRateHertz());
+            default:
+                throw new IllegalArgumentException("Unsupported encoding: "
+                        + config.getEncoding());
+        }
+    }
+
+    /**
+     * A single {@code streamingRecognize} call.
+     */
+    private class Stream implements StreamObserver<StreamingRecognizeResponse>,
+            AudioEncoder.Output {
+
+        final long mStartedNanos = System.nanoTime();
+
+        final AudioEncoder mEncoder = createEncoder(mConfig);
+
+        /** Whether this call started with audio that was also sent to the previous call. */
+        final boolean mOverlapping;
+
+        /** The time in the session at which the audio of this call starts. */
+        final long mOffsetMillis;
+
+        /** How much of the audio at the start of this call was replayed from the previous call. */
+        final long mReplayedMillis;
+
+        /** Whether this call has delivered a final result yet. */
+        volatile boolean mHasFinal;
+
+        /**
+         * Set once this call is close to the rollover length and a final result has ended an
+         * utterance, so that the next audio goes to a new call.
+         */
+        volatile boolean mAtUtteranceBoundary;
+
+        /**
+         * The previous call, while it may still deliver results. The results of this call are
+         * held until then. Guarded by {@link #mDeliveryLock}, like the fields below.
+         */
+        Stream mPrevious;
+
+        /** Whether the held results are being delivered. New results are held meanwhile. */
+        boolean mReleasing;
+
+        /** The call that replaced this one, if any. */
+        Stream mNext;
+
+        /** Whether this call has received its last result. */
+        boolean mCompleted;
+
+        /** The results held while the previous call is not done; at most one interim, last. */
+        final List<StreamingRecognitionResult> mHeld = new ArrayList<>();
+
+        /** When the first audio was sent to this call, or 0. */
+        volatile long mFirstAudioNanos;
+
+        /** When this call was half-closed, or 0. */
+        volatile long mFinishedNanos;
+
+        /** Whether this call has received a response yet. */
+        boolean mHasResponse;
+
+        /** Reused for every response; only touched while delivering, one result at a time. */
+        final RecognitionResult mResult = new RecognitionResult();
+
+        final StreamObserver<StreamingRecognizeRequest> mRequestObserver;
+
+        /**
+         * @param previous       The call that this one replaces, or {@code null} for the first.
+         * @param offsetMillis   The time in the session at which the audio of this call starts.
+         * @param replayedMillis How much audio is replayed from the previous call.
+         */
+        Stream(Stream previous, long offsetMillis, long replayedMillis) {
+            mOverlapping = previous != null;
+            mOffsetMillis = offsetMillis;
+            mReplayedMillis = replayedMillis;
+            if (previous != null) {
+                synchronized (mDeliveryLock) {
+                    if (!previous.isDone()) {
+                        mPrevious = previous;
+                        previous.mNext = this;
+                    }
+                }
+            }
+            mRequestObserver = mApi.streamingRecognize(this);
+            mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
+                    .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
+                            .setConfig(mConfig)
+                            .setInterimResults(true)
+                            .setSingleUtterance(!mContinuous)
+                            .build())
+                    .build());
+        }
+
+        void finish() {
+            mEncoder.finish(this);
+            mFinishedNanos = System.nanoTime();
+            mRequestObserver.onCompleted();
+        }
+
+        void cancel() {
+            mRequestObserver.onError(Status.CANCELLED
+                    .withDescription("Recognition cancelled")
+                    .asRuntimeException());
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int size) {
+            // Once the call has its transport stream, onNext serializes the request into the
+            // transport's own buffer before returning, so the caller's array can be wrapped
+            // without a copy and recycled right away. Until then, requests are queued as-is and
+            // have to own their bytes. This relies on the channel not buffering requests for
+            // retries, which SpeechChannelManager disables.
+            final ByteString content;
+            if (((ClientCallStreamObserver<StreamingRecognizeRequest>) mRequestObserver)
+                    .isReady()) {
+                content = UnsafeByteOperations.unsafeWrap(data, offset, size);
+            } else {
+                content = ByteString.copyFrom(data, offset, size);
+                mCopiedAudioBytes.addAndGet(size);
+            }
+            if (mFirstAudioNanos == 0) {
+                mFirstAudioNanos = System.nanoTime();
+            }
+            mUploadedBytes.addAndGet(size);
+            // Call the streaming recognition API
+            mRequestObserver.onNext(mAudioRequestBuilder.clear()
+                    .setAudioContent(content)
+                    .build());
+        }
+
+        @Override
+        public void onNext(StreamingRecognizeResponse response) {
+            if (mCancelled) {
+                return;
+            }
+            if (!mHasResponse) {
+                mHasResponse = true;
+                if (mFirstAudioNanos != 0) {
+                    mFirstResultLatency.record(System.nanoTime() - mFirstAudioNanos);
+                }
+            }
+            if (response.getResultsCount() == 0) {
+                return;
+            }
+            final StreamingRecognitionResult result = response.getResults(0);
+            if (result.getAlternativesCount() == 0) {
+                return;
+            }
+            if (mContinuous && result.getIsFinal()
+                    && System.nanoTime() - mStartedNanos > mEarlyRolloverNanos) {
+                mAtUtteranceBoundary = true;
+            }
+            synchronized (mDeliveryLock) {
+                if (mPrevious != null || mReleasing) {
+                    hold(result);
+                    return;
+                }
+            }
+            deliver(result);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            complete();
+            if (mCancelled) {
+                return;
+            }
+            Log.e(TAG, "Error calling the API.", t);
+        }
+
+        @Override
+        public void onCompleted() {
+            complete();
+            if (mFinishedNanos != 0) {
+                mCompletionLatency.record(System.nanoTime() - mFinishedNanos);
+            }
+            Log.i(TAG, "API completed.");
+        }
+
+        /**
+         * @return Whether this call and the calls before it have delivered all their results.
+         * Called with {@link #mDeliveryLock} held.
+         */
+        boolean isDone() {
+            return mCompleted && mPrevious == null && !mReleasing;
+        }
+
+        /**
+         * Keeps a result until the previous call is done. An interim result is only kept until the
+         * next result, which supersedes it. Called with {@link #mDeliveryLock} held.
+         */
+        private void hold(StreamingRecognitionResult result) {
+            final int last = mHeld.size() - 1;
+            if (last >= 0 && !mHeld.get(last).getIsFinal()) {
+                mHeld.remove(last);
+            }
+            mHeld.add(result);
+        }
+
+        /**
+         * Called when this call has no more results.
+         */
+        private void complete() {
+            final Stream next;
+            synchronized (mDeliveryLock) {
+                mCompleted = true;
+                next = isDone() ? mNext : null;
+            }
+            if (next != null) {
+                next.release();
+            }
+        }
+
+        /**
+         * Called when the previous call is done. Delivers the held results, including those that
+         * arrive meanwhile, and passes on to the next call if this one is done too.
+         */
+        private void release() {
+            synchronized (mDeliveryLock) {
+                mPrevious = null;
+                mReleasing = true;
+            }
+            final List<StreamingRecognitionResult> batch = new ArrayList<>();
+            final Stream next;
+            while (true) {
+                synchronized (mDeliveryLock) {
+                    if (mHeld.isEmpty()) {
+                        mReleasing = false;
+                        next = mCompleted ? mNext : null;
+                        break;
+                    }
+                    batch.addAll(mHeld);
+                    mHeld.clear();
+                }
+                for (StreamingRecognitionResult result : batch) {
+                    deliver(result);
+                }
+                batch.clear();
+            }
+            if (next != null) {
+                next.release();
+            }
+        }
+
+        /**
+         * @return The number of leading words that start within the audio replayed from the
+         * previous call.
+         */
+        private int countReplayedWords(SpeechRecognitionAlternative alternative) {
+            int count = 0;
+            while (count < alternative.getWordsCount() && RecognitionResult.toMillis(
+                    alternative.getWords(count).getStartTime()) < mReplayedMillis) {
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * Delivers a result to the listeners. The results of all the calls are delivered one at a
+         * time: a call only delivers directly once the previous one is done.
+         */
+        private void deliver(StreamingRecognitionResult result) {
+            if (mCancelled) {
+                return;
+            }
+            final boolean isFinal = result.getIsFinal();
+            String text = result.getAlternatives(0).getTranscript();
+            int repeated = 0;
+            if (mContinuous) {
+                if (mOverlapping && !mHasFinal) {
+                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
+                    // Interim results, and calls without word time offsets, have no timings
+                    repeated = alternative.getWordsCount() == 0
+                            ? mStitcher.countRepeatedWords(text)
+                            : mStitcher.countRepeatedWords(text, countReplayedWords(alternative));
+                    text = TranscriptStitcher.dropLeadingWords(text, repeated);
+                    if (text.isEmpty()) {
+                        return;
+                    }
+                }
+                if (isFinal) {
+                    mHasFinal = true;
+                    mStitcher.append(text);
+                }
+            }
+            mResultCount.incrementAndGet();
+            mListener.onSpeechRecognized(text, isFinal);
+            final SpeechService.ResultListener resultListener = mResultListener;
+            if (resultListener != null) {
+                mResult.set(result, mOffsetMillis);
+                if (repeated > 0) {
+                    mResult.getAlternative(0).trimLeadingWords(text, repeated);
+                }
+                resultListener.onSpeechRecognized(mResult);
+            }
+        }
+
+    }
+
+}
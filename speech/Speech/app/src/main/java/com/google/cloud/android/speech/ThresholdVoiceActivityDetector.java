@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+/**
+ * A {@link VoiceActivityDetector} that treats a chunk as voice as soon as a single sample exceeds
+ * a fixed amplitude.
+ *
+ * <p>This is cheap, but any click or bump on the microphone counts as voice. Prefer
+ * {@link AdaptiveVoiceActivityDetector} unless the recording environment is known to be quiet.</p>
+ */
+public class ThresholdVoiceActivityDetector implements VoiceActivityDetector {
+
+    public static final int DEFAULT_AMPLITUDE_THRESHOLD = 1500;
+
+    private final int mAmplitudeThreshold;
+
+    public ThresholdVoiceActivityDetector() {
+        this(DEFAULT_AMPLITUDE_THRESHOLD);
+    }
+
+    public ThresholdVoiceActivityDetector(int amplitudeThreshold) {
+        mAmplitudeThreshold = amplitudeThreshold;
+    }
+
+    @Override
+    public void reset(int sampleRate) {
+    }
+
+    @Override
+    public boolean isHearingVoice(byte[] data, int size) {
+        for (int i = 0; i < size - 1; i += 2) {
+            // The buffer has LINEAR16 in little endian.
+            final int s = (data[i + 1] << 8) | (data[i] & 0xff);
+            final int sign = s >> 31;
+            if (((s ^ sign) - sign) > mAmplitudeThreshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
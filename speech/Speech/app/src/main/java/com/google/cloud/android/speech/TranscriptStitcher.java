@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.Locale;
+
+
+/**
+ * Removes the words that are transcribed twice when the same audio is sent to two consecutive
+ * streams.
+ *
+ * <p>The stitcher remembers the last few words of the final transcripts. The leading words of a
+ * transcript from the next stream are dropped if they repeat those words. People do repeat
+ * words, though ("I think I..."), so a match is only trusted when the words were spoken during
+ * the replayed audio. When the word time offsets tell which words those are, only they are
+ * dropped; without time offsets, at least {@link #MIN_MATCHING_WORDS} words have to match. This
+ * class is thread-safe.</p>
+ */
+public class TranscriptStitcher {
+
+    /** The most words that can be transcribed twice; a few hundred ms of overlap is 1 or 2. */
+    private static final int MAX_OVERLAP_WORDS = 4;
+
+    /** The fewest words that have to match when it is unknown which words were replayed. */
+    static final int MIN_MATCHING_WORDS = 2;
+
+    /** The last words of the final transcripts, normalized; oldest first. */
+    private final String[] mTail = new String[MAX_OVERLAP_WORDS];
+
+    private int mTailSize;
+
+    /**
+     * Remembers the end of a final transcript.
+     *
+     * @param transcript The final transcript.
+     */
+    public synchronized void append(String transcript) {
+        final String[] words = split(transcript);
+        for (String word : words) {
+            final String normalized = normalize(word);
+            if (normalized.isEmpty()) {
+                continue;
+            }
+            if (mTailSize == MAX_OVERLAP_WORDS) {
+                System.arraycopy(mTail, 1, mTail, 0, MAX_OVERLAP_WORDS - 1);
+                mTailSize--;
+            }
+            mTail[mTailSize++] = normalized;
+        }
+    }
+
+    /**
+     * Removes the leading words of {@code transcript} that repeat the end of the previous final
+     * transcripts.
+     *
+     * @param transcript A transcript from a stream that started with overlapping audio.
+     * @return The transcript without the repeated words.
+     */
+    public synchronized String trim(String transcript) {
+        return dropLeadingWords(transcript, countRepeatedWords(transcript));
+    }
+
+    /**
+     * Counts the leading words of {@code transcript} that repeat the end of the previous final
+     * transcripts, when it is unknown which of them were spoken during the replayed audio.
+     *
+     * @param transcript A transcript from a stream that started with overlapping audio.
+     * @return The number of words that {@link #trim(String)} removes, either 0 or at least
+     * {@link #MIN_MATCHING_WORDS}.
+     */
+    public synchronized int countRepeatedWords(String transcript) {
+        final String[] words = split(transcript);
+        return countRepeatedWords(words, words.length, MIN_MATCHING_WORDS);
+    }
+
+    /**
+     * Counts the leading words of {@code transcript} that repeat the end of the previous final
+     * transcripts, among those spoken during the replayed audio.
+     *
+     * @param transcript    A transcript from a stream that started with overlapping audio.
+     * @param replayedWords The number of leading words that start within the replayed audio,
+     *                      according to their time offsets.
+     * @return The number of words to remove, at most {@code replayedWords}.
+     */
+    public synchronized int countRepeatedWords(String transcript, int replayedWords) {
+        final String[] words = split(transcript);
+        return countRepeatedWords(words, Math.min(replayedWords, words.length), 1);
+    }
+
+    /**
+     * Forgets all the remembered words.
+     */
+    public synchronized void clear() {
+        mTailSize = 0;
+    }
+
+    /**
+     * @return The longest overlap between {@link #mTail} and the first {@code max} words, or 0 if
+     * it is shorter than {@code min}.
+     */
+    private int countRepeatedWords(String[] words, int max, int min) {
+        for (int count = Math.min(mTailSize, max); count >= min; count--) {
+            if (matches(words, count)) {
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Checks if the first {@code count} words are the same as the last {@code count} words of
+     * {@link #mTail}.
+     */
+    private boolean matches(String[] words, int count) {
+        for (int i = 0; i < count; i++) {
+            if (!mTail[mTailSize - count + i].equals(normalize(words[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param transcript A transcript.
+     * @param count      The number of leading words to remove.
+     * @return The transcript without its first {@code count} words.
+     */
+    static String dropLeadingWords(String transcript, int count) {
+        return count > 0 ? join(split(transcript), count) : transcript;
+    }
+
+    private static String[] split(String transcript) {
+        final String trimmed = transcript.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    private static String join(String[] words, int from) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = from; i < words.length; i++) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(words[i]);
+        }
+        return builder.toString();
+    }
+
+    private static String normalize(String word) {
+        return word.replaceAll("[\\p{Punct}]", "").toLowerCase(Locale.ROOT);
+    }
+
+}
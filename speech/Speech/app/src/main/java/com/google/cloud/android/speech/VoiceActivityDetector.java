@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+/**
+ * Decides whether a chunk of recorded audio contains voice.
+ *
+ * <p>Audio is always {@code LINEAR16} in little endian, mono. Implementations may keep state
+ * between chunks and are only called from a single thread.</p>
+ */
+public interface VoiceActivityDetector {
+
+    /**
+     * Resets the state of this detector before a new recording session.
+     *
+     * @param sampleRate The sample rate of the audio that will be passed in.
+     */
+    void reset(int sampleRate);
+
+    /**
+     * Examines the next chunk of audio.
+     *
+     * @param data The audio data.
+     * @param size The number of bytes in {@code data} that are actually relevant.
+     * @return {@code true} if the chunk should be treated as voice.
+     */
+    boolean isHearingVoice(byte[] data, int size);
+
+}
@@ -21,6 +21,11 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import androidx.annotation.NonNull;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 
 /**
  * Continuously records audio and notifies the {@link VoiceRecorder.Callback} when voice (or any
@@ -29,6 +34,13 @@ import androidx.annotation.NonNull;
  * <p>The recorded audio format is always {@link AudioFormat#ENCODING_PCM_16BIT} and
  * {@link AudioFormat#CHANNEL_IN_MONO}. This class will automatically pick the right sample rate
  * for the device. Use {@link #getSampleRate()} to get the selected value.</p>
+ *
+ * <p>Recording runs on two threads. The capture thread only reads audio from the
+ * {@link AudioRecord} and hands the filled chunks over through a lock-free queue. The processing
+ * thread detects voice and calls the {@link Callback}. {@link #stop()} and {@link #dismiss()} only
+ * signal these threads, so they never block the caller. {@link #start()} waits for the threads of
+ * the previous session to exit, so that only one session holds the microphone and calls the
+ * {@link Callback} at a time.</p>
  */
 public class VoiceRecorder {
 
@@ -37,14 +49,28 @@ public class VoiceRecorder {
     private static final int CHANNEL = AudioFormat.CHANNEL_IN_MONO;
     private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
 
-    private static final int AMPLITUDE_THRESHOLD = 1500;
     private static final int SPEECH_TIMEOUT_MILLIS = 2000;
-    private static final int MAX_SPEECH_LENGTH_MILLIS = 30 * 1000;
+
+    /** The default maximum length of a single utterance. */
+    public static final int DEFAULT_MAX_SPEECH_LENGTH_MILLIS = 30 * 1000;
+
+    /** The default length of audio sent along from before voice is detected. */
+    public static final int DEFAULT_PRE_ROLL_MILLIS = 300;
+
+    /** The number of captured chunks that can wait for processing before audio is dropped. */
+    private static final int QUEUE_CAPACITY = 8;
+
+    /** The number of idle audio chunks kept around for reuse. */
+    private static final int CHUNK_POOL_CAPACITY = 16;
+
+    /** The longest time the processing thread sleeps before checking for requests again. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
 
     public static abstract class Callback {
 
         /**
-         * Called when the recorder starts hearing voice.
+         * Called when the recorder starts hearing voice. The audio leading up to the voice, if
+         * any, is delivered to {@link #onVoice(byte[], int)} right after this.
          */
         public void onVoiceStart() {
         }
@@ -52,6 +78,9 @@ public class VoiceRecorder {
         /**
          * Called when the recorder is hearing voice.
          *
+         * <p>The {@code data} array is recycled for subsequent reads as soon as this method
+         * returns, so it must not be retained.</p>
+         *
          * @param data The audio data in {@link AudioFormat#ENCODING_PCM_16BIT}.
          * @param size The size of the actual data in {@code data}.
          */
@@ -67,102 +96,183 @@ public class VoiceRecorder {
 
     private final Callback mCallback;
 
-    private AudioRecord mAudioRecord;
+    private final VoiceActivityDetector mDetector;
 
-    private Thread mThread;
+    private int mPreRollMillis = DEFAULT_PRE_ROLL_MILLIS;
 
-    private byte[] mBuffer;
+    private volatile int mMaxSpeechLengthMillis = DEFAULT_MAX_SPEECH_LENGTH_MILLIS;
 
-    private final Object mLock = new Object();
+    /** The ongoing recording session, or {@code null} when not recording. */
+    private volatile Session mSession;
 
-    /** The timestamp of the last time that voice is heard. */
-    private long mLastVoiceHeardMillis = Long.MAX_VALUE;
+    /** The last session started, which may still be ending after {@link #stop()}. */
+    private Session mLastSession;
 
-    /** The timestamp when the current voice is started. */
-    private long mVoiceStartedMillis;
+    /** The sample rate of the last session started. */
+    private volatile int mSampleRate;
+
+    private final LatencyProbe mStopLatency = new LatencyProbe();
+
+    private final LatencyProbe mDeliveryLatency = new LatencyProbe();
+
+    private final AtomicLong mDroppedChunks = new AtomicLong();
 
     public VoiceRecorder(@NonNull Callback callback) {
+        this(callback, new AdaptiveVoiceActivityDetector());
+    }
+
+    /**
+     * @param callback The callback to be notified of voice.
+     * @param detector The detector to decide which parts of the recorded audio are voice.
+     */
+    public VoiceRecorder(@NonNull Callback callback, @NonNull VoiceActivityDetector detector) {
         mCallback = callback;
+        mDetector = detector;
+    }
+
+    /**
+     * Sets how much audio from before the voice is detected is delivered to
+     * {@link Callback#onVoice(byte[], int)} right after {@link Callback#onVoiceStart()}. This
+     * takes effect on the next {@link #start()}.
+     *
+     * @param millis The length of the pre-roll audio, or 0 to disable it.
+     */
+    public void setPreRollMillis(int millis) {
+        mPreRollMillis = millis;
+    }
+
+    /**
+     * Sets the length after which an utterance is ended even if the voice goes on.
+     *
+     * @param millis The maximum length of an utterance, or 0 for no limit, e.g. for continuous
+     *               recognition with {@link SpeechService}.
+     */
+    public void setMaxSpeechLengthMillis(int millis) {
+        mMaxSpeechLengthMillis = millis;
     }
 
     /**
      * Starts recording audio.
      *
-     * <p>The caller is responsible for calling {@link #stop()} later.</p>
+     * <p>If a previous session is still ending, this waits for its threads to exit first, which
+     * takes at most the time of one read from the microphone. Its {@link Callback#onVoiceEnd()},
+     * if any, is called before this returns. The caller is responsible for calling {@link #stop()}
+     * later.</p>
      */
-    public void start() {
-        // Stop recording if it is currently ongoing.
+    public synchronized void start() {
+        // Stop recording if it is currently ongoing, and wait until the previous session has
+        // released the microphone and is done with the detector and the callback.
         stop();
+        if (mLastSession != null) {
+            mLastSession.join();
+            mLastSession = null;
+        }
         // Try to create a new recording session.
-        mAudioRecord = createAudioRecord();
-        if (mAudioRecord == null) {
+        final Session session = createSession();
+        if (session == null) {
             throw new RuntimeException("Cannot instantiate VoiceRecorder");
         }
-        // Start recording.
-        mAudioRecord.startRecording();
-        // Start processing the captured audio.
-        mThread = new Thread(new ProcessVoice());
-        mThread.start();
+        mDetector.reset(session.mSampleRate);
+        mSampleRate = session.mSampleRate;
+        mLastSession = session;
+        mSession = session;
+        session.start();
     }
 
     /**
      * Stops recording audio.
+     *
+     * <p>This returns immediately. The ongoing utterance, if any, is ended and the recording
+     * threads exit shortly after. Nothing but that {@link Callback#onVoiceEnd()} is called after
+     * this.</p>
      */
     public void stop() {
-        synchronized (mLock) {
-            dismiss();
-            if (mThread != null) {
-                mThread.interrupt();
-                mThread = null;
-            }
-            if (mAudioRecord != null) {
-                mAudioRecord.stop();
-                mAudioRecord.release();
-                mAudioRecord = null;
-            }
-            mBuffer = null;
+        final Session session = mSession;
+        mSession = null;
+        if (session != null) {
+            session.stop();
         }
     }
 
     /**
      * Dismisses the currently ongoing utterance.
+     *
+     * <p>This returns immediately. {@link Callback#onVoiceEnd()} is called shortly after from the
+     * recording thread.</p>
      */
     public void dismiss() {
-        if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
-            mLastVoiceHeardMillis = Long.MAX_VALUE;
-            mCallback.onVoiceEnd();
+        final Session session = mSession;
+        if (session != null) {
+            session.dismiss();
         }
     }
 
     /**
-     * Retrieves the sample rate currently used to record audio.
+     * Retrieves the sample rate currently used to record audio. This is kept after
+     * {@link #stop()}, so that it stays valid in callbacks that race with it.
      *
-     * @return The sample rate of recorded audio.
+     * @return The sample rate of recorded audio, or 0 if recording has never started.
      */
     public int getSampleRate() {
-        if (mAudioRecord != null) {
-            return mAudioRecord.getSampleRate();
-        }
-        return 0;
+        return mSampleRate;
+    }
+
+    /**
+     * Retrieves the number of bytes allocated for audio buffers by the current recording session.
+     * This stays constant once recording reaches a steady state.
+     *
+     * @return The number of bytes allocated for audio buffers.
+     */
+    public long getAllocatedBytes() {
+        final Session session = mSession;
+        return session != null ? session.mChunkPool.getAllocatedBytes() : 0;
     }
 
     /**
-     * Creates a new {@link AudioRecord}.
+     * Retrieves the number of audio chunks that were dropped because the {@link Callback} did not
+     * keep up with recording.
      *
-     * @return A newly created {@link AudioRecord}, or null if it cannot be created (missing
-     * permissions?).
+     * @return The number of dropped chunks.
      */
-    private AudioRecord createAudioRecord() {
+    public long getDroppedChunks() {
+        return mDroppedChunks.get();
+    }
+
+    /**
+     * Retrieves the probe measuring the time from a call to {@link #stop()} until the recording
+     * threads exit.
+     *
+     * @return The latency probe.
+     */
+    public LatencyProbe getStopLatencyProbe() {
+        return mStopLatency;
+    }
+
+    /**
+     * Retrieves the probe measuring the time from when a chunk of audio is read until it is
+     * delivered to {@link Callback#onVoice(byte[], int)}.
+     *
+     * @return The latency probe.
+     */
+    public LatencyProbe getDeliveryLatencyProbe() {
+        return mDeliveryLatency;
+    }
+
+    /**
+     * Creates a new recording session with an {@link AudioRecord}.
+     *
+     * @return A newly created session, or null if the {@link AudioRecord} cannot be created
+     * (missing permissions?).
+     */
+    private Session createSession() {
         for (int sampleRate : SAMPLE_RATE_CANDIDATES) {
             final int sizeInBytes = AudioRecord.getMinBufferSize(sampleRate, CHANNEL, ENCODING);
             if (sizeInBytes == AudioRecord.ERROR_BAD_VALUE) {
                 continue;
             }
-            final AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
-                    sampleRate, CHANNEL, ENCODING, sizeInBytes);
+            final AudioRecord audioRecord = createAudioRecord(sampleRate, sizeInBytes);
             if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
-                mBuffer = new byte[sizeInBytes];
-                return audioRecord;
+                return new Session(audioRecord, sampleRate, sizeInBytes);
             } else {
                 audioRecord.release();
             }
@@ -171,57 +281,207 @@ public class VoiceRecorder {
     }
 
     /**
-     * Continuously processes the captured audio and notifies {@link #mCallback} of corresponding
-     * events.
+     * Creates the {@link AudioRecord} for a new session. Tests override this to record from a
+     * fake microphone.
      */
-    private class ProcessVoice implements Runnable {
+    AudioRecord createAudioRecord(int sampleRate, int sizeInBytes) {
+        return new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, CHANNEL, ENCODING,
+                sizeInBytes);
+    }
 
-        @Override
-        public void run() {
-            while (true) {
-                synchronized (mLock) {
-                    if (Thread.currentThread().isInterrupted()) {
+    /**
+     * A single recording session, from {@link #start()} to {@link #stop()}.
+     *
+     * <p>The capture thread owns the {@link AudioRecord}, and the processing thread owns everything
+     * related to voice detection. Other threads only set flags and wake the processing thread
+     * up.</p>
+     */
+    private class Session {
+
+        final AudioRecord mAudioRecord;
+
+        final int mSampleRate;
+
+        final AudioChunkPool mChunkPool;
+
+        /** Captured chunks waiting to be processed. */
+        final SpscQueue<AudioChunk> mQueue = new SpscQueue<>(QUEUE_CAPACITY);
+
+        /** Retains the latest audio while no voice is heard. */
+        final PreRollBuffer mPreRoll;
+
+        /** Receives the contents of {@link #mPreRoll} when voice starts. */
+        final byte[] mPreRollOutput;
+
+        final Thread mCaptureThread = new Thread(this::capture, "VoiceRecorder-capture");
+
+        final Thread mProcessThread = new Thread(this::process, "VoiceRecorder-process");
+
+        volatile boolean mRunning = true;
+
+        volatile boolean mCaptureFinished;
+
+        volatile long mStopRequestedNanos;
+
+        final AtomicBoolean mDismissRequested = new AtomicBoolean();
+
+        /** The timestamp of the last time that voice is heard. */
+        long mLastVoiceHeardMillis = Long.MAX_VALUE;
+
+        /** The timestamp when the current voice is started. */
+        long mVoiceStartedMillis;
+
+        Session(AudioRecord audioRecord, int sampleRate, int sizeInBytes) {
+            mAudioRecord = audioRecord;
+            mSampleRate = sampleRate;
+            mChunkPool = new AudioChunkPool(sizeInBytes, CHUNK_POOL_CAPACITY);
+            mPreRoll = new PreRollBuffer(PreRollBuffer.capacityFor(sampleRate, mPreRollMillis));
+            mPreRollOutput = new byte[mPreRoll.getCapacity()];
+        }
+
+        void start() {
+            // Start recording.
+            mAudioRecord.startRecording();
+            // Start processing the captured audio.
+            mProcessThread.start();
+            mCaptureThread.start();
+        }
+
+        void stop() {
+            mStopRequestedNanos = System.nanoTime();
+            mRunning = false;
+            LockSupport.unpark(mProcessThread);
+        }
+
+        void dismiss() {
+            mDismissRequested.set(true);
+            LockSupport.unpark(mProcessThread);
+        }
+
+        /**
+         * Waits for the threads to exit. A thread of this session calling this does not wait for
+         * itself.
+         */
+        void join() {
+            final Thread current = Thread.currentThread();
+            boolean interrupted = false;
+            for (Thread thread : new Thread[]{mCaptureThread, mProcessThread}) {
+                while (thread != current) {
+                    try {
+                        thread.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                current.interrupt();
+            }
+        }
+
+        /**
+         * Runs on the capture thread. Continuously reads audio and passes it to the processing
+         * thread.
+         */
+        private void capture() {
+            AudioChunk chunk = null;
+            try {
+                while (mRunning) {
+                    if (chunk == null) {
+                        chunk = mChunkPool.acquire();
+                    }
+                    final int size = mAudioRecord.read(chunk.data, 0, chunk.data.length);
+                    if (size < 0) {
                         break;
                     }
-                    final int size = mAudioRecord.read(mBuffer, 0, mBuffer.length);
-                    final long now = System.currentTimeMillis();
-                    if (isHearingVoice(mBuffer, size)) {
-                        if (mLastVoiceHeardMillis == Long.MAX_VALUE) {
-                            mVoiceStartedMillis = now;
-                            mCallback.onVoiceStart();
-                        }
-                        mCallback.onVoice(mBuffer, size);
-                        mLastVoiceHeardMillis = now;
-                        if (now - mVoiceStartedMillis > MAX_SPEECH_LENGTH_MILLIS) {
-                            end();
-                        }
-                    } else if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
-                        mCallback.onVoice(mBuffer, size);
-                        if (now - mLastVoiceHeardMillis > SPEECH_TIMEOUT_MILLIS) {
-                            end();
-                        }
+                    chunk.size = size;
+                    chunk.capturedNanos = System.nanoTime();
+                    if (mQueue.offer(chunk)) {
+                        chunk = null;
+                        LockSupport.unpark(mProcessThread);
+                    } else {
+                        // The processing thread is falling behind; reuse the chunk.
+                        mDroppedChunks.incrementAndGet();
                     }
                 }
+            } finally {
+                mAudioRecord.stop();
+                mAudioRecord.release();
+                mCaptureFinished = true;
+                LockSupport.unpark(mProcessThread);
             }
         }
 
-        private void end() {
-            mLastVoiceHeardMillis = Long.MAX_VALUE;
-            mCallback.onVoiceEnd();
-        }
-
-        private boolean isHearingVoice(byte[] buffer, int size) {
-            for (int i = 0; i < size - 1; i += 2) {
-                // The buffer has LINEAR16 in little endian.
-                int s = buffer[i + 1];
-                if (s < 0) s *= -1;
-                s <<= 8;
-                s += Math.abs(buffer[i]);
-                if (s > AMPLITUDE_THRESHOLD) {
-                    return true;
+        /**
+         * Runs on the processing thread. Takes the captured audio and notifies {@link #mCallback}
+         * of corresponding events.
+         */
+        private void process() {
+            while (true) {
+                if (mDismissRequested.getAndSet(false)) {
+                    end();
                 }
+                final AudioChunk chunk = mQueue.poll();
+                if (chunk != null) {
+                    if (mRunning) {
+                        process(chunk);
+                    }
+                    mChunkPool.release(chunk);
+                } else if (mCaptureFinished) {
+                    break;
+                } else {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+            end();
+            if (mStopRequestedNanos != 0) {
+                mStopLatency.record(System.nanoTime() - mStopRequestedNanos);
+            }
+        }
+
+        private void process(AudioChunk chunk) {
+            final long now = System.currentTimeMillis();
+            if (mDetector.isHearingVoice(chunk.data, chunk.size)) {
+                if (mLastVoiceHeardMillis == Long.MAX_VALUE) {
+                    if (!mRunning) {
+                        // Stopped while the chunk was being checked; no new utterance
+                        return;
+                    }
+                    mVoiceStartedMillis = now;
+                    mCallback.onVoiceStart();
+                    // Deliver the audio leading up to the voice first
+                    final int preRollSize = mPreRoll.drainTo(mPreRollOutput);
+                    if (preRollSize > 0) {
+                        mCallback.onVoice(mPreRollOutput, preRollSize);
+                    }
+                }
+                deliver(chunk);
+                mLastVoiceHeardMillis = now;
+                final int maxSpeechLength = mMaxSpeechLengthMillis;
+                if (maxSpeechLength > 0 && now - mVoiceStartedMillis > maxSpeechLength) {
+                    end();
+                }
+            } else if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
+                deliver(chunk);
+                if (now - mLastVoiceHeardMillis > SPEECH_TIMEOUT_MILLIS) {
+                    end();
+                }
+            } else {
+                mPreRoll.write(chunk.data, chunk.size);
+            }
+        }
+
+        private void deliver(AudioChunk chunk) {
+            mDeliveryLatency.record(System.nanoTime() - chunk.capturedNanos);
+            mCallback.onVoice(chunk.data, chunk.size);
+        }
+
+        private void end() {
+            if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
+                mLastVoiceHeardMillis = Long.MAX_VALUE;
+                mCallback.onVoiceEnd();
             }
-            return false;
         }
 
     }
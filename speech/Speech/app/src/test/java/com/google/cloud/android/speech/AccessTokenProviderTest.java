@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.auth.oauth2.AccessToken;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class AccessTokenProviderTest {
+
+    private ScheduledExecutorService mExecutor;
+
+    private MemoryStore mStore;
+
+    private SlowFetcher mFetcher;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mStore = new MemoryStore();
+        mFetcher = new SlowFetcher();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void servesStoredTokenWithoutFetching() throws Exception {
+        final AccessToken stored = token("stored", TimeUnit.HOURS.toMillis(1));
+        mStore.mToken = stored;
+        final AccessTokenProvider provider =
+                new AccessTokenProvider(mFetcher, mStore, mExecutor);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        provider.start(token -> {
+            assertThat(token, is(sameInstance(stored)));
+            delivered.countDown();
+        });
+        assertTrue(delivered.await(1, TimeUnit.SECONDS));
+        assertThat(provider.getToken(), is(sameInstance(stored)));
+        assertThat(mFetcher.mFetches.get(), is(0));
+        provider.stop();
+    }
+
+    @Test
+    public void fetchesWhenStoredTokenExpires() throws Exception {
+        mStore.mToken = token("stale", AccessTokenProvider.MIN_VALIDITY_MILLIS / 2);
+        final AccessTokenProvider provider =
+                new AccessTokenProvider(mFetcher, mStore, mExecutor);
+        assertThat(provider.getToken().getTokenValue(), is("token-1"));
+        assertThat(mStore.mToken.getTokenValue(), is("token-1"));
+        assertThat(provider.getFetchCount(), is(1));
+    }
+
+    @Test
+    public void concurrentCallersShareOneFetch() throws Exception {
+        final AccessTokenProvider provider =
+                new AccessTokenProvider(mFetcher, mStore, mExecutor);
+        final int callers = 16;
+        final List<AccessToken> tokens = new CopyOnWriteArrayList<>();
+        final Thread[] threads = new Thread[callers];
+        for (int i = 0; i < callers; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    tokens.add(provider.getToken());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(tokens.size(), is(callers));
+        assertThat(mFetcher.mFetches.get(), is(1));
+        for (AccessToken token : tokens) {
+            assertThat(token, is(sameInstance(tokens.get(0))));
+        }
+    }
+
+    @Test
+    public void refreshesAheadOfExpiry() throws Exception {
+        // Due for refresh in 200 ms
+        mStore.mToken = token("stored", TimeUnit.MINUTES.toMillis(5) + 200);
+        final AccessTokenProvider provider =
+                new AccessTokenProvider(mFetcher, mStore, mExecutor);
+        provider.setRefreshAheadMillis(TimeUnit.MINUTES.toMillis(5));
+        provider.setRetryMillis(100);
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final CountDownLatch refreshed = new CountDownLatch(2);
+        provider.start(token -> {
+            delivered.add(token.getTokenValue());
+            refreshed.countDown();
+        });
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        assertThat(delivered.get(0), is("stored"));
+        assertThat(delivered.get(1), is("token-1"));
+        provider.stop();
+    }
+
+    @Test
+    public void refreshesShortLivedTokensNoSoonerThanRetry() throws Exception {
+        // Each token is already due for refresh when it arrives
+        mFetcher.mValidMillis = TimeUnit.MINUTES.toMillis(2);
+        final AccessTokenProvider provider =
+                new AccessTokenProvider(mFetcher, mStore, mExecutor);
+        provider.setRefreshAheadMillis(TimeUnit.MINUTES.toMillis(5));
+        provider.setRetryMillis(500);
+        final CountDownLatch delivered = new CountDownLatch(2);
+        provider.start(token -> delivered.countDown());
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        provider.stop();
+        // Without the retry delay, a fetch would follow every 100 ms
+        assertThat(mFetcher.mFetches.get(), is(2));
+    }
+
+    @Test
+    public void refreshesTokenWithoutExpiry() throws Exception {
+        mFetcher.mValidMillis = null;
+        final AccessTokenProvider provider =
+                new AccessTokenProvider(mFetcher, mStore, mExecutor);
+        provider.setRetryMillis(200);
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final CountDownLatch refreshed = new CountDownLatch(2);
+        provider.start(token -> {
+            delivered.add(token.getTokenValue());
+            refreshed.countDown();
+        });
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        provider.stop();
+        assertThat(delivered.get(0), is("token-1"));
+        assertThat(delivered.get(1), is("token-2"));
+    }
+
+    private static AccessToken token(String value, long validMillis) {
+        return new AccessToken(value, new Date(System.currentTimeMillis() + validMillis));
+    }
+
+    private static class MemoryStore implements AccessTokenProvider.Store {
+
+        volatile AccessToken mToken;
+
+        @Override
+        public AccessToken load() {
+            return mToken;
+        }
+
+        @Override
+        public void save(AccessToken token) {
+            mToken = token;
+        }
+
+    }
+
+    /** Takes a while, like a round-trip to the OAuth server. */
+    private static class SlowFetcher implements AccessTokenProvider.Fetcher {
+
+        final AtomicInteger mFetches = new AtomicInteger();
+
+        /** How long the tokens are valid, or {@code null} for tokens without an expiry. */
+        volatile Long mValidMillis = TimeUnit.HOURS.toMillis(1);
+
+        @Override
+        public AccessToken fetch() throws IOException {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            final String value = "token-" + mFetches.incrementAndGet();
+            final Long validMillis = mValidMillis;
+            return validMillis != null
+                    ? token(value, validMillis)
+                    : new AccessToken(value, null);
+        }
+
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class AudioChunkPoolTest {
+
+    private static final int CHUNK_SIZE = 640;
+
+    @Test
+    public void reusesReleasedChunk() {
+        final AudioChunkPool pool = new AudioChunkPool(CHUNK_SIZE, 4);
+        final AudioChunk chunk = pool.acquire();
+        chunk.size = 100;
+        pool.release(chunk);
+        final AudioChunk reused = pool.acquire();
+        assertThat(reused, is(sameInstance(chunk)));
+        assertThat(reused.size, is(0));
+        assertThat(pool.getAllocatedBytes(), is((long) CHUNK_SIZE));
+    }
+
+    @Test
+    public void allocatesOnlyWhenEmpty() {
+        final AudioChunkPool pool = new AudioChunkPool(CHUNK_SIZE, 4);
+        final AudioChunk first = pool.acquire();
+        final AudioChunk second = pool.acquire();
+        assertTrue(first != second);
+        assertThat(pool.getAllocatedBytes(), is(2L * CHUNK_SIZE));
+    }
+
+    @Test
+    public void dropsChunksBeyondCapacity() {
+        final AudioChunkPool pool = new AudioChunkPool(CHUNK_SIZE, 2);
+        final AudioChunk[] chunks = new AudioChunk[3];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = pool.acquire();
+        }
+        for (AudioChunk chunk : chunks) {
+            pool.release(chunk);
+        }
+        // Two are kept, and the third is left to the garbage collector
+        pool.acquire();
+        pool.acquire();
+        pool.acquire();
+        assertThat(pool.getAllocatedBytes(), is(4L * CHUNK_SIZE));
+    }
+
+    @Test
+    public void ignoresChunksOfOtherSizes() {
+        final AudioChunkPool pool = new AudioChunkPool(CHUNK_SIZE, 4);
+        pool.release(new AudioChunk(CHUNK_SIZE * 2));
+        assertThat(pool.acquire().data.length, is(CHUNK_SIZE));
+    }
+
+    /**
+     * Acquires chunks on one thread and releases them on another, the way {@link VoiceRecorder}
+     * does, and checks that no chunk is handed out again while it is still in use.
+     */
+    @Test
+    public void neverHandsOutChunkInUse() throws InterruptedException {
+        final AudioChunkPool pool = new AudioChunkPool(CHUNK_SIZE, 16);
+        final SpscQueue<AudioChunk> inFlight = new SpscQueue<>(8);
+        final Set<AudioChunk> inUse =
+                Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        final int count = 200000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final Thread consumer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                AudioChunk chunk;
+                while ((chunk = inFlight.poll()) == null) {
+                    Thread.yield();
+                }
+                inUse.remove(chunk);
+                pool.release(chunk);
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            final AudioChunk chunk = pool.acquire();
+            if (!inUse.add(chunk)) {
+                failure.set("Chunk handed out twice at " + i);
+            }
+            while (!inFlight.offer(chunk)) {
+                Thread.yield();
+            }
+        }
+        consumer.join();
+        assertThat(failure.get(), is(nullValue()));
+        // The queue and the pool bound the number of chunks ever needed
+        assertTrue(pool.getAllocatedBytes() <= (8 + 16 + 1) * CHUNK_SIZE);
+    }
+
+}
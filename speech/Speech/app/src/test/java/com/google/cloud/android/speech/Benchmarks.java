@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * The switch for the benchmarks among the unit tests. They take a while and only report numbers,
+ * so they are skipped unless {@code -Dspeech.benchmark=true} is set.
+ */
+final class Benchmarks {
+
+    private static final String PROPERTY_BENCHMARK = "speech.benchmark";
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Skips the calling test unless the benchmarks are switched on.
+     */
+    static void assumeEnabled() {
+        assumeTrue("Set -D" + PROPERTY_BENCHMARK + "=true to run",
+                Boolean.getBoolean(PROPERTY_BENCHMARK));
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.RecognizeRequest;
+import com.google.cloud.speech.v1.RecognizeResponse;
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.SpeechRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * An in-process stand-in for the Speech API, so that the real client code can be measured
+ * without the network.
+ *
+ * <p>Streaming calls answer with an interim result every few audio chunks, each one a word longer
+ * than the last, and with a final result when the client half-closes. Every response is sent
+ * after a configurable delay, which stands in for the time the API takes to recognize.</p>
+ *
+ * <p>The transcript and its confidence can be set per language, so that a call in the wrong
+ * language can be told apart.</p>
+ */
+class FakeSpeechServer extends SpeechGrpc.SpeechImplBase {
+
+    private static final float DEFAULT_CONFIDENCE = 0.9f;
+
+    private static final Metadata.Key<String> AUTHORIZATION =
+            Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final String mName = "fake-speech-" + System.nanoTime();
+
+    /** Sends all the responses in order. */
+    private final ScheduledExecutorService mResponder =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final AtomicLong mAudioChunks = new AtomicLong();
+
+    private final AtomicLong mAudioBytes = new AtomicLong();
+
+    /** The authorization header of each call, in the order the calls started. */
+    private final List<String> mAuthorizations = new CopyOnWriteArrayList<>();
+
+    private volatile String[] mWords = "how old is the Brooklyn Bridge".split(" ");
+
+    /** The transcript and confidence of each language, if different from the defaults. */
+    private final Map<String, Language> mLanguages = new ConcurrentHashMap<>();
+
+    private volatile long mResponseDelayMillis;
+
+    private volatile int mInterimEveryChunks = 5;
+
+    private volatile int mFinalEveryChunks;
+
+    private Server mServer;
+
+    void setTranscript(String transcript) {
+        mWords = transcript.split(" ");
+    }
+
+    void setLanguage(String languageCode, String transcript, float confidence) {
+        mLanguages.put(languageCode, new Language(transcript.split(" "), confidence));
+    }
+
+    /**
+     * Makes streaming calls also answer with a final result every few audio chunks, like a
+     * continuous recognition of several utterances.
+     */
+    void setFinalEveryChunks(int chunks) {
+        mFinalEveryChunks = chunks;
+    }
+
+    void setResponseDelayMillis(long millis) {
+        mResponseDelayMillis = millis;
+    }
+
+    void setInterimEveryChunks(int chunks) {
+        mInterimEveryChunks = Math.max(1, chunks);
+    }
+
+    long getAudioChunks() {
+        return mAudioChunks.get();
+    }
+
+    long getAudioBytes() {
+        return mAudioBytes.get();
+    }
+
+    List<String> getAuthorizations() {
+        return mAuthorizations;
+    }
+
+    void start() throws IOException {
+        mServer = InProcessServerBuilder.forName(mName)
+                .addService(ServerInterceptors.intercept(this, new ServerInterceptor() {
+                    @Override
+                    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+                            ServerCall<ReqT, RespT> call, Metadata headers,
+                            ServerCallHandler<ReqT, RespT> next) {
+                        final String authorization = headers.get(AUTHORIZATION);
+                        mAuthorizations.add(authorization != null ? authorization : "");
+                        return next.startCall(call, headers);
+                    }
+                }))
+                .build()
+                .start();
+    }
+
+    /**
+     * @return A new channel to this server, like the one {@link SpeechChannelManager} provides.
+     */
+    ManagedChannel newChannel() {
+        return InProcessChannelBuilder.forName(mName).disableRetry().build();
+    }
+
+    void shutdown() {
+        if (mServer != null) {
+            mServer.shutdownNow();
+        }
+        mResponder.shutdownNow();
+    }
+
+    @Override
+    public StreamObserver<StreamingRecognizeRequest> streamingRecognize(
+            final StreamObserver<StreamingRecognizeResponse> responseObserver) {
+        return new StreamObserver<StreamingRecognizeRequest>() {
+
+            private long mChunks;
+
+            private Language mLanguage = defaultLanguage();
+
+            @Override
+            public void onNext(StreamingRecognizeRequest request) {
+                if (request.hasStreamingConfig()) {
+                    mLanguage = language(request.getStreamingConfig().getConfig()
+                            .getLanguageCode());
+                    return;
+                }
+                mAudioChunks.incrementAndGet();
+                mAudioBytes.addAndGet(request.getAudioContent().size());
+                final long chunk = mChunks++;
+                final int finalEvery = mFinalEveryChunks;
+                if (finalEvery > 0 && mChunks % finalEvery == 0) {
+                    respond(responseObserver,
+                            streamingResponse(mLanguage, mLanguage.mWords.length, true), false);
+                } else if (chunk % mInterimEveryChunks == 0) {
+                    final int words = (int) (mChunks / mInterimEveryChunks) + 1;
+                    respond(responseObserver, streamingResponse(mLanguage, words, false), false);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                respond(responseObserver,
+                        streamingResponse(mLanguage, mLanguage.mWords.length, true), true);
+            }
+
+        };
+    }
+
+    @Override
+    public void recognize(RecognizeRequest request,
+            StreamObserver<RecognizeResponse> responseObserver) {
+        mAudioChunks.incrementAndGet();
+        mAudioBytes.addAndGet(request.getAudio().getContent().size());
+        final Language language = language(request.getConfig().getLanguageCode());
+        respond(responseObserver, RecognizeResponse.newBuilder()
+                .addResults(SpeechRecognitionResult.newBuilder()
+                        .addAlternatives(alternative(language, language.mWords.length)))
+                .build(), true);
+    }
+
+    private <T> void respond(final StreamObserver<T> observer, final T response,
+            final boolean complete) {
+        mResponder.schedule(() -> {
+            observer.onNext(response);
+            if (complete) {
+                observer.onCompleted();
+            }
+        }, mResponseDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private StreamingRecognizeResponse streamingResponse(Language language, int words,
+            boolean isFinal) {
+        return StreamingRecognizeResponse.newBuilder()
+                .addResults(StreamingRecognitionResult.newBuilder()
+                        .setIsFinal(isFinal)
+                        .setStability(isFinal ? 0f : 0.9f)
+                        .addAlternatives(alternative(language, words)))
+                .build();
+    }
+
+    private SpeechRecognitionAlternative alternative(Language language, int words) {
+        final String[] all = language.mWords;
+        final StringBuilder transcript = new StringBuilder();
+        for (int i = 0; i < Math.min(words, all.length); i++) {
+            if (i > 0) {
+                transcript.append(' ');
+            }
+            transcript.append(all[i]);
+        }
+        return SpeechRecognitionAlternative.newBuilder()
+                .setTranscript(transcript.toString())
+                .setConfidence(language.mConfidence)
+                .build();
+    }
+
+    private Language language(String languageCode) {
+        final Language language = mLanguages.get(languageCode);
+        return language != null ? language : defaultLanguage();
+    }
+
+    private Language defaultLanguage() {
+        return new Language(mWords, DEFAULT_CONFIDENCE);
+    }
+
+    private static class Language {
+
+        final String[] mWords;
+
+        final float mConfidence;
+
+        Language(String[] words, float confidence) {
+            mWords = words;
+            mConfidence = confidence;
+        }
+
+    }
+
+}
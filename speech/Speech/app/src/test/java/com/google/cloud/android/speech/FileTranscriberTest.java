@@ -0,0 +1,298 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Transcribes PCM audio with {@link FileTranscriber} and a fake recognizer that answers out of
+ * order.
+ */
+public class FileTranscriberTest {
+
+    /**
+     * The length of the long synthetic file in the benchmark, e.g. {@code -Dspeech.file.hours=8}.
+     * Without it, the long file is half an hour, which takes about a second.
+     */
+    private static final String PROPERTY_HOURS = "speech.file.hours";
+
+    private final ScheduledExecutorService mExecutor = Executors.newScheduledThreadPool(4);
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void deliversInOrder() throws IOException {
+        final byte[] audio = PcmFixtures.noisy(60000, 300, PcmFixtures.speech(),
+                2000, 6000, 9000, 15000, 21000, 30000, 33000, 41000, 50000, 55000);
+        final FakeRecognizer recognizer = new FakeRecognizer(20, false);
+        final Results results = new Results();
+        final FileTranscriber transcriber =
+                new FileTranscriber(PcmFixtures.SAMPLE_RATE, recognizer, results);
+        transcriber.setMaxInFlight(3);
+        transcriber.setSegmentLengthMillis(2000, 5000);
+        transcriber.transcribe(new ByteArrayInputStream(audio));
+        assertTrue(transcriber.getSegmentCount() > 3);
+        assertThat((long) results.starts.size(), is(transcriber.getSegmentCount()));
+        assertThat(results.failures, is(0));
+        assertTrue(recognizer.maxActive.get() <= 3);
+        assertTrue(transcriber.getUploadedBytes() < audio.length);
+        for (int i = 0; i < results.starts.size(); i++) {
+            assertTrue(results.ends.get(i) - results.starts.get(i) <= 5000);
+            if (i > 0) {
+                assertTrue(results.starts.get(i) >= results.ends.get(i - 1));
+            }
+            // The fake transcript is the size of the segment
+            assertThat(results.transcripts.get(i), is(String.valueOf(
+                    (results.ends.get(i) - results.starts.get(i)) * PcmFixtures.SAMPLE_RATE
+                            / 1000 * 2)));
+        }
+    }
+
+    @Test
+    public void skipsSilence() throws IOException {
+        final Results results = new Results();
+        final FileTranscriber transcriber = new FileTranscriber(PcmFixtures.SAMPLE_RATE,
+                new FakeRecognizer(0, false), results);
+        transcriber.transcribe(new ByteArrayInputStream(new byte[PcmFixtures.SAMPLE_RATE * 20]));
+        assertThat(transcriber.getSegmentCount(), is(0L));
+        assertThat(transcriber.getUploadedBytes(), is(0L));
+        assertThat(results.starts.size(), is(0));
+    }
+
+    @Test
+    public void deliversFailuresInOrder() throws IOException {
+        final Results results = new Results();
+        final FileTranscriber transcriber = new FileTranscriber(PcmFixtures.SAMPLE_RATE,
+                new FakeRecognizer(10, true), results);
+        transcriber.setSegmentLengthMillis(2000, 5000);
+        transcriber.transcribe(new ByteArrayInputStream(PcmFixtures.noisy(30000, 300,
+                PcmFixtures.speech(), 1000, 5000, 9000, 13000, 17000, 21000, 25000)));
+        assertThat((long) results.starts.size(), is(transcriber.getSegmentCount()));
+        assertThat(results.failures, is(results.starts.size() / 2));
+        for (int i = 1; i < results.starts.size(); i++) {
+            assertTrue(results.starts.get(i) >= results.ends.get(i - 1));
+        }
+    }
+
+    @Test
+    public void memoryDoesNotGrowWithFileLength() throws IOException {
+        // The short file is long enough for all the segment buffers to be allocated
+        final FileTranscriber shortFile = benchmark("10 minutes", 10 * 60 * 1000L);
+        final Integer hours = Integer.getInteger(PROPERTY_HOURS);
+        final FileTranscriber longFile = hours == null
+                ? benchmark("30 minutes", 30 * 60 * 1000L)
+                : benchmark(hours + " hours", hours * 60 * 60 * 1000L);
+        assertThat(longFile.getAllocatedBytes(), is(shortFile.getAllocatedBytes()));
+        assertTrue(longFile.getSegmentCount() > shortFile.getSegmentCount());
+    }
+
+    private FileTranscriber benchmark(String name, long millis) throws IOException {
+        final FakeRecognizer recognizer = new FakeRecognizer(5, false);
+        final Results results = new Results();
+        final FileTranscriber transcriber =
+                new FileTranscriber(PcmFixtures.SAMPLE_RATE, recognizer, results);
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        final long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        final long start = System.nanoTime();
+        transcriber.transcribe(new Conversation(PcmFixtures.speech(), millis));
+        final long elapsed = System.nanoTime() - start;
+        assertThat((long) results.starts.size(), is(transcriber.getSegmentCount()));
+        assertThat(transcriber.getReadBytes(), is(millis * PcmFixtures.SAMPLE_RATE / 1000 * 2));
+        assertTrue(recognizer.maxActive.get() <= FileTranscriber.DEFAULT_MAX_IN_FLIGHT);
+        for (int i = 1; i < results.starts.size(); i++) {
+            assertTrue(results.starts.get(i) >= results.ends.get(i - 1));
+        }
+        System.out.printf("%s: %d segments, %.1f%% of the audio uploaded, %d bytes of buffers, "
+                        + "%.1f MB peak heap growth, %.0fx realtime%n",
+                name, transcriber.getSegmentCount(),
+                100.0 * transcriber.getUploadedBytes() / transcriber.getReadBytes(),
+                transcriber.getAllocatedBytes(),
+                (results.peakHeap - heapBefore) / 1024.0 / 1024.0,
+                millis * 1e6 / elapsed);
+        return transcriber;
+    }
+
+    /**
+     * Answers with the size of each segment after a random delay, so that segments finish out
+     * of order.
+     */
+    private class FakeRecognizer implements FileTranscriber.Recognizer {
+
+        final int mMaxDelayMillis;
+
+        final boolean mFailEveryOther;
+
+        final Random mRandom = new Random(7);
+
+        final AtomicInteger active = new AtomicInteger();
+
+        final AtomicInteger maxActive = new AtomicInteger();
+
+        int mCount;
+
+        FakeRecognizer(int maxDelayMillis, boolean failEveryOther) {
+            mMaxDelayMillis = maxDelayMillis;
+            mFailEveryOther = failEveryOther;
+        }
+
+        @Override
+        public void recognize(byte[] data, int size, Callback callback) {
+            final int now = active.incrementAndGet();
+            maxActive.accumulateAndGet(now, Math::max);
+            final boolean fail = mFailEveryOther && mCount++ % 2 == 1;
+            mExecutor.schedule(() -> {
+                active.decrementAndGet();
+                if (fail) {
+                    callback.onFailed(new IOException("fake failure"));
+                } else {
+                    callback.onRecognized(String.valueOf(size));
+                }
+            }, mRandom.nextInt(mMaxDelayMillis + 1), TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    private static class Results implements FileTranscriber.Listener {
+
+        final List<Long> starts = new ArrayList<>();
+
+        final List<Long> ends = new ArrayList<>();
+
+        final List<String> transcripts = new ArrayList<>();
+
+        int failures;
+
+        long peakHeap;
+
+        @Override
+        public void onSegmentRecognized(long startMillis, long endMillis, String transcript) {
+            add(startMillis, endMillis);
+            transcripts.add(transcript);
+        }
+
+        @Override
+        public void onSegmentFailed(long startMillis, long endMillis, Throwable t) {
+            add(startMillis, endMillis);
+            transcripts.add(null);
+            failures++;
+        }
+
+        private void add(long startMillis, long endMillis) {
+            starts.add(startMillis);
+            ends.add(endMillis);
+            final Runtime runtime = Runtime.getRuntime();
+            peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+    }
+
+    /**
+     * A synthetic recording of any length, generated as it is read: utterances separated by
+     * short pauses, and a long monologue without pauses every five minutes.
+     */
+    private static class Conversation extends InputStream {
+
+        private static final long CYCLE = PcmFixtures.SAMPLE_RATE * 5 * 60;
+
+        private static final long MONOLOGUE = PcmFixtures.SAMPLE_RATE * 70;
+
+        private static final int PAUSE = PcmFixtures.SAMPLE_RATE;
+
+        private final byte[] mSpeech;
+
+        private final int mSpeechSamples;
+
+        private final long mSamples;
+
+        private long mPosition; // in bytes
+
+        private int mNoise = 1;
+
+        /** The sample whose high byte is read next. */
+        private int mSample;
+
+        Conversation(byte[] speech, long millis) {
+            mSpeech = speech;
+            mSpeechSamples = speech.length / 2;
+            mSamples = millis * PcmFixtures.SAMPLE_RATE / 1000;
+        }
+
+        @Override
+        public int read() {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPosition >= mSamples * 2) {
+                return -1;
+            }
+            final int size = (int) Math.min(len, mSamples * 2 - mPosition);
+            for (int i = 0; i < size; i++) {
+                final long position = mPosition + i;
+                if ((position & 1) == 0) {
+                    mSample = sample(position / 2);
+                    b[off + i] = (byte) mSample;
+                } else {
+                    b[off + i] = (byte) (mSample >> 8);
+                }
+            }
+            mPosition += size;
+            return size;
+        }
+
+        private int sample(long index) {
+            final long t = index % CYCLE;
+            int s;
+            if (t < MONOLOGUE) {
+                s = PcmFixtures.getSample(mSpeech, (int) (t % mSpeechSamples));
+            } else {
+                final int u = (int) ((t - MONOLOGUE) % (mSpeechSamples + PAUSE));
+                s = u < mSpeechSamples ? PcmFixtures.getSample(mSpeech, u) : 0;
+            }
+            // Cheap uniform background noise
+            mNoise ^= mNoise << 13;
+            mNoise ^= mNoise >>> 17;
+            mNoise ^= mNoise << 5;
+            return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, s + (mNoise >> 25)));
+        }
+
+    }
+
+}
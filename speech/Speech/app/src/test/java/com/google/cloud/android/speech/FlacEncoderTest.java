@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+
+/**
+ * Round-trips PCM audio through {@link FlacEncoder} and a minimal FLAC decoder.
+ */
+public class FlacEncoderTest {
+
+    @Test
+    public void speech() throws IOException {
+        final byte[] pcm = PcmFixtures.speech();
+        final byte[] flac = roundTrip(pcm, 640);
+        assertTrue(flac.length < pcm.length * 3 / 4);
+    }
+
+    @Test
+    public void noisySpeech() throws IOException {
+        roundTrip(PcmFixtures.noisy(20000, 300, PcmFixtures.speech(), 1000), 1280);
+    }
+
+    @Test
+    public void tone() {
+        roundTrip(PcmFixtures.tone(1000, 440, 10000), 640);
+    }
+
+    @Test
+    public void silence() {
+        final byte[] flac = roundTrip(new byte[32000], 640);
+        assertTrue(flac.length < 1000);
+    }
+
+    @Test
+    public void fullScaleNoise() {
+        final byte[] pcm = new byte[16000];
+        new java.util.Random(1).nextBytes(pcm);
+        roundTrip(pcm, 640);
+    }
+
+    @Test
+    public void oddChunks() throws IOException {
+        roundTrip(PcmFixtures.speech(), 333);
+    }
+
+    @Test
+    public void otherSampleRate() throws IOException {
+        final byte[] pcm = PcmFixtures.speech();
+        final FlacEncoder encoder = new FlacEncoder(11025);
+        final byte[] flac = encode(encoder, pcm, 640);
+        final Decoder decoder = new Decoder(flac);
+        assertArrayEquals(pcm, decoder.decode());
+        assertThat(decoder.sampleRate, is(11025));
+    }
+
+    @Test
+    public void metrics() throws IOException {
+        final byte[] pcm = PcmFixtures.speech();
+        final FlacEncoder encoder = new FlacEncoder(PcmFixtures.SAMPLE_RATE);
+        final byte[] flac = encode(encoder, pcm, 640);
+        assertThat(encoder.getInputBytes(), is((long) pcm.length));
+        assertThat(encoder.getOutputBytes(), is((long) flac.length));
+        assertThat(encoder.getEncodeLatencyProbe().getCount(),
+                is((long) (pcm.length + 639) / 640));
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        Benchmarks.assumeEnabled();
+        report("speech", PcmFixtures.speech(), 640);
+        report("noisy speech", PcmFixtures.noisy(20000, 300, PcmFixtures.speech(), 1000), 1280);
+        report("tone", PcmFixtures.tone(1000, 440, 10000), 640);
+        report("silence", new byte[32000], 640);
+    }
+
+    private static byte[] roundTrip(byte[] pcm, int chunkSize) {
+        final byte[] flac = encode(new FlacEncoder(PcmFixtures.SAMPLE_RATE), pcm, chunkSize);
+        assertArrayEquals(pcm, new Decoder(flac).decode());
+        return flac;
+    }
+
+    /** Prints the compression ratio and the encode time of one recording. */
+    private static void report(String name, byte[] pcm, int chunkSize) {
+        final FlacEncoder encoder = new FlacEncoder(PcmFixtures.SAMPLE_RATE);
+        final byte[] flac = encode(encoder, pcm, chunkSize);
+        final LatencyProbe latency = encoder.getEncodeLatencyProbe();
+        System.out.printf("%s: %d bytes of PCM, %d bytes of FLAC (%.1f%%), "
+                        + "%.1f us average and %.1f us max encode time per chunk%n",
+                name, pcm.length, flac.length, 100.0 * flac.length / pcm.length,
+                latency.getAverageNanos() / 1000.0, latency.getMaxNanos() / 1000.0);
+    }
+
+    private static byte[] encode(FlacEncoder encoder, byte[] pcm, int chunkSize) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AudioEncoder.Output output = out::write;
+        final byte[] chunk = new byte[chunkSize];
+        for (int offset = 0; offset < pcm.length; offset += chunkSize) {
+            final int size = Math.min(chunkSize, pcm.length - offset);
+            System.arraycopy(pcm, offset, chunk, 0, size);
+            encoder.encode(chunk, size, output);
+        }
+        encoder.finish(output);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the subset of FLAC produced by {@link FlacEncoder}: 16-bit mono, constant, verbatim
+     * and fixed subframes, and Rice coding with 4-bit parameters.
+     */
+    private static class Decoder {
+
+        private final byte[] mData;
+
+        private int mPosition; // in bits
+
+        int sampleRate;
+
+        Decoder(byte[] data) {
+            mData = data;
+        }
+
+        byte[] decode() {
+            assertThat(read(32), is(0x664c6143L)); // "fLaC"
+            assertThat(read(1), is(1L)); // Last metadata block
+            assertThat(read(7), is(0L)); // STREAMINFO
+            assertThat(read(24), is(34L));
+            read(16 + 16 + 24 + 24);
+            sampleRate = (int) read(20);
+            assertThat(read(3), is(0L)); // Mono
+            assertThat(read(5), is(15L)); // 16 bits per sample
+            read(36 + 128);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long frameNumber = 0;
+            while (mPosition / 8 < mData.length) {
+                decodeFrame(out, frameNumber++);
+            }
+            return out.toByteArray();
+        }
+
+        private void decodeFrame(ByteArrayOutputStream out, long expectedFrameNumber) {
+            final int frameStart = mPosition / 8;
+            assertThat(read(16), is(0xfff8L));
+            assertThat(read(4), is(7L));
+            final int sampleRateCode = (int) read(4);
+            assertThat(read(4), is(0L));
+            assertThat(read(3), is(4L));
+            assertThat(read(1), is(0L));
+            assertThat(readUtf8(), is(expectedFrameNumber));
+            final int blockSize = (int) read(16) + 1;
+            if (sampleRateCode == 0xc) {
+                assertThat(read(8) * 1000, is((long) sampleRate));
+            } else if (sampleRateCode == 0xd) {
+                assertThat(read(16), is((long) sampleRate));
+            } else if (sampleRateCode == 0xe) {
+                assertThat(read(16) * 10, is((long) sampleRate));
+            }
+            final int crc8 = FlacEncoder.crc8(mData, frameStart, mPosition / 8);
+            assertThat(read(8), is((long) crc8));
+
+            final int[] samples = new int[blockSize];
+            assertThat(read(1), is(0L));
+            final int type = (int) read(6);
+            assertThat(read(1), is(0L));
+            if (type == 0) {
+                final int value = readSigned(16);
+                for (int i = 0; i < blockSize; i++) {
+                    samples[i] = value;
+                }
+            } else if (type == 1) {
+                for (int i = 0; i < blockSize; i++) {
+                    samples[i] = readSigned(16);
+                }
+            } else if ((type & 0x38) == 0x08) {
+                decodeFixed(samples, type & 0x07);
+            } else {
+                throw new AssertionError("Unexpected subframe type: " + type);
+            }
+            mPosition = (mPosition + 7) / 8 * 8;
+            final int crc16 = FlacEncoder.crc16(mData, frameStart, mPosition / 8);
+            assertThat(read(16), is((long) crc16));
+
+            for (int sample : samples) {
+                out.write(sample);
+                out.write(sample >> 8);
+            }
+        }
+
+        private void decodeFixed(int[] s, int order) {
+            for (int i = 0; i < order; i++) {
+                s[i] = readSigned(16);
+            }
+            assertThat(read(2), is(0L));
+            assertThat(read(4), is(0L));
+            final int parameter = (int) read(4);
+            for (int i = order; i < s.length; i++) {
+                int quotient = 0;
+                while (read(1) == 0) {
+                    quotient++;
+                }
+                final int folded = (quotient << parameter) | (int) read(parameter);
+                final int r = (folded >>> 1) ^ -(folded & 1);
+                switch (order) {
+                    case 0:
+                        s[i] = r;
+                        break;
+                    case 1:
+                        s[i] = r + s[i - 1];
+                        break;
+                    case 2:
+                        s[i] = r + 2 * s[i - 1] - s[i - 2];
+                        break;
+                    case 3:
+                        s[i] = r + 3 * s[i - 1] - 3 * s[i - 2] + s[i - 3];
+                        break;
+                    case 4:
+                        s[i] = r + 4 * s[i - 1] - 6 * s[i - 2] + 4 * s[i - 3] - s[i - 4];
+                        break;
+                    default:
+                        throw new AssertionError("Unexpected order: " + order);
+                }
+            }
+        }
+
+        private long readUtf8() {
+            final int first = (int) read(8);
+            if ((first & 0x80) == 0) {
+                return first;
+            }
+            int bytes = 0;
+            while ((first & (0x80 >> bytes)) != 0) {
+                bytes++;
+            }
+            long value = first & (0xff >> (bytes + 1));
+            for (int i = 1; i < bytes; i++) {
+                final long next = read(8);
+                assertThat(next & 0xc0, is(0x80L));
+                value = (value << 6) | (next & 0x3f);
+            }
+            return value;
+        }
+
+        private int readSigned(int bits) {
+            final long value = read(bits);
+            return (int) (value << (64 - bits) >> (64 - bits));
+        }
+
+        private long read(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                final int bit = (mData[mPosition / 8] >> (7 - mPosition % 8)) & 1;
+                value = (value << 1) | bit;
+                mPosition++;
+            }
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Sends results through {@link ListenerDispatcher} to a listener that is slower than the
+ * network.
+ */
+public class ListenerDispatcherTest {
+
+    private static final int UTTERANCES = 20;
+
+    private static final int INTERIMS_PER_UTTERANCE = 50;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void callsDirectlyWithoutExecutor() {
+        final Recorder recorder = new Recorder(0);
+        final ListenerDispatcher dispatcher = new ListenerDispatcher(recorder, null);
+        dispatcher.onSpeechRecognized("a", false);
+        dispatcher.onSpeechRecognized("a b", false);
+        dispatcher.onSpeechRecognized("a b c", true);
+        assertThat(recorder.results.size(), is(3));
+        assertThat(dispatcher.getCoalescedCount(), is(0L));
+    }
+
+    @Test
+    public void collapsesInterimResultsForSlowListener() throws InterruptedException {
+        final Recorder recorder = new Recorder(2);
+        final ListenerDispatcher dispatcher = new ListenerDispatcher(recorder, mExecutor);
+        send(dispatcher, UTTERANCES, INTERIMS_PER_UTTERANCE);
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Every final result arrives, in order
+        final List<String> finals = new ArrayList<>();
+        for (String result : recorder.results) {
+            if (result.endsWith("final")) {
+                finals.add(result);
+            }
+        }
+        assertThat(finals.size(), is(UTTERANCES));
+        for (int u = 0; u < UTTERANCES; u++) {
+            assertThat(finals.get(u), is(u + " final"));
+        }
+        // No interim result comes after the final result of its utterance
+        int utterance = 0;
+        for (String result : recorder.results) {
+            final int u = Integer.parseInt(result.substring(0, result.indexOf(' ')));
+            assertTrue(u >= utterance);
+            utterance = result.endsWith("final") ? u + 1 : u;
+        }
+        assertThat(recorder.results.size() + dispatcher.getCoalescedCount(),
+                is((long) UTTERANCES * (INTERIMS_PER_UTTERANCE + 1)));
+        assertTrue(dispatcher.getCoalescedCount() > 0);
+    }
+
+    @Test
+    public void benchmark() throws InterruptedException {
+        Benchmarks.assumeEnabled();
+        final Recorder recorder = new Recorder(2);
+        final ListenerDispatcher dispatcher = new ListenerDispatcher(recorder, mExecutor);
+        final long callNanos = send(dispatcher, UTTERANCES, INTERIMS_PER_UTTERANCE);
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        System.out.printf("%d results sent, %d delivered, %d coalesced, "
+                        + "%.1f us average time spent in the sender%n",
+                UTTERANCES * (INTERIMS_PER_UTTERANCE + 1), recorder.results.size(),
+                dispatcher.getCoalescedCount(),
+                callNanos / 1000.0 / (UTTERANCES * INTERIMS_PER_UTTERANCE));
+    }
+
+    @Test
+    public void stopsAfterRemoval() throws InterruptedException {
+        final Recorder recorder = new Recorder(0);
+        final ListenerDispatcher dispatcher = new ListenerDispatcher(recorder, mExecutor);
+        dispatcher.remove();
+        dispatcher.onSpeechRecognized("a", true);
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        assertThat(recorder.results.size(), is(0));
+    }
+
+    /**
+     * Sends interim results faster than the listener handles them, each utterance ending with a
+     * final result.
+     *
+     * @return The nanoseconds spent sending the interim results.
+     */
+    private static long send(ListenerDispatcher dispatcher, int utterances,
+            int interimsPerUtterance) throws InterruptedException {
+        long callNanos = 0;
+        for (int u = 0; u < utterances; u++) {
+            for (int i = 0; i < interimsPerUtterance; i++) {
+                final String text = u + " interim " + i;
+                final long start = System.nanoTime();
+                dispatcher.onSpeechRecognized(text, false);
+                callNanos += System.nanoTime() - start;
+                Thread.sleep(0, 200000);
+            }
+            dispatcher.onSpeechRecognized(u + " final", true);
+        }
+        return callNanos;
+    }
+
+    private static class Recorder implements SpeechService.Listener {
+
+        final List<String> results = new ArrayList<>();
+
+        final long mDelayMillis;
+
+        Recorder(long delayMillis) {
+            mDelayMillis = delayMillis;
+        }
+
+        @Override
+        public void onSpeechRecognized(String text, boolean isFinal) {
+            results.add(text);
+            if (mDelayMillis > 0) {
+                try {
+                    Thread.sleep(mDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+
+/**
+ * PCM audio for local tests. All audio is {@code LINEAR16} in little endian, mono, 16 kHz.
+ */
+final class PcmFixtures {
+
+    static final int SAMPLE_RATE = 16000;
+
+    /** The sample utterance bundled with the app ("how old is the Brooklyn Bridge"). */
+    private static final String SPEECH = "src/main/res/raw/audio.raw";
+
+    /**
+     * Directory with additional recordings to replay, e.g.
+     * {@code -Dspeech.pcm.dir=/path/to/recordings}. Every {@code .raw} file in it is used.
+     */
+    private static final String PROPERTY_PCM_DIR = "speech.pcm.dir";
+
+    private PcmFixtures() {
+    }
+
+    static byte[] speech() throws IOException {
+        return read(new File(SPEECH));
+    }
+
+    /**
+     * @return The recordings in the directory specified by {@link #PROPERTY_PCM_DIR}, if any.
+     */
+    static File[] recordings() {
+        final String dir = System.getProperty(PROPERTY_PCM_DIR);
+        if (dir == null) {
+            return new File[0];
+        }
+        final File[] files = new File(dir).listFiles((d, name) -> name.endsWith(".raw"));
+        return files != null ? files : new File[0];
+    }
+
+    static byte[] read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Creates a noisy recording with clicks and the specified speech at the specified times.
+     *
+     * @param millis       The length of the recording.
+     * @param noise        The RMS amplitude of the background noise.
+     * @param speech       The speech to mix in.
+     * @param speechMillis The times at which the speech starts.
+     * @return The recording.
+     */
+    static byte[] noisy(int millis, int noise, byte[] speech, int... speechMillis) {
+        final Random random = new Random(42);
+        final int samples = SAMPLE_RATE * millis / 1000;
+        final byte[] data = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            int s = (int) (random.nextGaussian() * noise);
+            // A 2 ms click every 700 ms, like a finger tapping on the device
+            if (i % (SAMPLE_RATE * 7 / 10) < SAMPLE_RATE / 500) {
+                s += 12000;
+            }
+            for (int start : speechMillis) {
+                final int offset = i - SAMPLE_RATE * start / 1000;
+                if (offset >= 0 && offset * 2 + 1 < speech.length) {
+                    s += (speech[offset * 2 + 1] << 8) | (speech[offset * 2] & 0xff);
+                }
+            }
+            setSample(data, i, s);
+        }
+        return data;
+    }
+
+    /**
+     * Creates a sine wave, which is easy to tell apart from silence and cheap to compress.
+     */
+    static byte[] tone(int millis, int frequency, int amplitude) {
+        final int samples = SAMPLE_RATE * millis / 1000;
+        final byte[] data = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            setSample(data, i,
+                    (int) (Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE) * amplitude));
+        }
+        return data;
+    }
+
+    static int getSample(byte[] data, int index) {
+        return (data[index * 2 + 1] << 8) | (data[index * 2] & 0xff);
+    }
+
+    static void setSample(byte[] data, int index, int sample) {
+        final int s = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        data[index * 2] = (byte) s;
+        data[index * 2 + 1] = (byte) (s >> 8);
+    }
+
+}
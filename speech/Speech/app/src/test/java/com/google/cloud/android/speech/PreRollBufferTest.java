@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+
+public class PreRollBufferTest {
+
+    @Test
+    public void capacityForDuration() {
+        // 500 ms of 16-bit samples at 16 kHz
+        assertThat(PreRollBuffer.capacityFor(16000, 500), is(16000));
+    }
+
+    @Test
+    public void drainsOldestFirst() {
+        final PreRollBuffer buffer = new PreRollBuffer(8);
+        buffer.write(bytes(1, 3), 3);
+        buffer.write(bytes(4, 5), 2);
+        assertThat(buffer.size(), is(5));
+        assertThat(drain(buffer, 8), is(equalTo(bytes(1, 5))));
+        assertThat(buffer.size(), is(0));
+    }
+
+    @Test
+    public void writesAcrossTheEnd() {
+        final PreRollBuffer buffer = new PreRollBuffer(8);
+        buffer.write(bytes(1, 6), 6);
+        assertThat(drain(buffer, 4), is(equalTo(bytes(1, 4))));
+        // Starts at index 6, and wraps around to the beginning of the ring
+        buffer.write(bytes(7, 11), 5);
+        assertThat(buffer.size(), is(7));
+        assertThat(drain(buffer, 8), is(equalTo(bytes(5, 11))));
+    }
+
+    @Test
+    public void overflowDropsOldest() {
+        final PreRollBuffer buffer = new PreRollBuffer(8);
+        buffer.write(bytes(1, 5), 5);
+        buffer.write(bytes(6, 10), 5);
+        assertThat(buffer.size(), is(8));
+        assertThat(drain(buffer, 8), is(equalTo(bytes(3, 10))));
+    }
+
+    @Test
+    public void writeLargerThanCapacityKeepsTail() {
+        final PreRollBuffer buffer = new PreRollBuffer(8);
+        buffer.write(bytes(1, 3), 3);
+        buffer.write(bytes(4, 15), 12);
+        assertThat(buffer.size(), is(8));
+        assertThat(drain(buffer, 8), is(equalTo(bytes(8, 15))));
+    }
+
+    @Test
+    public void writeUsesOnlyRelevantBytes() {
+        final PreRollBuffer buffer = new PreRollBuffer(8);
+        buffer.write(bytes(1, 6), 2);
+        assertThat(drain(buffer, 8), is(equalTo(bytes(1, 2))));
+    }
+
+    @Test
+    public void drainsIntoSmallerChunks() {
+        final PreRollBuffer buffer = new PreRollBuffer(8);
+        buffer.write(bytes(1, 8), 8);
+        assertThat(drain(buffer, 3), is(equalTo(bytes(1, 3))));
+        assertThat(buffer.size(), is(5));
+        assertThat(drain(buffer, 3), is(equalTo(bytes(4, 6))));
+        assertThat(drain(buffer, 3), is(equalTo(bytes(7, 8))));
+        assertThat(buffer.size(), is(0));
+        assertThat(drain(buffer, 3).length, is(0));
+    }
+
+    @Test
+    public void drainsSmallerChunksAcrossTheEnd() {
+        final PreRollBuffer buffer = new PreRollBuffer(8);
+        buffer.write(bytes(1, 12), 12);
+        // The oldest byte is in the middle of the ring
+        buffer.write(bytes(13, 14), 2);
+        assertThat(drain(buffer, 5), is(equalTo(bytes(7, 11))));
+        buffer.write(bytes(15, 17), 3);
+        assertThat(drain(buffer, 8), is(equalTo(bytes(12, 17))));
+    }
+
+    @Test
+    public void clearDiscardsAudio() {
+        final PreRollBuffer buffer = new PreRollBuffer(8);
+        buffer.write(bytes(1, 5), 5);
+        buffer.clear();
+        assertThat(buffer.size(), is(0));
+        buffer.write(bytes(6, 7), 2);
+        assertThat(drain(buffer, 8), is(equalTo(bytes(6, 7))));
+    }
+
+    @Test
+    public void zeroCapacityRetainsNothing() {
+        final PreRollBuffer buffer = new PreRollBuffer(0);
+        buffer.write(bytes(1, 5), 5);
+        assertThat(buffer.size(), is(0));
+        assertThat(drain(buffer, 8).length, is(0));
+    }
+
+    /** @return The bytes with the values from {@code first} to {@code last}. */
+    private static byte[] bytes(int first, int last) {
+        final byte[] bytes = new byte[last - first + 1];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+
+    /** Drains the buffer into a chunk of {@code size} bytes; returns the bytes written. */
+    private static byte[] drain(PreRollBuffer buffer, int size) {
+        final byte[] chunk = new byte[size];
+        return Arrays.copyOf(chunk, buffer.drainTo(chunk));
+    }
+
+}
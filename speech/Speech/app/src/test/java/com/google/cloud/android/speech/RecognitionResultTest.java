@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.cloud.speech.v1.WordInfo;
+import com.google.protobuf.Duration;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+
+/**
+ * Fills in {@link RecognitionResult} from API responses, and compares its cost with extracting
+ * the transcript alone.
+ */
+public class RecognitionResultTest {
+
+    private static final String[] WORDS = {"how", "old", "is", "the", "Brooklyn", "Bridge"};
+
+    @Test
+    public void fillsInAllFields() {
+        final RecognitionResult result = new RecognitionResult();
+        result.set(finalResult(WORDS.length), 1000);
+        assertThat(result.isFinal(), is(true));
+        assertThat(result.getEndMillis(), is(1000L + 300L * WORDS.length));
+        assertThat(result.getAlternativeCount(), is(2));
+        assertThat(result.getTranscript(), is("how old is the Brooklyn Bridge"));
+        final RecognitionResult.Alternative first = result.getAlternative(0);
+        assertThat(first.getConfidence(), is(0.9f));
+        assertThat(first.getWordCount(), is(WORDS.length));
+        for (int i = 0; i < WORDS.length; i++) {
+            assertThat(first.getWord(i), is(WORDS[i]));
+            assertThat(first.getWordStartMillis(i), is(1000L + 300L * i));
+            assertThat(first.getWordEndMillis(i), is(1000L + 300L * i + 250L));
+        }
+        assertThat(result.getAlternative(1).getTranscript(), is("how old is the Brooklyn bridge"));
+    }
+
+    @Test
+    public void reusesAlternatives() {
+        final RecognitionResult result = new RecognitionResult();
+        result.set(finalResult(WORDS.length), 0);
+        final RecognitionResult.Alternative first = result.getAlternative(0);
+        result.set(interimResult(3), 0);
+        assertThat(result.isFinal(), is(false));
+        assertThat(result.getStability(), is(0.8f));
+        assertThat(result.getAlternativeCount(), is(1));
+        assertThat(result.getAlternative(0), is(sameInstance(first)));
+        assertThat(first.getWordCount(), is(0));
+        assertThat(result.getTranscript(), is("how old is"));
+    }
+
+    @Test
+    public void trimsLeadingWords() {
+        final RecognitionResult result = new RecognitionResult();
+        result.set(finalResult(WORDS.length), 0);
+        result.getAlternative(0).trimLeadingWords("is the Brooklyn Bridge", 2);
+        final RecognitionResult.Alternative first = result.getAlternative(0);
+        assertThat(first.getTranscript(), is("is the Brooklyn Bridge"));
+        assertThat(first.getWordCount(), is(4));
+        assertThat(first.getWord(0), is("is"));
+        assertThat(first.getWordStartMillis(0), is(600L));
+    }
+
+    @Test
+    public void reusedResultDoesNotAllocate() {
+        final StreamingRecognitionResult[] parsed = new StreamingRecognitionResult[10];
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = i % 10 == 9 ? finalResult(WORDS.length) : interimResult(i + 1);
+        }
+        final RecognitionResult result = new RecognitionResult();
+        final int iterations = 20000;
+        // Grows the buffers of the result to their largest size first
+        for (int i = 0; i < iterations; i++) {
+            result.set(parsed[i % parsed.length], i);
+        }
+        final long before = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            result.set(parsed[i % parsed.length], i);
+        }
+        assertTrue(allocatedBytes() - before < 1024);
+    }
+
+    @Test
+    public void benchmark() throws InvalidProtocolBufferException {
+        Benchmarks.assumeEnabled();
+        // A typical session: many interim results, and a few final results with word timings
+        final byte[][] responses = new byte[20][];
+        for (int i = 0; i < responses.length; i++) {
+            final boolean isFinal = i % 10 == 9;
+            responses[i] = StreamingRecognizeResponse.newBuilder()
+                    .addResults(isFinal ? finalResult(WORDS.length) : interimResult(i % 10 + 1))
+                    .build()
+                    .toByteArray();
+        }
+        final RecognitionResult result = new RecognitionResult();
+        final int iterations = 20000;
+        for (int warmUp = 0; warmUp < 3; warmUp++) {
+            run(responses, null, iterations);
+            run(responses, result, iterations);
+        }
+        final long[] text = run(responses, null, iterations);
+        final long[] structured = run(responses, result, iterations);
+        System.out.printf("transcript only: %.0f ns and %d bytes per response; "
+                        + "full result: %.0f ns and %d bytes per response%n",
+                (double) text[0] / iterations / responses.length,
+                text[1] / iterations / responses.length,
+                (double) structured[0] / iterations / responses.length,
+                structured[1] / iterations / responses.length);
+    }
+
+    /**
+     * Parses each response and extracts either the transcript or the full result.
+     *
+     * @return The elapsed nanoseconds and the allocated bytes.
+     */
+    private static long[] run(byte[][] responses, RecognitionResult result, int iterations)
+            throws InvalidProtocolBufferException {
+        final long allocated = allocatedBytes();
+        final long start = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] bytes : responses) {
+                final StreamingRecognitionResult r =
+                        StreamingRecognizeResponse.parseFrom(bytes).getResults(0);
+                if (result == null) {
+                    length += r.getAlternatives(0).getTranscript().length();
+                } else {
+                    result.set(r, 0);
+                    length += result.getTranscript().length();
+                }
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        assertTrue(length > 0);
+        return new long[]{elapsed, allocatedBytes() - allocated};
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static StreamingRecognitionResult finalResult(int words) {
+        final SpeechRecognitionAlternative.Builder first = SpeechRecognitionAlternative
+                .newBuilder()
+                .setTranscript(join(words))
+                .setConfidence(0.9f);
+        for (int i = 0; i < words; i++) {
+            first.addWords(WordInfo.newBuilder()
+                    .setWord(WORDS[i])
+                    .setStartTime(millis(300 * i))
+                    .setEndTime(millis(300 * i + 250)));
+        }
+        return StreamingRecognitionResult.newBuilder()
+                .setIsFinal(true)
+                .setResultEndTime(millis(300 * words))
+                .addAlternatives(first)
+                .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                        .setTranscript(join(words).replace("Bridge", "bridge")))
+                .build();
+    }
+
+    private static StreamingRecognitionResult interimResult(int words) {
+        return StreamingRecognitionResult.newBuilder()
+                .setStability(0.8f)
+                .setResultEndTime(millis(300 * words))
+                .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                        .setTranscript(join(Math.min(words, WORDS.length))))
+                .build();
+    }
+
+    private static String join(int words) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[i]);
+        }
+        return builder.toString();
+    }
+
+    private static Duration millis(long millis) {
+        return Duration.newBuilder()
+                .setSeconds(millis / 1000)
+                .setNanos((int) (millis % 1000) * 1000000)
+                .build();
+    }
+
+}
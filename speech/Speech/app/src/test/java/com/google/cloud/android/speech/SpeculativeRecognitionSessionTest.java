@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechGrpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+
+
+/**
+ * Runs {@link SpeculativeRecognitionSession} against {@link FakeSpeechServer}, where only one
+ * of the languages recognizes the audio with confidence.
+ */
+public class SpeculativeRecognitionSessionTest {
+
+    private static final int CHUNK_SIZE = 640;
+
+    private static final String ENGLISH = "how old is the Brooklyn Bridge";
+
+    private static final String SPANISH = "qué edad tiene el puente de Brooklyn";
+
+    private FakeSpeechServer mServer;
+
+    private ManagedChannel mChannel;
+
+    private SpeechGrpc.SpeechStub mApi;
+
+    private byte[] mSpeech;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new FakeSpeechServer();
+        mServer.start();
+        mServer.setLanguage("en-US", ENGLISH, 0.4f);
+        mServer.setLanguage("es-ES", SPANISH, 0.9f);
+        mServer.setLanguage("fr-FR", "quel âge a le pont de Brooklyn", 0.3f);
+        mChannel = mServer.newChannel();
+        mApi = SpeechGrpc.newStub(mChannel);
+        mSpeech = PcmFixtures.speech();
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.shutdownNow();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void picksMostConfidentLanguage() throws InterruptedException {
+        final List<String> finals = new CopyOnWriteArrayList<>();
+        final CountDownLatch finalResult = new CountDownLatch(1);
+        final SpeculativeRecognitionSession session = new SpeculativeRecognitionSession(mApi,
+                configs("en-US", "es-ES", "fr-FR"), false, (text, isFinal) -> {
+                    if (isFinal) {
+                        finals.add(text);
+                        finalResult.countDown();
+                    }
+                });
+        session.start();
+        feed(session, 0, 100);
+        session.finish();
+        assertTrue(finalResult.await(5, TimeUnit.SECONDS));
+        assertThat(session.getWinningConfig().getLanguageCode(), is("es-ES"));
+        assertThat(finals, is(Arrays.asList(SPANISH)));
+        final List<StreamingRecognitionSession> sessions = session.getSessions();
+        assertTrue(sessions.get(0).isCancelled());
+        assertFalse(sessions.get(1).isCancelled());
+        assertTrue(sessions.get(2).isCancelled());
+    }
+
+    @Test
+    public void stopsSendingToLosers() throws InterruptedException {
+        mServer.setFinalEveryChunks(50);
+        final List<String> finals = new CopyOnWriteArrayList<>();
+        final SpeculativeRecognitionSession session = new SpeculativeRecognitionSession(mApi,
+                configs("en-US", "es-ES"), true, (text, isFinal) -> {
+                    if (isFinal) {
+                        finals.add(text);
+                    }
+                });
+        session.start();
+        feed(session, 0, 50);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (session.getWinningConfig() == null && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(session.getWinningConfig().getLanguageCode(), is("es-ES"));
+        feed(session, 50, 500);
+        session.finish();
+
+        final List<StreamingRecognitionSession> sessions = session.getSessions();
+        assertThat(sessions.get(0).getAudioBytes(), is(50L * CHUNK_SIZE));
+        assertThat(sessions.get(1).getAudioBytes(), is(500L * CHUNK_SIZE));
+        assertThat(session.getExtraUploadedBytes(), is(50L * CHUNK_SIZE));
+        for (String text : finals) {
+            assertThat(text, is(SPANISH));
+        }
+    }
+
+    @Test
+    public void createConfigs_listsOtherLanguagesAsAlternatives() {
+        final RecognitionConfig base = RecognitionConfig.newBuilder()
+                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                .setSampleRateHertz(PcmFixtures.SAMPLE_RATE)
+                .addAlternativeLanguageCodes("de-DE")
+                .build();
+        final List<RecognitionConfig> configs = SpeculativeRecognitionSession.createConfigs(
+                base, Arrays.asList("en-US", "es-ES", "fr-FR", "it-IT", "pt-BR"));
+        assertThat(configs.size(), is(5));
+        assertThat(configs.get(0).getLanguageCode(), is("en-US"));
+        assertThat(configs.get(0).getAlternativeLanguageCodesList(),
+                is(Arrays.asList("es-ES", "fr-FR", "it-IT")));
+        assertThat(configs.get(1).getLanguageCode(), is("es-ES"));
+        assertThat(configs.get(1).getAlternativeLanguageCodesList(),
+                is(Arrays.asList("en-US", "fr-FR", "it-IT")));
+        assertThat(configs.get(4).getAlternativeLanguageCodesList(),
+                is(Arrays.asList("en-US", "es-ES", "fr-FR")));
+        assertThat(configs.get(4).getSampleRateHertz(), is(PcmFixtures.SAMPLE_RATE));
+    }
+
+    @Test
+    public void benchmark() throws InterruptedException {
+        Benchmarks.assumeEnabled();
+        // Stands in for the time the API takes to recognize
+        mServer.setResponseDelayMillis(50);
+        final int rounds = 20;
+        final long[] sequential = new long[rounds];
+        final long[] speculative = new long[rounds];
+        long uploaded = 0;
+        long extra = 0;
+        long copied = 0;
+        for (int i = 0; i < rounds; i++) {
+            // The user speaks English first, gets garbage, and tries again in Spanish
+            final long start = System.nanoTime();
+            recognizeOnce("en-US");
+            recognizeOnce("es-ES");
+            sequential[i] = System.nanoTime() - start;
+
+            final CountDownLatch finalResult = new CountDownLatch(1);
+            final SpeculativeRecognitionSession session = new SpeculativeRecognitionSession(mApi,
+                    configs("en-US", "es-ES"), false, (text, isFinal) -> {
+                        if (isFinal) {
+                            finalResult.countDown();
+                        }
+                    });
+            final long speculativeStart = System.nanoTime();
+            session.start();
+            feed(session, 0, 100);
+            session.finish();
+            assertTrue(finalResult.await(5, TimeUnit.SECONDS));
+            speculative[i] = System.nanoTime() - speculativeStart;
+            uploaded += session.getUploadedBytes();
+            extra += session.getExtraUploadedBytes();
+            copied += session.getCopiedAudioBytes();
+        }
+        Arrays.sort(sequential);
+        Arrays.sort(speculative);
+        System.out.printf("sequential retry: p50 %.1f ms; speculative: p50 %.1f ms; "
+                        + "%.0f%% extra upload, %d of %d bytes copied%n",
+                sequential[rounds / 2] / 1e6, speculative[rounds / 2] / 1e6,
+                extra * 100.0 / (uploaded - extra), copied, uploaded);
+    }
+
+    private void recognizeOnce(String languageCode) throws InterruptedException {
+        final CountDownLatch finalResult = new CountDownLatch(1);
+        final StreamingRecognitionSession session = new StreamingRecognitionSession(mApi,
+                configs(languageCode).get(0), false, (text, isFinal) -> {
+                    if (isFinal) {
+                        finalResult.countDown();
+                    }
+                });
+        session.start();
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        for (int c = 0; c < 100; c++) {
+            System.arraycopy(mSpeech, (c * CHUNK_SIZE) % (mSpeech.length - CHUNK_SIZE),
+                    chunk, 0, CHUNK_SIZE);
+            session.recognize(chunk, CHUNK_SIZE);
+        }
+        session.finish();
+        assertTrue(finalResult.await(5, TimeUnit.SECONDS));
+    }
+
+    private void feed(SpeculativeRecognitionSession session, int from, int to) {
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        for (int c = from; c < to; c++) {
+            System.arraycopy(mSpeech, (c * CHUNK_SIZE) % (mSpeech.length - CHUNK_SIZE),
+                    chunk, 0, CHUNK_SIZE);
+            session.recognize(chunk, CHUNK_SIZE);
+        }
+    }
+
+    private static List<RecognitionConfig> configs(String... languageCodes) {
+        final List<RecognitionConfig> configs = new ArrayList<>();
+        for (String languageCode : languageCodes) {
+            configs.add(RecognitionConfig.newBuilder()
+                    .setLanguageCode(languageCode)
+                    .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                    .setSampleRateHertz(PcmFixtures.SAMPLE_RATE)
+                    .build());
+        }
+        return configs;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechGrpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Channel;
+import io.grpc.ManagedChannel;
+
+
+/**
+ * Refreshes the credentials of {@link SpeechChannelManager} between sessions against
+ * {@link FakeSpeechServer}.
+ */
+public class SpeechChannelManagerTest {
+
+    private static final int CHUNK_SIZE = 640;
+
+    private FakeSpeechServer mServer;
+
+    private SpeechChannelManager mManager;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new FakeSpeechServer();
+        mServer.start();
+        mManager = new SpeechChannelManager("speech.googleapis.com", 443) {
+            @Override
+            ManagedChannel buildChannel() {
+                return mServer.newChannel();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mManager.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void reusesChannelAcrossCredentialRefreshes() throws InterruptedException {
+        mManager.updateCredentials(credentials("token-1"));
+        final Channel channel = mManager.getChannel();
+        recognize(channel);
+
+        mManager.updateCredentials(credentials("token-2"));
+        assertThat(mManager.getChannel(), is(sameInstance(channel)));
+        recognize(mManager.getChannel());
+
+        assertThat(mManager.getChannelsCreated(), is(1));
+        assertThat(mManager.getCredentialUpdates(), is(1));
+        assertThat(mManager.getConnectionsEstablished(), is(1));
+        // The second session was authorized with the new token
+        assertThat(mServer.getAuthorizations(),
+                is(Arrays.asList("Bearer token-1", "Bearer token-2")));
+    }
+
+    @Test
+    public void createsChannelAgainAfterShutdown() throws InterruptedException {
+        mManager.updateCredentials(credentials("token-1"));
+        recognize(mManager.getChannel());
+        mManager.shutdown();
+
+        mManager.updateCredentials(credentials("token-2"));
+        recognize(mManager.getChannel());
+        assertThat(mManager.getChannelsCreated(), is(2));
+    }
+
+    /** Opens a session, sends a little audio and waits for the final result. */
+    private void recognize(Channel channel) throws InterruptedException {
+        final CountDownLatch finalResult = new CountDownLatch(1);
+        final StreamingRecognitionSession session = new StreamingRecognitionSession(
+                SpeechGrpc.newStub(channel),
+                RecognitionConfig.newBuilder()
+                        .setLanguageCode("en-US")
+                        .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                        .setSampleRateHertz(16000)
+                        .build(),
+                false, (text, isFinal) -> {
+                    if (isFinal) {
+                        finalResult.countDown();
+                    }
+                });
+        session.start();
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        for (int i = 0; i < 10; i++) {
+            session.recognize(chunk, CHUNK_SIZE);
+        }
+        session.finish();
+        assertTrue(finalResult.await(5, TimeUnit.SECONDS));
+    }
+
+    private static GoogleCredentials credentials(String token) {
+        return GoogleCredentials.create(new AccessToken(token,
+                new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1))));
+    }
+
+}
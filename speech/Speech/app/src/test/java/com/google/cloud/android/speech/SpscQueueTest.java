@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class SpscQueueTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertThat(new SpscQueue<Integer>(1).capacity(), is(1));
+        assertThat(new SpscQueue<Integer>(5).capacity(), is(8));
+        assertThat(new SpscQueue<Integer>(8).capacity(), is(8));
+    }
+
+    @Test
+    public void rejectsOfferWhenFull() {
+        final SpscQueue<Integer> queue = new SpscQueue<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertThat(queue.poll(), is(0));
+        // The slot is free again
+        assertTrue(queue.offer(4));
+        assertFalse(queue.offer(5));
+    }
+
+    @Test
+    public void pollsInOrderAcrossTheEnd() {
+        final SpscQueue<Integer> queue = new SpscQueue<>(4);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+            assertTrue(queue.offer(i + 100));
+            assertThat(queue.poll(), is(i));
+            assertThat(queue.poll(), is(i + 100));
+        }
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void keepsOrderBetweenTwoThreads() throws InterruptedException {
+        final SpscQueue<Integer> queue = new SpscQueue<>(8);
+        final int count = 1000000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final Thread consumer = new Thread(() -> {
+            int expected = 0;
+            while (expected < count) {
+                final Integer element = queue.poll();
+                if (element == null) {
+                    Thread.yield();
+                } else if (element != expected++) {
+                    // Keep polling, so that the producer can finish
+                    failure.compareAndSet(null, "Expected " + (expected - 1) + ", but got "
+                            + element);
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            while (!queue.offer(i)) {
+                Thread.yield();
+            }
+        }
+        consumer.join();
+        assertThat(failure.get(), is(nullValue()));
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+}
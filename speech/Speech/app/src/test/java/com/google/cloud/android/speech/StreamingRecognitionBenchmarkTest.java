@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechGrpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.ManagedChannel;
+
+
+/**
+ * Drives {@link StreamingRecognitionSession} against {@link FakeSpeechServer} and reports the
+ * time to the first interim result and the sustained rate of audio chunks.
+ *
+ * <p>These numbers are for the client code only, not for the network path. The in-process
+ * transport hands messages over by reference, without serializing them or framing them over
+ * HTTP/2, so the bytes reported as copied only tell when a request had to own its audio; they say
+ * nothing of the copies the OkHttp transport makes, and the cost of wrapping instead of copying
+ * is not measured. The channel is also created once in {@link #setUp()}, so connection and TLS
+ * setup are not included either. The app's OkHttp transport has no server counterpart in the
+ * gRPC version used here, so it cannot be benchmarked over loopback.</p>
+ */
+public class StreamingRecognitionBenchmarkTest {
+
+    /** 20 ms of audio at 16 kHz, the size of a typical chunk from {@link VoiceRecorder}. */
+    private static final int CHUNK_SIZE = 640;
+
+    private static final long CHUNK_MILLIS = 20;
+
+    private FakeSpeechServer mServer;
+
+    private ManagedChannel mChannel;
+
+    private SpeechGrpc.SpeechStub mApi;
+
+    private byte[] mSpeech;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new FakeSpeechServer();
+        mServer.start();
+        mChannel = mServer.newChannel();
+        mApi = SpeechGrpc.newStub(mChannel);
+        mSpeech = PcmFixtures.speech();
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.shutdownNow();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void timeToFirstInterim() throws InterruptedException {
+        Benchmarks.assumeEnabled();
+        // Warm up
+        measureFirstInterim(RecognitionConfig.AudioEncoding.LINEAR16, 50, false);
+        report("LINEAR16, first interim",
+                measureFirstInterim(RecognitionConfig.AudioEncoding.LINEAR16, 200, false));
+        // FLAC holds back audio until a block is full, so the audio has to come in real time
+        report("FLAC, first interim",
+                measureFirstInterim(RecognitionConfig.AudioEncoding.FLAC, 30, true));
+        mServer.setResponseDelayMillis(20);
+        report("LINEAR16 with 20 ms server delay, first interim",
+                measureFirstInterim(RecognitionConfig.AudioEncoding.LINEAR16, 100, false));
+    }
+
+    @Test
+    public void sustainedChunkRate() throws InterruptedException {
+        Benchmarks.assumeEnabled();
+        mServer.setInterimEveryChunks(50);
+        // Warm up
+        measureChunkRate(RecognitionConfig.AudioEncoding.LINEAR16, 5000);
+        measureChunkRate(RecognitionConfig.AudioEncoding.LINEAR16, 50000);
+        measureChunkRate(RecognitionConfig.AudioEncoding.FLAC, 50000);
+    }
+
+    /**
+     * Starts a number of single-utterance sessions, one after another, and measures how long
+     * each takes from its first audio chunk to its first interim result.
+     *
+     * @return The latencies in nanoseconds, sorted.
+     */
+    private long[] measureFirstInterim(RecognitionConfig.AudioEncoding encoding, int sessions,
+            boolean realTime) throws InterruptedException {
+        final long[] latencies = new long[sessions];
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        for (int i = 0; i < sessions; i++) {
+            final CountDownLatch firstInterim = new CountDownLatch(1);
+            final AtomicLong received = new AtomicLong();
+            final StreamingRecognitionSession session = new StreamingRecognitionSession(mApi,
+                    config(encoding), false, (text, isFinal) -> {
+                        if (!isFinal && received.compareAndSet(0, System.nanoTime())) {
+                            firstInterim.countDown();
+                        }
+                    });
+            session.start();
+            final long start = System.nanoTime();
+            int offset = 0;
+            do {
+                System.arraycopy(mSpeech, offset, chunk, 0, CHUNK_SIZE);
+                session.recognize(chunk, CHUNK_SIZE);
+                offset = (offset + CHUNK_SIZE) % (mSpeech.length - CHUNK_SIZE);
+            } while (!firstInterim.await(realTime ? CHUNK_MILLIS : 0, TimeUnit.MILLISECONDS)
+                    && realTime);
+            assertTrue(firstInterim.await(5, TimeUnit.SECONDS));
+            latencies[i] = received.get() - start;
+            session.finish();
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * Pushes audio into a continuous session as fast as possible and measures the rate at which
+     * the server receives it.
+     */
+    private void measureChunkRate(RecognitionConfig.AudioEncoding encoding, int chunks)
+            throws InterruptedException {
+        final long bytesBefore = mServer.getAudioBytes();
+        final CountDownLatch finalResult = new CountDownLatch(1);
+        final StreamingRecognitionSession session = new StreamingRecognitionSession(mApi,
+                config(encoding), true, (text, isFinal) -> {
+                    if (isFinal) {
+                        finalResult.countDown();
+                    }
+                });
+        session.start();
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        final long start = System.nanoTime();
+        for (int i = 0; i < chunks; i++) {
+            final int offset = (i * CHUNK_SIZE) % (mSpeech.length - CHUNK_SIZE);
+            System.arraycopy(mSpeech, offset, chunk, 0, CHUNK_SIZE);
+            session.recognize(chunk, CHUNK_SIZE);
+        }
+        session.finish();
+        // The final result is only sent after the server has received all the audio
+        assertTrue(finalResult.await(60, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - start;
+        final AudioEncoder encoder = session.getEncoder();
+        assertThat(mServer.getAudioBytes() - bytesBefore, is(encoder.getOutputBytes()));
+        System.out.printf("%s: %d chunks in %.1f ms, %.0f chunks per second "
+                        + "(%.0fx real time), %d of %d bytes copied%n",
+                encoding, chunks, elapsed / 1e6, chunks * 1e9 / elapsed,
+                chunks * CHUNK_MILLIS * 1e6 / elapsed, session.getCopiedAudioBytes(),
+                encoder.getOutputBytes());
+    }
+
+    private static RecognitionConfig config(RecognitionConfig.AudioEncoding encoding) {
+        return RecognitionConfig.newBuilder()
+                .setLanguageCode("en-US")
+                .setEncoding(encoding)
+                .setSampleRateHertz(PcmFixtures.SAMPLE_RATE)
+                .build();
+    }
+
+    private static void report(String name, long[] latencies) {
+        System.out.printf("%s: p50 %.2f ms, p99 %.2f ms, max %.2f ms over %d sessions%n",
+                name, percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6,
+                latencies[latencies.length - 1] / 1e6, latencies.length);
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+}
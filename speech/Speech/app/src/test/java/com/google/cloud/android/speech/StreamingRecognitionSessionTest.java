@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechGrpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+
+
+/**
+ * Runs several {@link StreamingRecognitionSession}s at once over a single channel to
+ * {@link FakeSpeechServer}.
+ */
+public class StreamingRecognitionSessionTest {
+
+    private static final int CHUNK_SIZE = 640;
+
+    private FakeSpeechServer mServer;
+
+    private ManagedChannel mChannel;
+
+    private SpeechGrpc.SpeechStub mApi;
+
+    private byte[] mSpeech;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new FakeSpeechServer();
+        mServer.start();
+        mChannel = mServer.newChannel();
+        mApi = SpeechGrpc.newStub(mChannel);
+        mSpeech = PcmFixtures.speech();
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.shutdownNow();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void concurrentSessions() throws InterruptedException {
+        final int sessions = 8;
+        final int chunks = 2000;
+        final StreamingRecognitionSession[] all = new StreamingRecognitionSession[sessions];
+        final CountDownLatch finals = new CountDownLatch(sessions);
+        final Thread[] captures = new Thread[sessions];
+        for (int i = 0; i < sessions; i++) {
+            final StreamingRecognitionSession session = new StreamingRecognitionSession(mApi,
+                    config(i % 2 == 0 ? RecognitionConfig.AudioEncoding.LINEAR16
+                            : RecognitionConfig.AudioEncoding.FLAC), true,
+                    (text, isFinal) -> {
+                        if (isFinal) {
+                            finals.countDown();
+                        }
+                    });
+            session.start();
+            all[i] = session;
+            // Each session is fed by a capture thread of its own
+            captures[i] = new Thread(() -> {
+                final byte[] chunk = new byte[CHUNK_SIZE];
+                for (int c = 0; c < chunks; c++) {
+                    System.arraycopy(mSpeech, (c * CHUNK_SIZE) % (mSpeech.length - CHUNK_SIZE),
+                            chunk, 0, CHUNK_SIZE);
+                    session.recognize(chunk, CHUNK_SIZE);
+                }
+                session.finish();
+            });
+        }
+        final long start = System.nanoTime();
+        for (Thread capture : captures) {
+            capture.start();
+        }
+        for (Thread capture : captures) {
+            capture.join();
+        }
+        assertTrue(finals.await(60, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - start;
+
+        long uploaded = 0;
+        for (int i = 0; i < sessions; i++) {
+            final StreamingRecognitionSession session = all[i];
+            assertThat(session.getAudioBytes(), is((long) chunks * CHUNK_SIZE));
+            assertTrue(session.getResultCount() > 0);
+            uploaded += session.getUploadedBytes();
+            System.out.printf("session %d, %s: %.0f KB/s uploaded, first result after %.2f ms, "
+                            + "completed %.2f ms after the end of audio%n",
+                    i, i % 2 == 0 ? "LINEAR16" : "FLAC",
+                    session.getUploadedBytes() * 1e6 / elapsed,
+                    session.getFirstResultLatencyProbe().getAverageNanos() / 1e6,
+                    session.getCompletionLatencyProbe().getAverageNanos() / 1e6);
+        }
+        assertThat(mServer.getAudioBytes(), is(uploaded));
+    }
+
+    @Test
+    public void concurrentRecognizeOnOneSession() throws InterruptedException {
+        final int threads = 4;
+        final int chunks = 5000;
+        final CountDownLatch finalResult = new CountDownLatch(1);
+        final StreamingRecognitionSession session = new StreamingRecognitionSession(mApi,
+                config(RecognitionConfig.AudioEncoding.LINEAR16), true, (text, isFinal) -> {
+                    if (isFinal) {
+                        finalResult.countDown();
+                    }
+                });
+        session.start();
+        final Thread[] captures = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            captures[i] = new Thread(() -> {
+                final byte[] chunk = new byte[CHUNK_SIZE];
+                for (int c = 0; c < chunks; c++) {
+                    session.recognize(chunk, CHUNK_SIZE);
+                }
+            });
+            captures[i].start();
+        }
+        for (Thread capture : captures) {
+            capture.join();
+        }
+        session.finish();
+        assertTrue(finalResult.await(60, TimeUnit.SECONDS));
+        assertThat(session.getAudioBytes(), is((long) threads * chunks * CHUNK_SIZE));
+        assertThat(mServer.getAudioBytes(), is(session.getUploadedBytes()));
+        assertThat(mServer.getAudioChunks(), is((long) threads * chunks));
+    }
+
+    @Test
+    public void rollover_deliversPreviousCallFirst() throws InterruptedException {
+        // Every response comes after the same delay, in order, so the first interim result of
+        // the new call (for the replayed audio) is sent before the final result of the old one
+        mServer.setInterimEveryChunks(1);
+        mServer.setResponseDelayMillis(50);
+        final List<String> results = new ArrayList<>();
+        final CountDownLatch finals = new CountDownLatch(2);
+        final StreamingRecognitionSession session = new StreamingRecognitionSession(mApi,
+                config(RecognitionConfig.AudioEncoding.LINEAR16), true, (text, isFinal) -> {
+                    synchronized (results) {
+                        results.add((isFinal ? "final: " : "interim: ") + text);
+                    }
+                    if (isFinal) {
+                        finals.countDown();
+                    }
+                }, 200, StreamingRecognitionSession.DEFAULT_OVERLAP_MILLIS);
+        session.start();
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        for (int c = 0; c < 8; c++) {
+            session.recognize(chunk, CHUNK_SIZE);
+        }
+        Thread.sleep(300);
+        for (int c = 0; c < 8; c++) {
+            session.recognize(chunk, CHUNK_SIZE);
+        }
+        session.finish();
+        assertTrue(finals.await(10, TimeUnit.SECONDS));
+        assertThat(session.getRollovers(), is(1));
+        synchronized (results) {
+            // The interim results of the old call only grow; one from the new call would start
+            // over before the final result of the old call
+            int words = 0;
+            for (String result : results) {
+                if (result.startsWith("final: ")) {
+                    assertThat(result, is("final: how old is the Brooklyn Bridge"));
+                    break;
+                }
+                final int count = result.split(" ").length - 1;
+                assertTrue(results.toString(), count >= words);
+                words = count;
+            }
+        }
+    }
+
+    private static RecognitionConfig config(RecognitionConfig.AudioEncoding encoding) {
+        return RecognitionConfig.newBuilder()
+                .setLanguageCode("en-US")
+                .setEncoding(encoding)
+                .setSampleRateHertz(PcmFixtures.SAMPLE_RATE)
+                .build();
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+
+public class TranscriptStitcherTest {
+
+    @Test
+    public void trimsRepeatedWords() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        stitcher.append("how old is the Brooklyn");
+        assertThat(stitcher.trim("the Brooklyn Bridge"), is(equalTo("Bridge")));
+    }
+
+    @Test
+    public void ignoresCaseAndPunctuation() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        stitcher.append("it was built in 1883.");
+        assertThat(stitcher.trim("In 1883 it opened"), is(equalTo("it opened")));
+    }
+
+    @Test
+    public void prefersLongestOverlap() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        stitcher.append("to be or not to be");
+        assertThat(stitcher.trim("not to be that is"), is(equalTo("that is")));
+    }
+
+    @Test
+    public void keepsUnrelatedTranscript() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        stitcher.append("how old is the Brooklyn Bridge");
+        assertThat(stitcher.trim("it opened in 1883"), is(equalTo("it opened in 1883")));
+    }
+
+    @Test
+    public void trimsEverything() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        stitcher.append("Brooklyn Bridge");
+        assertThat(stitcher.trim("brooklyn bridge"), is(equalTo("")));
+    }
+
+    @Test
+    public void keepsSingleRepeatedWordWithoutTimings() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        stitcher.append("so I said");
+        // Could as well be the same word heard twice as a word said twice
+        assertThat(stitcher.countRepeatedWords("said it again"), is(0));
+        assertThat(stitcher.trim("said it again"), is(equalTo("said it again")));
+    }
+
+    @Test
+    public void trimsSingleReplayedWord() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        stitcher.append("how old is the Brooklyn");
+        assertThat(stitcher.countRepeatedWords("Brooklyn Bridge", 1), is(1));
+    }
+
+    @Test
+    public void keepsRepeatedWordSpokenAfterReplay() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        stitcher.append("and then I");
+        // "I" starts after the replayed audio, so it was said again
+        assertThat(stitcher.countRepeatedWords("I went home", 0), is(0));
+    }
+
+    @Test
+    public void trimsOnlyReplayedWords() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        stitcher.append("I think that I");
+        // Only the first "I" was replayed; the following words match by chance
+        assertThat(stitcher.countRepeatedWords("I think that I know", 1), is(1));
+    }
+
+    @Test
+    public void nothingToTrimAgainst() {
+        final TranscriptStitcher stitcher = new TranscriptStitcher();
+        assertThat(stitcher.trim("hello"), is(equalTo("hello")));
+    }
+
+}
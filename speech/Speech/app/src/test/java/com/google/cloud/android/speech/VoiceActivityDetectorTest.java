@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Replays PCM audio through the {@link VoiceActivityDetector}s the way {@link VoiceRecorder} does
+ * and reports how many bytes would be uploaded to the API.
+ */
+public class VoiceActivityDetectorTest {
+
+    /** 20 ms of audio at 16 kHz, a typical minimum buffer size of {@code AudioRecord}. */
+    private static final int CHUNK_SIZE = 640;
+
+    /** Mirrors {@code VoiceRecorder.SPEECH_TIMEOUT_MILLIS}. */
+    private static final int SPEECH_TIMEOUT_MILLIS = 2000;
+
+    @Test
+    public void detectsCleanSpeech() throws IOException {
+        final Replay replay = replay(new AdaptiveVoiceActivityDetector(), PcmFixtures.speech());
+        assertThat(replay.utterances, is(1));
+    }
+
+    @Test
+    public void uploadsLessInNoise() throws IOException {
+        final byte[] audio = PcmFixtures.noisy(20000, 300, PcmFixtures.speech(), 4000, 12000);
+        final Replay threshold = replay(new ThresholdVoiceActivityDetector(), audio);
+        final Replay adaptive = replay(new AdaptiveVoiceActivityDetector(), audio);
+        assertThat(adaptive.utterances, is(2));
+        assertTrue(adaptive.uploadedBytes < threshold.uploadedBytes);
+    }
+
+    @Test
+    public void replaysRecordings() throws IOException {
+        Benchmarks.assumeEnabled();
+        final byte[] noisy = PcmFixtures.noisy(20000, 300, PcmFixtures.speech(), 4000, 12000);
+        report("noisy fixture", replay(new ThresholdVoiceActivityDetector(), noisy),
+                replay(new AdaptiveVoiceActivityDetector(), noisy));
+        for (File file : PcmFixtures.recordings()) {
+            final byte[] audio = PcmFixtures.read(file);
+            report(file.getName(), replay(new ThresholdVoiceActivityDetector(), audio),
+                    replay(new AdaptiveVoiceActivityDetector(), audio));
+        }
+    }
+
+    @Test
+    public void doesNotAllocate() throws IOException {
+        final byte[] audio = PcmFixtures.noisy(2000, 300, PcmFixtures.speech(), 0);
+        final VoiceActivityDetector detector = new AdaptiveVoiceActivityDetector();
+        detector.reset(PcmFixtures.SAMPLE_RATE);
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        // Warm up
+        feed(detector, audio, chunk);
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)
+                java.lang.management.ManagementFactory.getThreadMXBean();
+        final long before = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 100; i++) {
+            feed(detector, audio, chunk);
+        }
+        final long allocated =
+                bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue(allocated < 1024);
+    }
+
+    private static void feed(VoiceActivityDetector detector, byte[] audio, byte[] chunk) {
+        for (int offset = 0; offset + chunk.length <= audio.length; offset += chunk.length) {
+            System.arraycopy(audio, offset, chunk, 0, chunk.length);
+            detector.isHearingVoice(chunk, chunk.length);
+        }
+    }
+
+    private static Replay replay(VoiceActivityDetector detector, byte[] audio) {
+        detector.reset(PcmFixtures.SAMPLE_RATE);
+        final Replay replay = new Replay();
+        replay.totalBytes = audio.length;
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        final long chunkMillis = CHUNK_SIZE / 2 * 1000 / PcmFixtures.SAMPLE_RATE;
+        long now = 0;
+        long lastVoiceHeard = Long.MAX_VALUE;
+        for (int offset = 0; offset < audio.length; offset += CHUNK_SIZE) {
+            final int size = Math.min(CHUNK_SIZE, audio.length - offset);
+            System.arraycopy(audio, offset, chunk, 0, size);
+            now += chunkMillis;
+            if (detector.isHearingVoice(chunk, size)) {
+                if (lastVoiceHeard == Long.MAX_VALUE) {
+                    replay.utterances++;
+                }
+                replay.uploadedBytes += size;
+                lastVoiceHeard = now;
+            } else if (lastVoiceHeard != Long.MAX_VALUE) {
+                replay.uploadedBytes += size;
+                if (now - lastVoiceHeard > SPEECH_TIMEOUT_MILLIS) {
+                    lastVoiceHeard = Long.MAX_VALUE;
+                }
+            }
+        }
+        return replay;
+    }
+
+    private static void report(String name, Replay threshold, Replay adaptive) {
+        System.out.printf("%s: %d bytes of audio, threshold uploads %d (%d utterances), "
+                        + "adaptive uploads %d (%d utterances), %d bytes saved (%.1f%%)%n",
+                name, threshold.totalBytes, threshold.uploadedBytes, threshold.utterances,
+                adaptive.uploadedBytes, adaptive.utterances,
+                threshold.uploadedBytes - adaptive.uploadedBytes,
+                100.0 * (threshold.uploadedBytes - adaptive.uploadedBytes)
+                        / Math.max(1, threshold.uploadedBytes));
+    }
+
+    private static class Replay {
+        long totalBytes;
+        long uploadedBytes;
+        int utterances;
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Records from a fake microphone, which relies on the stubbed {@link AudioRecord} of local unit
+ * tests doing nothing but returning default values.
+ */
+public class VoiceRecorderTest {
+
+    private final AtomicInteger mOpen = new AtomicInteger();
+
+    private final AtomicInteger mMaxOpen = new AtomicInteger();
+
+    private final List<FakeAudioRecord> mRecords = new CopyOnWriteArrayList<>();
+
+    private final List<String> mEvents = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void startAfterStopJoinsPreviousSession() throws InterruptedException {
+        final VoiceRecorder recorder = createRecorder();
+        recorder.start();
+        awaitEvents(1);
+        recorder.stop();
+        recorder.start();
+        final List<String> events = new ArrayList<>(mEvents);
+        final FakeAudioRecord first = mRecords.get(0);
+        // The previous session has let go of the microphone and ended its utterance
+        assertTrue(first.mReleased);
+        assertFalse(first.mReader.isAlive());
+        assertThat(events.get(0), is("start"));
+        assertThat(events.get(1), is("end"));
+        awaitEvents(3);
+        recorder.stop();
+        awaitEvents(4);
+        assertThat(mEvents.get(2), is("start"));
+        assertThat(mEvents.get(3), is("end"));
+        assertThat(mMaxOpen.get(), is(1));
+    }
+
+    @Test
+    public void restartsWithOneMicrophoneAtATime() throws InterruptedException {
+        final VoiceRecorder recorder = createRecorder();
+        for (int i = 0; i < 5; i++) {
+            recorder.start();
+            awaitEvents(2 * i + 1);
+        }
+        recorder.stop();
+        awaitEvents(10);
+        assertThat(mRecords.size(), is(5));
+        assertThat(mMaxOpen.get(), is(1));
+        for (int i = 0; i < mEvents.size(); i++) {
+            assertThat(mEvents.get(i), is(i % 2 == 0 ? "start" : "end"));
+        }
+    }
+
+    /** Hears voice all the time, and records the utterances in {@link #mEvents}. */
+    private VoiceRecorder createRecorder() {
+        final VoiceRecorder.Callback callback = new VoiceRecorder.Callback() {
+            @Override
+            public void onVoiceStart() {
+                mEvents.add("start");
+            }
+
+            @Override
+            public void onVoiceEnd() {
+                mEvents.add("end");
+            }
+        };
+        final VoiceActivityDetector detector = new VoiceActivityDetector() {
+            @Override
+            public void reset(int sampleRate) {
+            }
+
+            @Override
+            public boolean isHearingVoice(byte[] data, int size) {
+                return true;
+            }
+        };
+        return new VoiceRecorder(callback, detector) {
+            @Override
+            AudioRecord createAudioRecord(int sampleRate, int sizeInBytes) {
+                final FakeAudioRecord record = new FakeAudioRecord(sampleRate, sizeInBytes);
+                mRecords.add(record);
+                return record;
+            }
+        };
+    }
+
+    private void awaitEvents(int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mEvents.size() < count) {
+            assertTrue("Only " + mEvents, System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /** Blocks on each read like the microphone, and counts the sessions holding it. */
+    private class FakeAudioRecord extends AudioRecord {
+
+        volatile boolean mReleased;
+
+        volatile Thread mReader;
+
+        FakeAudioRecord(int sampleRate, int sizeInBytes) {
+            super(MediaRecorder.AudioSource.MIC, sampleRate, AudioFormat.CHANNEL_IN_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT, sizeInBytes);
+        }
+
+        @Override
+        public int getState() {
+            return STATE_INITIALIZED;
+        }
+
+        @Override
+        public void startRecording() {
+            final int open = mOpen.incrementAndGet();
+            mMaxOpen.accumulateAndGet(open, Math::max);
+        }
+
+        @Override
+        public int read(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+            mReader = Thread.currentThread();
+            try {
+                // 20 ms of audio
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return sizeInBytes;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+            if (!mReleased) {
+                mReleased = true;
+                mOpen.decrementAndGet();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.examples.speechrecognition
+
+import android.media.AudioFormat
+import android.media.AudioRecord
+import android.media.MediaRecorder
+import com.google.protobuf.ByteString
+import com.google.protobuf.UnsafeByteOperations
+import io.grpc.stub.ClientCallStreamObserver
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import java.util.ArrayDeque
+import java.util.concurrent.ArrayBlockingQueue
+import kotlin.coroutines.coroutineContext
+
+/**
+ * A source of PCM audio, such as the microphone.
+ */
+internal interface PcmSource {
+
+    /** The number of bytes to read at a time. */
+    val chunkSize: Int
+
+    fun start()
+
+    /** Reads the next chunk, blocking until it is available; returns the number of bytes. */
+    fun read(buffer: ByteArray): Int
+
+    /** Stops the audio; a blocking [read] returns. */
+    fun stop()
+
+    fun release()
+}
+
+/**
+ * Reads audio from the microphone.
+ * Note: ensure settings are match the speech recognition config
+ */
+internal class MicrophoneSource(
+        private val sampleRate: Int = 16000,
+        private val channel: Int = AudioFormat.CHANNEL_IN_MONO,
+        private val encoding: Int = AudioFormat.ENCODING_PCM_16BIT
+) : PcmSource {
+
+    private var mAudioRecorder: AudioRecord? = null
+
+    override val chunkSize = 2 * AudioRecord.getMinBufferSize(sampleRate, channel, encoding)
+
+    override fun start() {
+        mAudioRecorder = AudioRecord.Builder()
+                .setAudioSource(MediaRecorder.AudioSource.MIC)
+                .setAudioFormat(AudioFormat.Builder()
+                        .setEncoding(encoding)
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(channel)
+                        .build())
+                .build()
+                .apply { startRecording() }
+    }
+
+    override fun read(buffer: ByteArray) =
+            mAudioRecorder!!.read(buffer, 0, buffer.size, AudioRecord.READ_BLOCKING)
+
+    override fun stop() {
+        mAudioRecorder?.stop()
+    }
+
+    override fun release() {
+        mAudioRecorder?.release()
+        mAudioRecorder = null
+    }
+}
+
+/**
+ * A chunk of captured audio. Call [release] once it has been consumed, so that its buffer can be
+ * reused for a later chunk.
+ */
+internal class AudioChunk(val data: ByteArray, private val pool: AudioChunkPool) {
+
+    /** The number of bytes in [data] that are actually relevant. */
+    var size = 0
+        internal set
+
+    fun release() = pool.release(this)
+}
+
+/**
+ * Recycles the buffers of [AudioChunk]s. Chunks can be acquired and released on different
+ * threads. A chunk that is never released, such as one dropped by `conflate()`, is left to the
+ * garbage collector and replaced by a new one.
+ */
+internal class AudioChunkPool(private val chunkSize: Int, capacity: Int) {
+
+    private val mChunks = ArrayBlockingQueue<AudioChunk>(capacity)
+
+    /** The number of chunks allocated by this pool. */
+    @Volatile
+    var allocatedChunks = 0
+        private set
+
+    fun acquire(): AudioChunk = mChunks.poll() ?: AudioChunk(ByteArray(chunkSize), this)
+            .also { allocatedChunks++ }
+
+    fun release(chunk: AudioChunk) {
+        mChunks.offer(chunk)
+    }
+}
+
+/**
+ * Captures audio as a cold [Flow]: the source is started when the flow is collected, and stopped
+ * when the collection completes or is cancelled. The audio is read on [Dispatchers.IO].
+ *
+ * The collector must release each chunk. To keep reading while the collector is busy, collect
+ * with [sendTo] and a [BackpressurePolicy] that drops audio, which counts what it drops in
+ * [AudioMetrics]. `buffer(n)` also works, but stops reading once n chunks are held, and
+ * `conflate()` drops chunks without counting them.
+ *
+ * @param poolCapacity How many buffers to keep for reuse; at least the number of chunks that can
+ * be in flight downstream.
+ */
+internal fun audioFlow(source: PcmSource, poolCapacity: Int = 16): Flow<AudioChunk> = flow {
+    val pool = AudioChunkPool(source.chunkSize, poolCapacity)
+    source.start()
+    try {
+        while (coroutineContext.isActive) {
+            val chunk = pool.acquire()
+            val read = source.read(chunk.data)
+            if (read > 0) {
+                chunk.size = read
+                emit(chunk)
+            } else {
+                chunk.release()
+            }
+        }
+    } finally {
+        source.stop()
+        source.release()
+    }
+}.flowOn(Dispatchers.IO)
+
+/**
+ * Where the captured audio is sent.
+ */
+internal interface AudioSink {
+
+    /** Whether the audio can be sent without being buffered by the transport. */
+    val isReady: Boolean
+
+    /** Sends the audio. The [ByteString] may wrap a buffer that is reused after this returns. */
+    fun send(audio: ByteString)
+}
+
+/**
+ * Adapts a gRPC request stream to an [AudioSink]. Once the call is ready,
+ * [ClientCallStreamObserver.onNext] serializes the request before returning, so the audio does
+ * not need its own copy.
+ */
+internal fun <T> ClientCallStreamObserver<T>.asAudioSink(request: (ByteString) -> T) =
+        object : AudioSink {
+            override val isReady get() = this@asAudioSink.isReady
+            override fun send(audio: ByteString) = onNext(request(audio))
+        }
+
+/**
+ * Lets a coroutine wait for an [AudioSink] to become ready. Call [onReady] from the ready handler
+ * of the transport, such as [io.grpc.stub.ClientCallStreamObserver.setOnReadyHandler], and
+ * [close] once the call has failed or completed.
+ */
+internal class ReadySignal {
+
+    private val mReady = Channel<Unit>(Channel.CONFLATED)
+
+    fun onReady() {
+        // The transport calls both methods from the same thread, so the check does not race
+        if (!mReady.isClosedForSend) {
+            mReady.offer(Unit)
+        }
+    }
+
+    /**
+     * The sink will never become ready; [await] is cancelled rather than suspending forever.
+     *
+     * @param cause Why the call ended, if it failed.
+     */
+    fun close(cause: Throwable? = null) {
+        mReady.close(CancellationException("The call has ended").apply { initCause(cause) })
+    }
+
+    /** Suspends until the sink is ready; throws a [CancellationException] once [close]d. */
+    suspend fun await(sink: AudioSink) {
+        while (!sink.isReady) {
+            mReady.receive()
+        }
+    }
+}
+
+/**
+ * What [sendTo] does with new audio while the [AudioSink] is not ready to send it.
+ */
+internal enum class BackpressurePolicy {
+
+    /** Queue the audio, dropping the oldest chunks once the buffer is full. */
+    DROP_OLDEST,
+
+    /**
+     * Like [DROP_OLDEST], but the queued audio is sent as a single request once the sink is
+     * ready again, so that a stall does not turn into a burst of small requests.
+     */
+    COALESCE,
+
+    /**
+     * Suspend the collection until the sink is ready; nothing is queued or dropped here. The
+     * source keeps being read until the buffer upstream, such as `buffer(n)`, is full.
+     */
+    PAUSE
+}
+
+/**
+ * Counts the audio sent by [sendTo], and what became of the audio that arrived while the sink was
+ * not ready.
+ */
+internal class AudioMetrics {
+
+    /** The number of bytes currently waiting for the sink to become ready. */
+    @Volatile
+    var bufferedBytes = 0
+        private set
+
+    /** The highest [bufferedBytes] so far. */
+    @Volatile
+    var peakBufferedBytes = 0
+        private set
+
+    /** The number of bytes dropped because the sink was not ready. */
+    @Volatile
+    var droppedBytes = 0L
+        private set
+
+    /** The number of chunks dropped because the sink was not ready. */
+    @Volatile
+    var droppedChunks = 0L
+        private set
+
+    /** The number of bytes sent to the sink. */
+    @Volatile
+    var sentBytes = 0L
+        private set
+
+    // The queue updates these under its lock, and a single coroutine sends
+
+    internal fun onQueued(bytes: Int) {
+        bufferedBytes += bytes
+        peakBufferedBytes = maxOf(peakBufferedBytes, bufferedBytes)
+    }
+
+    internal fun onDequeued(bytes: Int) {
+        bufferedBytes -= bytes
+    }
+
+    internal fun onDropped(bytes: Int) {
+        bufferedBytes -= bytes
+        droppedBytes += bytes
+        droppedChunks++
+    }
+
+    internal fun onSent(bytes: Int) {
+        sentBytes += bytes
+    }
+}
+
+/**
+ * Sends the audio to the [sink], and releases each chunk once it is sent or dropped.
+ *
+ * While the sink is ready, each chunk is sent as it arrives. Otherwise, the [policy] decides:
+ * up to [maxBufferedBytes] of audio is queued and the oldest is dropped beyond that, or the
+ * collection suspends, which lets `buffer()` upstream hold the audio and then stop reading. What
+ * is queued, dropped and sent is counted in [metrics].
+ */
+internal suspend fun Flow<AudioChunk>.sendTo(
+        sink: AudioSink,
+        ready: ReadySignal,
+        policy: BackpressurePolicy = BackpressurePolicy.PAUSE,
+        maxBufferedBytes: Int = 32000, // 1 second at 16 kHz
+        metrics: AudioMetrics = AudioMetrics()
+) {
+    if (policy == BackpressurePolicy.PAUSE) {
+        collect { chunk ->
+            try {
+                ready.await(sink)
+                sink.send(UnsafeByteOperations.unsafeWrap(chunk.data, 0, chunk.size))
+                metrics.onSent(chunk.size)
+            } finally {
+                chunk.release()
+            }
+        }
+        return
+    }
+    val queue = AudioQueue(policy, maxBufferedBytes, metrics)
+    coroutineScope {
+        // A single sender, so that the audio reaches the sink in order
+        launch {
+            try {
+                while (queue.awaitAudio()) {
+                    ready.await(sink)
+                    queue.sendNext(sink)
+                }
+            } catch (e: CancellationException) {
+                // Once the call has ended, stop collecting the audio as well
+                this@coroutineScope.cancel(e)
+                throw e
+            }
+        }
+        try {
+            collect { chunk -> queue.add(chunk) }
+        } finally {
+            queue.close()
+        }
+    }
+}
+
+/**
+ * The audio that [sendTo] holds while the sink is not ready. Chunks are added and sent from
+ * different coroutines.
+ */
+private class AudioQueue(
+        private val policy: BackpressurePolicy,
+        private val maxBufferedBytes: Int,
+        private val metrics: AudioMetrics
+) {
+
+    /** Guarded by itself. */
+    private val mChunks = ArrayDeque<AudioChunk>()
+
+    /** Wakes up the sender when there is audio, or once closed. */
+    private val mAvailable = Channel<Unit>(Channel.CONFLATED)
+
+    @Volatile
+    private var mClosed = false
+
+    fun add(chunk: AudioChunk) {
+        synchronized(mChunks) {
+            // Makes room first, but always keeps the latest chunk
+            while (metrics.bufferedBytes + chunk.size > maxBufferedBytes && mChunks.isNotEmpty()) {
+                val dropped = mChunks.removeFirst()
+                metrics.onDropped(dropped.size)
+                dropped.release()
+            }
+            mChunks.addLast(chunk)
+            metrics.onQueued(chunk.size)
+        }
+        mAvailable.offer(Unit)
+    }
+
+    /** No more audio is added; what is queued is still sent. */
+    fun close() {
+        mClosed = true
+        mAvailable.offer(Unit)
+    }
+
+    /** Waits for audio to send; returns false once closed with nothing left to send. */
+    suspend fun awaitAudio(): Boolean {
+        while (true) {
+            // Read first, since nothing is added once it is set
+            val closed = mClosed
+            synchronized(mChunks) {
+                if (mChunks.isNotEmpty()) {
+                    return true
+                }
+            }
+            if (closed) {
+                return false
+            }
+            mAvailable.receive()
+        }
+    }
+
+    /** Sends the oldest chunk, or with [BackpressurePolicy.COALESCE] all of them at once. */
+    fun sendNext(sink: AudioSink) {
+        var chunk: AudioChunk? = null
+        var coalesced: ByteString? = null
+        synchronized(mChunks) {
+            if (policy == BackpressurePolicy.COALESCE && mChunks.size > 1) {
+                val output = ByteString.newOutput(metrics.bufferedBytes)
+                while (mChunks.isNotEmpty()) {
+                    val queued = mChunks.removeFirst()
+                    output.write(queued.data, 0, queued.size)
+                    metrics.onDequeued(queued.size)
+                    queued.release()
+                }
+                coalesced = output.toByteString()
+            } else {
+                chunk = mChunks.pollFirst()?.also { metrics.onDequeued(it.size) }
+            }
+        }
+        coalesced?.let {
+            sink.send(it)
+            metrics.onSent(it.size())
+        }
+        chunk?.let {
+            try {
+                // The chunk is not reused until it is released, so it needs no copy
+                sink.send(UnsafeByteOperations.unsafeWrap(it.data, 0, it.size))
+                metrics.onSent(it.size)
+            } finally {
+                it.release()
+            }
+        }
+    }
+}
@@ -25,15 +25,21 @@ import android.util.Log
 import android.view.Gravity
 import android.widget.TextSwitcher
 import android.widget.TextView
-import com.google.api.gax.rpc.ApiStreamObserver
 import com.google.auth.oauth2.GoogleCredentials
 import com.google.cloud.speech.v1.RecognitionConfig
-import com.google.cloud.speech.v1.SpeechClient
-import com.google.cloud.speech.v1.SpeechSettings
+import com.google.cloud.speech.v1.SpeechGrpc
 import com.google.cloud.speech.v1.StreamingRecognitionConfig
 import com.google.cloud.speech.v1.StreamingRecognizeRequest
 import com.google.cloud.speech.v1.StreamingRecognizeResponse
-import java.util.concurrent.atomic.AtomicBoolean
+import io.grpc.auth.MoreCallCredentials
+import io.grpc.okhttp.OkHttpChannelBuilder
+import io.grpc.stub.ClientCallStreamObserver
+import io.grpc.stub.ClientResponseObserver
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
 
 private const val TAG = "Speech"
 
@@ -46,20 +52,31 @@ class MainActivity : AppCompatActivity() {
     companion object {
         private val PERMISSIONS = arrayOf(Manifest.permission.RECORD_AUDIO)
         private const val REQUEST_RECORD_AUDIO_PERMISSION = 200
+        private const val HOSTNAME = "speech.googleapis.com"
+        private const val PORT = 443
+        private val SCOPE = listOf("https://www.googleapis.com/auth/cloud-platform")
+        // 1 second of audio, held while the network is busy
+        private const val MAX_BUFFERED_BYTES = 32000
     }
 
     private var mPermissionToRecord = false
-    private var mAudioEmitter: AudioEmitter? = null
+    private var mCapture: Job? = null
+    private val mScope = MainScope()
     private lateinit var mTextView: TextSwitcher
 
-    private val mSpeechClient by lazy {
+    private val mChannel by lazy {
+        OkHttpChannelBuilder.forAddress(HOSTNAME, PORT).build()
+    }
+
+    // The streaming call goes through the generated gRPC stub rather than SpeechClient, since
+    // only the stub exposes the flow control of the call (see AudioCapture).
+    private val mSpeechStub by lazy {
         // NOTE: The line below uses an embedded credential (res/raw/sa.json).
         //       You should not package a credential with real application.
         //       Instead, you should get a credential securely from a server.
         applicationContext.resources.openRawResource(R.raw.credential).use {
-            SpeechClient.create(SpeechSettings.newBuilder()
-                    .setCredentialsProvider { GoogleCredentials.fromStream(it) }
-                    .build())
+            SpeechGrpc.newStub(mChannel).withCallCredentials(MoreCallCredentials.from(
+                    GoogleCredentials.fromStream(it).createScoped(SCOPE)))
         }
     }
 
@@ -89,38 +106,48 @@ class MainActivity : AppCompatActivity() {
 
         // kick-off recording process, if we're allowed
         if (mPermissionToRecord) {
-            val isFirstRequest = AtomicBoolean(true)
-            mAudioEmitter = AudioEmitter()
+            val ready = ReadySignal()
+            // ended by onPause(), or once the call fails or completes
+            val capture = Job(mScope.coroutineContext[Job])
 
             // start streaming the data to the server and collect responses
-            val requestStream = mSpeechClient.streamingRecognizeCallable()
-                    .bidiStreamingCall(object : ApiStreamObserver<StreamingRecognizeResponse> {
-                        override fun onNext(value: StreamingRecognizeResponse) {
-                            runOnUiThread {
-                                when {
-                                    value.resultsCount > 0 -> mTextView.setText(value.getResults(0).getAlternatives(0).transcript)
-                                    else -> mTextView.setText(getString(R.string.api_error))
-                                }
-                            }
-                        }
+            val observer = object : ClientResponseObserver<
+                    StreamingRecognizeRequest, StreamingRecognizeResponse> {
+                override fun beforeStart(
+                        requestStream: ClientCallStreamObserver<StreamingRecognizeRequest>) {
+                    // send any audio held back while the network was busy
+                    requestStream.setOnReadyHandler { ready.onReady() }
+                }
 
-                        override fun onError(t: Throwable) {
-                            Log.e(TAG, "an error occurred", t)
+                override fun onNext(value: StreamingRecognizeResponse) {
+                    runOnUiThread {
+                        when {
+                            value.resultsCount > 0 -> mTextView.setText(value.getResults(0).getAlternatives(0).transcript)
+                            else -> mTextView.setText(getString(R.string.api_error))
                         }
+                    }
+                }
 
-                        override fun onCompleted() {
-                            Log.d(TAG, "stream closed")
-                        }
-                    })
+                override fun onError(t: Throwable) {
+                    Log.e(TAG, "an error occurred", t)
+                    // release the microphone, and wake up the capture if it waits for the call
+                    capture.cancel()
+                    ready.close(t)
+                }
 
-            // monitor the input stream and send requests as audio data becomes available
-            mAudioEmitter!!.start { bytes ->
-                val builder = StreamingRecognizeRequest.newBuilder()
-                        .setAudioContent(bytes)
+                override fun onCompleted() {
+                    Log.d(TAG, "stream closed")
+                    capture.cancel()
+                    ready.close()
+                }
+            }
+            @Suppress("UNCHECKED_CAST")
+            val requestStream = mSpeechStub.streamingRecognize(observer)
+                    as ClientCallStreamObserver<StreamingRecognizeRequest>
 
-                // if first time, include the config
-                if (isFirstRequest.getAndSet(false)) {
-                    builder.streamingConfig = StreamingRecognitionConfig.newBuilder()
+            // the first request carries the config only
+            requestStream.onNext(StreamingRecognizeRequest.newBuilder()
+                    .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
                             .setConfig(RecognitionConfig.newBuilder()
                                     .setLanguageCode("en-US")
                                     .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
@@ -128,12 +155,29 @@ class MainActivity : AppCompatActivity() {
                                     .build())
                             .setInterimResults(false)
                             .setSingleUtterance(false)
-                            .build()
-                }
+                            .build())
+                    .build())
 
-                // send the next request
-                requestStream.onNext(builder.build())
+            // send requests as audio data becomes available and the network can take it;
+            // the capture is cancelled, and the microphone released, in onPause()
+            val sink = requestStream.asAudioSink { bytes ->
+                StreamingRecognizeRequest.newBuilder()
+                        .setAudioContent(bytes)
+                        .build()
+            }
+            val metrics = AudioMetrics()
+            mScope.launch(Dispatchers.Default + capture) {
+                try {
+                    audioFlow(MicrophoneSource()).sendTo(sink, ready,
+                            BackpressurePolicy.DROP_OLDEST, MAX_BUFFERED_BYTES, metrics)
+                } finally {
+                    Log.d(TAG, "sent ${metrics.sentBytes} bytes of audio, dropped " +
+                            "${metrics.droppedBytes} bytes in ${metrics.droppedChunks} chunks, " +
+                            "buffered at most ${metrics.peakBufferedBytes} bytes")
+                    requestStream.onCompleted()
+                }
             }
+            mCapture = capture
         } else {
             Log.e(TAG, "No permission to record! Please allow and then relaunch the app!")
         }
@@ -143,15 +187,16 @@ class MainActivity : AppCompatActivity() {
         super.onPause()
 
         // ensure mic data stops
-        mAudioEmitter?.stop()
-        mAudioEmitter = null
+        mCapture?.cancel()
+        mCapture = null
     }
 
     override fun onDestroy() {
         super.onDestroy()
 
         // cleanup
-        mSpeechClient.shutdown()
+        mScope.cancel()
+        mChannel.shutdown()
     }
 
     override fun onRequestPermissionsResult(requestCode: Int, permissions: Array<String>, grantResults: IntArray) {
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.examples.speechrecognition
+
+import com.google.protobuf.ByteString
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+// 20 ms of audio at 16 kHz
+private const val CHUNK_SIZE = 640
+
+/** Runs the benchmark, e.g. `-Dspeech.benchmark=true`. */
+private const val PROPERTY_BENCHMARK = "speech.benchmark"
+
+/**
+ * Checks the backpressure of [audioFlow] and [sendTo], and benchmarks them against the executor
+ * that they replaced.
+ */
+class AudioCaptureTest {
+
+    /** Audio that is available immediately; remembers the buffers it was given. */
+    private class FakeSource : PcmSource {
+
+        override val chunkSize = CHUNK_SIZE
+
+        val reads = AtomicInteger()
+        val buffers: MutableSet<ByteArray> =
+                Collections.synchronizedSet(Collections.newSetFromMap(IdentityHashMap()))
+
+        @Volatile
+        var released = false
+
+        override fun start() {}
+
+        override fun read(buffer: ByteArray): Int {
+            buffers.add(buffer)
+            buffer[0] = reads.incrementAndGet().toByte()
+            return buffer.size
+        }
+
+        override fun stop() {}
+
+        override fun release() {
+            released = true
+        }
+    }
+
+    /** Counts the audio it is sent. */
+    private class FakeSink(@Volatile override var isReady: Boolean = true) : AudioSink {
+
+        val chunks = AtomicInteger()
+
+        /** The first byte of each audio sent, which is the number of the first read in it. */
+        val firstReads: MutableList<Int> = Collections.synchronizedList(mutableListOf())
+
+        override fun send(audio: ByteString) {
+            chunks.incrementAndGet()
+            firstReads.add(audio.byteAt(0).toInt())
+        }
+    }
+
+    @Test
+    fun reusesBuffers() {
+        val source = FakeSource()
+        val sink = FakeSink()
+        runBlocking {
+            audioFlow(source).buffer(4).take(1000).sendTo(sink, ReadySignal())
+        }
+        assertEquals(1000, sink.chunks.get())
+        assertTrue("${source.buffers.size} buffers", source.buffers.size <= 16)
+        assertTrue(source.released)
+    }
+
+    @Test
+    fun stopsReadingWhileNotReady() {
+        val source = FakeSource()
+        val sink = FakeSink(isReady = false)
+        val ready = ReadySignal()
+        runBlocking {
+            val capture = launch(Dispatchers.Default) {
+                audioFlow(source).buffer(4).take(100).sendTo(sink, ready)
+            }
+            delay(200)
+            // the buffer, plus one chunk on either side of it
+            assertTrue("${source.reads.get()} reads", source.reads.get() <= 6)
+            assertEquals(0, sink.chunks.get())
+
+            sink.isReady = true
+            ready.onReady()
+            capture.join()
+        }
+        assertEquals(100, sink.chunks.get())
+        assertTrue(source.released)
+    }
+
+    @Test
+    fun stopsWhenTheCallEnds() {
+        for (policy in BackpressurePolicy.values()) {
+            val source = FakeSource()
+            val ready = ReadySignal()
+            runBlocking {
+                val capture = launch(Dispatchers.Default) {
+                    audioFlow(source).sendTo(FakeSink(isReady = false), ready, policy)
+                }
+                delay(100)
+                ready.close(IllegalStateException("The call failed"))
+                withTimeout(5000) {
+                    capture.join()
+                }
+                assertTrue("$policy", capture.isCancelled)
+            }
+            assertTrue("$policy", source.released)
+        }
+    }
+
+    @Test
+    fun dropsOldestWhileNotReady() {
+        val sink = FakeSink(isReady = false)
+        val metrics = AudioMetrics()
+        sendWhileNotReady(BackpressurePolicy.DROP_OLDEST, sink, metrics)
+        // The latest 4 of the 20 chunks are sent in order once the sink is ready
+        assertEquals(listOf(17, 18, 19, 20), sink.firstReads)
+        assertEquals(16L, metrics.droppedChunks)
+        assertEquals(16L * CHUNK_SIZE, metrics.droppedBytes)
+        assertEquals(4L * CHUNK_SIZE, metrics.sentBytes)
+        assertEquals(4 * CHUNK_SIZE, metrics.peakBufferedBytes)
+        assertEquals(0, metrics.bufferedBytes)
+    }
+
+    @Test
+    fun coalescesWhileNotReady() {
+        val sink = FakeSink(isReady = false)
+        val metrics = AudioMetrics()
+        sendWhileNotReady(BackpressurePolicy.COALESCE, sink, metrics)
+        // A single request with the latest 4 chunks
+        assertEquals(listOf(17), sink.firstReads)
+        assertEquals(16L, metrics.droppedChunks)
+        assertEquals(4L * CHUNK_SIZE, metrics.sentBytes)
+        assertEquals(0, metrics.bufferedBytes)
+    }
+
+    @Test
+    fun countsEveryChunk() {
+        val sink = FakeSink()
+        val metrics = AudioMetrics()
+        runBlocking(Dispatchers.Default) {
+            audioFlow(FakeSource()).take(1000)
+                    .sendTo(sink, ReadySignal(), BackpressurePolicy.DROP_OLDEST, 4 * CHUNK_SIZE,
+                            metrics)
+        }
+        // The fake source can outrun the sink, so some chunks may be dropped, but each one is
+        // either sent or counted
+        assertEquals(1000L, sink.chunks.get() + metrics.droppedChunks)
+        assertEquals(1000L * CHUNK_SIZE, metrics.sentBytes + metrics.droppedBytes)
+        assertEquals(0, metrics.bufferedBytes)
+    }
+
+    /**
+     * Sends 20 chunks with room for 4 while the sink is not ready, then lets the sink take the
+     * rest.
+     */
+    private fun sendWhileNotReady(policy: BackpressurePolicy, sink: FakeSink,
+            metrics: AudioMetrics) {
+        val ready = ReadySignal()
+        runBlocking {
+            val capture = launch(Dispatchers.Default) {
+                audioFlow(FakeSource()).take(20)
+                        .sendTo(sink, ready, policy, 4 * CHUNK_SIZE, metrics)
+            }
+            withTimeout(5000) {
+                while (metrics.droppedChunks < 16) {
+                    delay(10)
+                }
+            }
+            assertEquals(0, sink.chunks.get())
+            assertEquals(4 * CHUNK_SIZE, metrics.bufferedBytes)
+
+            sink.isReady = true
+            ready.onReady()
+            capture.join()
+        }
+    }
+
+    /**
+     * Compares the cost per chunk of each way of collecting [audioFlow] with the executor that it
+     * replaced. Only runs with `-Dspeech.benchmark=true`.
+     */
+    @Test
+    fun benchmark() {
+        assumeTrue("Set -D$PROPERTY_BENCHMARK=true to run",
+                java.lang.Boolean.getBoolean(PROPERTY_BENCHMARK))
+        val chunks = 200000
+        // Warm up
+        for (i in 0 until 3) {
+            measureExecutor(chunks / 10)
+            measureFlow(chunks / 10, BackpressurePolicy.PAUSE) { it.buffer(8) }
+        }
+        report("executor", chunks, measureExecutor(chunks))
+        report("flow, buffer(8)", chunks,
+                measureFlow(chunks, BackpressurePolicy.PAUSE) { it.buffer(8) })
+        report("flow, conflate()", chunks,
+                measureFlow(chunks, BackpressurePolicy.PAUSE) { it.conflate() })
+        report("flow, default buffer", chunks, measureFlow(chunks, BackpressurePolicy.PAUSE) { it })
+        report("flow, DROP_OLDEST", chunks,
+                measureFlow(chunks, BackpressurePolicy.DROP_OLDEST) { it })
+    }
+
+    /**
+     * Replicates the emitter before [audioFlow]: a [ScheduledExecutorService] that reads into a
+     * single buffer and sends a copy of it. On a device, the blocking read of the microphone paces
+     * it; here it is scheduled as often as it can run, so that only its own overhead is measured.
+     *
+     * @return The elapsed nanoseconds.
+     */
+    private fun measureExecutor(chunks: Int): Long {
+        val source = FakeSource()
+        val sink = FakeSink()
+        val buffer = ByteArray(source.chunkSize)
+        val done = CountDownLatch(1)
+        val executor = Executors.newSingleThreadScheduledExecutor()
+        val start = System.nanoTime()
+        executor.scheduleAtFixedRate({
+            if (done.count > 0) {
+                val read = source.read(buffer)
+                if (read > 0) {
+                    sink.send(ByteString.copyFrom(buffer, 0, read))
+                    if (sink.chunks.get() == chunks) {
+                        done.countDown()
+                    }
+                }
+            }
+        }, 0, 1, TimeUnit.NANOSECONDS)
+        done.await()
+        val elapsed = System.nanoTime() - start
+        executor.shutdown()
+        executor.awaitTermination(5, TimeUnit.SECONDS)
+        return elapsed
+    }
+
+    /** @return The elapsed nanoseconds. */
+    private fun measureFlow(chunks: Int, policy: BackpressurePolicy,
+            buffering: (Flow<AudioChunk>) -> Flow<AudioChunk>): Long {
+        val sink = FakeSink()
+        val metrics = AudioMetrics()
+        val start = System.nanoTime()
+        runBlocking(Dispatchers.Default) {
+            buffering(audioFlow(FakeSource())).take(chunks)
+                    .sendTo(sink, ReadySignal(), policy, metrics = metrics)
+        }
+        val elapsed = System.nanoTime() - start
+        // Only DROP_OLDEST may drop chunks, and only if the sink falls behind
+        assertEquals(chunks.toLong(), sink.chunks.get() + metrics.droppedChunks)
+        return elapsed
+    }
+
+    private fun report(name: String, chunks: Int, elapsed: Long) {
+        println(String.format("%s: %.0f ns per chunk, %.0f chunks per second",
+                name, elapsed.toDouble() / chunks, chunks * 1e9 / elapsed))
+    }
+
+}